@@ -1,9 +1,16 @@
 package org.pentaho.di.streaming;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
@@ -19,13 +26,22 @@ import org.pentaho.di.repository.ObjectId;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.repository.RepositoryDirectoryInterface;
 import org.pentaho.di.streaming.www.GetStreamingServicesServlet;
+import org.pentaho.di.streaming.www.StreamingResponseOutputStream;
 import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingJournalSyncPolicy;
+import org.pentaho.di.streaming.www.cache.StreamingOverflowPolicy;
+import org.pentaho.di.streaming.www.cache.StreamingRowEncoding;
+import org.pentaho.di.streaming.www.cache.StreamingSchema;
+import org.pentaho.di.streaming.www.cache.StreamingStorageType;
 import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
 import org.pentaho.metastore.persist.MetaStoreAttribute;
 import org.pentaho.metastore.persist.MetaStoreElementType;
 
 @MetaStoreElementType( name = "Kettle Streaming Service", description = "This element type contains streaming data services" )
 public class StreamingService {
+  /** The layouts of the remote streaming services read so far, by URL */
+  private static final Map<String, StreamingSchema> remoteSchemas = new ConcurrentHashMap<String, StreamingSchema>();
+
   protected String name;
 
   @MetaStoreAttribute( key = "stepname" )
@@ -49,6 +65,9 @@ public class StreamingService {
   @MetaStoreAttribute( key = "max_cache_size" )
   protected String cacheSize;
 
+  @MetaStoreAttribute( key = "max_cache_bytes" )
+  protected String cacheBytes;
+
   @MetaStoreAttribute( key = "clear_cache_on_start" )
   protected boolean clearingOnStart;
   
@@ -58,9 +77,64 @@ public class StreamingService {
   @MetaStoreAttribute( key = "trans_end_cache_flip" )
   protected boolean cacheFlipping;
   
+  @MetaStoreAttribute( key = "cache_storage" )
+  protected StreamingStorageType storageType;
+
+  @MetaStoreAttribute( key = "cache_segment_size" )
+  protected String segmentSize; // in MB
+
+  @MetaStoreAttribute( key = "async_capture" )
+  protected boolean asyncCapture;
+
+  @MetaStoreAttribute( key = "capture_queue_size" )
+  protected String captureQueueSize;
+
+  @MetaStoreAttribute( key = "capture_overflow_policy" )
+  protected StreamingOverflowPolicy overflowPolicy;
+
+  @MetaStoreAttribute( key = "expiry_granularity" )
+  protected String expiryGranularity; // in ms
+
+  @MetaStoreAttribute( key = "journal" )
+  protected boolean journaling;
+
+  @MetaStoreAttribute( key = "journal_directory" )
+  protected String journalDirectory;
+
+  @MetaStoreAttribute( key = "journal_sync" )
+  protected StreamingJournalSyncPolicy journalSyncPolicy;
+
+  @MetaStoreAttribute( key = "cache_hot_size" )
+  protected String hotSize;
+
+  @MetaStoreAttribute( key = "cache_tier_directory" )
+  protected String tierDirectory;
+
+  @MetaStoreAttribute( key = "string_dictionary_size" )
+  protected String dictionarySize;
+
+  @MetaStoreAttribute( key = "rollups" )
+  protected String rollups;
+
+  @MetaStoreAttribute( key = "indexed_fields" )
+  protected String indexedFields;
+
+  @MetaStoreAttribute( key = "sketch_fields" )
+  protected String sketchFields;
+
+  @MetaStoreAttribute( key = "sketch_bucket_size" )
+  protected String sketchBucketSize; // in seconds
+
+  @MetaStoreAttribute( key = "row_encoding" )
+  protected StreamingRowEncoding rowEncoding;
+
 
   public StreamingService() {
     logLevel = LogLevel.BASIC;
+    storageType = StreamingStorageType.OBJECTS;
+    overflowPolicy = StreamingOverflowPolicy.BLOCK;
+    journalSyncPolicy = StreamingJournalSyncPolicy.INTERVAL;
+    rowEncoding = StreamingRowEncoding.NONE;
   }
 
   /**
@@ -175,6 +249,20 @@ public class StreamingService {
     this.cacheSize = cacheSize;
   }
 
+  /**
+   * @return the maximum estimated memory use of the cache in bytes
+   */
+  public String getCacheBytes() {
+    return cacheBytes;
+  }
+
+  /**
+   * @param cacheBytes the maximum estimated memory use of the cache in bytes
+   */
+  public void setCacheBytes( String cacheBytes ) {
+    this.cacheBytes = cacheBytes;
+  }
+
   /**
    * Try to look up the transObjectId for transformation which are referenced by path 
    * @param repository The repository to use.
@@ -234,8 +322,15 @@ public class StreamingService {
     String url = null;
     URI uri = null;
     
+    // Send the fingerprint of the layout we read last time, it's only sent back if it changed
+    //
+    String schemaKey = null;
+    StreamingSchema knownSchema = null;
     try {
-      url = slaveServer.constructUrl(GetStreamingServicesServlet.CONTEXT_PATH+"?service="+serviceName+"&binary=true");
+      url = slaveServer.constructUrl(GetStreamingServicesServlet.CONTEXT_PATH+"?service="+serviceName+"&binary=true&framed=true");
+      schemaKey = url;
+      knownSchema = remoteSchemas.get(schemaKey);
+      url += "&schema="+(knownSchema==null ? "" : knownSchema.getFingerprint());
       
       uri = new URI(url);
     } catch(Exception e) {
@@ -244,6 +339,7 @@ public class StreamingService {
       
     GetMethod getMethod = new GetMethod(url);
     getMethod.setDoAuthentication(true);
+    getMethod.addRequestHeader("Accept-Encoding", StreamingResponseOutputStream.GZIP+", "+StreamingResponseOutputStream.DEFLATE);
     
     try {
       
@@ -259,51 +355,74 @@ public class StreamingService {
         throw new KettleException("Unable to get data from streaming service '"+serviceName+"', response ["+responseCode+"] on URL: '"+url+"'");
       }
       
-      // Start reading...
+      // Start reading, decompressing larger responses...
       //
-      DataInputStream dis = new DataInputStream(getMethod.getResponseBodyAsStream());
+      InputStream body = getMethod.getResponseBodyAsStream();
+      Header contentEncoding = getMethod.getResponseHeader("Content-Encoding");
+      if (contentEncoding!=null) {
+        if (StreamingResponseOutputStream.GZIP.equalsIgnoreCase(contentEncoding.getValue())) {
+          body = new GZIPInputStream(body);
+        } else if (StreamingResponseOutputStream.DEFLATE.equalsIgnoreCase(contentEncoding.getValue())) {
+          body = new InflaterInputStream(body);
+        }
+      }
+      DataInputStream dis = new DataInputStream(new BufferedInputStream(body));
       
-      // Read the metadata
+      // Read the metadata, unless we have it already
       //
-      RowMetaInterface rowMeta = new RowMeta(dis);
-      log.logBasic("Row metadata read: "+rowMeta.toString());
+      String fingerprint = dis.readUTF();
+      RowMetaInterface rowMeta;
+      if (dis.readBoolean()) {
+        rowMeta = new RowMeta(dis);
+        remoteSchemas.put(schemaKey, new StreamingSchema(rowMeta, fingerprint));
+        log.logBasic("Row metadata read: "+rowMeta.toString());
+      } else {
+        rowMeta = knownSchema.getRowMeta().clone();
+        log.logBasic("Row metadata unchanged: "+rowMeta.toString());
+      }
       
       entry.setRowMeta(rowMeta);
       
-      // Number of rows...
+      // Read the rows, frame by frame until the empty frame or an error frame
       //
-      int nrRows = dis.readInt();
-      log.logBasic("Expected nr of rows: "+nrRows);
+      int nrRows = 0;
+      int frameRows = dis.readInt();
+      while (frameRows>0) {
+        for (int i=0;i<frameRows;i++) {
+          // The id
+          //
+          long id = dis.readLong();
+          long time = dis.readLong();
+          
+          // The row data
+          //
+          Object[] rowData = rowMeta.readData(dis);
+          
+          StreamingTimedNumberedRow row = new StreamingTimedNumberedRow(id, time, rowData);
+          entry.addRow(row);    
+        }
+        nrRows+=frameRows;
+        frameRows = dis.readInt();
+      }
+      if (frameRows==GetStreamingServicesServlet.FRAME_ERROR) {
+        throw new KettleException("Error getting data from streaming service '"+serviceName+"' after "+nrRows+" rows: "+dis.readUTF());
+      }
+      log.logBasic("Nr of rows read: "+nrRows);
       
-      // Read the rows...
+      // The last of the stream we don't use (yet) but we just read it...
       //
-      for (int i=0;i<nrRows;i++) {
-        // The id
+      if (nrRows>0) {
+        // The last ID and time of the cache...
         //
-        long id = dis.readLong();
-        long time = dis.readLong();
+        dis.readLong();
+        dis.readLong();
         
-        // The row data
+        // The first ID and time of the cache...
         //
-        Object[] rowData = rowMeta.readData(dis);
-        
-        StreamingTimedNumberedRow row = new StreamingTimedNumberedRow(id, time, rowData);
-        entry.addRow(row);    
+        dis.readLong();
+        dis.readLong();
       }
       
-      // The last of the stream we don't use (yet) but we just read it...
-      //
-      
-      // The last ID and time of the cache...
-      //
-      dis.readLong();
-      dis.readLong();
-      
-      // The first ID and time of the cache...
-      //
-      dis.readLong();
-      dis.readLong();
-      
       return entry;
     } catch(Exception e) {
       throw new KettleException("Unable to get data from cache service '"+serviceName+"'", e);
@@ -330,5 +449,235 @@ public class StreamingService {
     this.cacheFlipping = cacheFlipping;
   }
 
-  
+  public StreamingStorageType getStorageType() {
+    return storageType;
+  }
+
+  public void setStorageType(StreamingStorageType storageType) {
+    this.storageType = storageType;
+  }
+
+  /**
+   * @return the size of a storage segment in MB
+   */
+  public String getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * @param segmentSize the size of a storage segment in MB
+   */
+  public void setSegmentSize(String segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * @return true if the captured rows are queued and added to the cache by a separate thread
+   */
+  public boolean isAsyncCapture() {
+    return asyncCapture;
+  }
+
+  /**
+   * @param asyncCapture true if the captured rows are queued and added to the cache by a separate thread
+   */
+  public void setAsyncCapture( boolean asyncCapture ) {
+    this.asyncCapture = asyncCapture;
+  }
+
+  /**
+   * @return the maximum number of rows in the asynchronous capture queue
+   */
+  public String getCaptureQueueSize() {
+    return captureQueueSize;
+  }
+
+  /**
+   * @param captureQueueSize the maximum number of rows in the asynchronous capture queue
+   */
+  public void setCaptureQueueSize( String captureQueueSize ) {
+    this.captureQueueSize = captureQueueSize;
+  }
+
+  /**
+   * @return what to do when the asynchronous capture queue is full
+   */
+  public StreamingOverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * @param overflowPolicy what to do when the asynchronous capture queue is full
+   */
+  public void setOverflowPolicy( StreamingOverflowPolicy overflowPolicy ) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * @return the time between two sweeps for expired rows in ms
+   */
+  public String getExpiryGranularity() {
+    return expiryGranularity;
+  }
+
+  /**
+   * @param expiryGranularity the time between two sweeps for expired rows in ms
+   */
+  public void setExpiryGranularity( String expiryGranularity ) {
+    this.expiryGranularity = expiryGranularity;
+  }
+
+  /**
+   * @return true if the captured rows are written to a journal to restore the cache after a server restart
+   */
+  public boolean isJournaling() {
+    return journaling;
+  }
+
+  /**
+   * @param journaling true if the captured rows are written to a journal to restore the cache after a server restart
+   */
+  public void setJournaling( boolean journaling ) {
+    this.journaling = journaling;
+  }
+
+  /**
+   * @return the folder to write the journal files to
+   */
+  public String getJournalDirectory() {
+    return journalDirectory;
+  }
+
+  /**
+   * @param journalDirectory the folder to write the journal files to
+   */
+  public void setJournalDirectory( String journalDirectory ) {
+    this.journalDirectory = journalDirectory;
+  }
+
+  /**
+   * @return when the journal is forced to disk
+   */
+  public StreamingJournalSyncPolicy getJournalSyncPolicy() {
+    return journalSyncPolicy;
+  }
+
+  /**
+   * @param journalSyncPolicy when the journal is forced to disk
+   */
+  public void setJournalSyncPolicy( StreamingJournalSyncPolicy journalSyncPolicy ) {
+    this.journalSyncPolicy = journalSyncPolicy;
+  }
+
+  /**
+   * @return the number of rows a tiered cache keeps in memory
+   */
+  public String getHotSize() {
+    return hotSize;
+  }
+
+  /**
+   * @param hotSize the number of rows a tiered cache keeps in memory
+   */
+  public void setHotSize( String hotSize ) {
+    this.hotSize = hotSize;
+  }
+
+  /**
+   * @return the folder in which a tiered cache keeps its segment files
+   */
+  public String getTierDirectory() {
+    return tierDirectory;
+  }
+
+  /**
+   * @param tierDirectory the folder in which a tiered cache keeps its segment files
+   */
+  public void setTierDirectory( String tierDirectory ) {
+    this.tierDirectory = tierDirectory;
+  }
+
+  /**
+   * @return the maximum number of distinct values to intern per String field (0 : no interning)
+   */
+  public String getDictionarySize() {
+    return dictionarySize;
+  }
+
+  /**
+   * @param dictionarySize the maximum number of distinct values to intern per String field (0 : no interning)
+   */
+  public void setDictionarySize( String dictionarySize ) {
+    this.dictionarySize = dictionarySize;
+  }
+
+  /**
+   * @return the rollups to keep of the captured rows, see StreamingRollupDefinition for the format
+   */
+  public String getRollups() {
+    return rollups;
+  }
+
+  /**
+   * @param rollups the rollups to keep of the captured rows, see StreamingRollupDefinition for the format
+   */
+  public void setRollups( String rollups ) {
+    this.rollups = rollups;
+  }
+
+  /**
+   * @return the comma separated names of the fields to keep a hash index on
+   */
+  public String getIndexedFields() {
+    return indexedFields;
+  }
+
+  /**
+   * @param indexedFields the comma separated names of the fields to keep a hash index on
+   */
+  public void setIndexedFields( String indexedFields ) {
+    this.indexedFields = indexedFields;
+  }
+
+  /**
+   * @return the sketches to keep of the captured rows, for example: distinct(device), quantiles(latency)
+   */
+  public String getSketchFields() {
+    return sketchFields;
+  }
+
+  /**
+   * @param sketchFields the sketches to keep of the captured rows, for example: distinct(device), quantiles(latency)
+   */
+  public void setSketchFields( String sketchFields ) {
+    this.sketchFields = sketchFields;
+  }
+
+  /**
+   * @return the length of a sketch time bucket in seconds
+   */
+  public String getSketchBucketSize() {
+    return sketchBucketSize;
+  }
+
+  /**
+   * @param sketchBucketSize the length of a sketch time bucket in seconds
+   */
+  public void setSketchBucketSize( String sketchBucketSize ) {
+    this.sketchBucketSize = sketchBucketSize;
+  }
+
+  /**
+   * @return the forms to serialize the rows in when they are captured, so that readers can copy them as they are
+   */
+  public StreamingRowEncoding getRowEncoding() {
+    return rowEncoding;
+  }
+
+  /**
+   * @param rowEncoding the forms to serialize the rows in when they are captured, so that readers can copy them as they are
+   */
+  public void setRowEncoding( StreamingRowEncoding rowEncoding ) {
+    this.rowEncoding = rowEncoding;
+  }
 }
@@ -41,6 +41,10 @@ import org.pentaho.di.core.logging.LogLevel;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.streaming.StreamingService;
 import org.pentaho.di.streaming.util.StreamingConst;
+import org.pentaho.di.streaming.www.cache.StreamingJournalSyncPolicy;
+import org.pentaho.di.streaming.www.cache.StreamingOverflowPolicy;
+import org.pentaho.di.streaming.www.cache.StreamingRowEncoding;
+import org.pentaho.di.streaming.www.cache.StreamingStorageType;
 import org.pentaho.di.repository.ObjectId;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.trans.TransMeta;
@@ -69,7 +73,25 @@ public class StreamingTransDialogTab implements TransDialogPluginInterface {
   private CCombo wServiceName;
   private CCombo wServiceStep;
   private TextVar wServiceCacheDuration;
+  private TextVar wExpiryGranularity;
   private TextVar wServiceCacheSize;
+  private TextVar wServiceCacheBytes;
+  private CCombo wServiceCacheStorage;
+  private TextVar wServiceSegmentSize;
+  private Button wAsyncCapture;
+  private TextVar wCaptureQueueSize;
+  private CCombo wOverflowPolicy;
+  private Button wJournaling;
+  private TextVar wJournalDirectory;
+  private CCombo wJournalSync;
+  private TextVar wHotSize;
+  private TextVar wTierDirectory;
+  private TextVar wDictionarySize;
+  private TextVar wRollups;
+  private TextVar wIndexedFields;
+  private TextVar wSketchFields;
+  private TextVar wSketchBucketSize;
+  private CCombo wRowEncoding;
 
   private Button wPreloadService;
 
@@ -171,6 +193,28 @@ public class StreamingTransDialogTab implements TransDialogPluginInterface {
     wServiceCacheDuration.setLayoutData( fdServiceCacheDuration );
     lastControl = wServiceCacheDuration;
 
+    // 
+    // Expiry granularity
+    //
+    Label wlExpiryGranularity = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlExpiryGranularity.setText( BaseMessages.getString( PKG, "TransDialog.ExpiryGranularity.Label" ) );
+    wlExpiryGranularity.setToolTipText( BaseMessages.getString( PKG, "TransDialog.ExpiryGranularity.Tooltip" ) );
+    props.setLook( wlExpiryGranularity );
+    FormData fdlExpiryGranularity = new FormData();
+    fdlExpiryGranularity.left = new FormAttachment( 0, 0 );
+    fdlExpiryGranularity.right = new FormAttachment( middle, -margin );
+    fdlExpiryGranularity.top = new FormAttachment( lastControl, margin );
+    wlExpiryGranularity.setLayoutData( fdlExpiryGranularity );
+    wExpiryGranularity = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wExpiryGranularity.setToolTipText( BaseMessages.getString( PKG, "TransDialog.ExpiryGranularity.Tooltip" ) );
+    props.setLook( wExpiryGranularity );
+    FormData fdExpiryGranularity = new FormData();
+    fdExpiryGranularity.left = new FormAttachment( middle, 0 );
+    fdExpiryGranularity.right = new FormAttachment( 100, 0 );
+    fdExpiryGranularity.top = new FormAttachment( lastControl, margin );
+    wExpiryGranularity.setLayoutData( fdExpiryGranularity );
+    lastControl = wExpiryGranularity;
+
     // 
     // Cache size
     //
@@ -193,6 +237,388 @@ public class StreamingTransDialogTab implements TransDialogPluginInterface {
     wServiceCacheSize.setLayoutData( fdServiceCacheSize );
     lastControl = wServiceCacheSize;
 
+    // 
+    // Cache size in bytes
+    //
+    Label wlServiceCacheBytes = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlServiceCacheBytes.setText( BaseMessages.getString( PKG, "TransDialog.ServiceCacheBytes.Label" ) );
+    wlServiceCacheBytes.setToolTipText( BaseMessages.getString( PKG, "TransDialog.ServiceCacheBytes.Tooltip" ) );
+    props.setLook( wlServiceCacheBytes );
+    FormData fdlServiceCacheBytes = new FormData();
+    fdlServiceCacheBytes.left = new FormAttachment( 0, 0 );
+    fdlServiceCacheBytes.right = new FormAttachment( middle, -margin );
+    fdlServiceCacheBytes.top = new FormAttachment( lastControl, margin );
+    wlServiceCacheBytes.setLayoutData( fdlServiceCacheBytes );
+    wServiceCacheBytes = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wServiceCacheBytes.setToolTipText( BaseMessages.getString( PKG, "TransDialog.ServiceCacheBytes.Tooltip" ) );
+    props.setLook( wServiceCacheBytes );
+    FormData fdServiceCacheBytes = new FormData();
+    fdServiceCacheBytes.left = new FormAttachment( middle, 0 );
+    fdServiceCacheBytes.right = new FormAttachment( 100, 0 );
+    fdServiceCacheBytes.top = new FormAttachment( lastControl, margin );
+    wServiceCacheBytes.setLayoutData( fdServiceCacheBytes );
+    lastControl = wServiceCacheBytes;
+
+    // 
+    // Cache storage
+    //
+    Label wlServiceCacheStorage = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlServiceCacheStorage.setText( BaseMessages.getString( PKG, "TransDialog.ServiceCacheStorage.Label" ) );
+    wlServiceCacheStorage.setToolTipText( BaseMessages.getString( PKG, "TransDialog.ServiceCacheStorage.Tooltip" ) );
+    props.setLook( wlServiceCacheStorage );
+    FormData fdlServiceCacheStorage = new FormData();
+    fdlServiceCacheStorage.left = new FormAttachment( 0, 0 );
+    fdlServiceCacheStorage.right = new FormAttachment( middle, -margin );
+    fdlServiceCacheStorage.top = new FormAttachment( lastControl, margin );
+    wlServiceCacheStorage.setLayoutData( fdlServiceCacheStorage );
+    wServiceCacheStorage = new CCombo( wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wServiceCacheStorage.setToolTipText( BaseMessages.getString( PKG, "TransDialog.ServiceCacheStorage.Tooltip" ) );
+    props.setLook( wServiceCacheStorage );
+    FormData fdServiceCacheStorage = new FormData();
+    fdServiceCacheStorage.left = new FormAttachment( middle, 0 );
+    fdServiceCacheStorage.right = new FormAttachment( 100, 0 );
+    fdServiceCacheStorage.top = new FormAttachment( lastControl, margin );
+    wServiceCacheStorage.setLayoutData( fdServiceCacheStorage );
+    wServiceCacheStorage.setEditable( false );
+    wServiceCacheStorage.setItems( StreamingStorageType.getDescriptions() );
+    lastControl = wServiceCacheStorage;
+
+    // 
+    // Segment size
+    //
+    Label wlServiceSegmentSize = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlServiceSegmentSize.setText( BaseMessages.getString( PKG, "TransDialog.ServiceSegmentSize.Label" ) );
+    wlServiceSegmentSize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.ServiceSegmentSize.Tooltip" ) );
+    props.setLook( wlServiceSegmentSize );
+    FormData fdlServiceSegmentSize = new FormData();
+    fdlServiceSegmentSize.left = new FormAttachment( 0, 0 );
+    fdlServiceSegmentSize.right = new FormAttachment( middle, -margin );
+    fdlServiceSegmentSize.top = new FormAttachment( lastControl, margin );
+    wlServiceSegmentSize.setLayoutData( fdlServiceSegmentSize );
+    wServiceSegmentSize = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wServiceSegmentSize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.ServiceSegmentSize.Tooltip" ) );
+    props.setLook( wServiceSegmentSize );
+    FormData fdServiceSegmentSize = new FormData();
+    fdServiceSegmentSize.left = new FormAttachment( middle, 0 );
+    fdServiceSegmentSize.right = new FormAttachment( 100, 0 );
+    fdServiceSegmentSize.top = new FormAttachment( lastControl, margin );
+    wServiceSegmentSize.setLayoutData( fdServiceSegmentSize );
+    lastControl = wServiceSegmentSize;
+
+    // 
+    // Hot rows kept in memory
+    //
+    Label wlHotSize = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlHotSize.setText( BaseMessages.getString( PKG, "TransDialog.HotSize.Label" ) );
+    wlHotSize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.HotSize.Tooltip" ) );
+    props.setLook( wlHotSize );
+    FormData fdlHotSize = new FormData();
+    fdlHotSize.left = new FormAttachment( 0, 0 );
+    fdlHotSize.right = new FormAttachment( middle, -margin );
+    fdlHotSize.top = new FormAttachment( lastControl, margin );
+    wlHotSize.setLayoutData( fdlHotSize );
+    wHotSize = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wHotSize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.HotSize.Tooltip" ) );
+    props.setLook( wHotSize );
+    FormData fdHotSize = new FormData();
+    fdHotSize.left = new FormAttachment( middle, 0 );
+    fdHotSize.right = new FormAttachment( 100, 0 );
+    fdHotSize.top = new FormAttachment( lastControl, margin );
+    wHotSize.setLayoutData( fdHotSize );
+    lastControl = wHotSize;
+
+    // 
+    // Tier folder
+    //
+    Label wlTierDirectory = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlTierDirectory.setText( BaseMessages.getString( PKG, "TransDialog.TierDirectory.Label" ) );
+    wlTierDirectory.setToolTipText( BaseMessages.getString( PKG, "TransDialog.TierDirectory.Tooltip" ) );
+    props.setLook( wlTierDirectory );
+    FormData fdlTierDirectory = new FormData();
+    fdlTierDirectory.left = new FormAttachment( 0, 0 );
+    fdlTierDirectory.right = new FormAttachment( middle, -margin );
+    fdlTierDirectory.top = new FormAttachment( lastControl, margin );
+    wlTierDirectory.setLayoutData( fdlTierDirectory );
+    wTierDirectory = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wTierDirectory.setToolTipText( BaseMessages.getString( PKG, "TransDialog.TierDirectory.Tooltip" ) );
+    props.setLook( wTierDirectory );
+    FormData fdTierDirectory = new FormData();
+    fdTierDirectory.left = new FormAttachment( middle, 0 );
+    fdTierDirectory.right = new FormAttachment( 100, 0 );
+    fdTierDirectory.top = new FormAttachment( lastControl, margin );
+    wTierDirectory.setLayoutData( fdTierDirectory );
+    lastControl = wTierDirectory;
+
+    // 
+    // String dictionary size
+    //
+    Label wlDictionarySize = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlDictionarySize.setText( BaseMessages.getString( PKG, "TransDialog.DictionarySize.Label" ) );
+    wlDictionarySize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.DictionarySize.Tooltip" ) );
+    props.setLook( wlDictionarySize );
+    FormData fdlDictionarySize = new FormData();
+    fdlDictionarySize.left = new FormAttachment( 0, 0 );
+    fdlDictionarySize.right = new FormAttachment( middle, -margin );
+    fdlDictionarySize.top = new FormAttachment( lastControl, margin );
+    wlDictionarySize.setLayoutData( fdlDictionarySize );
+    wDictionarySize = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wDictionarySize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.DictionarySize.Tooltip" ) );
+    props.setLook( wDictionarySize );
+    FormData fdDictionarySize = new FormData();
+    fdDictionarySize.left = new FormAttachment( middle, 0 );
+    fdDictionarySize.right = new FormAttachment( 100, 0 );
+    fdDictionarySize.top = new FormAttachment( lastControl, margin );
+    wDictionarySize.setLayoutData( fdDictionarySize );
+    lastControl = wDictionarySize;
+
+    // 
+    // Rollups
+    //
+    Label wlRollups = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlRollups.setText( BaseMessages.getString( PKG, "TransDialog.Rollups.Label" ) );
+    wlRollups.setToolTipText( BaseMessages.getString( PKG, "TransDialog.Rollups.Tooltip" ) );
+    props.setLook( wlRollups );
+    FormData fdlRollups = new FormData();
+    fdlRollups.left = new FormAttachment( 0, 0 );
+    fdlRollups.right = new FormAttachment( middle, -margin );
+    fdlRollups.top = new FormAttachment( lastControl, margin );
+    wlRollups.setLayoutData( fdlRollups );
+    wRollups = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wRollups.setToolTipText( BaseMessages.getString( PKG, "TransDialog.Rollups.Tooltip" ) );
+    props.setLook( wRollups );
+    FormData fdRollups = new FormData();
+    fdRollups.left = new FormAttachment( middle, 0 );
+    fdRollups.right = new FormAttachment( 100, 0 );
+    fdRollups.top = new FormAttachment( lastControl, margin );
+    wRollups.setLayoutData( fdRollups );
+    lastControl = wRollups;
+
+    // 
+    // Indexed fields
+    //
+    Label wlIndexedFields = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlIndexedFields.setText( BaseMessages.getString( PKG, "TransDialog.IndexedFields.Label" ) );
+    wlIndexedFields.setToolTipText( BaseMessages.getString( PKG, "TransDialog.IndexedFields.Tooltip" ) );
+    props.setLook( wlIndexedFields );
+    FormData fdlIndexedFields = new FormData();
+    fdlIndexedFields.left = new FormAttachment( 0, 0 );
+    fdlIndexedFields.right = new FormAttachment( middle, -margin );
+    fdlIndexedFields.top = new FormAttachment( lastControl, margin );
+    wlIndexedFields.setLayoutData( fdlIndexedFields );
+    wIndexedFields = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wIndexedFields.setToolTipText( BaseMessages.getString( PKG, "TransDialog.IndexedFields.Tooltip" ) );
+    props.setLook( wIndexedFields );
+    FormData fdIndexedFields = new FormData();
+    fdIndexedFields.left = new FormAttachment( middle, 0 );
+    fdIndexedFields.right = new FormAttachment( 100, 0 );
+    fdIndexedFields.top = new FormAttachment( lastControl, margin );
+    wIndexedFields.setLayoutData( fdIndexedFields );
+    lastControl = wIndexedFields;
+
+    // 
+    // Sketches
+    //
+    Label wlSketchFields = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlSketchFields.setText( BaseMessages.getString( PKG, "TransDialog.SketchFields.Label" ) );
+    wlSketchFields.setToolTipText( BaseMessages.getString( PKG, "TransDialog.SketchFields.Tooltip" ) );
+    props.setLook( wlSketchFields );
+    FormData fdlSketchFields = new FormData();
+    fdlSketchFields.left = new FormAttachment( 0, 0 );
+    fdlSketchFields.right = new FormAttachment( middle, -margin );
+    fdlSketchFields.top = new FormAttachment( lastControl, margin );
+    wlSketchFields.setLayoutData( fdlSketchFields );
+    wSketchFields = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wSketchFields.setToolTipText( BaseMessages.getString( PKG, "TransDialog.SketchFields.Tooltip" ) );
+    props.setLook( wSketchFields );
+    FormData fdSketchFields = new FormData();
+    fdSketchFields.left = new FormAttachment( middle, 0 );
+    fdSketchFields.right = new FormAttachment( 100, 0 );
+    fdSketchFields.top = new FormAttachment( lastControl, margin );
+    wSketchFields.setLayoutData( fdSketchFields );
+    lastControl = wSketchFields;
+
+    // 
+    // Sketch bucket size
+    //
+    Label wlSketchBucketSize = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlSketchBucketSize.setText( BaseMessages.getString( PKG, "TransDialog.SketchBucketSize.Label" ) );
+    wlSketchBucketSize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.SketchBucketSize.Tooltip" ) );
+    props.setLook( wlSketchBucketSize );
+    FormData fdlSketchBucketSize = new FormData();
+    fdlSketchBucketSize.left = new FormAttachment( 0, 0 );
+    fdlSketchBucketSize.right = new FormAttachment( middle, -margin );
+    fdlSketchBucketSize.top = new FormAttachment( lastControl, margin );
+    wlSketchBucketSize.setLayoutData( fdlSketchBucketSize );
+    wSketchBucketSize = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wSketchBucketSize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.SketchBucketSize.Tooltip" ) );
+    props.setLook( wSketchBucketSize );
+    FormData fdSketchBucketSize = new FormData();
+    fdSketchBucketSize.left = new FormAttachment( middle, 0 );
+    fdSketchBucketSize.right = new FormAttachment( 100, 0 );
+    fdSketchBucketSize.top = new FormAttachment( lastControl, margin );
+    wSketchBucketSize.setLayoutData( fdSketchBucketSize );
+    lastControl = wSketchBucketSize;
+
+    // 
+    // Row encoding
+    //
+    Label wlRowEncoding = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlRowEncoding.setText( BaseMessages.getString( PKG, "TransDialog.RowEncoding.Label" ) );
+    wlRowEncoding.setToolTipText( BaseMessages.getString( PKG, "TransDialog.RowEncoding.Tooltip" ) );
+    props.setLook( wlRowEncoding );
+    FormData fdlRowEncoding = new FormData();
+    fdlRowEncoding.left = new FormAttachment( 0, 0 );
+    fdlRowEncoding.right = new FormAttachment( middle, -margin );
+    fdlRowEncoding.top = new FormAttachment( lastControl, margin );
+    wlRowEncoding.setLayoutData( fdlRowEncoding );
+    wRowEncoding = new CCombo( wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wRowEncoding.setToolTipText( BaseMessages.getString( PKG, "TransDialog.RowEncoding.Tooltip" ) );
+    props.setLook( wRowEncoding );
+    FormData fdRowEncoding = new FormData();
+    fdRowEncoding.left = new FormAttachment( middle, 0 );
+    fdRowEncoding.right = new FormAttachment( 100, 0 );
+    fdRowEncoding.top = new FormAttachment( lastControl, margin );
+    wRowEncoding.setLayoutData( fdRowEncoding );
+    wRowEncoding.setEditable( false );
+    wRowEncoding.setItems( StreamingRowEncoding.getDescriptions() );
+    lastControl = wRowEncoding;
+
+    // 
+    // Asynchronous capture?
+    //
+    Label wlAsyncCapture = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlAsyncCapture.setText( BaseMessages.getString( PKG, "TransDialog.AsyncCapture.Label" ) );
+    wlAsyncCapture.setToolTipText( BaseMessages.getString( PKG, "TransDialog.AsyncCapture.Tooltip" ) );
+    props.setLook( wlAsyncCapture );
+    FormData fdlAsyncCapture = new FormData();
+    fdlAsyncCapture.left = new FormAttachment( 0, 0 );
+    fdlAsyncCapture.right = new FormAttachment( middle, -margin );
+    fdlAsyncCapture.top = new FormAttachment( lastControl, margin );
+    wlAsyncCapture.setLayoutData( fdlAsyncCapture );
+    wAsyncCapture = new Button( wStreamingServiceComp, SWT.CHECK );
+    wAsyncCapture.setToolTipText( BaseMessages.getString( PKG, "TransDialog.AsyncCapture.Tooltip" ) );
+    props.setLook( wAsyncCapture );
+    FormData fdAsyncCapture = new FormData();
+    fdAsyncCapture.left = new FormAttachment( middle, 0 );
+    fdAsyncCapture.right = new FormAttachment( 100, 0 );
+    fdAsyncCapture.top = new FormAttachment( lastControl, margin );
+    wAsyncCapture.setLayoutData( fdAsyncCapture );
+    lastControl = wAsyncCapture;
+
+    // 
+    // Capture queue size
+    //
+    Label wlCaptureQueueSize = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlCaptureQueueSize.setText( BaseMessages.getString( PKG, "TransDialog.CaptureQueueSize.Label" ) );
+    wlCaptureQueueSize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.CaptureQueueSize.Tooltip" ) );
+    props.setLook( wlCaptureQueueSize );
+    FormData fdlCaptureQueueSize = new FormData();
+    fdlCaptureQueueSize.left = new FormAttachment( 0, 0 );
+    fdlCaptureQueueSize.right = new FormAttachment( middle, -margin );
+    fdlCaptureQueueSize.top = new FormAttachment( lastControl, margin );
+    wlCaptureQueueSize.setLayoutData( fdlCaptureQueueSize );
+    wCaptureQueueSize = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wCaptureQueueSize.setToolTipText( BaseMessages.getString( PKG, "TransDialog.CaptureQueueSize.Tooltip" ) );
+    props.setLook( wCaptureQueueSize );
+    FormData fdCaptureQueueSize = new FormData();
+    fdCaptureQueueSize.left = new FormAttachment( middle, 0 );
+    fdCaptureQueueSize.right = new FormAttachment( 100, 0 );
+    fdCaptureQueueSize.top = new FormAttachment( lastControl, margin );
+    wCaptureQueueSize.setLayoutData( fdCaptureQueueSize );
+    lastControl = wCaptureQueueSize;
+
+    // 
+    // Capture queue overflow policy
+    //
+    Label wlOverflowPolicy = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlOverflowPolicy.setText( BaseMessages.getString( PKG, "TransDialog.OverflowPolicy.Label" ) );
+    wlOverflowPolicy.setToolTipText( BaseMessages.getString( PKG, "TransDialog.OverflowPolicy.Tooltip" ) );
+    props.setLook( wlOverflowPolicy );
+    FormData fdlOverflowPolicy = new FormData();
+    fdlOverflowPolicy.left = new FormAttachment( 0, 0 );
+    fdlOverflowPolicy.right = new FormAttachment( middle, -margin );
+    fdlOverflowPolicy.top = new FormAttachment( lastControl, margin );
+    wlOverflowPolicy.setLayoutData( fdlOverflowPolicy );
+    wOverflowPolicy = new CCombo( wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wOverflowPolicy.setToolTipText( BaseMessages.getString( PKG, "TransDialog.OverflowPolicy.Tooltip" ) );
+    props.setLook( wOverflowPolicy );
+    FormData fdOverflowPolicy = new FormData();
+    fdOverflowPolicy.left = new FormAttachment( middle, 0 );
+    fdOverflowPolicy.right = new FormAttachment( 100, 0 );
+    fdOverflowPolicy.top = new FormAttachment( lastControl, margin );
+    wOverflowPolicy.setLayoutData( fdOverflowPolicy );
+    wOverflowPolicy.setEditable( false );
+    wOverflowPolicy.setItems( StreamingOverflowPolicy.getDescriptions() );
+    lastControl = wOverflowPolicy;
+
+    // 
+    // Keep a journal?
+    //
+    Label wlJournaling = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlJournaling.setText( BaseMessages.getString( PKG, "TransDialog.Journaling.Label" ) );
+    wlJournaling.setToolTipText( BaseMessages.getString( PKG, "TransDialog.Journaling.Tooltip" ) );
+    props.setLook( wlJournaling );
+    FormData fdlJournaling = new FormData();
+    fdlJournaling.left = new FormAttachment( 0, 0 );
+    fdlJournaling.right = new FormAttachment( middle, -margin );
+    fdlJournaling.top = new FormAttachment( lastControl, margin );
+    wlJournaling.setLayoutData( fdlJournaling );
+    wJournaling = new Button( wStreamingServiceComp, SWT.CHECK );
+    wJournaling.setToolTipText( BaseMessages.getString( PKG, "TransDialog.Journaling.Tooltip" ) );
+    props.setLook( wJournaling );
+    FormData fdJournaling = new FormData();
+    fdJournaling.left = new FormAttachment( middle, 0 );
+    fdJournaling.right = new FormAttachment( 100, 0 );
+    fdJournaling.top = new FormAttachment( lastControl, margin );
+    wJournaling.setLayoutData( fdJournaling );
+    lastControl = wJournaling;
+
+    // 
+    // Journal folder
+    //
+    Label wlJournalDirectory = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlJournalDirectory.setText( BaseMessages.getString( PKG, "TransDialog.JournalDirectory.Label" ) );
+    wlJournalDirectory.setToolTipText( BaseMessages.getString( PKG, "TransDialog.JournalDirectory.Tooltip" ) );
+    props.setLook( wlJournalDirectory );
+    FormData fdlJournalDirectory = new FormData();
+    fdlJournalDirectory.left = new FormAttachment( 0, 0 );
+    fdlJournalDirectory.right = new FormAttachment( middle, -margin );
+    fdlJournalDirectory.top = new FormAttachment( lastControl, margin );
+    wlJournalDirectory.setLayoutData( fdlJournalDirectory );
+    wJournalDirectory = new TextVar( transMeta, wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wJournalDirectory.setToolTipText( BaseMessages.getString( PKG, "TransDialog.JournalDirectory.Tooltip" ) );
+    props.setLook( wJournalDirectory );
+    FormData fdJournalDirectory = new FormData();
+    fdJournalDirectory.left = new FormAttachment( middle, 0 );
+    fdJournalDirectory.right = new FormAttachment( 100, 0 );
+    fdJournalDirectory.top = new FormAttachment( lastControl, margin );
+    wJournalDirectory.setLayoutData( fdJournalDirectory );
+    lastControl = wJournalDirectory;
+
+    // 
+    // Journal sync policy
+    //
+    Label wlJournalSync = new Label( wStreamingServiceComp, SWT.LEFT );
+    wlJournalSync.setText( BaseMessages.getString( PKG, "TransDialog.JournalSync.Label" ) );
+    wlJournalSync.setToolTipText( BaseMessages.getString( PKG, "TransDialog.JournalSync.Tooltip" ) );
+    props.setLook( wlJournalSync );
+    FormData fdlJournalSync = new FormData();
+    fdlJournalSync.left = new FormAttachment( 0, 0 );
+    fdlJournalSync.right = new FormAttachment( middle, -margin );
+    fdlJournalSync.top = new FormAttachment( lastControl, margin );
+    wlJournalSync.setLayoutData( fdlJournalSync );
+    wJournalSync = new CCombo( wStreamingServiceComp, SWT.LEFT | SWT.BORDER | SWT.SINGLE );
+    wJournalSync.setToolTipText( BaseMessages.getString( PKG, "TransDialog.JournalSync.Tooltip" ) );
+    props.setLook( wJournalSync );
+    FormData fdJournalSync = new FormData();
+    fdJournalSync.left = new FormAttachment( middle, 0 );
+    fdJournalSync.right = new FormAttachment( 100, 0 );
+    fdJournalSync.top = new FormAttachment( lastControl, margin );
+    wJournalSync.setLayoutData( fdJournalSync );
+    wJournalSync.setEditable( false );
+    wJournalSync.setItems( StreamingJournalSyncPolicy.getDescriptions() );
+    lastControl = wJournalSync;
+
     // 
     // Pre-load service?
     //
@@ -403,6 +829,28 @@ public class StreamingTransDialogTab implements TransDialogPluginInterface {
       wServiceStep.setText( Const.NVL( streamingService.getStepname(), "" ) );
       wServiceCacheDuration.setText( Const.NVL( streamingService.getCacheDuration(), "" ) );
       wServiceCacheSize.setText( Const.NVL( streamingService.getCacheSize(), "" ) );
+      wServiceCacheBytes.setText( Const.NVL( streamingService.getCacheBytes(), "" ) );
+      StreamingStorageType storageType = streamingService.getStorageType()==null ? StreamingStorageType.OBJECTS : streamingService.getStorageType();
+      wServiceCacheStorage.select( storageType.ordinal() );
+      wServiceSegmentSize.setText( Const.NVL( streamingService.getSegmentSize(), "" ) );
+      wAsyncCapture.setSelection( streamingService.isAsyncCapture() );
+      wCaptureQueueSize.setText( Const.NVL( streamingService.getCaptureQueueSize(), "" ) );
+      StreamingOverflowPolicy overflowPolicy = streamingService.getOverflowPolicy()==null ? StreamingOverflowPolicy.BLOCK : streamingService.getOverflowPolicy();
+      wOverflowPolicy.select( overflowPolicy.ordinal() );
+      wExpiryGranularity.setText( Const.NVL( streamingService.getExpiryGranularity(), "" ) );
+      wJournaling.setSelection( streamingService.isJournaling() );
+      wJournalDirectory.setText( Const.NVL( streamingService.getJournalDirectory(), "" ) );
+      StreamingJournalSyncPolicy journalSyncPolicy = streamingService.getJournalSyncPolicy()==null ? StreamingJournalSyncPolicy.INTERVAL : streamingService.getJournalSyncPolicy();
+      wJournalSync.select( journalSyncPolicy.ordinal() );
+      wHotSize.setText( Const.NVL( streamingService.getHotSize(), "" ) );
+      wTierDirectory.setText( Const.NVL( streamingService.getTierDirectory(), "" ) );
+      wDictionarySize.setText( Const.NVL( streamingService.getDictionarySize(), "" ) );
+      wRollups.setText( Const.NVL( streamingService.getRollups(), "" ) );
+      wIndexedFields.setText( Const.NVL( streamingService.getIndexedFields(), "" ) );
+      wSketchFields.setText( Const.NVL( streamingService.getSketchFields(), "" ) );
+      wSketchBucketSize.setText( Const.NVL( streamingService.getSketchBucketSize(), "" ) );
+      StreamingRowEncoding rowEncoding = streamingService.getRowEncoding()==null ? StreamingRowEncoding.NONE : streamingService.getRowEncoding();
+      wRowEncoding.select( rowEncoding.ordinal() );
       wPreloadService.setSelection( streamingService.isPreloaded() );
       wClearOnStart.setSelection( streamingService.isClearingOnStart() );
       wReplaceAtTransEnd.setSelection(streamingService.isCacheFlipping());
@@ -425,6 +873,28 @@ public class StreamingTransDialogTab implements TransDialogPluginInterface {
       streamingService.setStepname( wServiceStep.getText() );
       streamingService.setCacheDuration( wServiceCacheDuration.getText() );
       streamingService.setCacheSize( wServiceCacheSize.getText() );
+      streamingService.setCacheBytes( wServiceCacheBytes.getText() );
+      int storageIndex = wServiceCacheStorage.getSelectionIndex();
+      streamingService.setStorageType( storageIndex < 0 ? StreamingStorageType.OBJECTS : StreamingStorageType.values()[storageIndex] );
+      streamingService.setSegmentSize( wServiceSegmentSize.getText() );
+      streamingService.setAsyncCapture( wAsyncCapture.getSelection() );
+      streamingService.setCaptureQueueSize( wCaptureQueueSize.getText() );
+      int overflowIndex = wOverflowPolicy.getSelectionIndex();
+      streamingService.setOverflowPolicy( overflowIndex < 0 ? StreamingOverflowPolicy.BLOCK : StreamingOverflowPolicy.values()[overflowIndex] );
+      streamingService.setExpiryGranularity( wExpiryGranularity.getText() );
+      streamingService.setJournaling( wJournaling.getSelection() );
+      streamingService.setJournalDirectory( wJournalDirectory.getText() );
+      int journalSyncIndex = wJournalSync.getSelectionIndex();
+      streamingService.setJournalSyncPolicy( journalSyncIndex < 0 ? StreamingJournalSyncPolicy.INTERVAL : StreamingJournalSyncPolicy.values()[journalSyncIndex] );
+      streamingService.setHotSize( wHotSize.getText() );
+      streamingService.setTierDirectory( wTierDirectory.getText() );
+      streamingService.setDictionarySize( wDictionarySize.getText() );
+      streamingService.setRollups( wRollups.getText() );
+      streamingService.setIndexedFields( wIndexedFields.getText() );
+      streamingService.setSketchFields( wSketchFields.getText() );
+      streamingService.setSketchBucketSize( wSketchBucketSize.getText() );
+      int rowEncodingIndex = wRowEncoding.getSelectionIndex();
+      streamingService.setRowEncoding( rowEncodingIndex < 0 ? StreamingRowEncoding.NONE : StreamingRowEncoding.values()[rowEncodingIndex] );
       streamingService.setPreloaded( wPreloadService.getSelection() );
       streamingService.setClearingOnStart( wClearOnStart.getSelection() );
       streamingService.setCacheFlipping(wReplaceAtTransEnd.getSelection());
@@ -55,10 +55,11 @@ public class GetStreamingCache extends BaseStep implements StepInterface {
           // Test for container object ID to see if we run on Carte
           //
           if (getTrans().getContainerObjectId()!=null) {
-            // We run on Carte, grab the cache directly
+            // We run on Carte, grab the cache directly.  Hold on to its rows until the step is disposed.
             //
             log.logBasic("We are running on a server, let's try to find the cache directly...");
-            data.streamingCache = StreamingCache.getInstance().get(serviceName);
+            data.streamingCache = StreamingCache.getInstance().acquire(serviceName);
+            data.cacheAcquired = data.streamingCache!=null;
             if (data.streamingCache!=null) {
               log.logBasic("Streaming cache for service '"+serviceName+"' found directly on the server");
             }
@@ -80,6 +81,10 @@ public class GetStreamingCache extends BaseStep implements StepInterface {
             log.logBasic("Streaming cache for service '"+serviceName+"' found through a web service call");
           }
           log.logDetailed("Found "+data.streamingCache.size()+" rows in the streaming cache");
+          
+          // Read a snapshot of the cache, the service transformation keeps adding and evicting rows.
+          //
+          data.rowIterator = data.streamingCache.getIterator();
         } catch(Exception e) {
           log.logError("Unable to read cache data from the streaming service '"+serviceName+"'", e);
           setErrors(1);
@@ -102,13 +107,13 @@ public class GetStreamingCache extends BaseStep implements StepInterface {
       meta.getFields(data.outputRowMeta, getStepname(), null, null, this, repository, data.store);
     }
     
-    if (data.rowIndex<data.streamingCache.size()) {
+    if (data.rowIterator.hasNext()) {
       if (log.isDebug()) {
-        log.logDebug("Streaming row "+(data.rowIndex+1)+"/"+data.streamingCache.size());
+        log.logDebug("Streaming row "+(data.rowIndex+1));
       }
 
       RowMetaInterface stnRowMeta = data.streamingCache.getRowMeta();
-      StreamingTimedNumberedRow stnRow = data.streamingCache.getRow(data.rowIndex);
+      StreamingTimedNumberedRow stnRow = data.rowIterator.next();
       Object[] stnCacheRow = stnRow.getRow();
       
       data.rowIndex++;
@@ -130,6 +135,18 @@ public class GetStreamingCache extends BaseStep implements StepInterface {
     }
   }
 
+  @Override
+  public void dispose(StepMetaInterface smi, StepDataInterface sdi) {
+    GetStreamingCacheData data = (GetStreamingCacheData) sdi;
+    
+    if (data.cacheAcquired) {
+      data.cacheAcquired = false;
+      data.streamingCache.release();
+    }
+    
+    super.dispose(smi, sdi);
+  }
+
   private IMetaStore getAMetaStore() throws MetaStoreException {
     IMetaStore store = metaStore;
     // during exec of data service, metaStore is not passed down
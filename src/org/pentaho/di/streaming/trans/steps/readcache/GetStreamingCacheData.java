@@ -1,9 +1,12 @@
 package org.pentaho.di.streaming.trans.steps.readcache;
 
+import java.util.Iterator;
+
 import org.pentaho.di.cluster.SlaveServer;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.streaming.StreamingService;
 import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.metastore.api.IMetaStore;
@@ -15,6 +18,8 @@ public class GetStreamingCacheData extends BaseStepData implements StepDataInter
   public MetaStoreFactory<StreamingService> factory;
   public StreamingService service;
   public StreamingCacheEntry streamingCache;
+  public boolean cacheAcquired;
+  public Iterator<StreamingTimedNumberedRow> rowIterator;
   public int rowIndex;
   public IMetaStore store;
   public SlaveServer slaveServer;
@@ -11,6 +11,9 @@ import org.pentaho.metastore.api.IMetaStore;
 public class StreamingConst {
   public static final String STREAMING_GROUP = "Streaming";
   public static final String STREAMING_SERVICE_NAME = "StreamingServiceName";
+
+  /** The system property (or kettle.properties variable) holding the memory budget of all streaming caches in bytes */
+  public static final String STREAMING_CACHE_MAX_BYTES = "STREAMING_CACHE_MAX_BYTES";
   
   public static TransMeta loadTransMeta( Repository repository, IMetaStore metaStore, StreamingService service ) throws KettleException {
     TransMeta transMeta = null;
@@ -0,0 +1,431 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.streaming.www;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.CarteServlet;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.streaming.www.cache.StreamingCache;
+import org.pentaho.di.streaming.www.cache.StreamingCacheAdapter;
+import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingCacheQuery;
+import org.pentaho.di.streaming.www.cache.StreamingRowFilter;
+import org.pentaho.di.streaming.www.cache.StreamingRowProjection;
+import org.pentaho.di.streaming.www.cache.StreamingSchema;
+import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
+import org.pentaho.di.www.BaseHttpServlet;
+import org.pentaho.di.www.CartePluginInterface;
+import org.pentaho.di.www.JobMap;
+import org.pentaho.di.www.TransformationMap;
+
+/**
+ * This servlet pushes the rows captured by a streaming service to the client as Server-Sent Events over a single
+ * long-lived connection.
+ *
+ * The first event, "metadata", describes the fields of the rows.  Every "rows" event after that holds a batch of new
+ * rows, either as JSON (like getStreaming) or as base64 encoded binary data: the number of rows followed by the ID,
+ * the time and the data of every row.  The ID of a "rows" event is the ID of its last row so that a reconnecting
+ * client resumes right after the last row it received through the Last-Event-ID header.
+ */
+@CarteServlet(
+  id = "getStreamingEvents",
+  name = "Get streaming events",
+  description = "Push the data of a streaming service as Server-Sent Events" )
+public class GetStreamingEventsServlet extends BaseHttpServlet implements CartePluginInterface {
+
+  private static final long serialVersionUID = 5923047182741530672L;
+
+  public static final String CONTEXT_PATH = "/kettle/getStreamingEvents";
+
+  public static final int DEFAULT_HEARTBEAT_SECONDS = 15;
+
+  public static final int MAX_ROWS_PER_EVENT = 1000;
+
+  private static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+    @Override
+    public Thread newThread( Runnable runnable ) {
+      Thread thread = new Thread( runnable, "Streaming events heartbeat" );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
+
+  public GetStreamingEventsServlet() {
+  }
+
+  public GetStreamingEventsServlet( TransformationMap transformationMap, JobMap jobMap ) {
+    super( transformationMap, jobMap );
+  }
+
+  public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+    if ( isJettyMode() && !request.getContextPath().startsWith( CONTEXT_PATH ) ) {
+      return;
+    }
+
+    String serviceName = request.getParameter( "service" );
+    int lastSize = Const.toInt( request.getParameter( "last" ), -1 );
+    long lastEventId = Const.toLong( Const.NVL( request.getHeader( "Last-Event-ID" ), request.getParameter( "lastEventId" ) ), -1L );
+    String binaryOption = request.getParameter( "binary" );
+    boolean binary = "y".equalsIgnoreCase( binaryOption ) || "true".equalsIgnoreCase( binaryOption );
+    int heartbeat = Const.toInt( request.getParameter( "heartbeat" ), DEFAULT_HEARTBEAT_SECONDS );
+    String keyField = request.getParameter( "keyField" );
+    String keyValue = request.getParameter( "key" );
+    String fields = request.getParameter( "fields" );
+    String filter = request.getParameter( "filter" );
+
+    // last=100 : start with the 100 most recent rows
+    // Last-Event-ID: 1234 (or lastEventId=1234) : resume after row 1234
+    // binary=y
+    // heartbeat=15 (seconds)
+    // keyField=device&key=1234
+    // fields=time,latency
+    // filter=latency > 250
+
+    // The stream holds on to the rows of the cache until it's closed, see EventStream.close()
+    //
+    StreamingCacheEntry streamingCacheEntry = null;
+    EventStream stream = null;
+    boolean started = false;
+    try {
+      streamingCacheEntry = Const.isEmpty( serviceName ) ? null : StreamingCache.getInstance().acquire( serviceName );
+      if ( streamingCacheEntry == null ) {
+        String comment = "Streaming cache service '" + serviceName + "' doesn't exist";
+        LogChannel.GENERAL.logError( comment );
+        throw new KettleException( comment );
+      }
+
+      StreamingCacheQuery query = new StreamingCacheQuery();
+      query.setKeyField( Const.isEmpty( keyField ) ? null : keyField );
+      query.setKeyValue( keyValue );
+      if ( !Const.isEmpty( filter ) ) {
+        query.setFilter( StreamingRowFilter.parse( filter, streamingCacheEntry.getRowMeta() ) );
+      }
+      StreamingRowProjection projection = new StreamingRowProjection( streamingCacheEntry.getRowMeta(), fields );
+
+      long nextId;
+      if ( lastEventId >= 0 ) {
+        nextId = lastEventId + 1;
+      } else {
+        long lastId = Math.max( 0L, streamingCacheEntry.getLastId() );
+        nextId = lastSize > 0 ? Math.max( 1L, lastId - lastSize + 1 ) : lastId + 1;
+      }
+
+      LogChannel.GENERAL.logBasic( "Streaming events asked for service '" + serviceName + "' from row " + nextId );
+      response.setStatus( HttpServletResponse.SC_OK );
+      response.setContentType( "text/event-stream" );
+      response.setCharacterEncoding( Const.XML_ENCODING );
+      response.setHeader( "Cache-Control", "no-cache" );
+
+      stream = new EventStream( serviceName, streamingCacheEntry, query, projection, binary, nextId, response.getWriter() );
+      stream.writeMetadata();
+      long heartbeatMs = ( heartbeat > 0 ? heartbeat : DEFAULT_HEARTBEAT_SECONDS ) * 1000L;
+
+      if ( request.isAsyncSupported() ) {
+        stream.start( request.startAsync(), heartbeatMs );
+        started = true;
+        return;
+      }
+
+      // Without asynchronous requests this thread keeps serving the client until it goes away
+      //
+      while ( stream.isOpen() ) {
+        stream.pump( !streamingCacheEntry.waitForId( stream.getNextId(), heartbeatMs ) );
+      }
+    } catch ( Exception e ) {
+      LogChannel.GENERAL.logError( "Error get streaming events for service '" + serviceName + "'", e );
+      try {
+        response.sendError( 500, e.getMessage() + " - " + Const.getStackTracker( e ) );
+      } catch ( Exception ioe ) {
+        LogChannel.GENERAL.logError( "Error writing error response for service '" + serviceName + "'", ioe );
+      }
+    } finally {
+      if ( stream != null ) {
+        if ( !started ) {
+          stream.close();
+        }
+      } else if ( streamingCacheEntry != null ) {
+        streamingCacheEntry.release();
+      }
+    }
+  }
+
+  /**
+   * The state of a single event stream: the next row to send and the connection to send it over.
+   * Writes are serialized on the stream.  New rows and heartbeats are written by container threads, never by the
+   * thread capturing the rows.
+   */
+  private class EventStream extends StreamingCacheAdapter implements AsyncListener {
+    private String serviceName;
+    private StreamingCacheEntry streamingCacheEntry;
+    private StreamingCacheQuery query;
+    private StreamingRowProjection projection;
+    private boolean binary;
+    private volatile long nextId;
+    private PrintWriter writer;
+
+    private AsyncContext asyncContext;
+    private ScheduledFuture<?> heartbeat;
+    private AtomicBoolean scheduled;
+    private volatile boolean open;
+
+    public EventStream( String serviceName, StreamingCacheEntry streamingCacheEntry, StreamingCacheQuery query,
+      StreamingRowProjection projection, boolean binary, long nextId, PrintWriter writer ) {
+      this.serviceName = serviceName;
+      this.streamingCacheEntry = streamingCacheEntry;
+      this.query = query;
+      this.projection = projection;
+      this.binary = binary;
+      this.nextId = nextId;
+      this.writer = writer;
+      this.scheduled = new AtomicBoolean( false );
+      this.open = true;
+    }
+
+    /**
+     * Continue asynchronously: push rows as they are added and send a heartbeat every so often
+     */
+    public void start( AsyncContext asyncContext, long heartbeatMs ) {
+      this.asyncContext = asyncContext;
+      asyncContext.setTimeout( 0L );
+      asyncContext.addListener( this );
+      streamingCacheEntry.addListener( this );
+      heartbeat = heartbeats.scheduleWithFixedDelay( new Runnable() {
+        public void run() {
+          schedule( true );
+        }
+      }, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS );
+
+      // Send the rows which are there already
+      //
+      schedule( false );
+    }
+
+    @Override
+    public void rowsAdded( StreamingCacheEntry cacheEntry, List<StreamingTimedNumberedRow> rows ) {
+      schedule( false );
+    }
+
+    @Override
+    public void cacheDropped( StreamingCacheEntry cacheEntry ) {
+      schedule( false );
+    }
+
+    private void schedule( final boolean idle ) {
+      if ( !open || !scheduled.compareAndSet( false, true ) ) {
+        return;
+      }
+      try {
+        asyncContext.start( new Runnable() {
+          public void run() {
+            scheduled.set( false );
+            pump( idle );
+          }
+        } );
+      } catch ( Exception e ) {
+        // The request is no longer usable
+        close();
+      }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public synchronized void writeMetadata() throws IOException, KettleException {
+      RowMetaInterface rowMeta = projection.getRowMeta();
+      String data;
+      if ( binary ) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        rowMeta.writeMeta( new DataOutputStream( bytes ) );
+        data = Base64.getEncoder().encodeToString( bytes.toByteArray() );
+      } else {
+        JSONObject json = new JSONObject();
+        json.put( "metadata", StreamingSchema.getJsonMetadata( rowMeta ) );
+        data = json.toJSONString();
+      }
+      writer.write( "retry: 1000\n" );
+      writeEvent( null, "metadata", data );
+    }
+
+    /**
+     * Send all rows added since the last call, in batches of at most MAX_ROWS_PER_EVENT rows.
+     *
+     * @param idle true if a heartbeat should be sent in case there are no rows to send
+     */
+    public synchronized void pump( boolean idle ) {
+      if ( !open ) {
+        return;
+      }
+      try {
+        // Once the cache is replaced the client has to reconnect to continue with the new one, after receiving the
+        // rows it didn't get yet.
+        //
+        boolean replaced = streamingCacheEntry.isDropped();
+        boolean sent = false;
+        long lastId = streamingCacheEntry.getLastId();
+        while ( nextId <= lastId ) {
+          query.setFromId( nextId );
+          query.setToId( Math.min( lastId, nextId + MAX_ROWS_PER_EVENT - 1 ) );
+          List<StreamingTimedNumberedRow> rows = streamingCacheEntry.findRows( log, query );
+          if ( rows != null && !rows.isEmpty() ) {
+            writeRows( rows );
+            sent = true;
+          }
+          nextId = query.getToId() + 1;
+        }
+        if ( idle && !sent && !replaced ) {
+          writer.write( ": heartbeat\n\n" );
+        }
+        writer.flush();
+        if ( replaced || writer.checkError() ) {
+          // Done, or the client went away
+          close();
+        }
+      } catch ( Exception e ) {
+        LogChannel.GENERAL.logError( "Error sending streaming events for service '" + serviceName + "'", e );
+        close();
+      }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void writeRows( List<StreamingTimedNumberedRow> rows ) throws Exception {
+      RowMetaInterface rowMeta = projection.getRowMeta();
+      StreamingTimedNumberedRow firstRow = rows.get( 0 );
+      StreamingTimedNumberedRow lastRow = rows.get( rows.size() - 1 );
+      String data;
+      if ( binary ) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream( bytes );
+        dos.writeInt( rows.size() );
+        for ( StreamingTimedNumberedRow row : rows ) {
+          dos.writeLong( row.getId() );
+          dos.writeLong( row.getTime() );
+          rowMeta.writeData( dos, projection.project( row.getRow() ) );
+        }
+        dos.flush();
+        data = Base64.getEncoder().encodeToString( bytes.toByteArray() );
+      } else {
+        JSONObject json = new JSONObject();
+        JSONArray jRows = new JSONArray();
+        json.put( "resultset", jRows );
+        for ( StreamingTimedNumberedRow row : rows ) {
+          JSONArray jRow = new JSONArray();
+          jRows.add( jRow );
+          Object[] rowData = projection.project( row.getRow() );
+          for ( int i = 0; i < rowMeta.size(); i++ ) {
+            jRow.add( rowMeta.getValueMeta( i ).getString( rowData[i] ) );
+          }
+        }
+        json.put( "firstId", firstRow.getId() );
+        json.put( "firstTime", firstRow.getTime() );
+        json.put( "lastId", lastRow.getId() );
+        json.put( "lastTime", lastRow.getTime() );
+        data = json.toJSONString();
+      }
+      writeEvent( Long.toString( lastRow.getId() ), "rows", data );
+    }
+
+    private void writeEvent( String id, String event, String data ) {
+      if ( id != null ) {
+        writer.write( "id: " + id + "\n" );
+      }
+      writer.write( "event: " + event + "\n" );
+      writer.write( "data: " + data + "\n\n" );
+    }
+
+    /**
+     * Stop streaming and let go of the rows of the cache entry
+     */
+    public synchronized void close() {
+      if ( !open ) {
+        return;
+      }
+      open = false;
+      streamingCacheEntry.removeListener( this );
+      streamingCacheEntry.release();
+      if ( heartbeat != null ) {
+        heartbeat.cancel( false );
+      }
+      if ( asyncContext != null ) {
+        try {
+          asyncContext.complete();
+        } catch ( Exception e ) {
+          // Already completed by the container
+        }
+      }
+      LogChannel.GENERAL.logBasic( "Streaming events of service '" + serviceName + "' stopped after row " + ( nextId - 1 ) );
+    }
+
+    public boolean isOpen() {
+      return open;
+    }
+
+    public long getNextId() {
+      return nextId;
+    }
+
+    public void onTimeout( AsyncEvent event ) throws IOException {
+      close();
+    }
+
+    public void onError( AsyncEvent event ) throws IOException {
+      close();
+    }
+
+    public void onComplete( AsyncEvent event ) throws IOException {
+      close();
+    }
+
+    public void onStartAsync( AsyncEvent event ) throws IOException {
+    }
+  }
+
+  public String toString() {
+    return "get streaming events";
+  }
+
+  public String getService() {
+    return CONTEXT_PATH + " (" + toString() + ")";
+  }
+
+  public String getContextPath() {
+    return CONTEXT_PATH;
+  }
+
+}
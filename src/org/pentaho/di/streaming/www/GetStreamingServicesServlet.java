@@ -17,24 +17,48 @@
 
 package org.pentaho.di.streaming.www;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.annotations.CarteServlet;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.core.row.RowMetaInterface;
-import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.streaming.www.cache.StreamingCache;
+import org.pentaho.di.streaming.www.cache.StreamingCacheAdapter;
 import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingCacheQuery;
+import org.pentaho.di.streaming.www.cache.StreamingEncodedRows;
+import org.pentaho.di.streaming.www.cache.StreamingResultCache;
+import org.pentaho.di.streaming.www.cache.StreamingRollup;
+import org.pentaho.di.streaming.www.cache.StreamingRollupAggregation;
+import org.pentaho.di.streaming.www.cache.StreamingRollupDefinition;
+import org.pentaho.di.streaming.www.cache.StreamingRollupMeasure;
+import org.pentaho.di.streaming.www.cache.StreamingRowFilter;
+import org.pentaho.di.streaming.www.cache.StreamingRowProjection;
+import org.pentaho.di.streaming.www.cache.StreamingSchema;
 import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
 import org.pentaho.di.www.BaseHttpServlet;
 import org.pentaho.di.www.CartePluginInterface;
@@ -57,6 +81,27 @@ public class GetStreamingServicesServlet extends BaseHttpServlet implements Cart
    
   public static final String CONTEXT_PATH = "/kettle/getStreaming";
 
+  /** The maximum number of rows in a frame of the framed binary format */
+  public static final int FRAME_SIZE = 1000;
+
+  /** The number of rows of the frame reporting an error halfway the framed binary format, the message follows */
+  public static final int FRAME_ERROR = -1;
+
+  private static final int OUTPUT_BUFFER_SIZE = 65536;
+
+  /**
+   * The parameters which determine the rows of a response and their format.  Shared responses are kept by entity tag
+   * so every parameter which can change the response has to be part of it.
+   */
+  private static final String[] ETAG_PARAMETERS = { "service", "last", "lastPeriod", "fromId", "toId", "new", "maxWait",
+    "binary", "framed", "keyField", "key", "fields", "filter", "schema" };
+
+  /** The maximum number of rows asked for by a request to share its response with identical requests */
+  static final int MAX_SHARED_ROWS = 10000;
+
+  /** Tells the row IDs of this server run apart from the same IDs of an earlier run of a service without a journal */
+  private static final String SERVER_RUN = Long.toString( System.currentTimeMillis(), 36 );
+
   public GetStreamingServicesServlet() {
   }
 
@@ -82,15 +127,44 @@ public class GetStreamingServicesServlet extends BaseHttpServlet implements Cart
     int maxWait = Const.toInt( request.getParameter( "maxWait" ), -1 );
     String binaryOption = request.getParameter( "binary" );
     boolean binary = "y".equalsIgnoreCase(binaryOption) || "true".equalsIgnoreCase(binaryOption);
+    String framedOption = request.getParameter( "framed" );
+    boolean framed = "y".equalsIgnoreCase( framedOption ) || "true".equalsIgnoreCase( framedOption );
+    String rollupName = request.getParameter( "rollup" );
+    String keyField = request.getParameter( "keyField" );
+    String keyValue = request.getParameter( "key" );
+    String fields = request.getParameter( "fields" );
+    String filter = request.getParameter( "filter" );
+    String clientSchema = request.getParameter( "schema" );
+    String compressOption = request.getParameter( "compress" );
+    boolean compress = !"n".equalsIgnoreCase( compressOption ) && !"false".equalsIgnoreCase( compressOption );
+    if ( !Const.isEmpty( rollupName ) ) {
+      // Rollups are only available as JSON
+      binary = false;
+    }
     long now = System.currentTimeMillis();
 
     // last=60
     // fromId=100
     // new=5
-    // maxWait10
+    // maxWait=10 (seconds)
+    // rollup=perMinute
+    // keyField=device&key=1234
+    // fields=time,latency
+    // filter=latency > 250 AND region IN ('eu', 'us')
+    // binary=y&framed=y
+    // compress=n (no compression, even if the client accepts it)
+    // schema=<fingerprint> (the layout the client holds, empty if none yet)
 
     response.setStatus( HttpServletResponse.SC_OK );
 
+    // Compress larger responses if the client accepts it
+    //
+    String contentEncoding = null;
+    if ( compress ) {
+      contentEncoding = StreamingResponseOutputStream.negotiate( request.getHeader( "Accept-Encoding" ) );
+      response.setHeader( "Vary", "Accept-Encoding" );
+    }
+
     if (binary) {
       LogChannel.GENERAL.logBasic( "Binary data asked for service '"+serviceName+"'");
       response.setContentType( "application/octet-stream" );
@@ -105,25 +179,91 @@ public class GetStreamingServicesServlet extends BaseHttpServlet implements Cart
       if ( !Const.isEmpty( serviceName ) ) {
 
         StreamingCache cache = StreamingCache.getInstance();
-        StreamingCacheEntry streamingCacheEntry = cache.get( serviceName );
+        // Hold on to the rows while reading them, even if the cache is replaced in the mean time
+        //
+        StreamingCacheEntry streamingCacheEntry = cache.acquire( serviceName );
         if ( streamingCacheEntry != null ) {
-          log.logBasic( "Cache entry of '"+serviceName+"' found");
-          
-          // Now we have a cache entry for the service.
-          // Let's get the rows from the cache with the given options...
-          //
-          List<StreamingTimedNumberedRow> rows = streamingCacheEntry.findRows( log, lastSize, lastPeriod, fromId, toId, newSize, maxWait, now );
-          while ( rows == null ) {
-            // Keep retrying with a one second delay until the service transformation has some rows.
-            Thread.sleep( 1000 );
-            rows = streamingCacheEntry.findRows( log, lastSize, lastPeriod, fromId, toId, newSize, maxWait, now );
-          }
+          boolean waiting = false;
+          try {
+            log.logBasic( "Cache entry of '"+serviceName+"' found");
+
+            if ( !Const.isEmpty( rollupName ) ) {
+              // Return the aggregated buckets of a rollup instead of the rows
+              //
+              StreamingRollup rollup = streamingCacheEntry.getRollup( rollupName );
+              if ( rollup == null ) {
+                throw new KettleException( "Streaming service '" + serviceName + "' doesn't keep a rollup called '" + rollupName + "'" );
+              }
+              long fromTime = lastPeriod > 0 ? now - lastPeriod * 1000L : 0L;
+              writeRollupData( serviceName, response, contentEncoding, streamingCacheEntry, rollup, fromTime );
+              return;
+            }
+
+            // The rows only change when rows are added or removed so tell clients which have them already
+            // without reading any.  Long polls wait for new rows instead.
+            //
+            String eTag = null;
+            if ( newSize <= 0 ) {
+              eTag = getETag( request.getParameterMap(), streamingCacheEntry );
+              response.setHeader( "ETag", eTag );
+              response.setHeader( "Cache-Control", "no-cache" );
+              if ( matchesETag( request.getHeader( "If-None-Match" ), eTag ) ) {
+                log.logBasic( "Rows of '"+serviceName+"' not modified");
+                response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                return;
+              }
+            }
           
-          LogChannel.GENERAL.logBasic( "Data export for '"+serviceName+"' found, "+rows.size()+" rows found");
-          if (binary) {
-            writeBinaryData(serviceName, response, streamingCacheEntry, rows);
-          } else {
-            writeJsonData(serviceName, response, streamingCacheEntry, rows);
+            // Now we have a cache entry for the service.
+            // Let's get the rows from the cache with the given options...
+            //
+            StreamingCacheQuery query = new StreamingCacheQuery( lastSize, lastPeriod, fromId, toId, newSize, maxWait, now );
+            query.setKeyField( Const.isEmpty( keyField ) ? null : keyField );
+            query.setKeyValue( keyValue );
+            if ( !Const.isEmpty( filter ) ) {
+              query.setFilter( StreamingRowFilter.parse( filter, streamingCacheEntry.getRowMeta() ) );
+            }
+            StreamingRowProjection projection = new StreamingRowProjection( streamingCacheEntry.getRowMeta(), fields );
+
+            // Identical small requests which don't wait share the response as long as no rows are added or removed,
+            // the entity tag identifies the response.  The first one encodes the response in memory, every request
+            // writes it to its own client afterwards so that a slow client doesn't hold up the others.
+            //
+            if ( eTag != null && isShareable( streamingCacheEntry, query ) ) {
+              ResultEncoder encoder = new ResultEncoder( serviceName, binary, framed, clientSchema, streamingCacheEntry, query, projection );
+              byte[] result = StreamingResultCache.getInstance().get( eTag, encoder );
+              if ( result != null ) {
+                StreamingResponseOutputStream out = new StreamingResponseOutputStream( response, contentEncoding, StreamingResponseOutputStream.DEFAULT_THRESHOLD );
+                out.write( result );
+                out.finish();
+                LogChannel.GENERAL.logBasic( "Data export for '"+serviceName+"' done, "+result.length+" bytes written"+( encoder.isEncoded() ? "" : " (shared)" ) );
+                return;
+              }
+              // The response was too large to keep, write our own
+            }
+
+            Iterator<StreamingTimedNumberedRow> rows = streamingCacheEntry.findRowIterator( log, query );
+            if ( rows == null ) {
+              // Not enough new rows were captured yet: wait for the row completing the set or for maxWait to expire.
+              // Asynchronous requests don't hold on to a Carte thread while waiting.
+              //
+              long waitId = fromId + newSize;
+              if ( request.isAsyncSupported() ) {
+                RowWaiter waiter = new RowWaiter( request.startAsync(), serviceName, streamingCacheEntry, query, projection, binary, framed, contentEncoding, clientSchema, waitId );
+                waiting = true;
+                waiter.start();
+                return;
+              }
+              if ( !streamingCacheEntry.waitForId( waitId, maxWait * 1000L ) ) {
+                limitToAvailableRows( streamingCacheEntry, query );
+              }
+              rows = streamingCacheEntry.findRowIterator( log, query );
+            }
+            writeRows( serviceName, response, binary, framed, contentEncoding, clientSchema, streamingCacheEntry, projection, rows );
+          } finally {
+            if ( !waiting ) {
+              streamingCacheEntry.release();
+            }
           }
         }
       } else {
@@ -133,84 +273,621 @@ public class GetStreamingServicesServlet extends BaseHttpServlet implements Cart
       }
     } catch ( Exception e ) {
       LogChannel.GENERAL.logError( "Error get streaming data for service '" + serviceName + "'", e);
-      try {
-        response.sendError(500, e.getMessage()+" - "+Const.getStackTracker(e));
-      } catch(IOException ioe) {
-        LogChannel.GENERAL.logError( "Error writing error response for service '" + serviceName + "'", ioe );
-      }
+      sendError( response, serviceName, e );
     }
 
     
   }
 
+  /**
+   * Report an error to the client.  Once the response is committed its status can't be changed any more: the error is
+   * thrown at the container instead, which aborts the connection so the client doesn't get the end of the rows.
+   */
+  private static void sendError( HttpServletResponse response, String serviceName, Exception e ) throws IOException {
+    if ( response.isCommitted() ) {
+      throw new IOException( "The streaming data of service '" + serviceName + "' was cut short", e );
+    }
+    response.sendError( 500, e.getMessage() + " - " + Const.getStackTracker( e ) );
+  }
+
+  /**
+   * Write the rows to the response while they are read from the cache.  An error halfway a framed response is
+   * reported in an error frame, see FRAME_ERROR.
+   *
+   * @throws KettleException in case of an error the client wasn't told about
+   */
+  private void writeRows( String serviceName, HttpServletResponse response, boolean binary, boolean framed, String contentEncoding, String clientSchema,
+    StreamingCacheEntry streamingCacheEntry, StreamingRowProjection projection, Iterator<StreamingTimedNumberedRow> rows ) throws IOException, KettleException {
+    StreamingResponseOutputStream out = new StreamingResponseOutputStream( response, contentEncoding, StreamingResponseOutputStream.DEFAULT_THRESHOLD );
+    int nrRows;
+    try {
+      nrRows = encodeRows( serviceName, out, binary, framed, clientSchema, streamingCacheEntry, projection, rows );
+    } catch ( KettleException e ) {
+      if ( framed && response.isCommitted() ) {
+        // The client reads the error frame in place of the next frame
+        //
+        LogChannel.GENERAL.logError( "Error getting streaming data for service '" + serviceName + "'", e );
+        out.finish();
+        return;
+      }
+      out.discard();
+      throw e;
+    }
+    out.finish();
+    LogChannel.GENERAL.logBasic( "Data export for '"+serviceName+"' done, "+nrRows+" rows written"+( out.isCompressed() ? " ("+contentEncoding+")" : "" ) );
+  }
+
+  /**
+   * @return true if the request doesn't wait for new rows and at most MAX_SHARED_ROWS rows are asked for, so that the
+   * response can be kept for identical requests
+   */
+  static boolean isShareable( StreamingCacheEntry streamingCacheEntry, StreamingCacheQuery query ) {
+    if ( query.getNewSize() > 0 ) {
+      return false;
+    }
+    long nrRows = streamingCacheEntry.countRange( query );
+    return nrRows >= 0 && nrRows <= MAX_SHARED_ROWS;
+  }
+
+  /**
+   * Encode the rows in the format asked for
+   *
+   * @return the number of rows written
+   */
+  private int encodeRows( String serviceName, OutputStream out, boolean binary, boolean framed, String clientSchema,
+    StreamingCacheEntry streamingCacheEntry, StreamingRowProjection projection, Iterator<StreamingTimedNumberedRow> rows ) throws IOException, KettleException {
+    if ( rows == null ) {
+      rows = Collections.<StreamingTimedNumberedRow>emptyList().iterator();
+    }
+
+    // Copy the rows encoded at capture time where possible
+    //
+    StreamingEncodedRows encodedRows = streamingCacheEntry.getEncodedRows();
+    if ( encodedRows != null && ( !projection.isComplete() || encodedRows.getRowMeta() != projection.getRowMeta() ) ) {
+      encodedRows = null;
+    }
+
+    // The layout of all fields is encoded once per cache entry, a subset of the fields once per request
+    //
+    StreamingSchema schema = streamingCacheEntry.getSchema();
+    if ( schema.getRowMeta() != projection.getRowMeta() ) {
+      schema = new StreamingSchema( projection.getRowMeta() );
+    }
+
+    int nrRows;
+    if ( binary && framed ) {
+      nrRows = writeFramedBinaryData( serviceName, out, schema, clientSchema, projection, encodedRows, rows );
+    } else if ( binary ) {
+      // The row count goes first, so the rows have to be collected
+      //
+      List<StreamingTimedNumberedRow> list = new ArrayList<StreamingTimedNumberedRow>();
+      while ( rows.hasNext() ) {
+        list.add( rows.next() );
+      }
+      writeBinaryData( serviceName, out, schema, clientSchema, projection, encodedRows, list );
+      nrRows = list.size();
+    } else {
+      nrRows = writeJsonData( serviceName, out, schema, clientSchema, projection, encodedRows, rows );
+    }
+    return nrRows;
+  }
+
+  /**
+   * @return a weak entity tag identifying the rows asked for and their format: the layout of the rows, the IDs of
+   * the first and last row in the cache and the parameters of the request
+   */
+  static String getETag( Map<String, String[]> parameterMap, StreamingCacheEntry streamingCacheEntry ) throws KettleException {
+    StringBuilder parameters = new StringBuilder();
+    for ( String name : ETAG_PARAMETERS ) {
+      String[] values = parameterMap.get( name );
+      String value = values == null || values.length == 0 ? null : values[0];
+      parameters.append( name ).append( '=' ).append( value == null ? "" : value ).append( '\n' );
+    }
+    String parametersHash = StreamingSchema.fingerprint( parameters.toString().getBytes( Charset.forName( Const.XML_ENCODING ) ) );
+    return "W/\"" + SERVER_RUN + "-" + streamingCacheEntry.getSchema().getFingerprint().substring( 0, 8 ) + "-"
+      + streamingCacheEntry.getFirstId() + "-" + streamingCacheEntry.getLastId() + "-" + parametersHash.substring( 0, 16 ) + "\"";
+  }
+
+  /**
+   * @param ifNoneMatch the value of the If-None-Match header (null : none)
+   * @param eTag the entity tag of the response
+   * @return true if the client holds the response already, comparing weakly
+   */
+  static boolean matchesETag( String ifNoneMatch, String eTag ) {
+    if ( ifNoneMatch == null ) {
+      return false;
+    }
+    String opaqueTag = eTag.startsWith( "W/" ) ? eTag.substring( 2 ) : eTag;
+    for ( String tag : ifNoneMatch.split( "," ) ) {
+      tag = tag.trim();
+      if ( tag.startsWith( "W/" ) ) {
+        tag = tag.substring( 2 );
+      }
+      if ( "*".equals( tag ) || opaqueTag.equals( tag ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * After waiting in vain for new rows, only ask for the new rows which are available.
+   */
+  private static void limitToAvailableRows( StreamingCacheEntry streamingCacheEntry, StreamingCacheQuery query ) {
+    long available = Math.max( 0L, streamingCacheEntry.getLastId() - query.getFromId() );
+    query.setNewSize( (int) Math.min( available, query.getNewSize() ) );
+  }
+
+  /**
+   * Completes a suspended request as soon as the row it waits for is added to the cache or when maxWait expires,
+   * whichever comes first.  The response is written by a container thread, never by the thread capturing the rows.
+   */
+  private class RowWaiter extends StreamingCacheAdapter implements AsyncListener {
+    private AsyncContext asyncContext;
+    private String serviceName;
+    private StreamingCacheEntry streamingCacheEntry;
+    private StreamingCacheQuery query;
+    private StreamingRowProjection projection;
+    private boolean binary;
+    private boolean framed;
+    private String contentEncoding;
+    private String clientSchema;
+    private long waitId;
+    private AtomicBoolean finished;
+    private AtomicBoolean released;
+
+    public RowWaiter( AsyncContext asyncContext, String serviceName, StreamingCacheEntry streamingCacheEntry, StreamingCacheQuery query,
+      StreamingRowProjection projection, boolean binary, boolean framed, String contentEncoding, String clientSchema, long waitId ) {
+      this.asyncContext = asyncContext;
+      this.serviceName = serviceName;
+      this.streamingCacheEntry = streamingCacheEntry;
+      this.query = query;
+      this.projection = projection;
+      this.binary = binary;
+      this.framed = framed;
+      this.contentEncoding = contentEncoding;
+      this.clientSchema = clientSchema;
+      this.waitId = waitId;
+      this.finished = new AtomicBoolean( false );
+      this.released = new AtomicBoolean( false );
+    }
+
+    public void start() {
+      asyncContext.setTimeout( query.getMaxWait() > 0 ? query.getMaxWait() * 1000L : 0L );
+      asyncContext.addListener( this );
+      streamingCacheEntry.addListener( this );
+
+      // The row might have been added or the cache dropped before we started listening
+      //
+      if ( streamingCacheEntry.isDropped() ) {
+        finish( true );
+      } else if ( streamingCacheEntry.getLastId() >= waitId ) {
+        finish( false );
+      }
+    }
+
+    @Override
+    public void rowsAdded( StreamingCacheEntry cacheEntry, List<StreamingTimedNumberedRow> rows ) {
+      if ( !rows.isEmpty() && rows.get( rows.size() - 1 ).getId() >= waitId ) {
+        finish( false );
+      }
+    }
+
+    @Override
+    public void cacheDropped( StreamingCacheEntry cacheEntry ) {
+      // No more rows will be added, answer with the ones available
+      finish( true );
+    }
+
+    private void finish( final boolean timedOut ) {
+      if ( !finished.compareAndSet( false, true ) ) {
+        return;
+      }
+      streamingCacheEntry.removeListener( this );
+      Runnable writer = new Runnable() {
+        public void run() {
+          HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+          try {
+            if ( timedOut ) {
+              limitToAvailableRows( streamingCacheEntry, query );
+            }
+            writeRows( serviceName, response, binary, framed, contentEncoding, clientSchema, streamingCacheEntry, projection, streamingCacheEntry.findRowIterator( log, query ) );
+          } catch ( Exception e ) {
+            LogChannel.GENERAL.logError( "Error get streaming data for service '" + serviceName + "'", e );
+            try {
+              sendError( response, serviceName, e );
+            } catch ( IOException ioe ) {
+              // An asynchronous request can't be aborted, the client misses the end of the rows
+              LogChannel.GENERAL.logError( "Error writing error response for service '" + serviceName + "'", ioe );
+            }
+          } finally {
+            release();
+            asyncContext.complete();
+          }
+        }
+      };
+      if ( timedOut && !streamingCacheEntry.isDropped() ) {
+        // We're on a container thread already
+        writer.run();
+      } else {
+        asyncContext.start( writer );
+      }
+    }
+
+    public void onTimeout( AsyncEvent event ) throws IOException {
+      finish( true );
+    }
+
+    public void onError( AsyncEvent event ) throws IOException {
+      finished.set( true );
+      streamingCacheEntry.removeListener( this );
+      release();
+    }
+
+    public void onComplete( AsyncEvent event ) throws IOException {
+      streamingCacheEntry.removeListener( this );
+      release();
+    }
+
+    /**
+     * Let go of the rows of the cache entry, once
+     */
+    private void release() {
+      if ( released.compareAndSet( false, true ) ) {
+        streamingCacheEntry.release();
+      }
+    }
+
+    public void onStartAsync( AsyncEvent event ) throws IOException {
+    }
+  }
+
+  /**
+   * Encodes the rows of a response which can be shared by identical requests in memory.  The response isn't shared
+   * if it's larger than StreamingResultCache.getMaxResultSize(), encoding stops as soon as it is.
+   */
+  private class ResultEncoder implements Callable<byte[]> {
+    private String serviceName;
+    private boolean binary;
+    private boolean framed;
+    private String clientSchema;
+    private StreamingCacheEntry streamingCacheEntry;
+    private StreamingCacheQuery query;
+    private StreamingRowProjection projection;
+    private volatile boolean encoded;
+
+    public ResultEncoder( String serviceName, boolean binary, boolean framed, String clientSchema,
+      StreamingCacheEntry streamingCacheEntry, StreamingCacheQuery query, StreamingRowProjection projection ) {
+      this.serviceName = serviceName;
+      this.binary = binary;
+      this.framed = framed;
+      this.clientSchema = clientSchema;
+      this.streamingCacheEntry = streamingCacheEntry;
+      this.query = query;
+      this.projection = projection;
+    }
+
+    public byte[] call() throws Exception {
+      encoded = true;
+      final SharedResultOutputStream out = new SharedResultOutputStream( StreamingResultCache.getInstance().getMaxResultSize() );
+      final Iterator<StreamingTimedNumberedRow> rows = streamingCacheEntry.findRowIterator( log, query );
+      Iterator<StreamingTimedNumberedRow> sharedRows = rows == null ? null : new Iterator<StreamingTimedNumberedRow>() {
+        public boolean hasNext() {
+          return !out.isOverflowed() && rows.hasNext();
+        }
+
+        public StreamingTimedNumberedRow next() {
+          return rows.next();
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+      encodeRows( serviceName, out, binary, framed, clientSchema, streamingCacheEntry, projection, sharedRows );
+      return out.getResult();
+    }
+
+    /**
+     * @return true if the response was encoded by this encoder rather than by an identical request
+     */
+    public boolean isEncoded() {
+      return encoded;
+    }
+  }
+
+  /**
+   * Keeps the bytes of a response to share in memory, as long as they fit.  The bytes written after that are ignored.
+   */
+  private static class SharedResultOutputStream extends OutputStream {
+    private ByteArrayOutputStream bytes;
+    private int maxSize;
+    private boolean overflowed;
+    private boolean discarded;
+
+    public SharedResultOutputStream( int maxSize ) {
+      this.bytes = new ByteArrayOutputStream();
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+      write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+      if ( overflowed ) {
+        return;
+      }
+      if ( bytes.size() + len > maxSize ) {
+        // Too large to keep
+        overflowed = true;
+        bytes = null;
+      } else {
+        bytes.write( b, off, len );
+      }
+    }
+
+    /**
+     * The response can't be shared, for example because it reports an error
+     */
+    public void discard() {
+      discarded = true;
+    }
+
+    public boolean isOverflowed() {
+      return overflowed;
+    }
+
+    /**
+     * @return the bytes written or null if they didn't fit or were discarded
+     */
+    public byte[] getResult() {
+      return overflowed || discarded ? null : bytes.toByteArray();
+    }
+  }
+
+  /**
+   * Write the rows as JSON while they are read from the cache, without building the whole document in memory first.
+   * An error halfway is reported in the "error" member after the rows written so far, such a response isn't kept.
+   *
+   * @return the number of rows written
+   */
+  private int writeJsonData(String serviceName, OutputStream responseOut, StreamingSchema schema, String clientSchema, StreamingRowProjection projection, StreamingEncodedRows encodedRows, Iterator<StreamingTimedNumberedRow> rows) throws IOException {
+    Charset charset = Charset.forName( Const.XML_ENCODING );
+    OutputStream out = new BufferedOutputStream( responseOut, OUTPUT_BUFFER_SIZE );
+    int nrRows = 0;
+
+    // We have a bunch of rows, write it out...
+    // First the metadata, unless the client holds it already, then the data.
+    //
+    RowMetaInterface rowMeta = projection.getRowMeta();
+    if ( clientSchema == null ) {
+      out.write( "{\"metadata\":".getBytes( charset ) );
+      out.write( schema.getJsonMetadata() );
+    } else {
+      out.write( ( "{\"schema\":\"" + schema.getFingerprint() + "\"" ).getBytes( charset ) );
+      if ( !schema.matches( clientSchema ) ) {
+        out.write( ",\"metadata\":".getBytes( charset ) );
+        out.write( schema.getJsonMetadata() );
+      }
+    }
+
+    // Now the data, row by row
+    //
+    out.write( ",\"resultset\":[".getBytes( charset ) );
+    StreamingTimedNumberedRow firstRow = null;
+    StreamingTimedNumberedRow lastRow = null;
+    StringBuilder jRow = new StringBuilder();
+    String error = null;
+    try {
+      while ( rows.hasNext() ) {
+        StreamingTimedNumberedRow row = rows.next();
+        byte[] encoded = encodedRows == null ? null : encodedRows.getJson( row.getId() );
+        if ( encoded == null ) {
+          jRow.setLength( 0 );
+          StreamingEncodedRows.appendJson( jRow, rowMeta, projection.project( row.getRow() ) );
+          encoded = jRow.toString().getBytes( charset );
+        }
+        if ( nrRows > 0 ) {
+          out.write( ',' );
+        }
+        out.write( encoded );
+
+        if ( firstRow == null ) {
+          firstRow = row;
+        }
+        lastRow = row;
+        nrRows++;
+      }
+    } catch(Exception e) {
+      LogChannel.GENERAL.logError( "Error getting streaming data for service '" + serviceName + "'", e );
+      error = Const.getStackTracker( e );
+
+      // A response reporting an error is never shared with identical requests
+      //
+      if ( responseOut instanceof SharedResultOutputStream ) {
+        ( (SharedResultOutputStream) responseOut ).discard();
+      }
+    }
+    StringBuilder trailer = new StringBuilder( "]" );
+
+    // And finally the last ID in the result set...
+    //
+    if ( lastRow != null ) {
+      trailer.append( ",\"lastId\":" + lastRow.getId() + ",\"lastTime\":" + lastRow.getTime() );
+      trailer.append( ",\"firstId\":" + firstRow.getId() + ",\"firstTime\":" + firstRow.getTime() );
+    }
+    if ( error != null ) {
+      trailer.append( ",\"error\":" + JSONValue.toJSONString( error ) );
+    }
+    trailer.append( "}" );
+    out.write( trailer.toString().getBytes( charset ) );
+    out.flush();
+    return nrRows;
+  }
+
   @SuppressWarnings("unchecked")
-  private void writeJsonData(String serviceName, HttpServletResponse response, StreamingCacheEntry streamingCacheEntry, List<StreamingTimedNumberedRow> rows) throws IOException {
+  private void writeRollupData(String serviceName, HttpServletResponse response, String contentEncoding, StreamingCacheEntry streamingCacheEntry, StreamingRollup rollup, long fromTime) throws IOException {
     JSONObject json = new JSONObject();
     try {
-      
-      // We have a bunch of rows, write it out...
-      // First the metadata, then the data.
+      StreamingRollupDefinition definition = rollup.getDefinition();
+      json.put( "rollup", definition.getName() );
+      json.put( "bucketSeconds", definition.getBucketSeconds() );
+
+      // The bucket start time, the key and the measures
       //
-      RowMetaInterface rowMeta = streamingCacheEntry.getRowMeta();
       JSONArray jMetadata = new JSONArray();
       json.put( "metadata", jMetadata );
-      for ( int i = 0; i < rowMeta.size(); i++ ) {
-        ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+      List<String> names = new ArrayList<String>();
+      List<String> types = new ArrayList<String>();
+      names.add( "bucket" );
+      types.add( "Integer" );
+      names.add( definition.getKeyField() == null ? "key" : definition.getKeyField() );
+      types.add( "String" );
+      for ( StreamingRollupMeasure measure : definition.getMeasures() ) {
+        names.add( measure.toString() );
+        types.add( measure.getAggregation() == StreamingRollupAggregation.COUNT ? "Integer" : "Number" );
+      }
+      for ( int i = 0; i < names.size(); i++ ) {
         JSONObject jField = new JSONObject();
         jField.put( "colIndex", i );
-        jField.put( "colType", valueMeta.getTypeDesc() );
-        jField.put( "colName", valueMeta.getName() );
+        jField.put( "colType", types.get( i ) );
+        jField.put( "colName", names.get( i ) );
         jMetadata.add( jField );
       }
 
-      // Now the data
-      //
       JSONArray jRows = new JSONArray();
       json.put( "resultset", jRows );
-      for ( StreamingTimedNumberedRow row : rows ) {
+      for ( Object[] row : rollup.getRows( fromTime ) ) {
         JSONArray jRow = new JSONArray();
         jRows.add( jRow );
-        for ( int i = 0; i < rowMeta.size(); i++ ) {
-          ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
-          String string = valueMeta.getString( row.getRow()[i] );
-          jRow.add( string );
+        for ( Object value : row ) {
+          jRow.add( value );
         }
       }
+    } catch(Exception e) {
+      LogChannel.GENERAL.logError( "Error getting rollup data for service '" + serviceName + "'", e );
+      json = new JSONObject();
+      json.put( "error", Const.getStackTracker( e ) );
+    }
 
-      // And finally the last ID in the result set...
-      //
-      if ( rows.size() > 0 ) {
-        StreamingTimedNumberedRow lastRow = rows.get( rows.size() - 1 );
-        long lastId = lastRow.getId();
-        long lastTime = lastRow.getTime();
-        json.put( "lastId", lastId );
-        json.put( "lastTime", lastTime );
+    StreamingResponseOutputStream out = new StreamingResponseOutputStream( response, contentEncoding, StreamingResponseOutputStream.DEFAULT_THRESHOLD );
+    out.write( json.toJSONString().getBytes( Charset.forName( Const.XML_ENCODING ) ) );
+    out.finish();
+  }
 
-        StreamingTimedNumberedRow firstRow = rows.get( 0 );
-        long firstId = firstRow.getId();
-        long firstTime = firstRow.getTime();
-        json.put( "firstId", firstId );
-        json.put( "firstTime", firstTime );
+  /**
+   * Write the rows in the framed binary format while they are read from the cache: the metadata, then frames
+   * of at most FRAME_SIZE rows, each starting with its number of rows, then an empty frame and finally the
+   * ID and time of the last and first row if there were any rows.  An error halfway is reported with an error frame
+   * holding the message instead of the empty frame.
+   *
+   * @return the number of rows written
+   */
+  private int writeFramedBinaryData(String serviceName, OutputStream out, StreamingSchema schema, String clientSchema, StreamingRowProjection projection, StreamingEncodedRows encodedRows, Iterator<StreamingTimedNumberedRow> rows) throws IOException, KettleException {
+    int nrRows = 0;
+    DataOutputStream dos = null;
+    try {
+      dos = new DataOutputStream( new BufferedOutputStream( out, OUTPUT_BUFFER_SIZE ) );
+      RowMetaInterface rowMeta = projection.getRowMeta();
+      writeBinaryMetadata( dos, schema, clientSchema );
+
+      ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+      DataOutputStream frame = new DataOutputStream( frameBytes );
+      int frameRows = 0;
+      StreamingTimedNumberedRow firstRow = null;
+      StreamingTimedNumberedRow lastRow = null;
+      while ( rows.hasNext() ) {
+        StreamingTimedNumberedRow row = rows.next();
+        frame.writeLong( row.getId() );
+        frame.writeLong( row.getTime() );
+        writeRowData( frame, rowMeta, projection, encodedRows, row );
+        frameRows++;
+        if ( frameRows == FRAME_SIZE ) {
+          writeFrame( dos, frameRows, frameBytes );
+          frameRows = 0;
+        }
+        if ( firstRow == null ) {
+          firstRow = row;
+        }
+        lastRow = row;
+        nrRows++;
       }
-      
+      if ( frameRows > 0 ) {
+        writeFrame( dos, frameRows, frameBytes );
+      }
+      dos.writeInt( 0 );
+
+      if ( lastRow != null ) {
+        dos.writeLong( lastRow.getId() );
+        dos.writeLong( lastRow.getTime() );
+        dos.writeLong( firstRow.getId() );
+        dos.writeLong( firstRow.getTime() );
+      }
+      dos.flush();
     } catch(Exception e) {
-      LogChannel.GENERAL.logError( "Error getting streaming data for service '" + serviceName + "'", e );
-      json = new JSONObject();
-      json.put( "error", Const.getStackTracker( e ) );
+      // Frames are only written whole, so the error frame follows the last complete one
+      //
+      if ( dos != null ) {
+        try {
+          dos.writeInt( FRAME_ERROR );
+          dos.writeUTF( Const.NVL( e.getMessage(), e.toString() ) );
+          dos.flush();
+        } catch ( IOException ioe ) {
+          // The client notices the missing empty frame
+        }
+      }
+      throw new KettleException( "Error getting streaming data for service '" + serviceName + "'", e );
     }
-    
-    response.getWriter().write(json.toJSONString());
+    return nrRows;
+  }
+
+  /**
+   * Write the layout of the rows in the binary format.  Clients which don't send the fingerprint of the layout
+   * they hold only get the metadata.  The others get the fingerprint and a flag telling whether the metadata follows,
+   * it doesn't if they hold the layout already.
+   */
+  private static void writeBinaryMetadata( DataOutputStream dos, StreamingSchema schema, String clientSchema ) throws IOException {
+    if ( clientSchema != null ) {
+      dos.writeUTF( schema.getFingerprint() );
+      boolean included = !schema.matches( clientSchema );
+      dos.writeBoolean( included );
+      if ( !included ) {
+        return;
+      }
+    }
+    dos.write( schema.getBinaryMetadata() );
   }
 
-  private void writeBinaryData(String serviceName, HttpServletResponse response, StreamingCacheEntry streamingCacheEntry, List<StreamingTimedNumberedRow> rows) throws IOException {
+  private static void writeFrame( DataOutputStream dos, int frameRows, ByteArrayOutputStream frameBytes ) throws IOException {
+    dos.writeInt( frameRows );
+    frameBytes.writeTo( dos );
+    frameBytes.reset();
+  }
+
+  /**
+   * Write the data of a row in the binary format, copying the bytes encoded at capture time if they are available
+   */
+  private static void writeRowData( DataOutputStream dos, RowMetaInterface rowMeta, StreamingRowProjection projection, StreamingEncodedRows encodedRows, StreamingTimedNumberedRow row ) throws IOException, KettleException {
+    byte[] encoded = encodedRows == null ? null : encodedRows.getBinary( row.getId() );
+    if ( encoded != null ) {
+      dos.write( encoded );
+    } else {
+      rowMeta.writeData( dos, projection.project( row.getRow() ) );
+    }
+  }
+
+  private void writeBinaryData(String serviceName, OutputStream out, StreamingSchema schema, String clientSchema, StreamingRowProjection projection, StreamingEncodedRows encodedRows, List<StreamingTimedNumberedRow> rows) throws IOException, KettleException {
    
     try {
-      DataOutputStream dos = new DataOutputStream(response.getOutputStream());
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE));
       
       // Write the metadata
       //
-      RowMetaInterface rowMeta = streamingCacheEntry.getRowMeta();
-      rowMeta.writeMeta(dos);
+      RowMetaInterface rowMeta = projection.getRowMeta();
+      writeBinaryMetadata( dos, schema, clientSchema );
       
       // Write the number of rows
       //
@@ -229,7 +906,7 @@ public class GetStreamingServicesServlet extends BaseHttpServlet implements Cart
         
         // The rest of the data
         //
-        rowMeta.writeData(dos, row.getRow());
+        writeRowData( dos, rowMeta, projection, encodedRows, row );
       }
 
       // Write the ID and time of the last row and the first row
@@ -249,11 +926,10 @@ public class GetStreamingServicesServlet extends BaseHttpServlet implements Cart
         dos.writeLong( firstId );
         dos.writeLong( firstTime );
       }
+      dos.flush();
       
     } catch(Exception e) {
-      LogChannel.GENERAL.logError( "Error getting streaming data for service '" + serviceName + "'", e );
-      
-      response.sendError(500, e.getMessage()+" - "+Const.getStackTracker(e));
+      throw new KettleException( "Error getting streaming data for service '" + serviceName + "'", e );
     }
   }
 
@@ -0,0 +1,191 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.streaming.www;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.CarteServlet;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.streaming.www.cache.StreamingCache;
+import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingHyperLogLog;
+import org.pentaho.di.streaming.www.cache.StreamingQuantileSketch;
+import org.pentaho.di.streaming.www.cache.StreamingSketchType;
+import org.pentaho.di.streaming.www.cache.StreamingSketches;
+import org.pentaho.di.www.BaseHttpServlet;
+import org.pentaho.di.www.CartePluginInterface;
+import org.pentaho.di.www.JobMap;
+import org.pentaho.di.www.TransformationMap;
+
+/**
+ * This servlet answers approximate distinct count and quantile queries over a time window of a streaming service
+ * from the sketches kept of its cache, without scanning the cached rows.
+ */
+@CarteServlet(
+  id = "getStreamingSketch",
+  name = "Get streaming sketches",
+  description = "Estimate distinct counts and quantiles of the data of a streaming service" )
+public class GetStreamingSketchServlet extends BaseHttpServlet implements CartePluginInterface {
+
+  private static final long serialVersionUID = -4312985410561725123L;
+
+  public static final String CONTEXT_PATH = "/kettle/getStreamingSketch";
+
+  public static final String DEFAULT_QUANTILES = "0.5,0.9,0.99";
+
+  public GetStreamingSketchServlet() {
+  }
+
+  public GetStreamingSketchServlet( TransformationMap transformationMap, JobMap jobMap ) {
+    super( transformationMap, jobMap );
+  }
+
+  public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+    if ( isJettyMode() && !request.getContextPath().startsWith( CONTEXT_PATH ) ) {
+      return;
+    }
+
+    String serviceName = request.getParameter( "service" );
+    String fieldName = request.getParameter( "field" );
+    StreamingSketchType type = StreamingSketchType.getSketchTypeForCode( request.getParameter( "type" ) );
+    int lastPeriod = Const.toInt( request.getParameter( "lastPeriod" ), -1 );
+    String quantiles = Const.NVL( request.getParameter( "quantiles" ), DEFAULT_QUANTILES );
+    long now = System.currentTimeMillis();
+
+    // service=clicks
+    // field=device
+    // type=distinct
+    // lastPeriod=300
+    // quantiles=0.5,0.95
+
+    response.setStatus( HttpServletResponse.SC_OK );
+    response.setContentType( "application/json" );
+    response.setCharacterEncoding( Const.XML_ENCODING );
+
+    try {
+      StreamingCacheEntry streamingCacheEntry = Const.isEmpty( serviceName ) ? null : StreamingCache.getInstance().get( serviceName );
+      if ( streamingCacheEntry == null ) {
+        String comment = "Streaming cache service '" + serviceName + "' doesn't exist";
+        LogChannel.GENERAL.logError( comment );
+        throw new KettleException( comment );
+      }
+      StreamingSketches sketches = streamingCacheEntry.getSketches();
+      if ( sketches == null ) {
+        throw new KettleException( "Streaming service '" + serviceName + "' doesn't keep any sketches" );
+      }
+      if ( !Const.isEmpty( fieldName ) && sketches.indexOf( type, fieldName ) < 0 ) {
+        throw new KettleException( "Streaming service '" + serviceName + "' doesn't keep a sketch of field '" + fieldName + "'" );
+      }
+      long fromTime = lastPeriod > 0 ? now - lastPeriod * 1000L : 0L;
+      writeSketchData( serviceName, response, sketches, type, fieldName, fromTime, parseQuantiles( quantiles ) );
+    } catch ( Exception e ) {
+      LogChannel.GENERAL.logError( "Error get streaming sketches for service '" + serviceName + "'", e );
+      try {
+        response.sendError( 500, e.getMessage() + " - " + Const.getStackTracker( e ) );
+      } catch ( IOException ioe ) {
+        LogChannel.GENERAL.logError( "Error writing error response for service '" + serviceName + "'", ioe );
+      }
+    }
+  }
+
+  private static double[] parseQuantiles( String quantiles ) throws KettleException {
+    String[] strings = quantiles.split( "," );
+    double[] values = new double[strings.length];
+    for ( int i = 0; i < strings.length; i++ ) {
+      try {
+        values[i] = Double.parseDouble( strings[i].trim() );
+      } catch ( NumberFormatException e ) {
+        throw new KettleException( "Quantile '" + strings[i] + "' isn't a number", e );
+      }
+      if ( values[i] < 0.0 || values[i] > 1.0 ) {
+        throw new KettleException( "Quantile '" + strings[i] + "' should be between 0 and 1" );
+      }
+    }
+    return values;
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private void writeSketchData( String serviceName, HttpServletResponse response, StreamingSketches sketches,
+    StreamingSketchType type, String fieldName, long fromTime, double[] quantiles ) throws IOException {
+    JSONObject json = new JSONObject();
+    try {
+      json.put( "service", serviceName );
+      json.put( "bucketSeconds", sketches.getBucketSeconds() );
+
+      JSONArray jSketches = new JSONArray();
+      json.put( "sketches", jSketches );
+      for ( int index = 0; index < sketches.getNrSketches(); index++ ) {
+        if ( type != null && sketches.getType( index ) != type ) {
+          continue;
+        }
+        if ( !Const.isEmpty( fieldName ) && !sketches.getFieldName( index ).equalsIgnoreCase( fieldName ) ) {
+          continue;
+        }
+        JSONObject jSketch = new JSONObject();
+        jSketches.add( jSketch );
+        jSketch.put( "field", sketches.getFieldName( index ) );
+        jSketch.put( "type", sketches.getType( index ).getCode() );
+
+        Object sketch = sketches.merge( index, fromTime );
+        if ( sketch instanceof StreamingHyperLogLog ) {
+          jSketch.put( "distinct", ( (StreamingHyperLogLog) sketch ).estimate() );
+        } else {
+          StreamingQuantileSketch quantileSketch = (StreamingQuantileSketch) sketch;
+          jSketch.put( "count", quantileSketch.getCount() );
+          if ( quantileSketch.getCount() > 0 ) {
+            jSketch.put( "min", quantileSketch.getMin() );
+            jSketch.put( "max", quantileSketch.getMax() );
+            jSketch.put( "avg", quantileSketch.getSum() / quantileSketch.getCount() );
+            JSONObject jQuantiles = new JSONObject();
+            jSketch.put( "quantiles", jQuantiles );
+            for ( double quantile : quantiles ) {
+              jQuantiles.put( Double.toString( quantile ), quantileSketch.getQuantile( quantile ) );
+            }
+          }
+        }
+      }
+    } catch ( Exception e ) {
+      LogChannel.GENERAL.logError( "Error getting sketches for service '" + serviceName + "'", e );
+      json = new JSONObject();
+      json.put( "error", Const.getStackTracker( e ) );
+    }
+
+    response.getWriter().write( json.toJSONString() );
+  }
+
+  public String toString() {
+    return "get streaming sketches";
+  }
+
+  public String getService() {
+    return CONTEXT_PATH + " (" + toString() + ")";
+  }
+
+  public String getContextPath() {
+    return CONTEXT_PATH;
+  }
+
+}
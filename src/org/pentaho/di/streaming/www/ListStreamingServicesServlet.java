@@ -35,9 +35,16 @@ import org.pentaho.di.core.annotations.CarteServlet;
 import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.variables.Variables;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.streaming.StreamingService;
 import org.pentaho.di.streaming.util.StreamingConst;
+import org.pentaho.di.streaming.www.cache.StreamingCache;
+import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingResultCache;
+import org.pentaho.di.streaming.www.cache.StreamingStringInterner;
+import org.pentaho.di.streaming.xpoint.StreamingCapture;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransConfiguration;
 import org.pentaho.di.trans.TransExecutionConfiguration;
@@ -101,6 +108,10 @@ public class ListStreamingServicesServlet extends BaseHttpServlet implements Car
       final IMetaStore metaStore = transformationMap.getSlaveServerConfig().getMetaStore();
       final MetaStoreFactory<StreamingService> rtFactory = new MetaStoreFactory<StreamingService>( StreamingService.class, metaStore, PentahoDefaults.NAMESPACE );
 
+      // Restore the caches of services keeping a journal before anything else happens
+      //
+      replayJournals( repository, metaStore, rtFactory.getElements() );
+
       TimerTask startPreloaded = new TimerTask() {
         public void run() {
           try {
@@ -141,6 +152,49 @@ public class ListStreamingServicesServlet extends BaseHttpServlet implements Car
     }
   }
 
+  /**
+   * Restore the caches of the streaming services which keep a journal.
+   * The row IDs continue where they left off so the fromId of clients remain valid.
+   * The settings of a service are resolved with the variables of its transformation, like when capturing rows.
+   */
+  protected void replayJournals( Repository repository, IMetaStore metaStore, List<StreamingService> services ) {
+    StreamingCache cache = StreamingCache.getInstance();
+
+    for ( StreamingService service : services ) {
+      if ( !service.isJournaling() || cache.get( service.getName() ) != null ) {
+        continue;
+      }
+      StreamingCapture capture = null;
+      try {
+        capture = StreamingCapture.createCapture( log, cache, service, service.getName(), getVariables( repository, metaStore, service ) );
+        long nrRows = capture.replayJournal();
+        log.logBasic( "Restored " + nrRows + " rows of streaming service '" + service.getName() + "' from its journal" );
+      } catch ( Exception e ) {
+        log.logError( "Unable to restore streaming service '" + service.getName() + "' from its journal", e );
+      } finally {
+        if ( capture != null ) {
+          capture.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the variables of the transformation of the service, the system variables if it can't be loaded
+   */
+  private VariableSpace getVariables( Repository repository, IMetaStore metaStore, StreamingService service ) {
+    try {
+      TransMeta transMeta = StreamingConst.loadTransMeta( repository, metaStore, service );
+      transMeta.activateParameters();
+      return transMeta;
+    } catch ( Exception e ) {
+      log.logError( "Unable to load the transformation of streaming service '" + service.getName() + "', its journal settings are resolved with the system variables", e );
+      Variables space = new Variables();
+      space.initializeVariablesFrom( null );
+      return space;
+    }
+  }
+
   protected void startTransformation( Repository repository, IMetaStore metaStore, final StreamingService service ) {
     try {
 
@@ -232,6 +286,27 @@ public class ListStreamingServicesServlet extends BaseHttpServlet implements Car
       jServices.add( jService );
       jService.put( "name", service.getName() );
 
+      // The current memory use of the service cache
+      //
+      StreamingCacheEntry cacheEntry = StreamingCache.getInstance().get( service.getName() );
+      if ( cacheEntry != null ) {
+        JSONObject jCache = new JSONObject();
+        jService.put( "cache", jCache );
+        jCache.put( "rows", cacheEntry.size() );
+        jCache.put( "bytes", cacheEntry.getByteSize() );
+        jCache.put( "max_bytes", cacheEntry.getMaxBytes() );
+
+        StreamingStringInterner stringInterner = cacheEntry.getStringInterner();
+        if ( stringInterner != null ) {
+          JSONObject jDictionary = new JSONObject();
+          jCache.put( "dictionary", jDictionary );
+          jDictionary.put( "size", stringInterner.getDictionarySize() );
+          jDictionary.put( "lookups", stringInterner.getLookups() );
+          jDictionary.put( "hit_ratio", stringInterner.getHitRatio() );
+          jDictionary.put( "resets", stringInterner.getResets() );
+        }
+      }
+
       // Also include the row layout of the service step.
       //
       try {
@@ -258,6 +333,18 @@ public class ListStreamingServicesServlet extends BaseHttpServlet implements Car
 
     }
 
+    // How often identical getStreaming requests shared a response
+    //
+    StreamingResultCache resultCache = StreamingResultCache.getInstance();
+    JSONObject jResults = new JSONObject();
+    json.put( "result_cache", jResults );
+    jResults.put( "entries", resultCache.size() );
+    jResults.put( "bytes", resultCache.getByteSize() );
+    jResults.put( "hits", resultCache.getHits() );
+    jResults.put( "shared", resultCache.getShared() );
+    jResults.put( "misses", resultCache.getMisses() );
+    jResults.put( "hit_ratio", resultCache.getHitRatio() );
+
     response.getWriter().println( json.toJSONString() );
   }
 
@@ -0,0 +1,193 @@
+package org.pentaho.di.streaming.www;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The body of a streaming response, compressed with the content encoding negotiated with the client.
+ *
+ * The first bytes are held back until the threshold is passed: small responses, like most incremental polls, are
+ * then sent as they are with their content length since compressing them gains little.  Larger responses are
+ * compressed from the start, with the Content-Encoding header set before anything is sent.
+ */
+public class StreamingResponseOutputStream extends OutputStream {
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  /** Responses up to this number of bytes are not compressed, about the payload of a single packet */
+  public static final int DEFAULT_THRESHOLD = 1400;
+
+  private static final int COMPRESSION_BUFFER_SIZE = 8192;
+
+  private HttpServletResponse response;
+  private String contentEncoding;
+  private int threshold;
+
+  private ByteArrayOutputStream pending;
+  private OutputStream out;
+  private Deflater deflater;
+  private boolean compressed;
+  private boolean finished;
+
+  /**
+   * @param response the response to write to
+   * @param contentEncoding the content encoding to compress with, see negotiate() (null : no compression)
+   * @param threshold the size in bytes a response needs to exceed to get compressed
+   * @throws IOException
+   */
+  public StreamingResponseOutputStream( HttpServletResponse response, String contentEncoding, int threshold ) throws IOException {
+    this.response = response;
+    this.contentEncoding = contentEncoding;
+    this.threshold = threshold;
+    if ( contentEncoding == null ) {
+      out = response.getOutputStream();
+    } else {
+      pending = new ByteArrayOutputStream( threshold + 1 );
+    }
+  }
+
+  @Override
+  public void write( int b ) throws IOException {
+    if ( out != null ) {
+      out.write( b );
+    } else {
+      pending.write( b );
+      if ( pending.size() > threshold ) {
+        startCompression();
+      }
+    }
+  }
+
+  @Override
+  public void write( byte[] b, int off, int len ) throws IOException {
+    if ( out != null ) {
+      out.write( b, off, len );
+    } else {
+      pending.write( b, off, len );
+      if ( pending.size() > threshold ) {
+        startCompression();
+      }
+    }
+  }
+
+  private void startCompression() throws IOException {
+    response.setHeader( "Content-Encoding", contentEncoding );
+    if ( GZIP.equals( contentEncoding ) ) {
+      out = new GZIPOutputStream( response.getOutputStream(), COMPRESSION_BUFFER_SIZE, true );
+    } else {
+      deflater = new Deflater();
+      out = new DeflaterOutputStream( response.getOutputStream(), deflater, COMPRESSION_BUFFER_SIZE, true );
+    }
+    compressed = true;
+    pending.writeTo( out );
+    pending = null;
+  }
+
+  /**
+   * Flushes what was compressed so far.  Bytes held back while the threshold isn't reached stay held back.
+   */
+  @Override
+  public void flush() throws IOException {
+    if ( out != null ) {
+      out.flush();
+    }
+  }
+
+  /**
+   * Send the rest of the response: the bytes held back if the threshold was never reached or the end of the
+   * compressed data.
+   *
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    if ( finished ) {
+      return;
+    }
+    finished = true;
+    if ( pending != null ) {
+      response.setContentLength( pending.size() );
+      OutputStream responseStream = response.getOutputStream();
+      pending.writeTo( responseStream );
+      responseStream.flush();
+      pending = null;
+    } else if ( compressed ) {
+      // Also releases the native resources of the gzip compressor, the deflater we created ourselves
+      //
+      out.close();
+      if ( deflater != null ) {
+        deflater.end();
+      }
+    } else {
+      out.flush();
+    }
+  }
+
+  /**
+   * Forget the bytes held back, for example to send an error instead
+   */
+  public void discard() {
+    pending = null;
+    finished = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+  }
+
+  /**
+   * @return true if the response is being compressed
+   */
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /**
+   * Pick the content encoding to compress a response with from the Accept-Encoding header of the request.
+   * gzip is preferred over deflate, encodings with a quality of 0 are refused.
+   *
+   * @param acceptEncoding the value of the Accept-Encoding header (null : none)
+   * @return GZIP, DEFLATE or null if the client accepts neither
+   */
+  public static String negotiate( String acceptEncoding ) {
+    if ( acceptEncoding == null ) {
+      return null;
+    }
+    boolean gzip = false;
+    boolean deflate = false;
+    for ( String coding : acceptEncoding.split( "," ) ) {
+      String[] parts = coding.split( ";" );
+      String name = parts[0].trim().toLowerCase();
+      double quality = 1.0;
+      for ( int i = 1; i < parts.length; i++ ) {
+        String parameter = parts[i].trim();
+        if ( parameter.startsWith( "q=" ) ) {
+          try {
+            quality = Double.parseDouble( parameter.substring( 2 ).trim() );
+          } catch ( NumberFormatException e ) {
+            quality = 0.0;
+          }
+        }
+      }
+      if ( quality <= 0.0 ) {
+        continue;
+      }
+      if ( GZIP.equals( name ) || "x-gzip".equals( name ) ) {
+        gzip = true;
+      } else if ( DEFLATE.equals( name ) ) {
+        deflate = true;
+      }
+    }
+    return gzip ? GZIP : deflate ? DEFLATE : null;
+  }
+}
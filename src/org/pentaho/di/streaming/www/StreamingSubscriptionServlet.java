@@ -0,0 +1,431 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.streaming.www;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.CarteServlet;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.streaming.www.cache.StreamingCache;
+import org.pentaho.di.streaming.www.cache.StreamingCacheAdapter;
+import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingCacheQuery;
+import org.pentaho.di.streaming.www.cache.StreamingRowFilter;
+import org.pentaho.di.streaming.www.cache.StreamingRowProjection;
+import org.pentaho.di.streaming.www.cache.StreamingSchema;
+import org.pentaho.di.streaming.www.cache.StreamingSubscription;
+import org.pentaho.di.streaming.www.cache.StreamingSubscriptionChannel;
+import org.pentaho.di.streaming.www.cache.StreamingSubscriptionOverflow;
+import org.pentaho.di.streaming.www.cache.StreamingSubscriptions;
+import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
+import org.pentaho.di.www.BaseHttpServlet;
+import org.pentaho.di.www.CartePluginInterface;
+import org.pentaho.di.www.JobMap;
+import org.pentaho.di.www.TransformationMap;
+
+/**
+ * This servlet lets a client subscribe to the rows of one or more streaming services with credit-based flow control.
+ *
+ * <b>action=subscribe</b> (POST) with a JSON body:
+ * <pre>
+ * { "window" : 10000, "overflow" : "drop|coalesce", "credits" : 1000,
+ *   "services" : [ { "service" : "clicks", "fields" : "time,device", "filter" : "latency &gt; 250",
+ *                    "keyField" : "region", "key" : "eu", "coalesceField" : "device", "last" : 100 } ] }
+ * </pre>
+ * returns the subscription ID and the metadata of every service as JSON.
+ *
+ * <b>action=poll</b>&amp;subscription=ID&amp;credits=N&amp;maxWait=S grants N extra credits and returns the rows
+ * available against the credits as binary frames, waiting at most S seconds for rows if there are none yet.  Every
+ * frame starts with a type byte: 'M' (service index, RowMetaInterface metadata) precedes the first rows of a service,
+ * 'R' (service index, number of dropped rows, number of rows, then the ID, time and data of every row) holds a
+ * batch of rows and 'E' (the credits left) ends the response.
+ *
+ * <b>action=unsubscribe</b>&amp;subscription=ID ends the subscription.
+ *
+ * Once the cache of a subscribed service is replaced, for example by a cache flip, the subscription ends and a poll
+ * gets a 410 (Gone) response: the client has to subscribe again to receive the rows of the new cache.
+ */
+@CarteServlet(
+  id = "streamingSubscription",
+  name = "Subscribe to streaming data",
+  description = "Receive the data of streaming services with credit-based flow control" )
+public class StreamingSubscriptionServlet extends BaseHttpServlet implements CartePluginInterface {
+
+  private static final long serialVersionUID = -2257034169481207425L;
+
+  public static final String CONTEXT_PATH = "/kettle/streamingSubscription";
+
+  public static final byte FRAME_METADATA = 'M';
+  public static final byte FRAME_ROWS = 'R';
+  public static final byte FRAME_END = 'E';
+
+  public StreamingSubscriptionServlet() {
+  }
+
+  public StreamingSubscriptionServlet( TransformationMap transformationMap, JobMap jobMap ) {
+    super( transformationMap, jobMap );
+  }
+
+  public void doPost( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+    doGet( request, response );
+  }
+
+  public void doPut( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+    doGet( request, response );
+  }
+
+  public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+    if ( isJettyMode() && !request.getContextPath().startsWith( CONTEXT_PATH ) ) {
+      return;
+    }
+
+    String action = request.getParameter( "action" );
+    String subscriptionId = request.getParameter( "subscription" );
+
+    try {
+      if ( "subscribe".equalsIgnoreCase( action ) ) {
+        subscribe( request, response );
+      } else if ( "unsubscribe".equalsIgnoreCase( action ) ) {
+        StreamingSubscriptions.getInstance().remove( subscriptionId );
+        response.setStatus( HttpServletResponse.SC_OK );
+        response.setContentType( "application/json" );
+        response.setCharacterEncoding( Const.XML_ENCODING );
+        JSONObject json = new JSONObject();
+        json.put( "unsubscribed", subscriptionId );
+        response.getWriter().write( json.toJSONString() );
+      } else if ( "poll".equalsIgnoreCase( action ) ) {
+        StreamingSubscriptions.getInstance().removeExpired();
+        StreamingSubscription subscription = StreamingSubscriptions.getInstance().get( subscriptionId );
+        if ( subscription == null ) {
+          response.sendError( HttpServletResponse.SC_NOT_FOUND, "Subscription '" + subscriptionId + "' doesn't exist or expired" );
+          return;
+        }
+        poll( request, response, subscription );
+      } else {
+        throw new KettleException( "Unknown action '" + action + "', use subscribe, poll or unsubscribe" );
+      }
+    } catch ( Exception e ) {
+      LogChannel.GENERAL.logError( "Error handling streaming subscription request", e );
+      try {
+        response.sendError( 500, e.getMessage() + " - " + Const.getStackTracker( e ) );
+      } catch ( Exception ioe ) {
+        LogChannel.GENERAL.logError( "Error writing error response for streaming subscription", ioe );
+      }
+    }
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private void subscribe( HttpServletRequest request, HttpServletResponse response ) throws Exception {
+    JSONObject jRequest = (JSONObject) new JSONParser().parse( request.getReader() );
+    if ( jRequest == null ) {
+      throw new KettleException( "Please post the services to subscribe to as JSON" );
+    }
+    int window = toInt( jRequest.get( "window" ), -1 );
+    String overflowCode = (String) jRequest.get( "overflow" );
+    StreamingSubscriptionOverflow overflow = StreamingSubscriptionOverflow.getOverflowForCode( overflowCode );
+    if ( !Const.isEmpty( overflowCode ) && overflow == null ) {
+      throw new KettleException( "Unknown overflow policy '" + overflowCode + "', use drop or coalesce" );
+    }
+    JSONArray jServices = (JSONArray) jRequest.get( "services" );
+    if ( jServices == null || jServices.isEmpty() ) {
+      throw new KettleException( "Please specify the services to subscribe to" );
+    }
+
+    // The subscription holds on to the rows of the caches until it's closed
+    //
+    List<StreamingCacheEntry> cacheEntries = new ArrayList<StreamingCacheEntry>();
+    List<StreamingSubscriptionChannel> channels = new ArrayList<StreamingSubscriptionChannel>();
+    try {
+      for ( Object jServiceObject : jServices ) {
+        JSONObject jService = (JSONObject) jServiceObject;
+        String serviceName = (String) jService.get( "service" );
+        StreamingCacheEntry cacheEntry = Const.isEmpty( serviceName ) ? null : StreamingCache.getInstance().acquire( serviceName );
+        if ( cacheEntry == null ) {
+          throw new KettleException( "Streaming cache service '" + serviceName + "' doesn't exist" );
+        }
+        cacheEntries.add( cacheEntry );
+        channels.add( createChannel( serviceName, cacheEntry, jService ) );
+      }
+    } catch ( Exception e ) {
+      for ( StreamingCacheEntry cacheEntry : cacheEntries ) {
+        cacheEntry.release();
+      }
+      throw e;
+    }
+
+    StreamingSubscription subscription = new StreamingSubscription( channels, overflow, window );
+    subscription.grant( toInt( jRequest.get( "credits" ), 0 ) );
+    StreamingSubscriptions.getInstance().add( subscription );
+    LogChannel.GENERAL.logBasic( "Streaming subscription " + subscription.getId() + " to " + channels.size() + " services created" );
+
+    JSONObject json = new JSONObject();
+    json.put( "subscription", subscription.getId() );
+    json.put( "window", subscription.getWindow() );
+    json.put( "overflow", subscription.getOverflow().getCode() );
+    JSONArray jChannels = new JSONArray();
+    json.put( "services", jChannels );
+    for ( StreamingSubscriptionChannel channel : channels ) {
+      JSONObject jChannel = new JSONObject();
+      jChannel.put( "service", channel.getServiceName() );
+      jChannel.put( "metadata", StreamingSchema.getJsonMetadata( channel.getProjection().getRowMeta() ) );
+      jChannel.put( "nextId", channel.getNextId() );
+      jChannels.add( jChannel );
+    }
+    response.setStatus( HttpServletResponse.SC_OK );
+    response.setContentType( "application/json" );
+    response.setCharacterEncoding( Const.XML_ENCODING );
+    response.getWriter().write( json.toJSONString() );
+  }
+
+  private static StreamingSubscriptionChannel createChannel( String serviceName, StreamingCacheEntry cacheEntry, JSONObject jService ) throws KettleException {
+    StreamingCacheQuery query = new StreamingCacheQuery();
+    String keyField = (String) jService.get( "keyField" );
+    query.setKeyField( Const.isEmpty( keyField ) ? null : keyField );
+    query.setKeyValue( (String) jService.get( "key" ) );
+    String filter = (String) jService.get( "filter" );
+    if ( !Const.isEmpty( filter ) ) {
+      query.setFilter( StreamingRowFilter.parse( filter, cacheEntry.getRowMeta() ) );
+    }
+    StreamingRowProjection projection = new StreamingRowProjection( cacheEntry.getRowMeta(), (String) jService.get( "fields" ) );
+    String coalesceField = (String) jService.get( "coalesceField" );
+    int lastSize = toInt( jService.get( "last" ), -1 );
+    long lastId = Math.max( 0L, cacheEntry.getLastId() );
+    long nextId = lastSize > 0 ? lastId - lastSize + 1 : lastId + 1;
+    return new StreamingSubscriptionChannel( serviceName, cacheEntry, query, projection,
+      Const.isEmpty( coalesceField ) ? null : coalesceField, nextId );
+  }
+
+  private static int toInt( Object value, int defaultValue ) {
+    return value instanceof Number ? ( (Number) value ).intValue() : Const.toInt( value == null ? null : value.toString(), defaultValue );
+  }
+
+  private void poll( HttpServletRequest request, HttpServletResponse response, StreamingSubscription subscription ) throws Exception {
+    int maxWait = Const.toInt( request.getParameter( "maxWait" ), -1 );
+    subscription.grant( Const.toLong( request.getParameter( "credits" ), 0L ) );
+
+    response.setStatus( HttpServletResponse.SC_OK );
+    response.setContentType( "application/octet-stream" );
+
+    if ( maxWait <= 0 || isDone( subscription ) ) {
+      writeBatches( response, subscription );
+      return;
+    }
+
+    // Nothing to deliver yet: wait for rows of any of the services or for maxWait to expire
+    //
+    SubscriptionWaiter waiter = new SubscriptionWaiter( subscription );
+    if ( request.isAsyncSupported() ) {
+      waiter.start( request.startAsync(), maxWait * 1000L );
+      return;
+    }
+    waiter.await( maxWait * 1000L );
+    writeBatches( response, subscription );
+  }
+
+  private void writeBatches( HttpServletResponse response, StreamingSubscription subscription ) throws IOException, KettleException {
+    StreamingSubscriptionChannel replaced = subscription.getReplacedChannel();
+    if ( replaced != null ) {
+      StreamingSubscriptions.getInstance().remove( subscription.getId() );
+      LogChannel.GENERAL.logBasic( "Streaming subscription " + subscription.getId() + " ended, the cache of service '" + replaced.getServiceName() + "' was replaced" );
+      response.sendError( HttpServletResponse.SC_GONE, "The cache of streaming service '" + replaced.getServiceName() + "' was replaced, please subscribe again" );
+      return;
+    }
+    DataOutputStream dos = new DataOutputStream( response.getOutputStream() );
+    List<StreamingSubscriptionChannel> channels = subscription.getChannels();
+    for ( StreamingSubscription.Batch batch : subscription.poll( log ) ) {
+      StreamingSubscriptionChannel channel = channels.get( batch.getChannelIndex() );
+      RowMetaInterface rowMeta = channel.getProjection().getRowMeta();
+      if ( !channel.isMetadataSent() ) {
+        dos.writeByte( FRAME_METADATA );
+        dos.writeInt( batch.getChannelIndex() );
+        rowMeta.writeMeta( dos );
+        channel.setMetadataSent( true );
+      }
+      dos.writeByte( FRAME_ROWS );
+      dos.writeInt( batch.getChannelIndex() );
+      dos.writeLong( batch.getDropped() );
+      dos.writeInt( batch.getRows().size() );
+      for ( StreamingTimedNumberedRow row : batch.getRows() ) {
+        dos.writeLong( row.getId() );
+        dos.writeLong( row.getTime() );
+        rowMeta.writeData( dos, channel.getProjection().project( row.getRow() ) );
+      }
+    }
+    dos.writeByte( FRAME_END );
+    dos.writeLong( subscription.getCredits() );
+    dos.flush();
+  }
+
+  /**
+   * @return true if there is no need to wait for rows: rows can be delivered or a cache was replaced and all its rows
+   * were delivered
+   */
+  private static boolean isDone( StreamingSubscription subscription ) {
+    return subscription.isReady() || subscription.getReplacedChannel() != null;
+  }
+
+  /**
+   * Waits for rows added to any of the services of a subscription, or for the cache of one of them to be replaced.
+   * An asynchronous request is completed on a container thread, a synchronous one blocks in await().
+   */
+  private class SubscriptionWaiter extends StreamingCacheAdapter implements AsyncListener {
+    private StreamingSubscription subscription;
+    private AsyncContext asyncContext;
+    private AtomicBoolean finished;
+
+    public SubscriptionWaiter( StreamingSubscription subscription ) {
+      this.subscription = subscription;
+      this.finished = new AtomicBoolean( false );
+    }
+
+    public void start( AsyncContext asyncContext, long timeout ) {
+      this.asyncContext = asyncContext;
+      asyncContext.setTimeout( timeout );
+      asyncContext.addListener( this );
+      listen();
+
+      // Rows might have been added before we started listening
+      //
+      if ( isDone( subscription ) ) {
+        finish();
+      }
+    }
+
+    public void await( long timeout ) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeout;
+      listen();
+      try {
+        synchronized ( this ) {
+          long remaining = deadline - System.currentTimeMillis();
+          while ( !isDone( subscription ) && remaining > 0 ) {
+            wait( remaining );
+            remaining = deadline - System.currentTimeMillis();
+          }
+        }
+      } finally {
+        unlisten();
+      }
+    }
+
+    private void listen() {
+      for ( StreamingSubscriptionChannel channel : subscription.getChannels() ) {
+        channel.getCacheEntry().addListener( this );
+      }
+    }
+
+    private void unlisten() {
+      for ( StreamingSubscriptionChannel channel : subscription.getChannels() ) {
+        channel.getCacheEntry().removeListener( this );
+      }
+    }
+
+    @Override
+    public void rowsAdded( StreamingCacheEntry cacheEntry, List<StreamingTimedNumberedRow> rows ) {
+      wake();
+    }
+
+    @Override
+    public void cacheDropped( StreamingCacheEntry cacheEntry ) {
+      wake();
+    }
+
+    private void wake() {
+      if ( asyncContext == null ) {
+        synchronized ( this ) {
+          notifyAll();
+        }
+      } else {
+        finish();
+      }
+    }
+
+    private void finish() {
+      if ( !finished.compareAndSet( false, true ) ) {
+        return;
+      }
+      unlisten();
+      asyncContext.start( new Runnable() {
+        public void run() {
+          complete();
+        }
+      } );
+    }
+
+    private void complete() {
+      HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+      try {
+        writeBatches( response, subscription );
+      } catch ( Exception e ) {
+        LogChannel.GENERAL.logError( "Error sending rows of streaming subscription " + subscription.getId(), e );
+      } finally {
+        asyncContext.complete();
+      }
+    }
+
+    public void onTimeout( AsyncEvent event ) throws IOException {
+      // Deliver whatever there is, if anything
+      //
+      if ( finished.compareAndSet( false, true ) ) {
+        unlisten();
+        complete();
+      }
+    }
+
+    public void onError( AsyncEvent event ) throws IOException {
+      finished.set( true );
+      unlisten();
+    }
+
+    public void onComplete( AsyncEvent event ) throws IOException {
+      unlisten();
+    }
+
+    public void onStartAsync( AsyncEvent event ) throws IOException {
+    }
+  }
+
+  public String toString() {
+    return "streaming subscription";
+  }
+
+  public String getService() {
+    return CONTEXT_PATH + " (" + toString() + ")";
+  }
+
+  public String getContextPath() {
+    return CONTEXT_PATH;
+  }
+
+}
@@ -0,0 +1,35 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a byte buffer without copying them first
+ */
+public class StreamingByteBufferInputStream extends InputStream {
+  private ByteBuffer buffer;
+
+  public StreamingByteBufferInputStream( ByteBuffer buffer ) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read( byte[] bytes, int offset, int length ) {
+    if ( !buffer.hasRemaining() ) {
+      return -1;
+    }
+    int nr = Math.min( length, buffer.remaining() );
+    buffer.get( bytes, offset, nr );
+    return nr;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+}
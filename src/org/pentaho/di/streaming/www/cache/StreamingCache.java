@@ -1,24 +1,28 @@
 package org.pentaho.di.streaming.www.cache;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.pentaho.di.core.Const;
+import org.pentaho.di.streaming.util.StreamingConst;
+
 public class StreamingCache {
-  private static StreamingCache streamingCache;
+  private static final StreamingCache streamingCache = new StreamingCache();
 
   protected Map<String, StreamingCacheEntry> cache;
-  protected Map<String, AtomicLong> sequences;
+  protected ConcurrentMap<String, AtomicLong> sequences;
+
+  protected long maxBytes;
 
   private StreamingCache() {
-    cache = new HashMap<String, StreamingCacheEntry>();
-    sequences = new HashMap<String, AtomicLong>();
+    cache = new ConcurrentHashMap<String, StreamingCacheEntry>();
+    sequences = new ConcurrentHashMap<String, AtomicLong>();
+    maxBytes = Const.toLong( System.getProperty( StreamingConst.STREAMING_CACHE_MAX_BYTES ), -1L );
   }
 
   public static StreamingCache getInstance() {
-    if ( streamingCache == null ) {
-      streamingCache = new StreamingCache();
-    }
     return streamingCache;
   }
 
@@ -26,8 +30,48 @@ public class StreamingCache {
     return cache.get( serviceName );
   }
 
+  /**
+   * Get the cache of a service to read its rows.  The caller has to release() the entry once done: should the cache
+   * be replaced or removed in the mean time its rows stay available until then.
+   *
+   * @param serviceName
+   * @return the cache entry or null if there is none
+   */
+  public StreamingCacheEntry acquire( String serviceName ) {
+    while ( true ) {
+      StreamingCacheEntry entry = cache.get( serviceName );
+      if ( entry == null || entry.acquire() ) {
+        return entry;
+      }
+      // Dropped and released in the mean time, the map holds the next one already
+    }
+  }
+
+  /**
+   * Add or replace the cache of a service.  A replaced cache is dropped: its rows are released once no reader holds it.
+   *
+   * @param serviceName
+   * @param entry
+   */
   public void put( String serviceName, StreamingCacheEntry entry ) {
-    cache.put( serviceName, entry );
+    StreamingCacheEntry previous = cache.put( serviceName, entry );
+    if ( previous != null && previous != entry ) {
+      previous.drop();
+    }
+  }
+
+  /**
+   * Drop the cache of a service: its rows and the resources of its row store are released once no reader holds it.
+   *
+   * @param serviceName
+   * @return the dropped cache or null if there was none
+   */
+  public StreamingCacheEntry remove( String serviceName ) {
+    StreamingCacheEntry entry = cache.remove( serviceName );
+    if ( entry != null ) {
+      entry.drop();
+    }
+    return entry;
   }
 
   public Map<String, StreamingCacheEntry> getCache() {
@@ -35,11 +79,88 @@ public class StreamingCache {
   }
 
   public long nextValue( String serviceName ) {
+    return getSequence( serviceName ).incrementAndGet();
+  }
+
+  /**
+   * Make sure the IDs handed out for a service continue after the given value, for example after restoring
+   * a cache from its journal.
+   *
+   * @param serviceName
+   * @param lastValue the last ID handed out
+   */
+  public void restoreSequence( String serviceName, long lastValue ) {
+    AtomicLong atomicLong = getSequence( serviceName );
+    long value = atomicLong.get();
+    while ( value < lastValue && !atomicLong.compareAndSet( value, lastValue ) ) {
+      value = atomicLong.get();
+    }
+  }
+
+  private AtomicLong getSequence( String serviceName ) {
     AtomicLong atomicLong = sequences.get( serviceName );
     if ( atomicLong == null ) {
-      atomicLong = new AtomicLong( 0L );
-      sequences.put( serviceName, atomicLong );
+      AtomicLong existing = sequences.putIfAbsent( serviceName, new AtomicLong( 0L ) );
+      atomicLong = existing == null ? sequences.get( serviceName ) : existing;
+    }
+    return atomicLong;
+  }
+
+  /**
+   * @return the estimated memory use of all cached rows in bytes
+   */
+  public long getByteSize() {
+    long bytes = 0L;
+    for ( StreamingCacheEntry entry : cache.values() ) {
+      bytes += entry.getByteSize();
+    }
+    return bytes;
+  }
+
+  /**
+   * When the memory use of all caches exceeds the global budget, evict rows from the given entry until it's back
+   * within its fair share of the budget: an equal part for every cache.
+   * An entry is only trimmed this way by the thread capturing its rows, right after adding rows.
+   *
+   * Adding up the memory use of all caches is only done once the entry grew beyond its fair share.  If the caches
+   * turn out to be within the budget, the entry can take its part of what's left before they're added up again.
+   *
+   * @param entry the cache entry to trim
+   * @return the number of bytes freed
+   */
+  public long trimToBudget( StreamingCacheEntry entry ) {
+    if ( maxBytes <= 0 ) {
+      return 0L;
     }
-    return atomicLong.incrementAndGet();
+    long entryBytes = entry.getByteSize();
+    int nrEntries = Math.max( 1, cache.size() );
+    long fairShare = maxBytes / nrEntries;
+    if ( entryBytes <= fairShare || entryBytes <= entry.getBudgetCheckBytes() ) {
+      return 0L;
+    }
+    long excess = getByteSize() - maxBytes;
+    if ( excess <= 0 ) {
+      entry.setBudgetCheckBytes( entryBytes - excess / nrEntries );
+      return 0L;
+    }
+    long bytes = Math.min( excess, entryBytes - fairShare );
+    if ( bytes <= 0 ) {
+      return 0L;
+    }
+    return entry.removeBytes( bytes );
+  }
+
+  /**
+   * @return the maximum memory use of all caches together in bytes (<=0 : unlimited)
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @param maxBytes the maximum memory use of all caches together in bytes (<=0 : unlimited)
+   */
+  public void setMaxBytes( long maxBytes ) {
+    this.maxBytes = maxBytes;
   }
 }
@@ -0,0 +1,21 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.List;
+
+/**
+ * A streaming cache listener ignoring all events, override the ones you're interested in.
+ */
+public class StreamingCacheAdapter implements StreamingCacheListener {
+
+  @Override
+  public void rowsAdded( StreamingCacheEntry cacheEntry, List<StreamingTimedNumberedRow> rows ) {
+  }
+
+  @Override
+  public void rowsEvicted( StreamingCacheEntry cacheEntry, long firstTime ) {
+  }
+
+  @Override
+  public void cacheDropped( StreamingCacheEntry cacheEntry ) {
+  }
+}
@@ -1,32 +1,95 @@
 package org.pentaho.di.streaming.www.cache;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
 
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
 
+/**
+ * The cached rows of a streaming service.
+ *
+ * Rows are added by the thread capturing the rows of the service step, which also evicts rows to stay within the
+ * size and memory limits, see StreamingCache.trimToBudget().  Rows are evicted by other threads as well: the sweeper
+ * evicting expired rows and whoever drops the cache.  Writers take the write lock so only one of them changes the
+ * cache at a time.
+ *
+ * Readers read optimistically and validate afterwards that no row was added or evicted in the mean time, retrying
+ * if one was, so a reader normally doesn't hold up a writer.  Should a reader fail to get a consistent read a few
+ * times in a row it falls back to the read lock, the writers then wait for the time it takes to do that single read:
+ * reading a row or looking up the range of rows to return.
+ *
+ * Readers waiting for new rows are woken up by the writer as soon as it added them, see waitForId().  Without any
+ * waiting readers that costs the writer a single volatile read.
+ *
+ * Readers holding on to the entry register themselves with acquire() and release(), see StreamingCache.acquire().
+ * A cache which is replaced or removed keeps its rows until the last of them is done.
+ */
 public class StreamingCacheEntry {
+  private static final int MAX_OPTIMISTIC_READS = 8;
+
   private RowMetaInterface rowMeta;
-  private List<StreamingTimedNumberedRow> rowData;
+  private StreamingRowStore rowData;
+  private long maxBytes;
+  private volatile long budgetCheckBytes;
+  private volatile StreamingStringInterner stringInterner;
+
+  private final List<StreamingCacheListener> listeners;
+  private final List<StreamingKeyIndex> indexes;
+  private final Map<String, StreamingRollup> rollups;
+  private volatile StreamingSketches sketches;
+  private volatile StreamingEncodedRows encodedRows;
+  private volatile StreamingSchema schema;
+
+  private final StampedLock lock;
+
+  private final Object newRows;
+  private final AtomicInteger nrWaiting;
+
+  /** The number of readers holding the entry, -1 once the rows of the dropped entry are released */
+  private final AtomicInteger nrReaders;
+  private volatile boolean dropped;
 
   public StreamingCacheEntry() {
-    rowMeta = new RowMeta();
-    rowData = Collections.synchronizedList( new LinkedList<StreamingTimedNumberedRow>() );
+    this( new RowMeta(), -1 );
+  }
+
+  /**
+   * @param rowMeta
+   * @param maxSize the maximum number of rows to keep in the cache (<=0 : unlimited)
+   */
+  public StreamingCacheEntry( RowMetaInterface rowMeta, int maxSize ) {
+    this( rowMeta, new StreamingObjectRowStore( maxSize ) );
   }
 
   /**
    * @param rowMeta
-   * @param rowData
+   * @param rowData the storage engine for the rows of this cache
    */
-  public StreamingCacheEntry( RowMetaInterface rowMeta, List<StreamingTimedNumberedRow> rowData ) {
-    this();
+  public StreamingCacheEntry( RowMetaInterface rowMeta, StreamingRowStore rowData ) {
     this.rowMeta = rowMeta;
     this.rowData = rowData;
+    this.maxBytes = -1L;
+    this.lock = new StampedLock();
+    this.newRows = new Object();
+    this.nrWaiting = new AtomicInteger();
+    this.nrReaders = new AtomicInteger();
+    this.listeners = new CopyOnWriteArrayList<StreamingCacheListener>();
+    this.indexes = new CopyOnWriteArrayList<StreamingKeyIndex>();
+    this.rollups = new ConcurrentHashMap<String, StreamingRollup>();
   }
 
   /**
@@ -45,98 +108,801 @@ public class StreamingCacheEntry {
 
   /**
    * Find rows in the cache
-   * 
+   *
    * @param lastSize
    * @param lastPeriod
    * @param fromId
    * @param toId
    * @param newSize
    * @param maxWait
-   * @param now 
-   * @return
-   */
-  public List<StreamingTimedNumberedRow> findRows(LogChannelInterface log, int lastSize, int lastPeriod, long fromId, long toId, int newSize, int maxWait, long now ) {
-    synchronized ( rowData ) {
-      
-      log.logBasic("Finding rows, args:  lastSize="+lastSize+" lastPeriod="+lastPeriod+" fromId="+fromId+" toId="+toId+" newSize="+newSize+" maxWait="+maxWait+" now="+now);
-      
-      List<StreamingTimedNumberedRow> rows = new ArrayList<StreamingTimedNumberedRow>();
-
-      if ( fromId > 0 && toId > 0 ) {
-        
-        log.logBasic("Finding row range by ID fromId="+fromId+" toId="+toId+" buffer size : "+rowData.size());
-        
-        Iterator<StreamingTimedNumberedRow> iterator = rowData.iterator();
-        while ( iterator.hasNext() ) {
-          StreamingTimedNumberedRow row = iterator.next();
-          if ( row.getId() >= fromId && row.getId() <= toId ) {
-            rows.add( row );
-          }
-        }
-      } else if ( lastSize > 0 || lastPeriod > 0 ) {
-        
-        log.logBasic("Finding row range by last size or period  lastSize="+lastSize+" lastPeriod="+lastPeriod+" buffer size : "+rowData.size());
-        
-        Iterator<StreamingTimedNumberedRow> iterator = rowData.iterator();
-        int size = rowData.size();
-        StreamingTimedNumberedRow lastRow = rowData.get( size - 1 );
-        long lastId = lastRow.getId();
-        long lastTime = lastRow.getTime();
-        if ( fromId > 0 && ( newSize > 0 || maxWait > 0 ) ) {
-          long cutOffId = fromId + newSize;
-          long startId = lastSize <= 0 ? -1 : lastId - lastSize;
-          long startTime = lastPeriod <= 0 ? -1 : lastTime - lastPeriod * 1000;
-
-          if ( newSize > 0 && lastId - fromId < newSize ) {
-            return null;
-          }
-          
-          while ( iterator.hasNext() ) {
-            StreamingTimedNumberedRow row = iterator.next();
-            if ( ( ( startId > 0 && row.getId() > startId )
-              || ( ( startTime > 0 ) && row.getTime() > startTime ) ) && ( row.getId() < cutOffId ) ) {
-              rows.add( row );
-            }
+   * @param now
+   * @return The rows found or null if not enough new rows were captured yet
+   */
+  public List<StreamingTimedNumberedRow> findRows( LogChannelInterface log, int lastSize, int lastPeriod, long fromId, long toId, int newSize, int maxWait, long now ) {
+    return findRows( log, new StreamingCacheQuery( lastSize, lastPeriod, fromId, toId, newSize, maxWait, now ) );
+  }
+
+  /**
+   * Find rows in the cache.
+   * If the query asks for the rows with a given key, the index on the key field is used to only read those rows.
+   * Without an index on the key field all rows in the range are read and filtered.
+   * The filter of the query, if any, is evaluated on every row read.
+   *
+   * @param log
+   * @param query
+   * @return The rows found or null if not enough new rows were captured yet
+   */
+  public List<StreamingTimedNumberedRow> findRows( LogChannelInterface log, final StreamingCacheQuery query ) {
+    Iterator<StreamingTimedNumberedRow> iterator = findRowIterator( log, query );
+    if ( iterator == null ) {
+      return null;
+    }
+    List<StreamingTimedNumberedRow> rows = new ArrayList<StreamingTimedNumberedRow>();
+    while ( iterator.hasNext() ) {
+      rows.add( iterator.next() );
+    }
+    return rows;
+  }
+
+  /**
+   * Find rows in the cache like findRows() but without collecting them: the range of rows is fixed up front and
+   * the rows are read one at a time as the iterator advances, so the caller can write every row out as soon as it's
+   * read.  Rows evicted while iterating are skipped.
+   *
+   * @param log
+   * @param query
+   * @return An iterator over the rows found or null if not enough new rows were captured yet
+   */
+  public Iterator<StreamingTimedNumberedRow> findRowIterator( LogChannelInterface log, final StreamingCacheQuery query ) {
+    log.logBasic("Finding rows, args:  "+query);
+
+    // First determine the range of positions to return on a consistent view of the cache...
+    //
+    final long[] range = read( new Reader<long[]>() {
+      public long[] read() {
+        return findRange( query.getLastSize(), query.getLastPeriod(), query.getFromId(), query.getToId(), query.getNewSize(), query.getMaxWait() );
+      }
+    } );
+    if ( range == null ) {
+      return null;
+    }
+    log.logBasic("Found row range ["+range[0]+", "+range[1]+") in buffer of size "+size());
+
+    if ( query.hasKey() ) {
+      final StreamingKeyIndex index = getIndex( query.getKeyField() );
+      if ( index != null ) {
+        long[] positions = read( new Reader<long[]>() {
+          public long[] read() {
+            return index.getPositions( query.getKeyValue(), range[0], range[1] );
           }
+        } );
+        return new RowIterator( positions, range[0], range[1], -1, null, query.getFilter() );
+      }
+      if ( query.getKeyField() == null ) {
+        throw new RuntimeException( "Please specify the field to filter on, the cache has " + indexes.size() + " indexed fields" );
+      }
+    }
 
+    // ... then read the rows one by one, without holding up the writer for the whole range.
+    //
+    int keyIndex = query.hasKey() ? rowMeta.indexOfValue( query.getKeyField() ) : -1;
+    if ( query.hasKey() && keyIndex < 0 ) {
+      throw new RuntimeException( "Field '" + query.getKeyField() + "' to filter on couldn't be found" );
+    }
+    return new RowIterator( null, range[0], range[1], keyIndex, query.getKeyValue(), query.getFilter() );
+  }
+
+  /**
+   * @param query
+   * @return the number of rows in the range of the query, before filtering on key or filter, or -1 if not enough new
+   * rows were captured yet
+   */
+  public long countRange( final StreamingCacheQuery query ) {
+    long[] range = read( new Reader<long[]>() {
+      public long[] read() {
+        return findRange( query.getLastSize(), query.getLastPeriod(), query.getFromId(), query.getToId(), query.getNewSize(), query.getMaxWait() );
+      }
+    } );
+    return range == null ? -1L : Math.max( 0L, range[1] - range[0] );
+  }
+
+  /**
+   * Reads the matching rows of a range of positions, or of the given positions in the range, one at a time
+   */
+  private class RowIterator implements Iterator<StreamingTimedNumberedRow> {
+    private long[] positions;
+    private int positionIndex;
+    private long position;
+    private long end;
+    private int keyIndex;
+    private String keyValue;
+    private StreamingRowFilter filter;
+    private StreamingTimedNumberedRow next;
+
+    public RowIterator( long[] positions, long start, long end, int keyIndex, String keyValue, StreamingRowFilter filter ) {
+      this.positions = positions;
+      this.positionIndex = 0;
+      this.position = start;
+      this.end = end;
+      this.keyIndex = keyIndex;
+      this.keyValue = keyValue;
+      this.filter = filter;
+      this.next = null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while ( next == null ) {
+        StreamingTimedNumberedRow row;
+        if ( positions != null ) {
+          if ( positionIndex >= positions.length ) {
+            return false;
+          }
+          row = readRow( positions[positionIndex++] );
         } else {
-          while ( iterator.hasNext() ) {
-            StreamingTimedNumberedRow row = iterator.next();
-            if ( ( lastSize > 0 && row.getId() > lastId - lastSize )
-              || ( ( lastPeriod > 0 ) && row.getTime() > lastTime - lastPeriod * 1000 ) ) {
-              rows.add( row );
-            }
+          if ( position >= end ) {
+            return false;
           }
+          row = readRow( position++ );
+        }
+        if ( row != null && ( keyIndex < 0 || hasKey( row, keyIndex, keyValue ) ) && matches( row, filter ) ) {
+          next = row;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public StreamingTimedNumberedRow next() {
+      if ( !hasNext() ) {
+        throw new NoSuchElementException();
+      }
+      StreamingTimedNumberedRow row = next;
+      next = null;
+      return row;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException( "Rows can only be evicted from the start of a streaming cache" );
+    }
+  }
+
+  private boolean matches( StreamingTimedNumberedRow row, StreamingRowFilter filter ) {
+    if ( filter == null ) {
+      return true;
+    }
+    try {
+      return filter.matches( row.getRow() );
+    } catch ( KettleValueException e ) {
+      throw new RuntimeException( "Unable to evaluate filter '" + filter + "' on cached row " + row.getId(), e );
+    }
+  }
+
+  private boolean hasKey( StreamingTimedNumberedRow row, int keyIndex, String keyValue ) {
+    try {
+      return keyValue.equals( rowMeta.getValueMeta( keyIndex ).getString( row.getRow()[keyIndex] ) );
+    } catch ( KettleValueException e ) {
+      throw new RuntimeException( "Unable to compare the key of cached row " + row.getId(), e );
+    }
+  }
+
+  /**
+   * @return the range of positions [start, end) matching the arguments or null if not enough rows were captured yet
+   */
+  private long[] findRange( int lastSize, int lastPeriod, long fromId, long toId, int newSize, int maxWait ) {
+    if ( fromId > 0 && toId > 0 ) {
+
+      long endPosition = toId == Long.MAX_VALUE ? rowData.getLastPosition() : rowData.positionOfId( toId + 1 );
+      return new long[] { rowData.positionOfId( fromId ), endPosition };
+
+    } else if ( lastSize > 0 || lastPeriod > 0 ) {
+
+      if ( rowData.size() == 0 ) {
+        return fromId > 0 && newSize > 0 ? null : new long[] { 0L, 0L };
+      }
+      StreamingTimedNumberedRow lastRow = rowData.get( rowData.getLastPosition() - 1 );
+      long lastId = lastRow.getId();
+      long lastTime = lastRow.getTime();
+      if ( fromId > 0 && ( newSize > 0 || maxWait > 0 ) ) {
+        long cutOffId = fromId + newSize;
+        long startId = lastSize <= 0 ? -1 : lastId - lastSize;
+        long startTime = lastPeriod <= 0 ? -1 : lastTime - lastPeriod * 1000L;
+
+        if ( newSize > 0 && lastId - fromId < newSize ) {
+          return null;
+        }
+
+        long startPosition = rowData.getLastPosition();
+        if ( startId > 0 ) {
+          startPosition = rowData.positionOfId( startId + 1 );
+        }
+        if ( startTime > 0 ) {
+          startPosition = Math.min( startPosition, rowData.positionOfTime( startTime + 1 ) );
         }
+        return new long[] { startPosition, rowData.positionOfId( cutOffId ) };
+
       } else {
-        log.logBasic("Finding all rows, buffer size : "+rowData.size());
-        
-        // Simply return all rows
-        rows.addAll( rowData );
+        long startPosition = rowData.getLastPosition();
+        if ( lastSize > 0 ) {
+          startPosition = rowData.positionOfId( lastId - lastSize + 1 );
+        }
+        if ( lastPeriod > 0 ) {
+          startPosition = Math.min( startPosition, rowData.positionOfTime( lastTime - lastPeriod * 1000L + 1 ) );
+        }
+        return new long[] { startPosition, rowData.getLastPosition() };
+      }
+    } else {
+      // Simply return all rows
+      return new long[] { rowData.getFirstPosition(), rowData.getLastPosition() };
+    }
+  }
+
+  /**
+   * @return the row at the given position or null if it was evicted (or not yet added)
+   */
+  private StreamingTimedNumberedRow readRow( final long position ) {
+    return read( new Reader<StreamingTimedNumberedRow>() {
+      public StreamingTimedNumberedRow read() {
+        if ( position < rowData.getFirstPosition() || position >= rowData.getLastPosition() ) {
+          return null;
+        }
+        return rowData.get( position );
       }
+    } );
+  }
 
-      return rows;
+  /**
+   * Perform a read on a consistent view of the cache without blocking the writer.
+   * The reader can be called more than once so it shouldn't have side effects.
+   */
+  private <T> T read( Reader<T> reader ) {
+    for ( int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++ ) {
+      long stamp = lock.tryOptimisticRead();
+      if ( stamp == 0L ) {
+        // Being written to right now
+        Thread.yield();
+        continue;
+      }
+      T result;
+      try {
+        result = reader.read();
+      } catch ( RuntimeException e ) {
+        // A concurrent write can make us see an inconsistent state, only report errors on a valid view
+        //
+        if ( lock.validate( stamp ) ) {
+          throw e;
+        }
+        continue;
+      }
+      if ( lock.validate( stamp ) ) {
+        return result;
+      }
+    }
+    long stamp = lock.readLock();
+    try {
+      return reader.read();
+    } finally {
+      lock.unlockRead( stamp );
     }
   }
 
-  public synchronized void addRow(StreamingTimedNumberedRow row) {
-    rowData.add( row );
+  private interface Reader<T> {
+    public T read();
   }
 
-  public synchronized int size() {
-    return rowData.size();
+  /**
+   * Add a row to the cache, evicting the oldest rows if the memory budget of the cache is exceeded.
+   *
+   * @param row
+   */
+  public void addRow(StreamingTimedNumberedRow row) {
+    addRows( Collections.singletonList( row ) );
+  }
+
+  /**
+   * Add a batch of rows to the cache in one go, evicting the oldest rows if the memory budget of the cache is exceeded.
+   * The row store estimates the memory use of the rows.
+   *
+   * @param rows
+   */
+  public void addRows(List<StreamingTimedNumberedRow> rows) {
+    long firstTime;
+    long stamp = lock.writeLock();
+    try {
+      long firstPosition = rowData.getFirstPosition();
+      int[] fieldIndexes = getIndexedFields();
+      for ( int i = 0; i < rows.size(); i++ ) {
+        long position = rowData.getLastPosition();
+        rowData.add( rows.get( i ) );
+        for ( int j = 0; j < fieldIndexes.length; j++ ) {
+          indexes.get( j ).add( rowMeta, fieldIndexes[j], rows.get( i ).getRow(), position );
+        }
+      }
+      long byteSize = getEncodedByteSize() + rowData.getByteSize();
+      if ( maxBytes > 0 && byteSize > maxBytes ) {
+        rowData.removeBytes( byteSize - maxBytes );
+      }
+      firstTime = removeEvicted( firstPosition );
+    } finally {
+      lock.unlockWrite( stamp );
+    }
+    if ( nrWaiting.get() > 0 ) {
+      synchronized ( newRows ) {
+        newRows.notifyAll();
+      }
+    }
+    fireRowsAdded( rows );
+    fireRowsEvicted( firstTime );
   }
 
-  public synchronized void removeFirst() {
-    rowData.remove(0);
+  private long getEncodedByteSize() {
+    StreamingEncodedRows current = encodedRows;
+    return current == null ? 0L : current.getByteSize();
   }
 
+  /**
+   * Block the calling thread until the row with the given ID was added to the cache.
+   * Servlets supporting asynchronous requests should rather listen for rows added, see addListener().
+   *
+   * @param id the ID of the row to wait for
+   * @param timeout the maximum time to wait in ms (<=0 : no limit)
+   * @return true if the row was added, false if the time ran out first
+   * @throws InterruptedException
+   */
+  public boolean waitForId( long id, long timeout ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    nrWaiting.incrementAndGet();
+    try {
+      synchronized ( newRows ) {
+        while ( getLastId() < id ) {
+          long remaining = deadline - System.currentTimeMillis();
+          if ( timeout > 0 && remaining <= 0 ) {
+            return false;
+          }
+          newRows.wait( timeout > 0 ? remaining : 0L );
+        }
+        return true;
+      }
+    } finally {
+      nrWaiting.decrementAndGet();
+    }
+  }
+
+  /**
+   * Evict the oldest rows to free up memory, the newest row is always kept.
+   *
+   * @param bytes the (estimated) number of bytes to free
+   * @return the number of bytes freed
+   */
+  public long removeBytes(long bytes) {
+    long freed;
+    long firstTime;
+    long stamp = lock.writeLock();
+    try {
+      long firstPosition = rowData.getFirstPosition();
+      freed = rowData.removeBytes( bytes );
+      firstTime = removeEvicted( firstPosition );
+    } finally {
+      lock.unlockWrite( stamp );
+    }
+    fireRowsEvicted( firstTime );
+    return freed;
+  }
+
+  /**
+   * Remove the rows evicted from the row store from the indexes as well
+   *
+   * @param firstPosition the position of the oldest row before the change
+   * @return the time of the oldest row left if rows were evicted since, Long.MAX_VALUE if no rows are left or -1 if nothing was evicted
+   */
+  private long removeEvicted( long firstPosition ) {
+    if ( rowData.getFirstPosition() == firstPosition ) {
+      return -1L;
+    }
+    for ( StreamingKeyIndex index : indexes ) {
+      index.removeBefore( rowData.getFirstPosition() );
+    }
+    return rowData.size() == 0 ? Long.MAX_VALUE : rowData.getTime( rowData.getFirstPosition() );
+  }
+
+  /**
+   * @return the index of the indexed fields in the current row layout, -1 for a field which isn't there
+   */
+  private int[] getIndexedFields() {
+    int[] fieldIndexes = new int[indexes.size()];
+    for ( int i = 0; i < fieldIndexes.length; i++ ) {
+      fieldIndexes[i] = rowMeta.indexOfValue( indexes.get( i ).getFieldName() );
+    }
+    return fieldIndexes;
+  }
+
+  /**
+   * Keep a hash index on the given field, the rows already in the cache are indexed right away.
+   *
+   * @param fieldName the name of the field to index
+   */
+  public void addIndex( String fieldName ) {
+    long stamp = lock.writeLock();
+    try {
+      StreamingKeyIndex index = new StreamingKeyIndex( fieldName, rowData.getFirstPosition() );
+      int fieldIndex = rowMeta.indexOfValue( fieldName );
+      for ( long position = rowData.getFirstPosition(); position < rowData.getLastPosition(); position++ ) {
+        index.add( rowMeta, fieldIndex, rowData.get( position ).getRow(), position );
+      }
+      indexes.add( index );
+    } finally {
+      lock.unlockWrite( stamp );
+    }
+  }
+
+  /**
+   * @param fieldName the name of the indexed field or null for the only indexed field
+   * @return the index or null if the field isn't indexed
+   */
+  public StreamingKeyIndex getIndex( String fieldName ) {
+    if ( fieldName == null ) {
+      return indexes.size() == 1 ? indexes.get( 0 ) : null;
+    }
+    for ( StreamingKeyIndex index : indexes ) {
+      if ( index.getFieldName().equalsIgnoreCase( fieldName ) ) {
+        return index;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A failing listener is logged and doesn't keep the rows from the other listeners or the capture from going on
+   */
+  private void fireRowsAdded( List<StreamingTimedNumberedRow> rows ) {
+    for ( StreamingCacheListener listener : listeners ) {
+      try {
+        listener.rowsAdded( this, rows );
+      } catch ( RuntimeException e ) {
+        LogChannel.GENERAL.logError( "Error passing the rows added to a streaming cache on to " + listener, e );
+      }
+    }
+  }
+
+  private void fireRowsEvicted( long firstTime ) {
+    if ( firstTime < 0 ) {
+      return;
+    }
+    for ( StreamingCacheListener listener : listeners ) {
+      try {
+        listener.rowsEvicted( this, firstTime );
+      } catch ( RuntimeException e ) {
+        LogChannel.GENERAL.logError( "Error passing the rows evicted from a streaming cache on to " + listener, e );
+      }
+    }
+  }
+
+  public void addListener( StreamingCacheListener listener ) {
+    listeners.add( listener );
+  }
+
+  public void removeListener( StreamingCacheListener listener ) {
+    listeners.remove( listener );
+  }
+
+  /**
+   * Keep a rollup of the rows added to this cache from now on
+   *
+   * @param rollup
+   */
+  public void addRollup( StreamingRollup rollup ) {
+    rollups.put( rollup.getDefinition().getName(), rollup );
+    addListener( rollup );
+  }
+
+  /**
+   * @param name the name of the rollup
+   * @return the rollup or null if this cache doesn't keep a rollup with the given name
+   */
+  public StreamingRollup getRollup( String name ) {
+    return rollups.get( name );
+  }
+
+  public Collection<StreamingRollup> getRollups() {
+    return rollups.values();
+  }
+
+  /**
+   * @return the sketches kept of the rows added to this cache or null if there are none
+   */
+  public StreamingSketches getSketches() {
+    return sketches;
+  }
+
+  /**
+   * Keep sketches of the rows added to this cache from now on
+   *
+   * @param sketches
+   */
+  public void setSketches( StreamingSketches sketches ) {
+    if ( this.sketches != null ) {
+      removeListener( this.sketches );
+    }
+    this.sketches = sketches;
+    if ( sketches != null ) {
+      addListener( sketches );
+    }
+  }
+
+  /**
+   * @return the serialized form of the most recent rows or null if rows aren't serialized when captured
+   */
+  public StreamingEncodedRows getEncodedRows() {
+    return encodedRows;
+  }
+
+  /**
+   * @return the layout of the rows of this cache with its fingerprint, encoded once per layout
+   * @throws KettleException
+   */
+  public StreamingSchema getSchema() throws KettleException {
+    StreamingSchema current = schema;
+    if ( current == null || current.getRowMeta() != rowMeta ) {
+      current = new StreamingSchema( rowMeta );
+      schema = current;
+    }
+    return current;
+  }
+
+  /**
+   * Serialize the rows added to this cache from now on
+   *
+   * @param encodedRows
+   */
+  public void setEncodedRows( StreamingEncodedRows encodedRows ) {
+    if ( this.encodedRows != null ) {
+      removeListener( this.encodedRows );
+    }
+    this.encodedRows = encodedRows;
+    if ( encodedRows != null ) {
+      addListener( encodedRows );
+    }
+  }
+
+  public int size() {
+    return read( new Reader<Integer>() {
+      public Integer read() {
+        return rowData.size();
+      }
+    } );
+  }
+
+  /**
+   * @return the estimated memory use of the cached rows in bytes, including the rows kept encoded
+   */
+  public long getByteSize() {
+    long bytes = read( new Reader<Long>() {
+      public Long read() {
+        return rowData.getByteSize();
+      }
+    } );
+    return bytes + getEncodedByteSize();
+  }
+
+  /**
+   * @return the ID of the oldest row in the cache or -1 if the cache is empty
+   */
+  public long getFirstId() {
+    return read( new Reader<Long>() {
+      public Long read() {
+        return rowData.size() == 0 ? -1L : rowData.getId( rowData.getFirstPosition() );
+      }
+    } );
+  }
+
+  /**
+   * @return the ID of the newest row in the cache or -1 if the cache is empty
+   */
+  public long getLastId() {
+    return read( new Reader<Long>() {
+      public Long read() {
+        return rowData.size() == 0 ? -1L : rowData.getId( rowData.getLastPosition() - 1 );
+      }
+    } );
+  }
+
+  /**
+   * @return the maximum memory use of the cached rows in bytes (<=0 : unlimited)
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @param maxBytes the maximum memory use of the cached rows in bytes (<=0 : unlimited)
+   */
+  public void setMaxBytes( long maxBytes ) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the memory use in bytes up to which the global budget isn't checked again, see StreamingCache.trimToBudget()
+   */
+  long getBudgetCheckBytes() {
+    return budgetCheckBytes;
+  }
+
+  void setBudgetCheckBytes( long budgetCheckBytes ) {
+    this.budgetCheckBytes = budgetCheckBytes;
+  }
+
+  /**
+   * @return the dictionaries of the String values of the captured rows or null if the values aren't interned
+   */
+  public StreamingStringInterner getStringInterner() {
+    return stringInterner;
+  }
+
+  /**
+   * @param stringInterner the dictionaries of the String values of the captured rows
+   */
+  public void setStringInterner( StreamingStringInterner stringInterner ) {
+    this.stringInterner = stringInterner;
+  }
+
+  public void removeFirst() {
+    long firstTime;
+    long stamp = lock.writeLock();
+    try {
+      long firstPosition = rowData.getFirstPosition();
+      rowData.removeFirst( 1 );
+      firstTime = removeEvicted( firstPosition );
+    } finally {
+      lock.unlockWrite( stamp );
+    }
+    fireRowsEvicted( firstTime );
+  }
+
+  /**
+   * Evict all rows captured before the given cut-off time
+   *
+   * @param cutOff the time in ms since the epoch
+   * @return the number of evicted rows
+   */
+  public int removeOlderThan( long cutOff ) {
+    int nrRows;
+    long firstTime;
+    long stamp = lock.writeLock();
+    try {
+      long firstPosition = rowData.getFirstPosition();
+      nrRows = rowData.removeOlderThan( cutOff );
+      firstTime = removeEvicted( firstPosition );
+    } finally {
+      lock.unlockWrite( stamp );
+    }
+    fireRowsEvicted( firstTime );
+    return nrRows;
+  }
+
+  /**
+   * Register a reader of the rows, which has to call release() once done.
+   *
+   * @return false if the entry was dropped and its rows are released already
+   */
+  public boolean acquire() {
+    while ( true ) {
+      int readers = nrReaders.get();
+      if ( readers < 0 ) {
+        return false;
+      }
+      if ( nrReaders.compareAndSet( readers, readers + 1 ) ) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * A reader registered with acquire() is done with the rows
+   */
+  public void release() {
+    if ( nrReaders.decrementAndGet() == 0 && dropped ) {
+      releaseRows();
+    }
+  }
+
+  /**
+   * Called once the cache is replaced or removed, see StreamingCache.  The rows are released as soon as no reader
+   * holds the entry any more.
+   */
+  public void drop() {
+    dropped = true;
+    for ( StreamingCacheListener listener : listeners ) {
+      try {
+        listener.cacheDropped( this );
+      } catch ( RuntimeException e ) {
+        LogChannel.GENERAL.logError( "Error telling " + listener + " that a streaming cache was dropped", e );
+      }
+    }
+    releaseRows();
+  }
+
+  /**
+   * @return true if the cache was replaced or removed
+   */
+  public boolean isDropped() {
+    return dropped;
+  }
+
+  private void releaseRows() {
+    if ( nrReaders.compareAndSet( 0, -1 ) ) {
+      clear();
+    }
+  }
+
+  /**
+   * Evict all rows and release what the row store holds outside of memory, like the segment files of a tiered store.
+   */
+  private void clear() {
+    long firstTime;
+    long stamp = lock.writeLock();
+    try {
+      long firstPosition = rowData.getFirstPosition();
+      rowData.clear();
+      firstTime = removeEvicted( firstPosition );
+    } finally {
+      lock.unlockWrite( stamp );
+    }
+    fireRowsEvicted( firstTime );
+  }
+
+  /**
+   * The iterator works on a snapshot of the rows in the cache at the time it's created.
+   * Rows added afterwards are not returned, rows evicted before they are read are skipped.
+   *
+   * @return A read-only iterator over the rows currently in the cache
+   */
   public Iterator<StreamingTimedNumberedRow> getIterator() {
-    return rowData.iterator();
+    final long[] range = read( new Reader<long[]>() {
+      public long[] read() {
+        return new long[] { rowData.getFirstPosition(), rowData.getLastPosition() };
+      }
+    } );
+    return new Iterator<StreamingTimedNumberedRow>() {
+      private long position = range[0];
+      private StreamingTimedNumberedRow next = null;
+
+      @Override
+      public boolean hasNext() {
+        while ( next == null && position < range[1] ) {
+          next = readRow( position++ );
+        }
+        return next != null;
+      }
+
+      @Override
+      public StreamingTimedNumberedRow next() {
+        if ( !hasNext() ) {
+          throw new NoSuchElementException();
+        }
+        StreamingTimedNumberedRow row = next;
+        next = null;
+        return row;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException( "Rows can only be evicted from the start of a streaming cache" );
+      }
+    };
   }
 
-  public StreamingTimedNumberedRow getRow(int rowIndex) {
-    return rowData.get(rowIndex);
+  /**
+   * @param rowIndex the index of the row, relative to the oldest row in the cache
+   * @return the row or null if there's no such row (anymore)
+   */
+  public StreamingTimedNumberedRow getRow(final int rowIndex) {
+    return read( new Reader<StreamingTimedNumberedRow>() {
+      public StreamingTimedNumberedRow read() {
+        long position = rowData.getFirstPosition() + rowIndex;
+        return position < rowData.getLastPosition() ? rowData.get( position ) : null;
+      }
+    } );
   }
-  
+
 }
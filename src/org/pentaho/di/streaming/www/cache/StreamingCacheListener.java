@@ -0,0 +1,31 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.List;
+
+/**
+ * Is told about the rows added to and evicted from a streaming cache entry.
+ * The methods are called by the thread changing the cache, after the change is visible to readers, so they
+ * should return quickly.
+ */
+public interface StreamingCacheListener {
+
+  /**
+   * @param cacheEntry the cache entry the rows were added to
+   * @param rows the added rows
+   */
+  public void rowsAdded( StreamingCacheEntry cacheEntry, List<StreamingTimedNumberedRow> rows );
+
+  /**
+   * @param cacheEntry the cache entry the rows were evicted from
+   * @param firstTime the time of the oldest row left in the cache or Long.MAX_VALUE if the cache is empty
+   */
+  public void rowsEvicted( StreamingCacheEntry cacheEntry, long firstTime );
+
+  /**
+   * The cache entry was replaced or removed: no rows will be added any more.  The rows in it stay available to the
+   * readers holding the entry until they release it.
+   *
+   * @param cacheEntry the dropped cache entry
+   */
+  public void cacheDropped( StreamingCacheEntry cacheEntry );
+}
@@ -0,0 +1,153 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * The options to find rows in a streaming cache with, see StreamingCacheEntry.findRows()
+ */
+public class StreamingCacheQuery {
+  private int lastSize;
+  private int lastPeriod;
+  private long fromId;
+  private long toId;
+  private int newSize;
+  private int maxWait;
+  private long now;
+
+  private String keyField;
+  private String keyValue;
+  private StreamingRowFilter filter;
+
+  public StreamingCacheQuery() {
+    this( -1, -1, -1L, -1L, -1, -1, System.currentTimeMillis() );
+  }
+
+  /**
+   * @param lastSize the number of most recent rows to return (<=0 : no limit)
+   * @param lastPeriod the number of most recent seconds to return rows of (<=0 : no limit)
+   * @param fromId the ID of the first row to return (<=0 : not used)
+   * @param toId the ID of the last row to return (<=0 : not used)
+   * @param newSize the number of rows after fromId to wait for (<=0 : don't wait)
+   * @param maxWait the maximum time to wait for new rows in seconds (<=0 : no limit)
+   * @param now the time of the query
+   */
+  public StreamingCacheQuery( int lastSize, int lastPeriod, long fromId, long toId, int newSize, int maxWait, long now ) {
+    this.lastSize = lastSize;
+    this.lastPeriod = lastPeriod;
+    this.fromId = fromId;
+    this.toId = toId;
+    this.newSize = newSize;
+    this.maxWait = maxWait;
+    this.now = now;
+  }
+
+  /**
+   * @return true if only the rows with a given value of a key field are asked for
+   */
+  public boolean hasKey() {
+    return keyValue != null;
+  }
+
+  public int getLastSize() {
+    return lastSize;
+  }
+
+  public void setLastSize( int lastSize ) {
+    this.lastSize = lastSize;
+  }
+
+  public int getLastPeriod() {
+    return lastPeriod;
+  }
+
+  public void setLastPeriod( int lastPeriod ) {
+    this.lastPeriod = lastPeriod;
+  }
+
+  public long getFromId() {
+    return fromId;
+  }
+
+  public void setFromId( long fromId ) {
+    this.fromId = fromId;
+  }
+
+  public long getToId() {
+    return toId;
+  }
+
+  public void setToId( long toId ) {
+    this.toId = toId;
+  }
+
+  public int getNewSize() {
+    return newSize;
+  }
+
+  public void setNewSize( int newSize ) {
+    this.newSize = newSize;
+  }
+
+  public int getMaxWait() {
+    return maxWait;
+  }
+
+  public void setMaxWait( int maxWait ) {
+    this.maxWait = maxWait;
+  }
+
+  public long getNow() {
+    return now;
+  }
+
+  public void setNow( long now ) {
+    this.now = now;
+  }
+
+  /**
+   * @return the name of the field to filter on (null : the only indexed field of the cache)
+   */
+  public String getKeyField() {
+    return keyField;
+  }
+
+  /**
+   * @param keyField the name of the field to filter on (null : the only indexed field of the cache)
+   */
+  public void setKeyField( String keyField ) {
+    this.keyField = keyField;
+  }
+
+  /**
+   * @return the value of the key field of the rows to return (null : no filtering)
+   */
+  public String getKeyValue() {
+    return keyValue;
+  }
+
+  /**
+   * @param keyValue the value of the key field of the rows to return (null : no filtering)
+   */
+  public void setKeyValue( String keyValue ) {
+    this.keyValue = keyValue;
+  }
+
+  /**
+   * @return the condition the rows to return should meet (null : no filtering)
+   */
+  public StreamingRowFilter getFilter() {
+    return filter;
+  }
+
+  /**
+   * @param filter the condition the rows to return should meet (null : no filtering)
+   */
+  public void setFilter( StreamingRowFilter filter ) {
+    this.filter = filter;
+  }
+
+  @Override
+  public String toString() {
+    return "lastSize=" + lastSize + " lastPeriod=" + lastPeriod + " fromId=" + fromId + " toId=" + toId + " newSize=" + newSize + " maxWait=" + maxWait + " now=" + now
+      + ( keyValue == null ? "" : " " + ( keyField == null ? "key" : keyField ) + "=" + keyValue )
+      + ( filter == null ? "" : " filter=" + filter );
+  }
+}
@@ -0,0 +1,50 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.logging.LogChannel;
+
+/**
+ * Evicts the rows of streaming caches which are older than the cache duration in the background.
+ * All caches share a single daemon thread.  Since the rows are ordered by time, a sweep evicts the whole expired
+ * range at the start of a cache at once, the ingestion of rows doesn't have to deal with it at all.
+ */
+public class StreamingCacheSweeper {
+  public static final long DEFAULT_GRANULARITY = 1000L;
+
+  private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+    @Override
+    public Thread newThread( Runnable runnable ) {
+      Thread thread = new Thread( runnable, "Streaming cache expiry sweeper" );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
+
+  /**
+   * Start sweeping the expired rows of a cache entry
+   *
+   * @param entry the cache entry to sweep
+   * @param maxTime the maximum age of a row in the cache in seconds
+   * @param granularity the time between two sweeps in ms (<=0 : default).  Rows can outlive the maximum age by this much.
+   * @return the scheduled sweep, cancel it to stop sweeping
+   */
+  public static ScheduledFuture<?> schedule( final StreamingCacheEntry entry, final int maxTime, long granularity ) {
+    long period = granularity > 0 ? granularity : DEFAULT_GRANULARITY;
+    return executor.scheduleWithFixedDelay( new Runnable() {
+      @Override
+      public void run() {
+        try {
+          entry.removeOlderThan( System.currentTimeMillis() - maxTime * 1000L );
+        } catch ( Exception e ) {
+          // Don't stop sweeping
+          LogChannel.GENERAL.logError( "Error evicting expired rows from a streaming cache", e );
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS );
+  }
+}
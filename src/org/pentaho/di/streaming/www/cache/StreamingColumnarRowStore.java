@@ -0,0 +1,356 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.BitSet;
+import java.util.Date;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Keeps the cached rows column by column in primitive arrays: Integers and Dates as long[], Numbers as double[],
+ * Booleans and nulls as bit sets and Strings as dictionary codes.  Other data types and values which are not
+ * in normal storage are kept as objects.  Rows are only materialized when a reader asks for them.
+ */
+public class StreamingColumnarRowStore extends StreamingRingBuffer {
+  public static final int DEFAULT_DICTIONARY_SIZE = 65536;
+
+  private Column[] columns;
+
+  public StreamingColumnarRowStore( RowMetaInterface rowMeta, int maxCapacity ) {
+    super( maxCapacity );
+    columns = new Column[rowMeta.size()];
+    for ( int i = 0; i < columns.length; i++ ) {
+      columns[i] = createColumn( rowMeta.getValueMeta( i ), getCapacity() );
+    }
+  }
+
+  private static Column createColumn( ValueMetaInterface valueMeta, int capacity ) {
+    if ( valueMeta.getStorageType() != ValueMetaInterface.STORAGE_TYPE_NORMAL ) {
+      return new ObjectColumn( capacity );
+    }
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_INTEGER:
+        return new LongColumn( capacity, false );
+      case ValueMetaInterface.TYPE_DATE:
+        return new LongColumn( capacity, true );
+      case ValueMetaInterface.TYPE_NUMBER:
+        return new DoubleColumn( capacity );
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return new BooleanColumn( capacity );
+      case ValueMetaInterface.TYPE_STRING:
+        return new StringColumn( capacity, new StreamingStringDictionary( DEFAULT_DICTIONARY_SIZE ) );
+      default:
+        return new ObjectColumn( capacity );
+    }
+  }
+
+  @Override
+  protected void resizeSlots( int newCapacity ) {
+    for ( int i = 0; i < columns.length; i++ ) {
+      columns[i] = copyColumn( columns[i], columns[i].create( newCapacity ), newCapacity );
+    }
+  }
+
+  private Column copyColumn( Column from, Column to, int newCapacity ) {
+    for ( long position = getFirstPosition(); position < getLastPosition(); position++ ) {
+      to.set( (int) ( position % newCapacity ), from.get( slot( position ) ) );
+    }
+    return to;
+  }
+
+  @Override
+  protected int storeRow( int slot, StreamingTimedNumberedRow row ) {
+    Object[] data = row.getRow();
+    int size = 0;
+    for ( int i = 0; i < columns.length; i++ ) {
+      Object value = data == null || i >= data.length ? null : data[i];
+      if ( !columns[i].accepts( value ) ) {
+        // Unexpected data type for this column, keep the values as objects from now on
+        //
+        columns[i] = copyColumn( columns[i], new ObjectColumn( getCapacity() ), getCapacity() );
+      }
+      columns[i].set( slot, value );
+      size += columns[i].getValueSize( value );
+    }
+    return size;
+  }
+
+  @Override
+  protected StreamingTimedNumberedRow loadRow( int slot, long id, long time ) {
+    Object[] data = new Object[columns.length];
+    for ( int i = 0; i < columns.length; i++ ) {
+      data[i] = columns[i].get( slot );
+    }
+    return new StreamingTimedNumberedRow( id, time, data );
+  }
+
+  @Override
+  protected void clearSlot( int slot ) {
+    for ( Column column : columns ) {
+      column.clear( slot );
+    }
+  }
+
+  private abstract static class Column {
+    protected BitSet nulls;
+
+    protected Column() {
+      nulls = new BitSet();
+    }
+
+    public abstract Column create( int capacity );
+
+    public abstract boolean accepts( Object value );
+
+    public abstract void set( int slot, Object value );
+
+    public abstract Object get( int slot );
+
+    /**
+     * @return the estimated number of bytes the value uses in this column
+     */
+    public abstract int getValueSize( Object value );
+
+    public void clear( int slot ) {
+      nulls.set( slot );
+    }
+  }
+
+  private static class LongColumn extends Column {
+    private long[] values;
+    private boolean date;
+
+    public LongColumn( int capacity, boolean date ) {
+      values = new long[capacity];
+      this.date = date;
+    }
+
+    @Override
+    public Column create( int capacity ) {
+      return new LongColumn( capacity, date );
+    }
+
+    @Override
+    public boolean accepts( Object value ) {
+      if ( value == null ) {
+        return true;
+      }
+      // Keep subclasses like java.sql.Timestamp as objects
+      //
+      return date ? value.getClass() == Date.class : value instanceof Long;
+    }
+
+    @Override
+    public void set( int slot, Object value ) {
+      if ( value == null ) {
+        nulls.set( slot );
+      } else {
+        nulls.clear( slot );
+        values[slot] = date ? ( (Date) value ).getTime() : ( (Long) value ).longValue();
+      }
+    }
+
+    @Override
+    public Object get( int slot ) {
+      if ( nulls.get( slot ) ) {
+        return null;
+      }
+      return date ? new Date( values[slot] ) : Long.valueOf( values[slot] );
+    }
+
+    @Override
+    public int getValueSize( Object value ) {
+      return 8;
+    }
+  }
+
+  private static class DoubleColumn extends Column {
+    private double[] values;
+
+    public DoubleColumn( int capacity ) {
+      values = new double[capacity];
+    }
+
+    @Override
+    public Column create( int capacity ) {
+      return new DoubleColumn( capacity );
+    }
+
+    @Override
+    public boolean accepts( Object value ) {
+      return value == null || value instanceof Double;
+    }
+
+    @Override
+    public void set( int slot, Object value ) {
+      if ( value == null ) {
+        nulls.set( slot );
+      } else {
+        nulls.clear( slot );
+        values[slot] = ( (Double) value ).doubleValue();
+      }
+    }
+
+    @Override
+    public Object get( int slot ) {
+      return nulls.get( slot ) ? null : Double.valueOf( values[slot] );
+    }
+
+    @Override
+    public int getValueSize( Object value ) {
+      return 8;
+    }
+  }
+
+  private static class BooleanColumn extends Column {
+    private BitSet values;
+
+    public BooleanColumn( int capacity ) {
+      values = new BitSet( capacity );
+    }
+
+    @Override
+    public Column create( int capacity ) {
+      return new BooleanColumn( capacity );
+    }
+
+    @Override
+    public boolean accepts( Object value ) {
+      return value == null || value instanceof Boolean;
+    }
+
+    @Override
+    public void set( int slot, Object value ) {
+      if ( value == null ) {
+        nulls.set( slot );
+      } else {
+        nulls.clear( slot );
+        values.set( slot, ( (Boolean) value ).booleanValue() );
+      }
+    }
+
+    @Override
+    public Object get( int slot ) {
+      return nulls.get( slot ) ? null : Boolean.valueOf( values.get( slot ) );
+    }
+
+    @Override
+    public int getValueSize( Object value ) {
+      return 0;
+    }
+  }
+
+  /**
+   * Strings are stored as dictionary codes until the dictionary is full, after which the column falls back to
+   * plain String references.
+   */
+  private static class StringColumn extends Column {
+    private StreamingStringDictionary dictionary;
+    private int[] codes;
+    private String[] strings;
+
+    public StringColumn( int capacity, StreamingStringDictionary dictionary ) {
+      this.dictionary = dictionary;
+      if ( dictionary.isFull() ) {
+        strings = new String[capacity];
+      } else {
+        codes = new int[capacity];
+      }
+    }
+
+    @Override
+    public Column create( int capacity ) {
+      return new StringColumn( capacity, dictionary );
+    }
+
+    @Override
+    public boolean accepts( Object value ) {
+      return value == null || value instanceof String;
+    }
+
+    @Override
+    public void set( int slot, Object value ) {
+      if ( strings == null ) {
+        int code = value == null ? -1 : dictionary.encode( (String) value );
+        if ( code >= 0 || value == null ) {
+          codes[slot] = code;
+          return;
+        }
+        // Too many distinct values, stop encoding
+        //
+        strings = new String[codes.length];
+        for ( int i = 0; i < codes.length; i++ ) {
+          strings[i] = codes[i] < 0 ? null : dictionary.decode( codes[i] );
+        }
+        codes = null;
+      }
+      strings[slot] = (String) value;
+    }
+
+    @Override
+    public Object get( int slot ) {
+      if ( strings != null ) {
+        return strings[slot];
+      }
+      return codes[slot] < 0 ? null : dictionary.decode( codes[slot] );
+    }
+
+    /**
+     * A dictionary code only uses 4 bytes, the dictionary itself isn't counted
+     */
+    @Override
+    public int getValueSize( Object value ) {
+      if ( strings == null ) {
+        return 4;
+      }
+      return StreamingRowSizeEstimator.REFERENCE + StreamingRowSizeEstimator.estimateValueSize( value );
+    }
+
+    @Override
+    public void clear( int slot ) {
+      if ( strings != null ) {
+        strings[slot] = null;
+      } else {
+        codes[slot] = -1;
+      }
+    }
+  }
+
+  private static class ObjectColumn extends Column {
+    private Object[] values;
+
+    public ObjectColumn( int capacity ) {
+      values = new Object[capacity];
+    }
+
+    @Override
+    public Column create( int capacity ) {
+      return new ObjectColumn( capacity );
+    }
+
+    @Override
+    public boolean accepts( Object value ) {
+      return true;
+    }
+
+    @Override
+    public void set( int slot, Object value ) {
+      values[slot] = value;
+    }
+
+    @Override
+    public Object get( int slot ) {
+      return values[slot];
+    }
+
+    @Override
+    public int getValueSize( Object value ) {
+      return StreamingRowSizeEstimator.REFERENCE + StreamingRowSizeEstimator.estimateValueSize( value );
+    }
+
+    @Override
+    public void clear( int slot ) {
+      values[slot] = null;
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.simple.JSONValue;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Keeps the serialized form of the most recent rows added to a streaming cache, so that rows are serialized once
+ * when they are captured instead of once for every client reading them.
+ *
+ * The encoded rows are kept in a ring of slots indexed by row ID.  A slot is only valid for the row ID it was
+ * filled for, so readers asking for a row which was overwritten or not encoded yet get null and encode the row
+ * themselves.  Only complete rows are encoded, not projections.
+ *
+ * The ring starts small and grows with the number of rows in the cache, up to the capacity.  The encoded forms of
+ * rows evicted from the cache are dropped right away and the bytes of the encoded rows count towards the memory use
+ * of the cache, see getByteSize().
+ */
+public class StreamingEncodedRows extends StreamingCacheAdapter {
+  public static final int DEFAULT_CAPACITY = 100000;
+
+  private static final int INITIAL_SLOTS = 1024;
+
+  /** The estimated memory use of an encoded row besides its bytes */
+  private static final int ROW_OVERHEAD = 64;
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private StreamingRowEncoding encoding;
+  private int capacity;
+  private volatile AtomicReferenceArray<EncodedRow> slots;
+  private volatile RowMetaInterface rowMeta;
+  private volatile long byteSize;
+  private long firstId;
+
+  private ByteArrayOutputStream buffer;
+  private DataOutputStream bufferStream;
+  private StringBuilder jsonBuilder;
+
+  /**
+   * @param encoding the forms to keep
+   * @param capacity the number of most recent rows to keep encoded (<=0 : default)
+   */
+  public StreamingEncodedRows( StreamingRowEncoding encoding, int capacity ) {
+    this.encoding = encoding;
+    this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+    this.slots = new AtomicReferenceArray<EncodedRow>( Math.min( INITIAL_SLOTS, this.capacity ) );
+    this.byteSize = 0L;
+    this.firstId = 1L;
+    this.buffer = new ByteArrayOutputStream();
+    this.bufferStream = new DataOutputStream( buffer );
+    this.jsonBuilder = new StringBuilder();
+  }
+
+  @Override
+  public synchronized void rowsAdded( StreamingCacheEntry cacheEntry, List<StreamingTimedNumberedRow> rows ) {
+    RowMetaInterface entryRowMeta = cacheEntry.getRowMeta();
+    if ( entryRowMeta != rowMeta ) {
+      // Rows encoded with another layout are useless from now on
+      //
+      clearSlots();
+      rowMeta = entryRowMeta;
+    }
+    grow( cacheEntry.size() );
+    try {
+      for ( StreamingTimedNumberedRow row : rows ) {
+        byte[] binary = null;
+        byte[] json = null;
+        if ( encoding.isBinary() ) {
+          buffer.reset();
+          rowMeta.writeData( bufferStream, row.getRow() );
+          bufferStream.flush();
+          binary = buffer.toByteArray();
+        }
+        if ( encoding.isJson() ) {
+          jsonBuilder.setLength( 0 );
+          appendJson( jsonBuilder, rowMeta, row.getRow() );
+          json = jsonBuilder.toString().getBytes( UTF8 );
+        }
+        EncodedRow encodedRow = new EncodedRow( row.getId(), binary, json );
+        EncodedRow previous = slots.getAndSet( slot( row.getId() ), encodedRow );
+        byteSize += encodedRow.getByteSize() - ( previous == null ? 0 : previous.getByteSize() );
+      }
+    } catch ( Exception e ) {
+      throw new RuntimeException( "Unable to encode the captured rows", e );
+    }
+  }
+
+  /**
+   * Drop the encoded forms of the rows evicted from the cache
+   */
+  @Override
+  public synchronized void rowsEvicted( StreamingCacheEntry cacheEntry, long firstTime ) {
+    long newFirstId = cacheEntry.getFirstId();
+    if ( newFirstId < 0 ) {
+      clearSlots();
+      return;
+    }
+    // Every ID is only dropped once, a large gap only needs a single pass over the slots
+    //
+    AtomicReferenceArray<EncodedRow> current = slots;
+    if ( newFirstId - firstId > current.length() ) {
+      for ( int i = 0; i < current.length(); i++ ) {
+        EncodedRow encodedRow = current.get( i );
+        if ( encodedRow != null && encodedRow.id < newFirstId ) {
+          drop( i, encodedRow );
+        }
+      }
+    } else {
+      for ( long id = firstId; id < newFirstId; id++ ) {
+        EncodedRow encodedRow = current.get( slot( id ) );
+        if ( encodedRow != null && encodedRow.id == id ) {
+          drop( slot( id ), encodedRow );
+        }
+      }
+    }
+    firstId = Math.max( firstId, newFirstId );
+  }
+
+  private void drop( int slot, EncodedRow encodedRow ) {
+    if ( slots.compareAndSet( slot, encodedRow, null ) ) {
+      byteSize -= encodedRow.getByteSize();
+    }
+  }
+
+  private void clearSlots() {
+    for ( int i = 0; i < slots.length(); i++ ) {
+      slots.set( i, null );
+    }
+    byteSize = 0L;
+  }
+
+  /**
+   * Make room for the encoded forms of all rows in the cache, up to the capacity
+   *
+   * @param nrRows the number of rows in the cache
+   */
+  private void grow( int nrRows ) {
+    AtomicReferenceArray<EncodedRow> current = slots;
+    if ( nrRows <= current.length() || current.length() >= capacity ) {
+      return;
+    }
+    int newLength = current.length();
+    while ( newLength < nrRows && newLength < capacity ) {
+      newLength = (int) Math.min( capacity, newLength * 2L );
+    }
+    AtomicReferenceArray<EncodedRow> larger = new AtomicReferenceArray<EncodedRow>( newLength );
+    for ( int i = 0; i < current.length(); i++ ) {
+      EncodedRow encodedRow = current.get( i );
+      if ( encodedRow != null ) {
+        larger.set( (int) ( encodedRow.id % newLength ), encodedRow );
+      }
+    }
+    slots = larger;
+  }
+
+  /**
+   * @param id the ID of the row
+   * @return the row in the binary format of RowMetaInterface.writeData() or null if it isn't available
+   */
+  public byte[] getBinary( long id ) {
+    EncodedRow encodedRow = get( id );
+    return encodedRow == null ? null : encodedRow.binary;
+  }
+
+  /**
+   * @param id the ID of the row
+   * @return the row as a UTF-8 encoded JSON array or null if it isn't available
+   */
+  public byte[] getJson( long id ) {
+    EncodedRow encodedRow = get( id );
+    return encodedRow == null ? null : encodedRow.json;
+  }
+
+  /**
+   * @return the layout the rows were encoded with, encoded rows can only be used for rows with this layout
+   */
+  public RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  public StreamingRowEncoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * @return the maximum number of rows to keep encoded
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the estimated memory use of the encoded rows in bytes
+   */
+  public long getByteSize() {
+    return byteSize;
+  }
+
+  private int slot( long id ) {
+    return (int) ( id % slots.length() );
+  }
+
+  /**
+   * @return the encoded row with the given ID or null if it isn't available
+   */
+  private EncodedRow get( long id ) {
+    // The ring can be replaced by a larger one at any time
+    //
+    AtomicReferenceArray<EncodedRow> current = slots;
+    EncodedRow encodedRow = current.get( (int) ( id % current.length() ) );
+    return encodedRow == null || encodedRow.id != id ? null : encodedRow;
+  }
+
+  /**
+   * Append a row as a JSON array of the string values of its fields
+   *
+   * @param json the JSON to append to
+   * @param rowMeta the layout of the row
+   * @param row the row
+   * @throws KettleException
+   */
+  public static void appendJson( StringBuilder json, RowMetaInterface rowMeta, Object[] row ) throws KettleException {
+    json.append( '[' );
+    for ( int i = 0; i < rowMeta.size(); i++ ) {
+      if ( i > 0 ) {
+        json.append( ',' );
+      }
+      json.append( JSONValue.toJSONString( rowMeta.getValueMeta( i ).getString( row[i] ) ) );
+    }
+    json.append( ']' );
+  }
+
+  private static class EncodedRow {
+    private final long id;
+    private final byte[] binary;
+    private final byte[] json;
+
+    public EncodedRow( long id, byte[] binary, byte[] json ) {
+      this.id = id;
+      this.binary = binary;
+      this.json = json;
+    }
+
+    public long getByteSize() {
+      return ROW_OVERHEAD + ( binary == null ? 0 : binary.length ) + ( json == null ? 0 : json.length );
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct values added to it with a standard error of about 1.6%,
+ * using 4KB of memory regardless of the number of values.  Sketches can be merged to estimate the number of
+ * distinct values of a union.
+ */
+public class StreamingHyperLogLog {
+  private static final int PRECISION = 12;
+  private static final int NR_REGISTERS = 1 << PRECISION;
+  private static final double ALPHA = 0.7213 / ( 1.0 + 1.079 / NR_REGISTERS );
+
+  private byte[] registers;
+
+  public StreamingHyperLogLog() {
+    registers = new byte[NR_REGISTERS];
+  }
+
+  /**
+   * @param value the (non-null) value to add
+   */
+  public void add( String value ) {
+    long hash = hash( value );
+    int register = (int) ( hash >>> ( 64 - PRECISION ) );
+    // The position of the first 1 bit in the remaining bits, a sentinel bit limits it
+    //
+    int rank = Long.numberOfLeadingZeros( ( hash << PRECISION ) | ( 1L << ( PRECISION - 1 ) ) ) + 1;
+    if ( rank > registers[register] ) {
+      registers[register] = (byte) rank;
+    }
+  }
+
+  /**
+   * Add the values of another sketch to this one
+   *
+   * @param other
+   */
+  public void merge( StreamingHyperLogLog other ) {
+    for ( int i = 0; i < NR_REGISTERS; i++ ) {
+      if ( other.registers[i] > registers[i] ) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /**
+   * @return the estimated number of distinct values added
+   */
+  public long estimate() {
+    double sum = 0.0;
+    int zeros = 0;
+    for ( byte register : registers ) {
+      sum += 1.0 / ( 1L << register );
+      if ( register == 0 ) {
+        zeros++;
+      }
+    }
+    double estimate = ALPHA * NR_REGISTERS * NR_REGISTERS / sum;
+    if ( estimate <= 2.5 * NR_REGISTERS && zeros > 0 ) {
+      // Linear counting is more accurate for small cardinalities
+      //
+      estimate = NR_REGISTERS * Math.log( (double) NR_REGISTERS / zeros );
+    }
+    return Math.round( estimate );
+  }
+
+  /**
+   * A 64-bit FNV-1a hash of the characters, followed by a finalizer to spread the bits
+   */
+  private static long hash( String value ) {
+    long hash = 0xcbf29ce484222325L;
+    for ( int i = 0; i < value.length(); i++ ) {
+      hash ^= value.charAt( i );
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
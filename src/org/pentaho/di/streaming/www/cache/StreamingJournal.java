@@ -0,0 +1,332 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * An append-only journal of the rows captured for a streaming service so that its cache can be restored after a
+ * server restart.
+ *
+ * The journal is a series of files in a directory, named after the service and the ID of their first row.
+ * Every file starts with the row metadata followed by the ID, time and data of every row.  Every run of the service
+ * transformation starts a new file and a file is rotated once it grows beyond the maximum file size.
+ * Files holding only rows which were evicted from the cache are removed.
+ *
+ * Appended rows are buffered: they are written to the file after every batch of rows captured asynchronously, see
+ * flush(), and at least once per sync interval otherwise.  Only the ALWAYS sync policy writes and forces every append.
+ */
+public class StreamingJournal {
+  public static final long DEFAULT_FILE_SIZE = 64L * 1024 * 1024;
+
+  private static final int MAGIC = 0x4B534A31; // KSJ1
+  private static final String EXTENSION = ".journal";
+  private static final long SYNC_INTERVAL = 1000L;
+  private static final int BUFFER_SIZE = 65536;
+
+  /** Writes the rows buffered by journals which didn't get new rows for a while */
+  private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+    @Override
+    public Thread newThread( Runnable runnable ) {
+      Thread thread = new Thread( runnable, "Streaming journal flusher" );
+      thread.setDaemon( true );
+      return thread;
+    }
+  } );
+
+  private File directory;
+  private String prefix;
+  private StreamingJournalSyncPolicy syncPolicy;
+  private long maxFileSize;
+
+  private List<File> files;
+  private FileOutputStream fileOutputStream;
+  private DataOutputStream outputStream;
+  private long lastSync;
+  private long lastFlush;
+  private boolean dirty;
+  private ScheduledFuture<?> pendingFlush;
+
+  /**
+   * @param directory the folder to keep the journal files in
+   * @param serviceName the name of the streaming service
+   * @param syncPolicy when to force the journal to disk
+   * @param maxFileSize the size in bytes after which a journal file is rotated (<=0 : default)
+   */
+  public StreamingJournal( String directory, String serviceName, StreamingJournalSyncPolicy syncPolicy, long maxFileSize ) {
+    this.directory = new File( directory );
+    this.prefix = serviceName.replaceAll( "[^A-Za-z0-9_\\-]", "_" ) + "-";
+    this.syncPolicy = syncPolicy == null ? StreamingJournalSyncPolicy.INTERVAL : syncPolicy;
+    this.maxFileSize = maxFileSize > 0 ? maxFileSize : DEFAULT_FILE_SIZE;
+    this.files = findFiles();
+  }
+
+  /**
+   * @return the folder holding the journals of services without a journal folder of their own
+   */
+  public static String getDefaultDirectory() {
+    return Const.getKettleDirectory() + Const.FILE_SEPARATOR + "streaming-journal";
+  }
+
+  /**
+   * @return the journal files of the service, oldest first
+   */
+  private List<File> findFiles() {
+    List<File> list = new ArrayList<File>();
+    File[] children = directory.listFiles();
+    if ( children != null ) {
+      for ( File child : children ) {
+        String name = child.getName();
+        // Other services can have a name starting with our prefix, the rest of the name has to be the ID
+        //
+        if ( name.startsWith( prefix ) && name.endsWith( EXTENSION )
+          && name.substring( prefix.length(), name.length() - EXTENSION.length() ).matches( "[0-9]+" ) ) {
+          list.add( child );
+        }
+      }
+    }
+    // The IDs are zero padded so the names sort in ID order
+    //
+    Collections.sort( list );
+    return list;
+  }
+
+  /**
+   * Add a group of captured rows to the journal.  With the ALWAYS sync policy they are written and forced to disk
+   * right away, otherwise they are buffered until the next flush().
+   *
+   * @param rowMeta the layout of the rows
+   * @param rows the rows, with their ID
+   * @throws KettleException
+   */
+  public synchronized void append( RowMetaInterface rowMeta, List<StreamingTimedNumberedRow> rows ) throws KettleException {
+    if ( rows.isEmpty() ) {
+      return;
+    }
+    try {
+      // The size of the data stream includes the buffered bytes, without asking the file for its position
+      //
+      if ( outputStream == null || outputStream.size() >= maxFileSize ) {
+        openFile( rowMeta, rows.get( 0 ).getId() );
+      }
+      for ( StreamingTimedNumberedRow row : rows ) {
+        outputStream.writeLong( row.getId() );
+        outputStream.writeLong( row.getTime() );
+        rowMeta.writeData( outputStream, row.getRow() );
+      }
+      dirty = true;
+
+      long now = System.currentTimeMillis();
+      if ( syncPolicy == StreamingJournalSyncPolicy.ALWAYS || now - lastFlush >= SYNC_INTERVAL ) {
+        write( now );
+      } else if ( pendingFlush == null ) {
+        // Don't keep the rows in the buffer when no more rows come in for a while
+        //
+        pendingFlush = flusher.schedule( new Runnable() {
+          @Override
+          public void run() {
+            try {
+              flush();
+            } catch ( Exception e ) {
+              LogChannel.GENERAL.logError( "Error writing streaming journal in folder '" + directory + "'", e );
+            }
+          }
+        }, SYNC_INTERVAL, TimeUnit.MILLISECONDS );
+      }
+    } catch ( IOException e ) {
+      throw new KettleException( "Unable to write to streaming journal in folder '" + directory + "'", e );
+    }
+  }
+
+  /**
+   * Write the buffered rows to the journal file, forcing it to disk according to the sync policy.  Called after every
+   * batch of rows captured asynchronously.
+   *
+   * @throws KettleException
+   */
+  public synchronized void flush() throws KettleException {
+    cancelPendingFlush();
+    if ( !dirty ) {
+      return;
+    }
+    try {
+      write( System.currentTimeMillis() );
+    } catch ( IOException e ) {
+      throw new KettleException( "Unable to write to streaming journal in folder '" + directory + "'", e );
+    }
+  }
+
+  private void write( long now ) throws IOException {
+    outputStream.flush();
+    if ( syncPolicy == StreamingJournalSyncPolicy.ALWAYS
+      || ( syncPolicy == StreamingJournalSyncPolicy.INTERVAL && now - lastSync >= SYNC_INTERVAL ) ) {
+      fileOutputStream.getChannel().force( false );
+      lastSync = now;
+    }
+    lastFlush = now;
+    dirty = false;
+    cancelPendingFlush();
+  }
+
+  private void cancelPendingFlush() {
+    if ( pendingFlush != null ) {
+      pendingFlush.cancel( false );
+      pendingFlush = null;
+    }
+  }
+
+  private void openFile( RowMetaInterface rowMeta, long firstId ) throws IOException, KettleException {
+    close();
+    if ( !directory.exists() && !directory.mkdirs() ) {
+      throw new IOException( "Unable to create streaming journal folder '" + directory + "'" );
+    }
+    File file = new File( directory, prefix + String.format( "%019d", firstId ) + EXTENSION );
+    fileOutputStream = new FileOutputStream( file );
+    outputStream = new DataOutputStream( new BufferedOutputStream( fileOutputStream, BUFFER_SIZE ) );
+    outputStream.writeInt( MAGIC );
+    rowMeta.writeMeta( outputStream );
+    files.add( file );
+  }
+
+  /**
+   * Remove the journal files holding only rows with an ID lower than the given ID, the current file is kept.
+   *
+   * @param firstId the ID of the oldest row to keep
+   */
+  public synchronized void removeFilesBefore( long firstId ) {
+    // A file only holds rows older than the first ID of the file after it
+    //
+    while ( files.size() > 1 && getFirstId( files.get( 1 ) ) <= firstId ) {
+      File file = files.remove( 0 );
+      if ( !file.delete() ) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  private long getFirstId( File file ) {
+    String name = file.getName();
+    return Long.parseLong( name.substring( prefix.length(), name.length() - EXTENSION.length() ) );
+  }
+
+  /**
+   * Remove all journal files, for example when the cache is cleared
+   */
+  public synchronized void clear() {
+    close();
+    for ( File file : files ) {
+      file.delete();
+    }
+    files.clear();
+  }
+
+  /**
+   * Read back all rows in the journal, oldest first.
+   * Reading a file stops at the first incomplete row, the remainder of a write interrupted by a crash.
+   *
+   * @param log
+   * @param listener receives the rows in groups
+   * @param batchSize the maximum number of rows in a group
+   * @return the ID of the last row in the journal or -1 if it's empty
+   * @throws KettleException
+   */
+  public synchronized long replay( LogChannelInterface log, StreamingJournalListener listener, int batchSize ) throws KettleException {
+    long lastId = -1L;
+    for ( File file : files ) {
+      DataInputStream inputStream = null;
+      try {
+        inputStream = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), BUFFER_SIZE ) );
+        if ( inputStream.readInt() != MAGIC ) {
+          log.logError( "Skipping unknown streaming journal file '" + file + "'" );
+          continue;
+        }
+        RowMetaInterface rowMeta;
+        try {
+          rowMeta = new RowMeta( inputStream );
+        } catch ( Exception e ) {
+          log.logError( "Skipping streaming journal file '" + file + "' with unreadable metadata", e );
+          continue;
+        }
+        listener.rowMetaRead( rowMeta );
+
+        List<StreamingTimedNumberedRow> rows = new ArrayList<StreamingTimedNumberedRow>( batchSize );
+        boolean endOfFile = false;
+        while ( !endOfFile ) {
+          try {
+            long id = inputStream.readLong();
+            long time = inputStream.readLong();
+            Object[] data = rowMeta.readData( inputStream );
+            rows.add( new StreamingTimedNumberedRow( id, time, data ) );
+            lastId = Math.max( lastId, id );
+          } catch ( EOFException e ) {
+            endOfFile = true;
+          } catch ( Exception e ) {
+            // Reading an incomplete row at the end of the file fails in various ways, keep what we have
+            log.logDetailed( "End of streaming journal file '" + file + "' reached : " + e.getMessage() );
+            endOfFile = true;
+          }
+          if ( rows.size() >= batchSize || ( endOfFile && !rows.isEmpty() ) ) {
+            listener.rowsRead( rows );
+            rows = new ArrayList<StreamingTimedNumberedRow>( batchSize );
+          }
+        }
+      } catch ( KettleException e ) {
+        throw e;
+      } catch ( Exception e ) {
+        log.logError( "Unable to read streaming journal file '" + file + "'", e );
+      } finally {
+        if ( inputStream != null ) {
+          try {
+            inputStream.close();
+          } catch ( IOException e ) {
+            // Ignore
+          }
+        }
+      }
+    }
+    return lastId;
+  }
+
+  /**
+   * Close the current journal file, the next append starts a new one.
+   */
+  public synchronized void close() {
+    cancelPendingFlush();
+    dirty = false;
+    if ( outputStream != null ) {
+      try {
+        outputStream.flush();
+        if ( syncPolicy != StreamingJournalSyncPolicy.NEVER ) {
+          fileOutputStream.getChannel().force( false );
+        }
+        outputStream.close();
+      } catch ( IOException e ) {
+        throw new RuntimeException( "Unable to close streaming journal in folder '" + directory + "'", e );
+      } finally {
+        outputStream = null;
+        fileOutputStream = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Receives the rows read back from a streaming journal
+ */
+public interface StreamingJournalListener {
+
+  /**
+   * The following rows have this layout
+   */
+  public void rowMetaRead( RowMetaInterface rowMeta ) throws KettleException;
+
+  public void rowsRead( List<StreamingTimedNumberedRow> rows ) throws KettleException;
+}
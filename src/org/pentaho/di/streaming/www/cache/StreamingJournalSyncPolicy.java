@@ -0,0 +1,33 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * When the journal of a streaming service is forced to disk
+ */
+public enum StreamingJournalSyncPolicy {
+  /** Leave it to the operating system, rows can be lost when the server crashes */
+  NEVER( "Never" ),
+
+  /** At most once per second, a crash can cost up to a second of rows */
+  INTERVAL( "Every second" ),
+
+  /** After every group commit of captured rows */
+  ALWAYS( "Every commit" );
+
+  private String description;
+
+  private StreamingJournalSyncPolicy( String description ) {
+    this.description = description;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public static String[] getDescriptions() {
+    String[] descriptions = new String[values().length];
+    for ( int i = 0; i < descriptions.length; i++ ) {
+      descriptions[i] = values()[i].getDescription();
+    }
+    return descriptions;
+  }
+}
@@ -0,0 +1,175 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * A hash index on a field of the rows of a streaming cache: for every value of the field it keeps the ordered
+ * positions of the rows holding that value.
+ *
+ * The index is changed by the writer of the cache entry while it holds the write lock and read with the same
+ * optimistic reads as the rows themselves, see StreamingCacheEntry.  Every indexed position is also kept in a FIFO
+ * queue so that evicting rows costs time proportional to the number of evicted rows, not the number of keys.
+ */
+public class StreamingKeyIndex {
+  private static final PositionList NO_KEY = new PositionList( null );
+
+  private String fieldName;
+  private Map<String, PositionList> keys;
+
+  // The key of every indexed position, in position order
+  //
+  private ArrayDeque<PositionList> order;
+  private long firstPosition;
+
+  /**
+   * @param fieldName the name of the field to index
+   * @param firstPosition the position of the first row to index
+   */
+  public StreamingKeyIndex( String fieldName, long firstPosition ) {
+    this.fieldName = fieldName;
+    this.keys = new ConcurrentHashMap<String, PositionList>();
+    this.order = new ArrayDeque<PositionList>();
+    this.firstPosition = firstPosition;
+  }
+
+  /**
+   * Index a row added to the cache.  Rows have to be added in position order.
+   *
+   * @param rowMeta the layout of the row
+   * @param fieldIndex the index of the indexed field in the row or -1 if the row doesn't have the field
+   * @param row the row
+   * @param position the position of the row in the cache
+   */
+  public void add( RowMetaInterface rowMeta, int fieldIndex, Object[] row, long position ) {
+    if ( order.isEmpty() ) {
+      firstPosition = position;
+    }
+    String key = null;
+    if ( fieldIndex >= 0 && fieldIndex < row.length ) {
+      try {
+        key = rowMeta.getValueMeta( fieldIndex ).getString( row[fieldIndex] );
+      } catch ( KettleValueException e ) {
+        throw new RuntimeException( "Unable to index field '" + fieldName + "' of cached row", e );
+      }
+    }
+    if ( key == null ) {
+      order.addLast( NO_KEY );
+      return;
+    }
+    PositionList positions = keys.get( key );
+    if ( positions == null ) {
+      positions = new PositionList( key );
+      keys.put( key, positions );
+    }
+    positions.add( position );
+    order.addLast( positions );
+  }
+
+  /**
+   * Remove the positions of evicted rows from the index
+   *
+   * @param position the position of the oldest row left in the cache
+   */
+  public void removeBefore( long position ) {
+    while ( firstPosition < position && !order.isEmpty() ) {
+      PositionList positions = order.removeFirst();
+      firstPosition++;
+      if ( positions != NO_KEY ) {
+        positions.removeFirst();
+        if ( positions.size() == 0 ) {
+          keys.remove( positions.key );
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the positions of the rows with the given key in the range [start, end)
+   *
+   * @param key the value of the indexed field
+   * @param start the first position to consider
+   * @param end the position after the last position to consider
+   * @return the positions, in order
+   */
+  public long[] getPositions( String key, long start, long end ) {
+    PositionList positions = keys.get( key );
+    if ( positions == null ) {
+      return new long[0];
+    }
+    return positions.getRange( start, end );
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  /**
+   * @return the number of distinct keys in the index
+   */
+  public int getNrKeys() {
+    return keys.size();
+  }
+
+  /**
+   * An ordered list of positions, removed from the start and added at the end
+   */
+  private static class PositionList {
+    private String key;
+    private long[] positions;
+    private int start;
+    private int end;
+
+    public PositionList( String key ) {
+      this.key = key;
+      this.positions = new long[4];
+      this.start = 0;
+      this.end = 0;
+    }
+
+    public void add( long position ) {
+      if ( end == positions.length ) {
+        int size = size();
+        long[] newPositions = size * 2 > positions.length ? new long[positions.length * 2] : positions;
+        System.arraycopy( positions, start, newPositions, 0, size );
+        positions = newPositions;
+        start = 0;
+        end = size;
+      }
+      positions[end++] = position;
+    }
+
+    public void removeFirst() {
+      start++;
+    }
+
+    public int size() {
+      return end - start;
+    }
+
+    public long[] getRange( long from, long to ) {
+      long[] current = positions;
+      int low = lowerBound( current, start, end, from );
+      int high = lowerBound( current, low, end, to );
+      long[] range = new long[high - low];
+      System.arraycopy( current, low, range, 0, range.length );
+      return range;
+    }
+
+    private static int lowerBound( long[] values, int low, int high, long value ) {
+      while ( low < high ) {
+        int middle = ( low + high ) >>> 1;
+        if ( values[middle] < value ) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+  }
+}
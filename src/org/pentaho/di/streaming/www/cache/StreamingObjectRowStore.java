@@ -0,0 +1,38 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * Keeps the captured row objects as they are. Fastest to read, but every value stays boxed on the heap.
+ */
+public class StreamingObjectRowStore extends StreamingRingBuffer {
+  private StreamingTimedNumberedRow[] rows;
+
+  public StreamingObjectRowStore( int maxCapacity ) {
+    super( maxCapacity );
+    rows = new StreamingTimedNumberedRow[getCapacity()];
+  }
+
+  @Override
+  protected void resizeSlots( int newCapacity ) {
+    StreamingTimedNumberedRow[] newRows = new StreamingTimedNumberedRow[newCapacity];
+    for ( long position = getFirstPosition(); position < getLastPosition(); position++ ) {
+      newRows[(int) ( position % newCapacity )] = rows[slot( position )];
+    }
+    rows = newRows;
+  }
+
+  @Override
+  protected int storeRow( int slot, StreamingTimedNumberedRow row ) {
+    rows[slot] = row;
+    return StreamingRowSizeEstimator.REFERENCE + StreamingRowSizeEstimator.estimateRowSize( row.getRow() );
+  }
+
+  @Override
+  protected StreamingTimedNumberedRow loadRow( int slot, long id, long time ) {
+    return rows[slot];
+  }
+
+  @Override
+  protected void clearSlot( int slot ) {
+    rows[slot] = null;
+  }
+}
@@ -0,0 +1,148 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Keeps the cached rows serialized with the row metadata in direct (off-heap) byte buffer segments.
+ * The heap only holds the ID, time and segment/offset index of every row.  The serialized bytes count towards the
+ * memory use of the store as well, direct memory being limited too.
+ *
+ * Segments are filled one after the other and are never written to again once full, a segment is released to the
+ * garbage collector when all its rows are evicted.  Segments are not reused: a reader which doesn't take a lock could
+ * otherwise decode the bytes of another row written over the one it was reading.  The location of a row is replaced
+ * as a whole for the same reason.
+ *
+ * The direct memory of a released segment is only returned when the garbage collector runs, so the live segments and
+ * the ones waiting for collection have to fit in -XX:MaxDirectMemorySize: allow at least twice the cache size in bytes.
+ * When the limit is reached the JVM asks for a full collection before giving up, which -XX:+DisableExplicitGC
+ * prevents.
+ */
+public class StreamingOffHeapRowStore extends StreamingRingBuffer {
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  /** The heap use of the location of a row: the reference to it and the object itself */
+  private static final int LOCATION_SIZE = 4 + 16 + 4 + 4 + 4;
+
+  private RowMetaInterface rowMeta;
+  private int segmentSize;
+
+  private Location[] locations;
+
+  private Segment currentSegment;
+
+  private RowBuffer rowBuffer;
+  private DataOutputStream rowOutputStream;
+
+  /**
+   * @param rowMeta The layout of the rows to serialize
+   * @param maxCapacity The maximum number of rows to keep (<=0 : unbounded)
+   * @param segmentSize The size of a direct byte buffer segment in bytes (<=0 : default)
+   */
+  public StreamingOffHeapRowStore( RowMetaInterface rowMeta, int maxCapacity, int segmentSize ) {
+    super( maxCapacity );
+    this.rowMeta = rowMeta;
+    this.segmentSize = segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE;
+    locations = new Location[getCapacity()];
+    rowBuffer = new RowBuffer();
+    rowOutputStream = new DataOutputStream( rowBuffer );
+  }
+
+  @Override
+  protected void resizeSlots( int newCapacity ) {
+    Location[] newLocations = new Location[newCapacity];
+    for ( long position = getFirstPosition(); position < getLastPosition(); position++ ) {
+      newLocations[(int) ( position % newCapacity )] = locations[slot( position )];
+    }
+    locations = newLocations;
+  }
+
+  @Override
+  protected int storeRow( int slot, StreamingTimedNumberedRow row ) {
+    try {
+      rowBuffer.reset();
+      rowMeta.writeData( rowOutputStream, row.getRow() );
+      rowOutputStream.flush();
+    } catch ( Exception e ) {
+      throw new RuntimeException( "Unable to serialize row for off-heap storage", e );
+    }
+    int length = rowBuffer.size();
+    if ( currentSegment == null || currentSegment.buffer.remaining() < length ) {
+      currentSegment = new Segment( allocateSegment( Math.max( segmentSize, length ) ) );
+    }
+    int offset = currentSegment.buffer.position();
+    currentSegment.buffer.put( rowBuffer.getBuffer(), 0, length );
+
+    locations[slot] = new Location( currentSegment, offset, length );
+    return LOCATION_SIZE + length;
+  }
+
+  private static ByteBuffer allocateSegment( int size ) {
+    try {
+      return ByteBuffer.allocateDirect( size );
+    } catch ( OutOfMemoryError e ) {
+      // Only direct memory ran out, the heap is fine
+      throw new RuntimeException( "Unable to allocate an off-heap segment of " + size + " bytes, the -XX:MaxDirectMemorySize of the server"
+        + " should be at least twice the cache size in bytes", e );
+    }
+  }
+
+  @Override
+  protected StreamingTimedNumberedRow loadRow( int slot, long id, long time ) {
+    Location location = locations[slot];
+    ByteBuffer buffer = location.segment.buffer.duplicate();
+    buffer.limit( location.offset + location.length );
+    buffer.position( location.offset );
+    try {
+      Object[] data = rowMeta.readData( new DataInputStream( new StreamingByteBufferInputStream( buffer ) ) );
+      return new StreamingTimedNumberedRow( id, time, data );
+    } catch ( Exception e ) {
+      throw new RuntimeException( "Unable to read row with id " + id + " from off-heap storage", e );
+    }
+  }
+
+  @Override
+  protected void clearSlot( int slot ) {
+    locations[slot] = null;
+  }
+
+  private static class Segment {
+    private final ByteBuffer buffer;
+
+    public Segment( ByteBuffer buffer ) {
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Where the serialized bytes of a row are kept
+   */
+  private static class Location {
+    private final Segment segment;
+    private final int offset;
+    private final int length;
+
+    public Location( Segment segment, int offset, int length ) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Gives access to the serialized bytes without copying them
+   */
+  private static class RowBuffer extends ByteArrayOutputStream {
+    public RowBuffer() {
+      super( 1024 );
+    }
+
+    public byte[] getBuffer() {
+      return buf;
+    }
+  }
+}
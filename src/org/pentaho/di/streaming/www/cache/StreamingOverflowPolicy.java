@@ -0,0 +1,33 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * What to do with captured rows when the asynchronous capture queue of a streaming service is full
+ */
+public enum StreamingOverflowPolicy {
+  /** Wait for the cache writer to catch up, slowing down the service transformation */
+  BLOCK( "Block" ),
+
+  /** Drop the oldest queued row to make room for the new one */
+  DROP_OLDEST( "Drop oldest" ),
+
+  /** Only queue every n-th row once the queue fills up, drop new rows when it's full */
+  SAMPLE( "Sample" );
+
+  private String description;
+
+  private StreamingOverflowPolicy( String description ) {
+    this.description = description;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public static String[] getDescriptions() {
+    String[] descriptions = new String[values().length];
+    for ( int i = 0; i < descriptions.length; i++ ) {
+      descriptions[i] = values()[i].getDescription();
+    }
+    return descriptions;
+  }
+}
@@ -0,0 +1,155 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A mergeable sketch of the distribution of numeric values answering quantile queries with a relative error of at
+ * most 1%.  Values are counted in buckets with logarithmically growing bounds, so the size of the sketch only
+ * depends on the range of the values, not on their number.  Should the number of buckets exceed the maximum the
+ * buckets of the smallest values are collapsed, sacrificing the accuracy of the lowest quantiles.
+ */
+public class StreamingQuantileSketch {
+  private static final double RELATIVE_ACCURACY = 0.01;
+  private static final double GAMMA = ( 1.0 + RELATIVE_ACCURACY ) / ( 1.0 - RELATIVE_ACCURACY );
+  private static final double LOG_GAMMA = Math.log( GAMMA );
+  private static final int MAX_BUCKETS = 2048;
+
+  /** Values closer to zero than this are counted as zero */
+  private static final double MIN_VALUE = 1e-9;
+
+  private TreeMap<Integer, Long> positive;
+  private TreeMap<Integer, Long> negative;
+  private long zeroCount;
+  private long count;
+  private double min;
+  private double max;
+  private double sum;
+
+  public StreamingQuantileSketch() {
+    positive = new TreeMap<Integer, Long>();
+    negative = new TreeMap<Integer, Long>();
+    zeroCount = 0L;
+    count = 0L;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+    sum = 0.0;
+  }
+
+  public void add( double value ) {
+    if ( Double.isNaN( value ) ) {
+      return;
+    }
+    if ( value > MIN_VALUE ) {
+      add( positive, bucket( value ), 1L );
+    } else if ( value < -MIN_VALUE ) {
+      add( negative, bucket( -value ), 1L );
+    } else {
+      zeroCount++;
+    }
+    count++;
+    min = Math.min( min, value );
+    max = Math.max( max, value );
+    sum += value;
+  }
+
+  /**
+   * Add the values of another sketch to this one
+   *
+   * @param other
+   */
+  public void merge( StreamingQuantileSketch other ) {
+    for ( Map.Entry<Integer, Long> entry : other.positive.entrySet() ) {
+      add( positive, entry.getKey(), entry.getValue() );
+    }
+    for ( Map.Entry<Integer, Long> entry : other.negative.entrySet() ) {
+      add( negative, entry.getKey(), entry.getValue() );
+    }
+    zeroCount += other.zeroCount;
+    count += other.count;
+    min = Math.min( min, other.min );
+    max = Math.max( max, other.max );
+    sum += other.sum;
+  }
+
+  /**
+   * @param quantile the quantile, between 0 and 1
+   * @return the estimated value at the given quantile or NaN if the sketch is empty
+   */
+  public double getQuantile( double quantile ) {
+    if ( count == 0 ) {
+      return Double.NaN;
+    }
+    if ( quantile <= 0.0 ) {
+      return min;
+    }
+    if ( quantile >= 1.0 ) {
+      return max;
+    }
+    long rank = (long) ( quantile * ( count - 1 ) );
+    long seen = 0L;
+
+    // The negative values, largest magnitude first
+    //
+    for ( Map.Entry<Integer, Long> entry : negative.descendingMap().entrySet() ) {
+      seen += entry.getValue();
+      if ( seen > rank ) {
+        return clamp( -value( entry.getKey() ) );
+      }
+    }
+    seen += zeroCount;
+    if ( seen > rank ) {
+      return clamp( 0.0 );
+    }
+    for ( Map.Entry<Integer, Long> entry : positive.entrySet() ) {
+      seen += entry.getValue();
+      if ( seen > rank ) {
+        return clamp( value( entry.getKey() ) );
+      }
+    }
+    return max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  public double getSum() {
+    return sum;
+  }
+
+  private double clamp( double value ) {
+    return Math.max( min, Math.min( max, value ) );
+  }
+
+  private static int bucket( double value ) {
+    return (int) Math.ceil( Math.log( value ) / LOG_GAMMA );
+  }
+
+  /**
+   * @return the value in the middle of the bucket, within the relative accuracy of all values in it
+   */
+  private static double value( int bucket ) {
+    return 2.0 * Math.pow( GAMMA, bucket ) / ( GAMMA + 1.0 );
+  }
+
+  private static void add( TreeMap<Integer, Long> buckets, int bucket, long bucketCount ) {
+    Long current = buckets.get( bucket );
+    buckets.put( bucket, current == null ? bucketCount : current + bucketCount );
+    if ( buckets.size() > MAX_BUCKETS ) {
+      // Collapse the two lowest buckets
+      //
+      Map.Entry<Integer, Long> lowest = buckets.pollFirstEntry();
+      Map.Entry<Integer, Long> next = buckets.firstEntry();
+      buckets.put( next.getKey(), next.getValue() + lowest.getValue() );
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * The most recently used encoded responses of getStreaming, so that identical requests arriving while nothing was
+ * captured share a single search of the cache and a single encoding of the rows.
+ *
+ * The key identifies the rows and their format, including the IDs of the first and last cached row, so a response
+ * is never served once rows were added or removed.  Identical requests arriving while a response is being encoded
+ * wait for that one instead of encoding it again.  The responses are bounded in number and in bytes, the least
+ * recently used ones are evicted first.  A response larger than a quarter of the bytes isn't kept at all.
+ */
+public class StreamingResultCache {
+  public static final int DEFAULT_MAX_ENTRIES = 256;
+  public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024L;
+
+  private static final StreamingResultCache streamingResultCache = new StreamingResultCache( DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES );
+
+  private int maxEntries;
+  private long maxBytes;
+
+  private LinkedHashMap<String, byte[]> results;
+  private long bytes;
+  private ConcurrentHashMap<String, FutureTask<byte[]>> inFlight;
+
+  private AtomicLong hits;
+  private AtomicLong misses;
+  private AtomicLong shared;
+
+  /**
+   * @param maxEntries the maximum number of responses to keep
+   * @param maxBytes the maximum number of bytes of all responses kept together
+   */
+  public StreamingResultCache( int maxEntries, long maxBytes ) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.results = new LinkedHashMap<String, byte[]>( 16, 0.75f, true );
+    this.bytes = 0L;
+    this.inFlight = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+    this.shared = new AtomicLong();
+  }
+
+  public static StreamingResultCache getInstance() {
+    return streamingResultCache;
+  }
+
+  /**
+   * Get an encoded response, encoding it if no identical request was answered or is being answered.
+   *
+   * @param key the identification of the rows and their format
+   * @param encoder encodes the response in case it isn't available, returns null if it can't be kept
+   * @return the encoded response, null if the encoder or the identical request being answered didn't produce
+   * one to keep
+   * @throws KettleException in case the encoder failed
+   */
+  public byte[] get( String key, Callable<byte[]> encoder ) throws KettleException {
+    byte[] result;
+    synchronized ( this ) {
+      result = results.get( key );
+    }
+    if ( result != null ) {
+      hits.incrementAndGet();
+      return result;
+    }
+
+    // Only a single request encodes the response, identical ones wait for it
+    //
+    FutureTask<byte[]> task = new FutureTask<byte[]>( encoder );
+    FutureTask<byte[]> running = inFlight.putIfAbsent( key, task );
+    if ( running != null ) {
+      shared.incrementAndGet();
+      try {
+        return running.get();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new KettleException( "Interrupted while waiting for an identical request to be answered", e );
+      } catch ( ExecutionException e ) {
+        // The identical request failed, for example because its client went away: answer this one separately
+        return null;
+      }
+    }
+
+    misses.incrementAndGet();
+    try {
+      task.run();
+      result = task.get();
+      if ( result != null ) {
+        put( key, result );
+      }
+      return result;
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new KettleException( "Interrupted while encoding a response", e );
+    } catch ( ExecutionException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof KettleException ) {
+        throw (KettleException) cause;
+      }
+      throw new KettleException( "Unable to encode the response", cause );
+    } finally {
+      inFlight.remove( key );
+    }
+  }
+
+  private synchronized void put( String key, byte[] result ) {
+    // A single response taking up a large part of the cache would evict all the others
+    //
+    if ( result.length > getMaxResultSize() ) {
+      return;
+    }
+    byte[] previous = results.put( key, result );
+    if ( previous != null ) {
+      bytes -= previous.length;
+    }
+    bytes += result.length;
+
+    Iterator<byte[]> iterator = results.values().iterator();
+    while ( ( results.size() > maxEntries || bytes > maxBytes ) && iterator.hasNext() ) {
+      bytes -= iterator.next().length;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * @return the size in bytes of the largest response kept
+   */
+  public int getMaxResultSize() {
+    return (int) Math.min( Integer.MAX_VALUE, maxBytes / 4 );
+  }
+
+  public synchronized void clear() {
+    results.clear();
+    bytes = 0L;
+  }
+
+  /**
+   * @return the number of requests answered with a kept response
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of requests for which the response was encoded
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of requests which waited for an identical request to be answered, possibly in vain
+   */
+  public long getShared() {
+    return shared.get();
+  }
+
+  /**
+   * @return the share of the requests answered without encoding the response
+   */
+  public double getHitRatio() {
+    long nrHits = hits.get() + shared.get();
+    long nrRequests = nrHits + misses.get();
+    return nrRequests == 0L ? 0.0 : (double) nrHits / nrRequests;
+  }
+
+  public synchronized int size() {
+    return results.size();
+  }
+
+  public synchronized long getByteSize() {
+    return bytes;
+  }
+}
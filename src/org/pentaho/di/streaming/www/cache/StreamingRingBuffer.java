@@ -0,0 +1,234 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * A ring buffer of cached rows.
+ * Rows are addressed by a position which keeps increasing as rows are appended, the slot of a position is
+ * simply position modulo the capacity.  Since the row IDs handed out by StreamingCache.nextValue() are increasing,
+ * the position of an ID can usually be calculated directly from the ID of the first row.
+ * The capture timestamps are kept in a separate index which never decreases so that time windows can be found
+ * with a binary search.  The estimated size of every row, as reported by storeRow(), is kept as well to allow
+ * eviction by memory use.
+ *
+ * Subclasses decide how the row data itself is kept in the slots, they allocate getCapacity() slots on construction.
+ */
+public abstract class StreamingRingBuffer implements StreamingRowStore {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /** The memory use of the ID, time and size of a row */
+  private static final int INDEX_SIZE = 8 + 8 + 4;
+
+  private int maxCapacity;
+  private int capacity;
+  private long[] ids;
+  private long[] times;
+  private int[] sizes;
+
+  // Published to readers, see StreamingCacheEntry
+  //
+  private volatile long firstPosition;
+  private volatile long lastPosition;
+  private long byteSize;
+
+  /**
+   * @param maxCapacity The maximum number of rows to keep, the oldest rows are evicted when this is exceeded. (<=0 : unbounded)
+   */
+  public StreamingRingBuffer( int maxCapacity ) {
+    this.maxCapacity = maxCapacity;
+    capacity = maxCapacity > 0 ? Math.min( maxCapacity, INITIAL_CAPACITY ) : INITIAL_CAPACITY;
+    ids = new long[capacity];
+    times = new long[capacity];
+    sizes = new int[capacity];
+    firstPosition = 0L;
+    lastPosition = 0L;
+    byteSize = 0L;
+  }
+
+  /**
+   * Move the row data into a larger set of slots.
+   * The current slot of a position is still given by slot(position), the new one by position % newCapacity.
+   */
+  protected abstract void resizeSlots( int newCapacity );
+
+  /**
+   * @return the estimated number of bytes the row data uses in the slot
+   */
+  protected abstract int storeRow( int slot, StreamingTimedNumberedRow row );
+
+  protected abstract StreamingTimedNumberedRow loadRow( int slot, long id, long time );
+
+  /**
+   * Release the data of an evicted row
+   */
+  protected abstract void clearSlot( int slot );
+
+  @Override
+  public void add( StreamingTimedNumberedRow row ) {
+    if ( size() == capacity ) {
+      if ( maxCapacity > 0 && capacity >= maxCapacity ) {
+        removeFirst( 1 );
+      } else {
+        grow();
+      }
+    }
+    // A clock adjustment can make the row time go back, keep the index sorted regardless
+    //
+    long time = row.getTime();
+    if ( lastPosition > firstPosition ) {
+      time = Math.max( time, getTime( lastPosition - 1 ) );
+    }
+    int slot = slot( lastPosition );
+    int rowSize = INDEX_SIZE + storeRow( slot, row );
+    ids[slot] = row.getId();
+    times[slot] = time;
+    sizes[slot] = rowSize;
+    byteSize += rowSize;
+    lastPosition++;
+  }
+
+  private void grow() {
+    int newCapacity = capacity * 2;
+    if ( maxCapacity > 0 && newCapacity > maxCapacity ) {
+      newCapacity = maxCapacity;
+    }
+    long[] newIds = new long[newCapacity];
+    long[] newTimes = new long[newCapacity];
+    int[] newSizes = new int[newCapacity];
+    for ( long position = firstPosition; position < lastPosition; position++ ) {
+      int slot = slot( position );
+      int newSlot = (int) ( position % newCapacity );
+      newIds[newSlot] = ids[slot];
+      newTimes[newSlot] = times[slot];
+      newSizes[newSlot] = sizes[slot];
+    }
+    resizeSlots( newCapacity );
+    ids = newIds;
+    times = newTimes;
+    sizes = newSizes;
+    capacity = newCapacity;
+  }
+
+  @Override
+  public void removeFirst( int nrRows ) {
+    int nr = Math.min( nrRows, size() );
+    for ( int i = 0; i < nr; i++ ) {
+      int slot = slot( firstPosition );
+      clearSlot( slot );
+      byteSize -= sizes[slot];
+      firstPosition++;
+    }
+  }
+
+  @Override
+  public long removeBytes( long bytes ) {
+    long removed = 0L;
+    while ( removed < bytes && size() > 1 ) {
+      removed += sizes[slot( firstPosition )];
+      removeFirst( 1 );
+    }
+    return removed;
+  }
+
+  @Override
+  public int removeOlderThan( long cutOff ) {
+    int nrRows = (int) ( positionOfTime( cutOff ) - firstPosition );
+    removeFirst( nrRows );
+    return nrRows;
+  }
+
+  @Override
+  public void clear() {
+    removeFirst( size() );
+  }
+
+  @Override
+  public int size() {
+    return (int) ( lastPosition - firstPosition );
+  }
+
+  @Override
+  public long getByteSize() {
+    return byteSize;
+  }
+
+  @Override
+  public long getFirstPosition() {
+    return firstPosition;
+  }
+
+  @Override
+  public long getLastPosition() {
+    return lastPosition;
+  }
+
+  @Override
+  public StreamingTimedNumberedRow get( long position ) {
+    int slot = slot( position );
+    return loadRow( slot, ids[slot], times[slot] );
+  }
+
+  @Override
+  public long getId( long position ) {
+    return ids[slot( position )];
+  }
+
+  @Override
+  public long getTime( long position ) {
+    return times[slot( position )];
+  }
+
+  @Override
+  public long positionOfTime( long time ) {
+    long low = firstPosition;
+    long high = lastPosition;
+    while ( low < high ) {
+      long middle = ( low + high ) >>> 1;
+      if ( getTime( middle ) < time ) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * For consecutive IDs this is a simple calculation, otherwise we fall back to a binary search.
+   */
+  @Override
+  public long positionOfId( long id ) {
+    if ( firstPosition == lastPosition ) {
+      return lastPosition;
+    }
+    long firstId = getId( firstPosition );
+    if ( id <= firstId ) {
+      return firstPosition;
+    }
+    if ( id > getId( lastPosition - 1 ) ) {
+      return lastPosition;
+    }
+    long guess = firstPosition + ( id - firstId );
+    if ( guess < lastPosition && getId( guess ) == id ) {
+      return guess;
+    }
+
+    long low = firstPosition;
+    long high = lastPosition - 1;
+    while ( low < high ) {
+      long middle = ( low + high ) >>> 1;
+      if ( getId( middle ) < id ) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  protected int getCapacity() {
+    return capacity;
+  }
+
+  protected int slot( long position ) {
+    return (int) ( position % capacity );
+  }
+}
@@ -0,0 +1,204 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Keeps the measures of a rollup per time bucket up to date as rows are added to a streaming cache.
+ * A bucket is dropped once all rows in it are evicted from the cache, so the rollup covers the same time span as the
+ * cached rows.  A bucket from which only some of the rows were evicted still includes those rows.
+ */
+public class StreamingRollup extends StreamingCacheAdapter {
+  private StreamingRollupDefinition definition;
+  private long bucketMs;
+
+  private RowMetaInterface rowMeta;
+  private int keyIndex;
+  private int[] measureIndexes;
+
+  private TreeMap<Long, Map<String, Accumulator>> buckets;
+
+  public StreamingRollup( StreamingRollupDefinition definition ) {
+    this.definition = definition;
+    this.bucketMs = definition.getBucketSeconds() * 1000L;
+    this.buckets = new TreeMap<Long, Map<String, Accumulator>>();
+  }
+
+  @Override
+  public synchronized void rowsAdded( StreamingCacheEntry cacheEntry, List<StreamingTimedNumberedRow> rows ) {
+    RowMetaInterface entryRowMeta = cacheEntry.getRowMeta();
+    if ( entryRowMeta != rowMeta ) {
+      setRowMeta( entryRowMeta );
+    }
+    try {
+      for ( StreamingTimedNumberedRow row : rows ) {
+        Object[] data = row.getRow();
+        long bucketStart = row.getTime() - ( row.getTime() % bucketMs );
+        Map<String, Accumulator> bucket = buckets.get( bucketStart );
+        if ( bucket == null ) {
+          bucket = new LinkedHashMap<String, Accumulator>();
+          buckets.put( bucketStart, bucket );
+        }
+        String key = keyIndex < 0 ? null : rowMeta.getValueMeta( keyIndex ).getString( data[keyIndex] );
+        Accumulator accumulator = bucket.get( key );
+        if ( accumulator == null ) {
+          accumulator = new Accumulator( measureIndexes.length );
+          bucket.put( key, accumulator );
+        }
+        accumulator.rows++;
+        for ( int i = 0; i < measureIndexes.length; i++ ) {
+          if ( measureIndexes[i] >= 0 ) {
+            Double value = rowMeta.getValueMeta( measureIndexes[i] ).getNumber( data[measureIndexes[i]] );
+            if ( value != null ) {
+              accumulator.add( i, value );
+            }
+          }
+        }
+      }
+    } catch ( KettleValueException e ) {
+      throw new RuntimeException( "Unable to update rollup '" + definition.getName() + "'", e );
+    }
+  }
+
+  @Override
+  public synchronized void rowsEvicted( StreamingCacheEntry cacheEntry, long firstTime ) {
+    // Drop the buckets ending before the oldest remaining row
+    //
+    while ( !buckets.isEmpty() && buckets.firstKey() + bucketMs <= firstTime ) {
+      buckets.pollFirstEntry();
+    }
+  }
+
+  /**
+   * Check that the rows hold the key field and the measure fields of the rollup
+   *
+   * @param rowMeta the layout of the rows
+   * @throws KettleException in case a field can't be found
+   */
+  public void validate( RowMetaInterface rowMeta ) throws KettleException {
+    if ( definition.getKeyField() != null && rowMeta.indexOfValue( definition.getKeyField() ) < 0 ) {
+      throw new KettleException( "Key field '" + definition.getKeyField() + "' of rollup '" + definition.getName() + "' couldn't be found" );
+    }
+    for ( StreamingRollupMeasure measure : definition.getMeasures() ) {
+      if ( measure.getFieldName() != null && rowMeta.indexOfValue( measure.getFieldName() ) < 0 ) {
+        throw new KettleException( "Field '" + measure.getFieldName() + "' of rollup '" + definition.getName() + "' couldn't be found" );
+      }
+    }
+  }
+
+  /**
+   * Look up the fields of the rollup, the buckets are cleared if the layout changes.
+   */
+  private void setRowMeta( RowMetaInterface newRowMeta ) {
+    if ( rowMeta != null && rowMeta.toStringMeta().equals( newRowMeta.toStringMeta() ) ) {
+      rowMeta = newRowMeta;
+      return;
+    }
+    buckets.clear();
+    keyIndex = definition.getKeyField() == null ? -1 : newRowMeta.indexOfValue( definition.getKeyField() );
+    if ( definition.getKeyField() != null && keyIndex < 0 ) {
+      throw new RuntimeException( "Key field '" + definition.getKeyField() + "' of rollup '" + definition.getName() + "' couldn't be found" );
+    }
+    List<StreamingRollupMeasure> measures = definition.getMeasures();
+    measureIndexes = new int[measures.size()];
+    for ( int i = 0; i < measureIndexes.length; i++ ) {
+      String fieldName = measures.get( i ).getFieldName();
+      measureIndexes[i] = fieldName == null ? -1 : newRowMeta.indexOfValue( fieldName );
+      if ( fieldName != null && measureIndexes[i] < 0 ) {
+        throw new RuntimeException( "Field '" + fieldName + "' of rollup '" + definition.getName() + "' couldn't be found" );
+      }
+    }
+    rowMeta = newRowMeta;
+  }
+
+  /**
+   * Get the measures of the buckets ending after the given time.
+   * Every row holds the start of the bucket in ms since the epoch, the key (if any) and the values of the measures.
+   *
+   * @param fromTime the time in ms since the epoch
+   * @return the rollup rows, ordered by bucket
+   */
+  public synchronized List<Object[]> getRows( long fromTime ) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    List<StreamingRollupMeasure> measures = definition.getMeasures();
+    for ( Map.Entry<Long, Map<String, Accumulator>> bucket : buckets.tailMap( fromTime - bucketMs, false ).entrySet() ) {
+      for ( Map.Entry<String, Accumulator> group : bucket.getValue().entrySet() ) {
+        Accumulator accumulator = group.getValue();
+        Object[] row = new Object[2 + measures.size()];
+        row[0] = bucket.getKey();
+        row[1] = group.getKey();
+        for ( int i = 0; i < measures.size(); i++ ) {
+          row[2 + i] = accumulator.getValue( i, measures.get( i ) );
+        }
+        rows.add( row );
+      }
+    }
+    return rows;
+  }
+
+  public StreamingRollupDefinition getDefinition() {
+    return definition;
+  }
+
+  /**
+   * @return the number of time buckets kept
+   */
+  public synchronized int getNrBuckets() {
+    return buckets.size();
+  }
+
+  /**
+   * The running totals of the measures of one key in one bucket
+   */
+  private static class Accumulator {
+    private long rows;
+    private long[] counts;
+    private double[] sums;
+    private double[] mins;
+    private double[] maxs;
+
+    public Accumulator( int nrMeasures ) {
+      counts = new long[nrMeasures];
+      sums = new double[nrMeasures];
+      mins = new double[nrMeasures];
+      maxs = new double[nrMeasures];
+    }
+
+    public void add( int measure, double value ) {
+      if ( counts[measure] == 0 ) {
+        mins[measure] = value;
+        maxs[measure] = value;
+      } else {
+        mins[measure] = Math.min( mins[measure], value );
+        maxs[measure] = Math.max( maxs[measure], value );
+      }
+      counts[measure]++;
+      sums[measure] += value;
+    }
+
+    public Object getValue( int measure, StreamingRollupMeasure rollupMeasure ) {
+      switch ( rollupMeasure.getAggregation() ) {
+        case COUNT:
+          // Count the rows or the non-null values of a field
+          return rollupMeasure.getFieldName() == null ? rows : counts[measure];
+        case SUM:
+          return sums[measure];
+        case MIN:
+          return counts[measure] == 0 ? null : Double.valueOf( mins[measure] );
+        case MAX:
+          return counts[measure] == 0 ? null : Double.valueOf( maxs[measure] );
+        case AVG:
+          return counts[measure] == 0 ? null : Double.valueOf( sums[measure] / counts[measure] );
+        default:
+          return null;
+      }
+    }
+  }
+}
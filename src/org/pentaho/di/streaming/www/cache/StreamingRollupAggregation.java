@@ -0,0 +1,35 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * The ways in which the values of a field can be aggregated in a rollup
+ */
+public enum StreamingRollupAggregation {
+  COUNT( "count" ),
+  SUM( "sum" ),
+  MIN( "min" ),
+  MAX( "max" ),
+  AVG( "avg" );
+
+  private String code;
+
+  private StreamingRollupAggregation( String code ) {
+    this.code = code;
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  /**
+   * @param code the code of the aggregation, case insensitive
+   * @return the aggregation or null if the code is unknown
+   */
+  public static StreamingRollupAggregation getAggregationForCode( String code ) {
+    for ( StreamingRollupAggregation aggregation : values() ) {
+      if ( aggregation.getCode().equalsIgnoreCase( code ) ) {
+        return aggregation;
+      }
+    }
+    return null;
+  }
+}
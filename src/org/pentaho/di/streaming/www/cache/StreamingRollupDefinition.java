@@ -0,0 +1,123 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * Describes a rollup of the captured rows of a streaming service: a number of measures calculated per time bucket,
+ * optionally per value of a key field.
+ *
+ * Rollups are specified as follows, separated by a semicolon:
+ *
+ * <pre>
+ * name = seconds [by keyField] : measure, measure, ...
+ * </pre>
+ *
+ * where a measure is either <code>count</code> or one of <code>sum</code>, <code>min</code>, <code>max</code> and
+ * <code>avg</code> of a numeric field. For example:
+ *
+ * <pre>
+ * perMinute = 60 : count, avg(latency); perRegion = 10 by region : count, sum(bytes), max(latency)
+ * </pre>
+ */
+public class StreamingRollupDefinition {
+  private String name;
+  private int bucketSeconds;
+  private String keyField;
+  private List<StreamingRollupMeasure> measures;
+
+  /**
+   * @param name the name of the rollup
+   * @param bucketSeconds the length of a time bucket in seconds
+   * @param keyField the field to group the rows on within a bucket (null : no grouping)
+   * @param measures the measures to calculate
+   */
+  public StreamingRollupDefinition( String name, int bucketSeconds, String keyField, List<StreamingRollupMeasure> measures ) {
+    this.name = name;
+    this.bucketSeconds = bucketSeconds;
+    this.keyField = keyField;
+    this.measures = measures;
+  }
+
+  /**
+   * @param specification the rollups, see the class description for the format
+   * @return the rollups in the specification
+   * @throws KettleException in case the specification can't be parsed
+   */
+  public static List<StreamingRollupDefinition> parse( String specification ) throws KettleException {
+    List<StreamingRollupDefinition> definitions = new ArrayList<StreamingRollupDefinition>();
+    if ( Const.isEmpty( specification ) ) {
+      return definitions;
+    }
+    for ( String rollup : specification.split( ";" ) ) {
+      if ( Const.isEmpty( rollup.trim() ) ) {
+        continue;
+      }
+      int equalsIndex = rollup.indexOf( '=' );
+      int colonIndex = rollup.indexOf( ':', equalsIndex + 1 );
+      if ( equalsIndex <= 0 || colonIndex < 0 ) {
+        throw new KettleException( "Rollup '" + rollup.trim() + "' should look like 'name = seconds [by keyField] : measure, ...'" );
+      }
+      String name = rollup.substring( 0, equalsIndex ).trim();
+
+      String bucket = rollup.substring( equalsIndex + 1, colonIndex ).trim();
+      String keyField = null;
+      int byIndex = bucket.toLowerCase().indexOf( " by " );
+      if ( byIndex >= 0 ) {
+        keyField = bucket.substring( byIndex + 4 ).trim();
+        bucket = bucket.substring( 0, byIndex ).trim();
+      }
+      int bucketSeconds = Const.toInt( bucket, -1 );
+      if ( bucketSeconds <= 0 ) {
+        throw new KettleException( "Rollup '" + name + "' has an invalid bucket length of '" + bucket + "' seconds" );
+      }
+
+      List<StreamingRollupMeasure> measures = new ArrayList<StreamingRollupMeasure>();
+      for ( String measure : rollup.substring( colonIndex + 1 ).split( "," ) ) {
+        measures.add( parseMeasure( name, measure.trim() ) );
+      }
+      definitions.add( new StreamingRollupDefinition( name, bucketSeconds, keyField, measures ) );
+    }
+    return definitions;
+  }
+
+  private static StreamingRollupMeasure parseMeasure( String name, String measure ) throws KettleException {
+    String code = measure;
+    String fieldName = null;
+    int openIndex = measure.indexOf( '(' );
+    if ( openIndex >= 0 ) {
+      if ( !measure.endsWith( ")" ) ) {
+        throw new KettleException( "Measure '" + measure + "' of rollup '" + name + "' is missing a closing parenthesis" );
+      }
+      code = measure.substring( 0, openIndex ).trim();
+      fieldName = measure.substring( openIndex + 1, measure.length() - 1 ).trim();
+    }
+    StreamingRollupAggregation aggregation = StreamingRollupAggregation.getAggregationForCode( code );
+    if ( aggregation == null ) {
+      throw new KettleException( "Unknown aggregation '" + code + "' in rollup '" + name + "'" );
+    }
+    if ( aggregation != StreamingRollupAggregation.COUNT && Const.isEmpty( fieldName ) ) {
+      throw new KettleException( "Measure '" + measure + "' of rollup '" + name + "' needs a field to aggregate" );
+    }
+    return new StreamingRollupMeasure( aggregation, Const.isEmpty( fieldName ) ? null : fieldName );
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getBucketSeconds() {
+    return bucketSeconds;
+  }
+
+  public String getKeyField() {
+    return keyField;
+  }
+
+  public List<StreamingRollupMeasure> getMeasures() {
+    return measures;
+  }
+}
@@ -0,0 +1,31 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * An aggregation of a field of the captured rows in a rollup
+ */
+public class StreamingRollupMeasure {
+  private StreamingRollupAggregation aggregation;
+  private String fieldName;
+
+  /**
+   * @param aggregation how to aggregate the field values
+   * @param fieldName the name of the numeric field to aggregate (null : count the rows)
+   */
+  public StreamingRollupMeasure( StreamingRollupAggregation aggregation, String fieldName ) {
+    this.aggregation = aggregation;
+    this.fieldName = fieldName;
+  }
+
+  public StreamingRollupAggregation getAggregation() {
+    return aggregation;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  @Override
+  public String toString() {
+    return fieldName == null ? aggregation.getCode() : aggregation.getCode() + "(" + fieldName + ")";
+  }
+}
@@ -0,0 +1,48 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * The pre-encoded forms of the rows a streaming cache keeps so that they are serialized once when captured instead
+ * of for every client reading them, see StreamingEncodedRows
+ */
+public enum StreamingRowEncoding {
+  NONE( "None", false, false ),
+  BINARY( "Binary", true, false ),
+  JSON( "JSON", false, true ),
+  BOTH( "Binary and JSON", true, true );
+
+  private String description;
+  private boolean binary;
+  private boolean json;
+
+  private StreamingRowEncoding( String description, boolean binary, boolean json ) {
+    this.description = description;
+    this.binary = binary;
+    this.json = json;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * @return true if the rows are kept in the binary format of RowMetaInterface.writeData()
+   */
+  public boolean isBinary() {
+    return binary;
+  }
+
+  /**
+   * @return true if the rows are kept as JSON arrays of strings
+   */
+  public boolean isJson() {
+    return json;
+  }
+
+  public static String[] getDescriptions() {
+    String[] descriptions = new String[values().length];
+    for ( int i = 0; i < descriptions.length; i++ ) {
+      descriptions[i] = values()[i].getDescription();
+    }
+    return descriptions;
+  }
+}
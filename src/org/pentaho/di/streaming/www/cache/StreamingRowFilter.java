@@ -0,0 +1,369 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * A simple predicate on the fields of cached rows, evaluated while the cache is scanned for matching rows.
+ *
+ * The syntax is that of a SQL WHERE clause without functions or expressions:
+ *
+ * <pre>
+ * status = 'ERROR' AND ( latency &gt;= 250 OR region IN ( 'eu', 'us' ) ) AND NOT host IS NULL
+ * </pre>
+ *
+ * Supported are the comparisons =, !=, &lt;&gt;, &lt;, &lt;=, &gt; and &gt;=, IN, IS [NOT] NULL, AND, OR, NOT and
+ * parentheses.  Field names containing spaces or special characters can be put between double quotes.  Numeric
+ * fields are compared numerically, dates with a numeric value as ms since the epoch and all other fields as strings.
+ * A null value never matches a comparison.
+ */
+public class StreamingRowFilter {
+  private String expression;
+  private Condition condition;
+
+  private StreamingRowFilter( String expression, Condition condition ) {
+    this.expression = expression;
+    this.condition = condition;
+  }
+
+  /**
+   * @param expression the predicate
+   * @param rowMeta the layout of the rows to filter
+   * @return the filter
+   * @throws KettleException in case the predicate can't be parsed or refers to unknown fields
+   */
+  public static StreamingRowFilter parse( String expression, RowMetaInterface rowMeta ) throws KettleException {
+    Parser parser = new Parser( expression, rowMeta );
+    Condition condition = parser.parseOr();
+    if ( parser.peek() != null ) {
+      throw new KettleException( "Unexpected '" + parser.peek() + "' in filter '" + expression + "'" );
+    }
+    return new StreamingRowFilter( expression, condition );
+  }
+
+  /**
+   * @param row the row to evaluate
+   * @return true if the row matches the filter
+   * @throws KettleValueException
+   */
+  public boolean matches( Object[] row ) throws KettleValueException {
+    return condition.matches( row );
+  }
+
+  public String getExpression() {
+    return expression;
+  }
+
+  @Override
+  public String toString() {
+    return expression;
+  }
+
+  private interface Condition {
+    public boolean matches( Object[] row ) throws KettleValueException;
+  }
+
+  private static class And implements Condition {
+    private Condition left;
+    private Condition right;
+
+    public And( Condition left, Condition right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public boolean matches( Object[] row ) throws KettleValueException {
+      return left.matches( row ) && right.matches( row );
+    }
+  }
+
+  private static class Or implements Condition {
+    private Condition left;
+    private Condition right;
+
+    public Or( Condition left, Condition right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public boolean matches( Object[] row ) throws KettleValueException {
+      return left.matches( row ) || right.matches( row );
+    }
+  }
+
+  private static class Not implements Condition {
+    private Condition condition;
+
+    public Not( Condition condition ) {
+      this.condition = condition;
+    }
+
+    @Override
+    public boolean matches( Object[] row ) throws KettleValueException {
+      return !condition.matches( row );
+    }
+  }
+
+  private static class IsNull implements Condition {
+    private ValueMetaInterface valueMeta;
+    private int index;
+
+    public IsNull( ValueMetaInterface valueMeta, int index ) {
+      this.valueMeta = valueMeta;
+      this.index = index;
+    }
+
+    @Override
+    public boolean matches( Object[] row ) throws KettleValueException {
+      return index >= row.length || valueMeta.isNull( row[index] );
+    }
+  }
+
+  /**
+   * Compares a field with one or more constants, a match on any of them is enough
+   */
+  private static class Comparison implements Condition {
+    private ValueMetaInterface valueMeta;
+    private int index;
+    private String operator;
+    private Object[] constants;
+
+    public Comparison( ValueMetaInterface valueMeta, int index, String operator, List<String> literals ) throws KettleException {
+      this.valueMeta = valueMeta;
+      this.index = index;
+      this.operator = operator;
+      constants = new Object[literals.size()];
+      for ( int i = 0; i < constants.length; i++ ) {
+        String literal = literals.get( i );
+        if ( valueMeta.isNumeric() || valueMeta.isDate() ) {
+          try {
+            constants[i] = Double.valueOf( literal );
+          } catch ( NumberFormatException e ) {
+            if ( valueMeta.isNumeric() ) {
+              throw new KettleException( "Field '" + valueMeta.getName() + "' is compared to '" + literal + "' which isn't a number" );
+            }
+            constants[i] = literal;
+          }
+        } else {
+          constants[i] = literal;
+        }
+      }
+    }
+
+    @Override
+    public boolean matches( Object[] row ) throws KettleValueException {
+      if ( index >= row.length || valueMeta.isNull( row[index] ) ) {
+        return false;
+      }
+      for ( Object constant : constants ) {
+        int compare;
+        if ( constant instanceof Double ) {
+          double value;
+          if ( valueMeta.isDate() ) {
+            Date date = valueMeta.getDate( row[index] );
+            value = date.getTime();
+          } else {
+            value = valueMeta.getNumber( row[index] );
+          }
+          compare = Double.compare( value, (Double) constant );
+        } else {
+          compare = valueMeta.getString( row[index] ).compareTo( (String) constant );
+        }
+        if ( evaluate( compare ) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean evaluate( int compare ) {
+      if ( "=".equals( operator ) ) {
+        return compare == 0;
+      } else if ( "!=".equals( operator ) || "<>".equals( operator ) ) {
+        return compare != 0;
+      } else if ( "<".equals( operator ) ) {
+        return compare < 0;
+      } else if ( "<=".equals( operator ) ) {
+        return compare <= 0;
+      } else if ( ">".equals( operator ) ) {
+        return compare > 0;
+      } else {
+        return compare >= 0;
+      }
+    }
+  }
+
+  /**
+   * A recursive descent parser for the filter expression
+   */
+  private static class Parser {
+    private String expression;
+    private RowMetaInterface rowMeta;
+    private List<String> tokens;
+    private int position;
+
+    public Parser( String expression, RowMetaInterface rowMeta ) throws KettleException {
+      this.expression = expression;
+      this.rowMeta = rowMeta;
+      this.tokens = tokenize( expression );
+      this.position = 0;
+    }
+
+    public String peek() {
+      return position < tokens.size() ? tokens.get( position ) : null;
+    }
+
+    private String next() throws KettleException {
+      String token = peek();
+      if ( token == null ) {
+        throw new KettleException( "Unexpected end of filter '" + expression + "'" );
+      }
+      position++;
+      return token;
+    }
+
+    private boolean accept( String keyword ) {
+      String token = peek();
+      if ( token != null && token.equalsIgnoreCase( keyword ) ) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect( String keyword ) throws KettleException {
+      if ( !accept( keyword ) ) {
+        throw new KettleException( "Expected '" + keyword + "' instead of '" + peek() + "' in filter '" + expression + "'" );
+      }
+    }
+
+    public Condition parseOr() throws KettleException {
+      Condition condition = parseAnd();
+      while ( accept( "OR" ) ) {
+        condition = new Or( condition, parseAnd() );
+      }
+      return condition;
+    }
+
+    private Condition parseAnd() throws KettleException {
+      Condition condition = parseUnary();
+      while ( accept( "AND" ) ) {
+        condition = new And( condition, parseUnary() );
+      }
+      return condition;
+    }
+
+    private Condition parseUnary() throws KettleException {
+      if ( accept( "NOT" ) ) {
+        return new Not( parseUnary() );
+      }
+      if ( accept( "(" ) ) {
+        Condition condition = parseOr();
+        expect( ")" );
+        return condition;
+      }
+      return parseComparison();
+    }
+
+    private Condition parseComparison() throws KettleException {
+      String fieldName = unquote( next(), '"' );
+      int index = rowMeta.indexOfValue( fieldName );
+      if ( index < 0 ) {
+        throw new KettleException( "Field '" + fieldName + "' in filter '" + expression + "' couldn't be found" );
+      }
+      ValueMetaInterface valueMeta = rowMeta.getValueMeta( index );
+
+      if ( accept( "IS" ) ) {
+        boolean not = accept( "NOT" );
+        expect( "NULL" );
+        Condition isNull = new IsNull( valueMeta, index );
+        return not ? new Not( isNull ) : isNull;
+      }
+      List<String> literals = new ArrayList<String>();
+      if ( accept( "IN" ) ) {
+        expect( "(" );
+        do {
+          literals.add( parseLiteral() );
+        } while ( accept( "," ) );
+        expect( ")" );
+        return new Comparison( valueMeta, index, "=", literals );
+      }
+      String operator = next();
+      if ( !operator.matches( "=|!=|<>|<|<=|>|>=" ) ) {
+        throw new KettleException( "Unknown operator '" + operator + "' in filter '" + expression + "'" );
+      }
+      literals.add( parseLiteral() );
+      return new Comparison( valueMeta, index, operator, literals );
+    }
+
+    private String parseLiteral() throws KettleException {
+      return unquote( next(), '\'' );
+    }
+
+    private static String unquote( String token, char quote ) {
+      if ( token.length() >= 2 && token.charAt( 0 ) == quote && token.charAt( token.length() - 1 ) == quote ) {
+        return token.substring( 1, token.length() - 1 ).replace( "" + quote + quote, "" + quote );
+      }
+      return token;
+    }
+
+    /**
+     * Split the expression in quoted strings and names, numbers, operators and punctuation
+     */
+    private static List<String> tokenize( String expression ) throws KettleException {
+      List<String> tokens = new ArrayList<String>();
+      int i = 0;
+      while ( i < expression.length() ) {
+        char c = expression.charAt( i );
+        if ( Character.isWhitespace( c ) ) {
+          i++;
+        } else if ( c == '\'' || c == '"' ) {
+          // Quotes are escaped by doubling them
+          //
+          int end = i + 1;
+          while ( true ) {
+            if ( end >= expression.length() ) {
+              throw new KettleException( "Missing closing quote in filter '" + expression + "'" );
+            }
+            if ( expression.charAt( end ) == c ) {
+              if ( end + 1 < expression.length() && expression.charAt( end + 1 ) == c ) {
+                end += 2;
+                continue;
+              }
+              break;
+            }
+            end++;
+          }
+          tokens.add( expression.substring( i, end + 1 ) );
+          i = end + 1;
+        } else if ( c == '(' || c == ')' || c == ',' || c == '=' ) {
+          tokens.add( String.valueOf( c ) );
+          i++;
+        } else if ( c == '<' || c == '>' || c == '!' ) {
+          int end = i + 1;
+          if ( end < expression.length() && ( expression.charAt( end ) == '=' || ( c == '<' && expression.charAt( end ) == '>' ) ) ) {
+            end++;
+          }
+          tokens.add( expression.substring( i, end ) );
+          i = end;
+        } else {
+          int end = i;
+          while ( end < expression.length() && "()=<>!,'\"".indexOf( expression.charAt( end ) ) < 0 && !Character.isWhitespace( expression.charAt( end ) ) ) {
+            end++;
+          }
+          tokens.add( expression.substring( i, end ) );
+          i = end;
+        }
+      }
+      return tokens;
+    }
+  }
+}
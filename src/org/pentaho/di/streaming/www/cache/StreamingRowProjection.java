@@ -0,0 +1,67 @@
+package org.pentaho.di.streaming.www.cache;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Reduces cached rows to a subset of their fields, in the order asked for.
+ */
+public class StreamingRowProjection {
+  private RowMetaInterface rowMeta;
+  private int[] fieldIndexes;
+
+  /**
+   * @param rowMeta the layout of the cached rows
+   * @param fieldNames the comma separated names of the fields to keep (empty : all fields)
+   * @throws KettleException in case a field can't be found
+   */
+  public StreamingRowProjection( RowMetaInterface rowMeta, String fieldNames ) throws KettleException {
+    if ( Const.isEmpty( fieldNames ) ) {
+      this.rowMeta = rowMeta;
+      this.fieldIndexes = null;
+      return;
+    }
+    String[] names = fieldNames.split( "," );
+    this.rowMeta = new RowMeta();
+    this.fieldIndexes = new int[names.length];
+    for ( int i = 0; i < names.length; i++ ) {
+      String name = names[i].trim();
+      fieldIndexes[i] = rowMeta.indexOfValue( name );
+      if ( fieldIndexes[i] < 0 ) {
+        throw new KettleException( "Field '" + name + "' couldn't be found" );
+      }
+      this.rowMeta.addValueMeta( rowMeta.getValueMeta( fieldIndexes[i] ).clone() );
+    }
+  }
+
+  /**
+   * @return the layout of the projected rows
+   */
+  public RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  /**
+   * @return true if all fields are kept in their original order
+   */
+  public boolean isComplete() {
+    return fieldIndexes == null;
+  }
+
+  /**
+   * @param row a cached row
+   * @return the projected row, the row itself if all fields are kept
+   */
+  public Object[] project( Object[] row ) {
+    if ( fieldIndexes == null ) {
+      return row;
+    }
+    Object[] projected = new Object[fieldIndexes.length];
+    for ( int i = 0; i < fieldIndexes.length; i++ ) {
+      projected[i] = fieldIndexes[i] < row.length ? row[fieldIndexes[i]] : null;
+    }
+    return projected;
+  }
+}
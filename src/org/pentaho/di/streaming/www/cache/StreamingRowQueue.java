@@ -0,0 +1,169 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of captured rows between the thread of the service step (the producer) and the
+ * thread writing the rows to the cache (the consumer).
+ * Head and tail are ever-increasing positions, the slot of a position is position modulo the capacity.
+ * The producer only moves the tail, except when it drops the oldest row in which case it competes with the
+ * consumer for the head with a compare-and-set.
+ */
+public class StreamingRowQueue {
+  public static final int DEFAULT_CAPACITY = 10000;
+
+  /** With the SAMPLE policy only one out of this many rows is queued once the queue is half full */
+  public static final int SAMPLE_INTERVAL = 10;
+
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos( 50 );
+
+  private final AtomicReferenceArray<StreamingTimedNumberedRow> slots;
+  private final int capacity;
+  private final StreamingOverflowPolicy overflowPolicy;
+
+  private final AtomicLong head;
+  private final AtomicLong tail;
+  private final AtomicLong droppedRows;
+
+  private long sampleCounter; // producer only
+
+  private volatile Thread consumer;
+  private volatile boolean consumerWaiting;
+
+  /**
+   * @param capacity the maximum number of rows in the queue (<=0 : default)
+   * @param overflowPolicy what to do when the queue is full
+   */
+  public StreamingRowQueue( int capacity, StreamingOverflowPolicy overflowPolicy ) {
+    this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+    this.overflowPolicy = overflowPolicy == null ? StreamingOverflowPolicy.BLOCK : overflowPolicy;
+    slots = new AtomicReferenceArray<StreamingTimedNumberedRow>( this.capacity );
+    head = new AtomicLong( 0L );
+    tail = new AtomicLong( 0L );
+    droppedRows = new AtomicLong( 0L );
+  }
+
+  /**
+   * Queue a row, to be called by the producer only.
+   *
+   * @param row the row to queue
+   * @return true if the row was queued, false if it was dropped
+   * @throws InterruptedException when interrupted while waiting for room with the BLOCK policy
+   */
+  public boolean offer( StreamingTimedNumberedRow row ) throws InterruptedException {
+    long position = tail.get();
+    switch ( overflowPolicy ) {
+      case BLOCK:
+        while ( position - head.get() >= capacity ) {
+          wakeUp();
+          LockSupport.parkNanos( BLOCK_PARK_NANOS );
+          if ( Thread.interrupted() ) {
+            throw new InterruptedException();
+          }
+        }
+        break;
+      case DROP_OLDEST:
+        while ( position - head.get() >= capacity ) {
+          long first = head.get();
+          if ( first < position && head.compareAndSet( first, first + 1 ) ) {
+            droppedRows.incrementAndGet();
+          }
+        }
+        break;
+      case SAMPLE:
+        long size = position - head.get();
+        if ( size >= capacity || ( size > capacity / 2 && ( sampleCounter++ % SAMPLE_INTERVAL ) != 0 ) ) {
+          droppedRows.incrementAndGet();
+          return false;
+        }
+        break;
+      default:
+        break;
+    }
+    slots.set( (int) ( position % capacity ), row );
+    tail.set( position + 1 );
+    if ( consumerWaiting ) {
+      wakeUp();
+    }
+    return true;
+  }
+
+  /**
+   * Move the queued rows into a batch, to be called by the consumer only.
+   *
+   * @param batch the list to add the rows to
+   * @param maxRows the maximum number of rows to move
+   * @return the number of rows moved
+   */
+  public int drainTo( List<StreamingTimedNumberedRow> batch, int maxRows ) {
+    int nrRows = 0;
+    while ( nrRows < maxRows ) {
+      long position = head.get();
+      if ( position >= tail.get() ) {
+        break;
+      }
+      int slot = (int) ( position % capacity );
+      StreamingTimedNumberedRow row = slots.get( slot );
+      // If the producer dropped this row in the mean time the slot may already be re-used, try again
+      //
+      if ( head.compareAndSet( position, position + 1 ) ) {
+        // Don't keep the row reachable until the slot is re-used, unless the producer re-used it already
+        //
+        slots.compareAndSet( slot, row, null );
+        batch.add( row );
+        nrRows++;
+      }
+    }
+    return nrRows;
+  }
+
+  /**
+   * Wait a little while for rows to arrive, to be called by the consumer only.
+   */
+  public void awaitRows() {
+    consumer = Thread.currentThread();
+    consumerWaiting = true;
+    if ( isEmpty() ) {
+      LockSupport.parkNanos( PARK_NANOS );
+    }
+    consumerWaiting = false;
+  }
+
+  /**
+   * Wake up the consumer if it's waiting for rows
+   */
+  public void wakeUp() {
+    Thread thread = consumer;
+    if ( thread != null ) {
+      LockSupport.unpark( thread );
+    }
+  }
+
+  public boolean isEmpty() {
+    return head.get() >= tail.get();
+  }
+
+  public int size() {
+    return (int) Math.max( 0L, tail.get() - head.get() );
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public StreamingOverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * @return the number of rows dropped because the queue was full
+   */
+  public long getDroppedRows() {
+    return droppedRows.get();
+  }
+}
@@ -0,0 +1,60 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+
+
+/**
+ * Estimates the heap use of a captured row kept as an object, assuming a 64-bit JVM with compressed object pointers.
+ */
+public class StreamingRowSizeEstimator {
+  private static final int OBJECT_HEADER = 16;
+  public static final int REFERENCE = 4;
+
+  /** A StreamingTimedNumberedRow with its id, time and row reference */
+  private static final int ROW_OVERHEAD = OBJECT_HEADER + 8 + 8 + REFERENCE;
+
+  /**
+   * @param row the row data
+   * @return the estimated number of bytes the cached row object uses, including the unused slots at the end of the
+   * row array
+   */
+  public static int estimateRowSize( Object[] row ) {
+    if ( row == null ) {
+      return ROW_OVERHEAD;
+    }
+    int size = ROW_OVERHEAD + OBJECT_HEADER + REFERENCE * row.length;
+    for ( int i = 0; i < row.length; i++ ) {
+      size += estimateValueSize( row[i] );
+    }
+    return size;
+  }
+
+  public static int estimateValueSize( Object value ) {
+    if ( value == null || value instanceof Boolean ) {
+      return 0;
+    }
+    if ( value instanceof String ) {
+      // String object and its char array
+      return OBJECT_HEADER + 8 + OBJECT_HEADER + 2 * ( (String) value ).length();
+    }
+    if ( value instanceof Long || value instanceof Double ) {
+      return OBJECT_HEADER + 8;
+    }
+    if ( value instanceof Timestamp ) {
+      return OBJECT_HEADER + 8 + REFERENCE + 8;
+    }
+    if ( value instanceof Date ) {
+      return OBJECT_HEADER + 8 + REFERENCE;
+    }
+    if ( value instanceof BigDecimal ) {
+      // Object with an unscaled BigInteger and its magnitude array
+      return OBJECT_HEADER + 24 + OBJECT_HEADER + 24 + OBJECT_HEADER + ( ( (BigDecimal) value ).precision() / 2 );
+    }
+    if ( value instanceof byte[] ) {
+      return OBJECT_HEADER + ( (byte[]) value ).length;
+    }
+    return OBJECT_HEADER + 8;
+  }
+}
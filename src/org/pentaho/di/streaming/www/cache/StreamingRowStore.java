@@ -0,0 +1,88 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * The storage engine behind a streaming cache entry.
+ * Rows are addressed by a position which keeps increasing as rows are appended and are only ever evicted from the start.
+ */
+public interface StreamingRowStore {
+
+  /**
+   * Append a row at the end of the store. If the store is full the oldest row is evicted.
+   *
+   * @param row
+   */
+  public void add( StreamingTimedNumberedRow row );
+
+  /**
+   * Evict the oldest rows from the store
+   *
+   * @param nrRows the number of rows to remove
+   */
+  public void removeFirst( int nrRows );
+
+  /**
+   * Evict all rows with a time index older than the given cut-off time.
+   *
+   * @param cutOff the time in ms since the epoch
+   * @return the number of evicted rows
+   */
+  public int removeOlderThan( long cutOff );
+
+  /**
+   * Evict the oldest rows until at least the given number of (estimated) bytes is freed.
+   * A store keeping rows outside of memory can move them there instead of evicting them.
+   * The newest row is never evicted this way so that a cache always has the latest captured row.
+   *
+   * @param bytes the number of bytes to free
+   * @return the number of bytes actually freed
+   */
+  public long removeBytes( long bytes );
+
+  public void clear();
+
+  public int size();
+
+  /**
+   * @return the estimated memory use of the rows in the store, as estimated by the store for the way it keeps them
+   */
+  public long getByteSize();
+
+  /**
+   * @return The position of the first (oldest) row in the store
+   */
+  public long getFirstPosition();
+
+  /**
+   * @return The position after the last (newest) row in the store
+   */
+  public long getLastPosition();
+
+  /**
+   * @param position
+   * @return The row at the given position, materialized if the store doesn't keep row objects
+   */
+  public StreamingTimedNumberedRow get( long position );
+
+  public long getId( long position );
+
+  /**
+   * @return the (non-decreasing) indexed time of the row at the given position
+   */
+  public long getTime( long position );
+
+  /**
+   * Look up the first position holding a row with an ID equal to or larger than the given ID.
+   *
+   * @param id The ID to look for
+   * @return The position of the ID or getLastPosition() if all IDs in the store are smaller than the given ID.
+   */
+  public long positionOfId( long id );
+
+  /**
+   * Look up the first position holding a row with an indexed time equal to or later than the given time.
+   *
+   * @param time The time in ms since the epoch
+   * @return The position of the row or getLastPosition() if all rows are older.
+   */
+  public long positionOfTime( long time );
+}
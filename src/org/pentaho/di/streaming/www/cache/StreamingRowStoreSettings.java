@@ -0,0 +1,81 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * The settings used to create the row store of a streaming cache
+ */
+public class StreamingRowStoreSettings {
+  private int maxSize;
+  private int segmentSize;
+  private int hotSize;
+  private String tierDirectory;
+
+  public StreamingRowStoreSettings() {
+    maxSize = -1;
+    segmentSize = -1;
+    hotSize = -1;
+  }
+
+  /**
+   * @param maxSize the maximum number of rows to keep (<=0 : unlimited)
+   */
+  public StreamingRowStoreSettings( int maxSize ) {
+    this();
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return the maximum number of rows to keep (<=0 : unlimited)
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @param maxSize the maximum number of rows to keep (<=0 : unlimited)
+   */
+  public void setMaxSize( int maxSize ) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return the size in bytes of the off-heap storage segments (<=0 : default)
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * @param segmentSize the size in bytes of the off-heap storage segments (<=0 : default)
+   */
+  public void setSegmentSize( int segmentSize ) {
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * @return the number of rows kept in memory by a tiered store (<=0 : default)
+   */
+  public int getHotSize() {
+    return hotSize;
+  }
+
+  /**
+   * @param hotSize the number of rows kept in memory by a tiered store (<=0 : default)
+   */
+  public void setHotSize( int hotSize ) {
+    this.hotSize = hotSize;
+  }
+
+  /**
+   * @return the folder in which a tiered store keeps its segment files (null : default)
+   */
+  public String getTierDirectory() {
+    return tierDirectory;
+  }
+
+  /**
+   * @param tierDirectory the folder in which a tiered store keeps its segment files (null : default)
+   */
+  public void setTierDirectory( String tierDirectory ) {
+    this.tierDirectory = tierDirectory;
+  }
+}
@@ -0,0 +1,125 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * The layout of the rows of a streaming response with its fingerprint and its encoded forms.
+ *
+ * The fingerprint is the SHA-1 hash of the binary metadata so it stays the same for the same layout, across
+ * restarts of the service as well.  Clients which already hold the layout with a fingerprint send it along and get
+ * the rows without the metadata.
+ */
+public class StreamingSchema {
+  private RowMetaInterface rowMeta;
+  private String fingerprint;
+  private byte[] binaryMetadata;
+  private byte[] jsonMetadata;
+
+  /**
+   * Encode the layout once
+   *
+   * @param rowMeta the layout of the rows
+   * @throws KettleException
+   */
+  public StreamingSchema( RowMetaInterface rowMeta ) throws KettleException {
+    this.rowMeta = rowMeta;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream( bytes );
+      rowMeta.writeMeta( dos );
+      dos.flush();
+      binaryMetadata = bytes.toByteArray();
+      jsonMetadata = getJsonMetadata( rowMeta ).toJSONString().getBytes( Charset.forName( Const.XML_ENCODING ) );
+      fingerprint = fingerprint( binaryMetadata );
+    } catch ( Exception e ) {
+      throw new KettleException( "Unable to encode the row metadata", e );
+    }
+  }
+
+  /**
+   * A layout received from a server with the fingerprint the server gave it
+   *
+   * @param rowMeta the layout of the rows
+   * @param fingerprint the fingerprint of the layout
+   */
+  public StreamingSchema( RowMetaInterface rowMeta, String fingerprint ) {
+    this.rowMeta = rowMeta;
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * @param clientFingerprint the fingerprint of the layout the client holds (null : none)
+   * @return true if the client holds this layout already
+   */
+  public boolean matches( String clientFingerprint ) {
+    return fingerprint.equals( clientFingerprint );
+  }
+
+  public RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return the layout in the format of RowMetaInterface.writeMeta()
+   */
+  public byte[] getBinaryMetadata() {
+    return binaryMetadata;
+  }
+
+  /**
+   * @return the layout as a UTF-8 encoded JSON array, see getJsonMetadata()
+   */
+  public byte[] getJsonMetadata() {
+    return jsonMetadata;
+  }
+
+  /**
+   * @param bytes
+   * @return the SHA-1 hash of the bytes in hexadecimal
+   * @throws KettleException
+   */
+  public static String fingerprint( byte[] bytes ) throws KettleException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+      StringBuilder hex = new StringBuilder();
+      for ( byte b : digest.digest( bytes ) ) {
+        hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+      }
+      return hex.toString();
+    } catch ( Exception e ) {
+      throw new KettleException( "Unable to calculate a fingerprint", e );
+    }
+  }
+
+  /**
+   * @param rowMeta
+   * @return the description of the fields of the rows as a JSON array of colIndex, colType and colName objects
+   */
+  @SuppressWarnings( "unchecked" )
+  public static JSONArray getJsonMetadata( RowMetaInterface rowMeta ) {
+    JSONArray jMetadata = new JSONArray();
+    for ( int i = 0; i < rowMeta.size(); i++ ) {
+      ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+      JSONObject jField = new JSONObject();
+      jField.put( "colIndex", i );
+      jField.put( "colType", valueMeta.getTypeDesc() );
+      jField.put( "colName", valueMeta.getName() );
+      jMetadata.add( jField );
+    }
+    return jMetadata;
+  }
+}
@@ -0,0 +1,253 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Encodes and decodes the sealed segments of a tiered streaming cache.
+ *
+ * A segment starts with the number of rows and the first ID and time, followed by the differences between
+ * consecutive IDs and times as variable length integers.  Since IDs usually increase by one and the times by a few
+ * ms these mostly take a single byte each.  The row data follows column by column: String columns with few distinct
+ * values are stored as a dictionary and codes, the other columns value by value.  The column data as a whole is
+ * compressed with a fast deflate.
+ * The IDs and times can be decoded without touching the compressed column data.
+ */
+public class StreamingSegmentCodec {
+
+  private static final byte COLUMN_VALUES = 0;
+  private static final byte COLUMN_DICTIONARY = 1;
+
+  /** Only use a dictionary if a String column has at most one distinct value per this many rows */
+  private static final int DICTIONARY_RATIO = 4;
+
+  private static final int HEADER_SIZE = 4 + 8 + 8 + 4;
+
+  /**
+   * @param rowMeta the layout of the rows
+   * @param ids the IDs of the rows
+   * @param times the (non-decreasing) times of the rows
+   * @param rows the data of the rows
+   * @return the encoded segment
+   * @throws KettleException
+   */
+  public static byte[] encode( RowMetaInterface rowMeta, long[] ids, long[] times, List<Object[]> rows ) throws KettleException {
+    try {
+      int nrRows = ids.length;
+      ByteArrayOutputStream deltas = new ByteArrayOutputStream( nrRows * 2 );
+      for ( int i = 1; i < nrRows; i++ ) {
+        writeVarLong( deltas, zigZag( ids[i] - ids[i - 1] ) );
+      }
+      for ( int i = 1; i < nrRows; i++ ) {
+        writeVarLong( deltas, zigZag( times[i] - times[i - 1] ) );
+      }
+
+      ByteArrayOutputStream segment = new ByteArrayOutputStream( deltas.size() + nrRows * 16 );
+      DataOutputStream outputStream = new DataOutputStream( segment );
+      outputStream.writeInt( nrRows );
+      outputStream.writeLong( ids[0] );
+      outputStream.writeLong( times[0] );
+      outputStream.writeInt( deltas.size() );
+      deltas.writeTo( outputStream );
+
+      Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+      try {
+        DataOutputStream columnStream = new DataOutputStream( new DeflaterOutputStream( outputStream, deflater, 65536 ) );
+        for ( int column = 0; column < rowMeta.size(); column++ ) {
+          writeColumn( columnStream, rowMeta.getValueMeta( column ), column, rows );
+        }
+        columnStream.close();
+      } finally {
+        deflater.end();
+      }
+      return segment.toByteArray();
+    } catch ( IOException e ) {
+      throw new KettleException( "Unable to encode cache segment", e );
+    }
+  }
+
+  private static void writeColumn( DataOutputStream outputStream, ValueMetaInterface valueMeta, int column, List<Object[]> rows ) throws KettleException, IOException {
+    if ( valueMeta.getType() == ValueMetaInterface.TYPE_STRING && valueMeta.getStorageType() == ValueMetaInterface.STORAGE_TYPE_NORMAL ) {
+      int maxEntries = rows.size() / DICTIONARY_RATIO;
+      Map<String, Integer> dictionary = new HashMap<String, Integer>();
+      int[] codes = new int[rows.size()];
+      for ( int i = 0; i < rows.size() && dictionary.size() <= maxEntries; i++ ) {
+        Object value = getValue( rows.get( i ), column );
+        if ( value == null ) {
+          codes[i] = 0;
+        } else {
+          Integer code = dictionary.get( value );
+          if ( code == null ) {
+            code = dictionary.size() + 1;
+            dictionary.put( (String) value, code );
+          }
+          codes[i] = code;
+        }
+      }
+      if ( dictionary.size() <= maxEntries ) {
+        String[] entries = new String[dictionary.size()];
+        for ( Map.Entry<String, Integer> entry : dictionary.entrySet() ) {
+          entries[entry.getValue() - 1] = entry.getKey();
+        }
+        outputStream.writeByte( COLUMN_DICTIONARY );
+        writeVarLong( outputStream, entries.length );
+        for ( String entry : entries ) {
+          byte[] bytes = entry.getBytes( "UTF-8" );
+          writeVarLong( outputStream, bytes.length );
+          outputStream.write( bytes );
+        }
+        for ( int code : codes ) {
+          writeVarLong( outputStream, code );
+        }
+        return;
+      }
+    }
+
+    outputStream.writeByte( COLUMN_VALUES );
+    for ( Object[] row : rows ) {
+      valueMeta.writeData( outputStream, getValue( row, column ) );
+    }
+  }
+
+  private static Object getValue( Object[] row, int column ) {
+    return row == null || column >= row.length ? null : row[column];
+  }
+
+  /**
+   * @return the number of rows in the encoded segment
+   */
+  public static int getNrRows( ByteBuffer segment ) {
+    return segment.getInt( 0 );
+  }
+
+  /**
+   * Decode the IDs and times of a segment
+   *
+   * @param segment the encoded segment
+   * @return the IDs and the times
+   */
+  public static long[][] decodeIdsAndTimes( ByteBuffer segment ) {
+    ByteBuffer buffer = segment.duplicate();
+    buffer.position( 0 );
+    int nrRows = buffer.getInt();
+    long[] ids = new long[nrRows];
+    long[] times = new long[nrRows];
+    ids[0] = buffer.getLong();
+    times[0] = buffer.getLong();
+    buffer.getInt();
+    for ( int i = 1; i < nrRows; i++ ) {
+      ids[i] = ids[i - 1] + unZigZag( readVarLong( buffer ) );
+    }
+    for ( int i = 1; i < nrRows; i++ ) {
+      times[i] = times[i - 1] + unZigZag( readVarLong( buffer ) );
+    }
+    return new long[][] { ids, times };
+  }
+
+  /**
+   * Decode the row data of a segment
+   *
+   * @param segment the encoded segment
+   * @param rowMeta the layout of the rows
+   * @return the values of the segment, column by column
+   * @throws KettleException
+   */
+  public static Object[][] decodeColumns( ByteBuffer segment, RowMetaInterface rowMeta ) throws KettleException {
+    ByteBuffer buffer = segment.duplicate();
+    int nrRows = buffer.getInt( 0 );
+    buffer.position( HEADER_SIZE + buffer.getInt( HEADER_SIZE - 4 ) );
+
+    Object[][] columns = new Object[rowMeta.size()][];
+    Inflater inflater = new Inflater();
+    try {
+      DataInputStream inputStream = new DataInputStream( new InflaterInputStream( new StreamingByteBufferInputStream( buffer ), inflater, 65536 ) );
+      for ( int column = 0; column < columns.length; column++ ) {
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( column );
+        Object[] values = new Object[nrRows];
+        byte encoding = inputStream.readByte();
+        if ( encoding == COLUMN_DICTIONARY ) {
+          String[] entries = new String[(int) readVarLong( inputStream )];
+          for ( int i = 0; i < entries.length; i++ ) {
+            byte[] bytes = new byte[(int) readVarLong( inputStream )];
+            inputStream.readFully( bytes );
+            entries[i] = new String( bytes, "UTF-8" );
+          }
+          for ( int i = 0; i < nrRows; i++ ) {
+            int code = (int) readVarLong( inputStream );
+            values[i] = code == 0 ? null : entries[code - 1];
+          }
+        } else {
+          for ( int i = 0; i < nrRows; i++ ) {
+            values[i] = valueMeta.readData( inputStream );
+          }
+        }
+        columns[column] = values;
+      }
+      inputStream.close();
+    } catch ( IOException e ) {
+      throw new KettleException( "Unable to decode cache segment", e );
+    } finally {
+      inflater.end();
+    }
+    return columns;
+  }
+
+  private static long zigZag( long value ) {
+    return ( value << 1 ) ^ ( value >> 63 );
+  }
+
+  private static long unZigZag( long value ) {
+    return ( value >>> 1 ) ^ -( value & 1 );
+  }
+
+  private static void writeVarLong( OutputStream outputStream, long value ) throws IOException {
+    while ( ( value & ~0x7FL ) != 0 ) {
+      outputStream.write( (int) ( ( value & 0x7F ) | 0x80 ) );
+      value >>>= 7;
+    }
+    outputStream.write( (int) value );
+  }
+
+  private static long readVarLong( ByteBuffer buffer ) {
+    long value = 0L;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (long) ( b & 0x7F ) << shift;
+      shift += 7;
+    } while ( ( b & 0x80 ) != 0 );
+    return value;
+  }
+
+  private static long readVarLong( InputStream inputStream ) throws IOException {
+    long value = 0L;
+    int shift = 0;
+    int b;
+    do {
+      b = inputStream.read();
+      if ( b < 0 ) {
+        throw new IOException( "Unexpected end of cache segment" );
+      }
+      value |= (long) ( b & 0x7F ) << shift;
+      shift += 7;
+    } while ( ( b & 0x80 ) != 0 );
+    return value;
+  }
+}
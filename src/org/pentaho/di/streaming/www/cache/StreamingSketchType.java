@@ -0,0 +1,35 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * The kinds of sketches which can be kept of the fields of captured rows
+ */
+public enum StreamingSketchType {
+  /** The approximate number of distinct values, see StreamingHyperLogLog */
+  DISTINCT( "distinct" ),
+
+  /** The approximate distribution of numeric values, see StreamingQuantileSketch */
+  QUANTILES( "quantiles" );
+
+  private String code;
+
+  private StreamingSketchType( String code ) {
+    this.code = code;
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  /**
+   * @param code the code of the sketch type, case insensitive
+   * @return the sketch type or null if the code is unknown
+   */
+  public static StreamingSketchType getSketchTypeForCode( String code ) {
+    for ( StreamingSketchType type : values() ) {
+      if ( type.getCode().equalsIgnoreCase( code ) ) {
+        return type;
+      }
+    }
+    return null;
+  }
+}
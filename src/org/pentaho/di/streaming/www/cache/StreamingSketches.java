@@ -0,0 +1,200 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Keeps sketches of fields of the rows added to a streaming cache per time bucket.  The sketches of a time window
+ * are found by merging the sketches of its buckets, so the cost of a query only depends on the number of buckets.
+ * Like rollups, a bucket is dropped once all rows in it are evicted from the cache.
+ *
+ * The sketches are specified as a comma separated list of <code>distinct(field)</code> and
+ * <code>quantiles(field)</code>.
+ */
+public class StreamingSketches extends StreamingCacheAdapter {
+  public static final int DEFAULT_BUCKET_SECONDS = 60;
+
+  private long bucketMs;
+  private List<StreamingSketchType> types;
+  private List<String> fieldNames;
+
+  private RowMetaInterface rowMeta;
+  private int[] fieldIndexes;
+
+  private TreeMap<Long, Object[]> buckets;
+
+  /**
+   * @param bucketSeconds the length of a time bucket in seconds (<=0 : default)
+   * @param types the types of the sketches
+   * @param fieldNames the names of the fields to sketch
+   */
+  public StreamingSketches( int bucketSeconds, List<StreamingSketchType> types, List<String> fieldNames ) {
+    this.bucketMs = ( bucketSeconds > 0 ? bucketSeconds : DEFAULT_BUCKET_SECONDS ) * 1000L;
+    this.types = types;
+    this.fieldNames = fieldNames;
+    this.buckets = new TreeMap<Long, Object[]>();
+  }
+
+  /**
+   * @param bucketSeconds the length of a time bucket in seconds (<=0 : default)
+   * @param specification the comma separated sketches, for example: distinct(device), quantiles(latency)
+   * @return the sketches or null if the specification is empty
+   * @throws KettleException in case the specification can't be parsed
+   */
+  public static StreamingSketches parse( int bucketSeconds, String specification ) throws KettleException {
+    if ( Const.isEmpty( specification ) ) {
+      return null;
+    }
+    List<StreamingSketchType> types = new ArrayList<StreamingSketchType>();
+    List<String> fieldNames = new ArrayList<String>();
+    for ( String sketch : specification.split( "," ) ) {
+      sketch = sketch.trim();
+      if ( Const.isEmpty( sketch ) ) {
+        continue;
+      }
+      int openIndex = sketch.indexOf( '(' );
+      if ( openIndex <= 0 || !sketch.endsWith( ")" ) ) {
+        throw new KettleException( "Sketch '" + sketch + "' should look like 'distinct(field)' or 'quantiles(field)'" );
+      }
+      StreamingSketchType type = StreamingSketchType.getSketchTypeForCode( sketch.substring( 0, openIndex ).trim() );
+      if ( type == null ) {
+        throw new KettleException( "Unknown sketch type in '" + sketch + "', use distinct or quantiles" );
+      }
+      types.add( type );
+      fieldNames.add( sketch.substring( openIndex + 1, sketch.length() - 1 ).trim() );
+    }
+    return new StreamingSketches( bucketSeconds, types, fieldNames );
+  }
+
+  @Override
+  public synchronized void rowsAdded( StreamingCacheEntry cacheEntry, List<StreamingTimedNumberedRow> rows ) {
+    RowMetaInterface entryRowMeta = cacheEntry.getRowMeta();
+    if ( entryRowMeta != rowMeta ) {
+      setRowMeta( entryRowMeta );
+    }
+    try {
+      for ( StreamingTimedNumberedRow row : rows ) {
+        Object[] data = row.getRow();
+        long bucketStart = row.getTime() - ( row.getTime() % bucketMs );
+        Object[] sketches = buckets.get( bucketStart );
+        if ( sketches == null ) {
+          sketches = new Object[types.size()];
+          for ( int i = 0; i < sketches.length; i++ ) {
+            sketches[i] = newSketch( types.get( i ) );
+          }
+          buckets.put( bucketStart, sketches );
+        }
+        for ( int i = 0; i < sketches.length; i++ ) {
+          Object value = data[fieldIndexes[i]];
+          if ( value == null ) {
+            continue;
+          }
+          if ( types.get( i ) == StreamingSketchType.DISTINCT ) {
+            ( (StreamingHyperLogLog) sketches[i] ).add( rowMeta.getValueMeta( fieldIndexes[i] ).getString( value ) );
+          } else {
+            ( (StreamingQuantileSketch) sketches[i] ).add( rowMeta.getValueMeta( fieldIndexes[i] ).getNumber( value ) );
+          }
+        }
+      }
+    } catch ( KettleValueException e ) {
+      throw new RuntimeException( "Unable to update the sketches of the cached rows", e );
+    }
+  }
+
+  @Override
+  public synchronized void rowsEvicted( StreamingCacheEntry cacheEntry, long firstTime ) {
+    while ( !buckets.isEmpty() && buckets.firstKey() + bucketMs <= firstTime ) {
+      buckets.pollFirstEntry();
+    }
+  }
+
+  /**
+   * Check that the rows hold the fields to sketch
+   *
+   * @param rowMeta the layout of the rows
+   * @throws KettleException in case a field can't be found
+   */
+  public void validate( RowMetaInterface rowMeta ) throws KettleException {
+    for ( String fieldName : fieldNames ) {
+      if ( rowMeta.indexOfValue( fieldName ) < 0 ) {
+        throw new KettleException( "Field '" + fieldName + "' to sketch couldn't be found" );
+      }
+    }
+  }
+
+  private void setRowMeta( RowMetaInterface newRowMeta ) {
+    if ( rowMeta != null && rowMeta.toStringMeta().equals( newRowMeta.toStringMeta() ) ) {
+      rowMeta = newRowMeta;
+      return;
+    }
+    buckets.clear();
+    fieldIndexes = new int[fieldNames.size()];
+    for ( int i = 0; i < fieldIndexes.length; i++ ) {
+      fieldIndexes[i] = newRowMeta.indexOfValue( fieldNames.get( i ) );
+      if ( fieldIndexes[i] < 0 ) {
+        throw new RuntimeException( "Field '" + fieldNames.get( i ) + "' to sketch couldn't be found" );
+      }
+    }
+    rowMeta = newRowMeta;
+  }
+
+  private static Object newSketch( StreamingSketchType type ) {
+    return type == StreamingSketchType.DISTINCT ? new StreamingHyperLogLog() : new StreamingQuantileSketch();
+  }
+
+  /**
+   * Merge the sketches of the buckets ending after the given time
+   *
+   * @param index the index of the sketch
+   * @param fromTime the time in ms since the epoch
+   * @return a StreamingHyperLogLog or StreamingQuantileSketch, depending on the type of the sketch
+   */
+  public synchronized Object merge( int index, long fromTime ) {
+    Object merged = newSketch( types.get( index ) );
+    for ( Map.Entry<Long, Object[]> bucket : buckets.tailMap( fromTime - bucketMs, false ).entrySet() ) {
+      if ( merged instanceof StreamingHyperLogLog ) {
+        ( (StreamingHyperLogLog) merged ).merge( (StreamingHyperLogLog) bucket.getValue()[index] );
+      } else {
+        ( (StreamingQuantileSketch) merged ).merge( (StreamingQuantileSketch) bucket.getValue()[index] );
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @param type the type of sketch
+   * @param fieldName the name of the sketched field
+   * @return the index of the sketch or -1 if there is no such sketch
+   */
+  public int indexOf( StreamingSketchType type, String fieldName ) {
+    for ( int i = 0; i < types.size(); i++ ) {
+      if ( ( type == null || types.get( i ) == type ) && fieldNames.get( i ).equalsIgnoreCase( fieldName ) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public int getNrSketches() {
+    return types.size();
+  }
+
+  public StreamingSketchType getType( int index ) {
+    return types.get( index );
+  }
+
+  public String getFieldName( int index ) {
+    return fieldNames.get( index );
+  }
+
+  public int getBucketSeconds() {
+    return (int) ( bucketMs / 1000L );
+  }
+}
@@ -0,0 +1,64 @@
+package org.pentaho.di.streaming.www.cache;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * The ways in which the rows of a streaming cache can be stored
+ */
+public enum StreamingStorageType {
+  OBJECTS( "Row objects" ) {
+    @Override
+    public StreamingRowStore createRowStore( RowMetaInterface rowMeta, StreamingRowStoreSettings settings ) {
+      return new StreamingObjectRowStore( settings.getMaxSize() );
+    }
+  },
+  COLUMNAR( "Columnar" ) {
+    @Override
+    public StreamingRowStore createRowStore( RowMetaInterface rowMeta, StreamingRowStoreSettings settings ) {
+      return new StreamingColumnarRowStore( rowMeta, settings.getMaxSize() );
+    }
+  },
+  /**
+   * Direct memory of evicted rows is only returned once the garbage collector runs: the server needs a
+   * -XX:MaxDirectMemorySize of at least twice the cache size in bytes, see StreamingOffHeapRowStore.
+   */
+  OFF_HEAP( "Off-heap" ) {
+    @Override
+    public StreamingRowStore createRowStore( RowMetaInterface rowMeta, StreamingRowStoreSettings settings ) {
+      return new StreamingOffHeapRowStore( rowMeta, settings.getMaxSize(), settings.getSegmentSize() );
+    }
+  },
+  TIERED( "Tiered (memory and disk)" ) {
+    @Override
+    public StreamingRowStore createRowStore( RowMetaInterface rowMeta, StreamingRowStoreSettings settings ) {
+      return new StreamingTieredRowStore( rowMeta, settings.getMaxSize(), settings.getHotSize(), settings.getTierDirectory() );
+    }
+  };
+
+  private String description;
+
+  private StreamingStorageType( String description ) {
+    this.description = description;
+  }
+
+  /**
+   * Create a new, empty row store of this type
+   *
+   * @param rowMeta The layout of the rows to store
+   * @param settings The size limits and storage locations of the store
+   * @return the new row store
+   */
+  public abstract StreamingRowStore createRowStore( RowMetaInterface rowMeta, StreamingRowStoreSettings settings );
+
+  public String getDescription() {
+    return description;
+  }
+
+  public static String[] getDescriptions() {
+    String[] descriptions = new String[values().length];
+    for ( int i = 0; i < descriptions.length; i++ ) {
+      descriptions[i] = values()[i].getDescription();
+    }
+    return descriptions;
+  }
+}
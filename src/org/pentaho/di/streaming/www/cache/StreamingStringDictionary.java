@@ -0,0 +1,67 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded dictionary handing out an integer code for every distinct String.
+ * Codes are never reused so a code stays valid as long as the dictionary lives.
+ * Once the maximum number of entries is reached unknown strings are no longer encoded.
+ * Strings are only added by a single writer, the codes can be decoded from any thread.
+ */
+public class StreamingStringDictionary {
+  private int maxSize;
+  private Map<String, Integer> codes;
+  private volatile String[] strings;
+  private int size;
+
+  /**
+   * @param maxSize the maximum number of distinct strings in the dictionary
+   */
+  public StreamingStringDictionary( int maxSize ) {
+    this.maxSize = maxSize;
+    codes = new ConcurrentHashMap<String, Integer>();
+    strings = new String[Math.min( 256, maxSize )];
+    size = 0;
+  }
+
+  /**
+   * @param string the (non-null) string to encode
+   * @return the code of the string or -1 if the dictionary is full and doesn't know the string
+   */
+  public int encode( String string ) {
+    Integer code = codes.get( string );
+    if ( code != null ) {
+      return code;
+    }
+    if ( size >= maxSize ) {
+      return -1;
+    }
+    String[] current = strings;
+    if ( size == current.length ) {
+      String[] larger = new String[Math.min( maxSize, current.length * 2 )];
+      System.arraycopy( current, 0, larger, 0, size );
+      current = larger;
+    }
+    current[size] = string;
+    strings = current;
+    codes.put( string, size );
+    return size++;
+  }
+
+  public String decode( int code ) {
+    return strings[code];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public boolean isFull() {
+    return size >= maxSize;
+  }
+}
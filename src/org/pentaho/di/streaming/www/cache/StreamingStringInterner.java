@@ -0,0 +1,156 @@
+package org.pentaho.di.streaming.www.cache;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Replaces the String values of captured rows by a canonical instance so that repeating values are only kept in
+ * memory once.  Every String field has its own bounded dictionary.  Once that is full the field starts over with an
+ * empty dictionary so that the values of the rows captured from then on are interned again: the values of a field
+ * drifting over time don't stop interning for good.  Rows interned before keep their values, a value can be kept
+ * once for every dictionary it was in.
+ *
+ * There is a single writer, the thread capturing the rows of the service.
+ */
+public class StreamingStringInterner {
+  public static final int DEFAULT_DICTIONARY_SIZE = 10000;
+
+  private int maxSize;
+  private RowMetaInterface rowMeta;
+  private volatile StreamingStringDictionary[] dictionaries;
+
+  private volatile long hits;
+  private volatile long lookups;
+  private volatile long resets;
+
+  /**
+   * @param maxSize the maximum number of distinct values of a field to keep (<0 : default)
+   */
+  public StreamingStringInterner( int maxSize ) {
+    this.maxSize = maxSize < 0 ? DEFAULT_DICTIONARY_SIZE : maxSize;
+    this.hits = 0L;
+    this.lookups = 0L;
+  }
+
+  /**
+   * Intern the String values of a row.
+   * The row itself is left alone since it can still be in use by the service transformation, a copy is returned
+   * if a value is replaced.
+   *
+   * @param rowMeta the layout of the row
+   * @param row the row to intern
+   * @return the row with canonical String values
+   */
+  public Object[] intern( RowMetaInterface rowMeta, Object[] row ) {
+    if ( maxSize == 0 || row == null ) {
+      return row;
+    }
+    if ( rowMeta != this.rowMeta ) {
+      setRowMeta( rowMeta );
+    }
+    StreamingStringDictionary[] current = dictionaries;
+    Object[] interned = row;
+    long nrHits = 0L;
+    long nrLookups = 0L;
+    for ( int i = 0; i < current.length && i < row.length; i++ ) {
+      StreamingStringDictionary dictionary = current[i];
+      if ( dictionary == null || !( row[i] instanceof String ) ) {
+        continue;
+      }
+      String value = (String) row[i];
+      nrLookups++;
+      int size = dictionary.size();
+      int code = dictionary.encode( value );
+      if ( code < 0 ) {
+        // Too many distinct values, start over with the values of the rows captured from now on
+        //
+        dictionary = new StreamingStringDictionary( maxSize );
+        current[i] = dictionary;
+        resets++;
+        size = 0;
+        code = dictionary.encode( value );
+      }
+      if ( dictionary.size() == size ) {
+        nrHits++;
+      }
+      String canonical = dictionary.decode( code );
+      if ( canonical != value ) {
+        if ( interned == row ) {
+          interned = row.clone();
+        }
+        interned[i] = canonical;
+      }
+    }
+    hits += nrHits;
+    lookups += nrLookups;
+    return interned;
+  }
+
+  /**
+   * Start new dictionaries if the layout of the rows changed
+   */
+  private void setRowMeta( RowMetaInterface rowMeta ) {
+    if ( this.rowMeta != null && dictionaries != null && this.rowMeta.toStringMeta().equals( rowMeta.toStringMeta() ) ) {
+      this.rowMeta = rowMeta;
+      return;
+    }
+    this.rowMeta = rowMeta;
+    StreamingStringDictionary[] newDictionaries = new StreamingStringDictionary[rowMeta.size()];
+    for ( int i = 0; i < newDictionaries.length; i++ ) {
+      ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+      if ( valueMeta.getType() == ValueMetaInterface.TYPE_STRING && valueMeta.getStorageType() == ValueMetaInterface.STORAGE_TYPE_NORMAL ) {
+        newDictionaries[i] = new StreamingStringDictionary( maxSize );
+      }
+    }
+    dictionaries = newDictionaries;
+  }
+
+  /**
+   * @return the number of String values which were already in the dictionary of their field
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of String values looked up
+   */
+  public long getLookups() {
+    return lookups;
+  }
+
+  /**
+   * @return the number of times the dictionary of a field was full and started over
+   */
+  public long getResets() {
+    return resets;
+  }
+
+  /**
+   * @return the fraction of the String values which were already in the dictionary of their field
+   */
+  public double getHitRatio() {
+    long nrLookups = lookups;
+    return nrLookups == 0L ? 0.0 : (double) hits / nrLookups;
+  }
+
+  /**
+   * @return the number of distinct values kept in all dictionaries
+   */
+  public int getDictionarySize() {
+    StreamingStringDictionary[] current = dictionaries;
+    int size = 0;
+    if ( current != null ) {
+      for ( StreamingStringDictionary dictionary : current ) {
+        if ( dictionary != null ) {
+          size += dictionary.size();
+        }
+      }
+    }
+    return size;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+}
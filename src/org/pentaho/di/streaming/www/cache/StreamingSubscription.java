@@ -0,0 +1,185 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * A subscriber to the rows of one or more streaming services with credit-based flow control.
+ *
+ * The subscriber grants credits, the number of rows it is willing to receive, and rows are only delivered against
+ * credits.  A subscriber which doesn't keep up is never allowed to be more than a window of rows behind: the rows
+ * which don't fit are dropped or coalesced, see StreamingSubscriptionOverflow, and the number of dropped rows is
+ * reported with the next batch of the service.
+ */
+public class StreamingSubscription {
+  public static final int DEFAULT_WINDOW = 10000;
+  public static final int MAX_ROWS_PER_BATCH = 1000;
+
+  private String id;
+  private List<StreamingSubscriptionChannel> channels;
+  private StreamingSubscriptionOverflow overflow;
+  private int window;
+
+  private long credits;
+  private int nextChannel;
+  private volatile long lastAccess;
+  private AtomicBoolean closed;
+
+  /**
+   * @param channels the services subscribed to
+   * @param overflow what to do with the rows which don't fit the window (null : drop the oldest)
+   * @param window the maximum number of rows the subscriber can be behind on a service (<=0 : default)
+   */
+  public StreamingSubscription( List<StreamingSubscriptionChannel> channels, StreamingSubscriptionOverflow overflow, int window ) {
+    this.id = UUID.randomUUID().toString();
+    this.channels = channels;
+    this.overflow = overflow == null ? StreamingSubscriptionOverflow.DROP_OLDEST : overflow;
+    this.window = window > 0 ? window : DEFAULT_WINDOW;
+    this.credits = 0L;
+    this.nextChannel = 0;
+    this.lastAccess = System.currentTimeMillis();
+    this.closed = new AtomicBoolean( false );
+  }
+
+  /**
+   * @param extraCredits the number of extra rows the subscriber is willing to receive
+   */
+  public synchronized void grant( long extraCredits ) {
+    if ( extraCredits > 0 ) {
+      credits = Math.min( credits + extraCredits, Integer.MAX_VALUE );
+    }
+    lastAccess = System.currentTimeMillis();
+  }
+
+  /**
+   * Take the rows to deliver against the credits granted.  The services take turns to get the first batch so that
+   * a busy service can't starve the others when credits are scarce.
+   *
+   * @param log
+   * @return the batches of rows, none if there is nothing to deliver or no credits are left
+   */
+  public synchronized List<Batch> poll( LogChannelInterface log ) {
+    lastAccess = System.currentTimeMillis();
+    List<Batch> batches = new ArrayList<Batch>();
+    for ( StreamingSubscriptionChannel channel : channels ) {
+      channel.applyOverflow( log, overflow, window );
+    }
+    for ( int i = 0; i < channels.size(); i++ ) {
+      int index = ( nextChannel + i ) % channels.size();
+      StreamingSubscriptionChannel channel = channels.get( index );
+      List<StreamingTimedNumberedRow> rows = credits > 0
+        ? channel.take( log, (int) Math.min( credits, MAX_ROWS_PER_BATCH ) ) : new ArrayList<StreamingTimedNumberedRow>();
+      long dropped = channel.takeDropped();
+      if ( !rows.isEmpty() || dropped > 0 ) {
+        batches.add( new Batch( index, dropped, rows ) );
+        credits -= rows.size();
+      }
+    }
+    nextChannel = channels.isEmpty() ? 0 : ( nextChannel + 1 ) % channels.size();
+    return batches;
+  }
+
+  /**
+   * @return true if rows could be delivered right away
+   */
+  public synchronized boolean isReady() {
+    if ( credits <= 0 ) {
+      return false;
+    }
+    for ( StreamingSubscriptionChannel channel : channels ) {
+      if ( channel.hasRows() ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the first service of which the cache was replaced since subscribing and of which all remaining rows were
+   * delivered, or null if all are still current
+   */
+  public synchronized StreamingSubscriptionChannel getReplacedChannel() {
+    for ( StreamingSubscriptionChannel channel : channels ) {
+      if ( channel.isReplaced() && !channel.hasRows() ) {
+        return channel;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Release the cache entries of the services, once the subscription ended or expired
+   */
+  public void close() {
+    if ( !closed.compareAndSet( false, true ) ) {
+      return;
+    }
+    for ( StreamingSubscriptionChannel channel : channels ) {
+      channel.getCacheEntry().release();
+    }
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public List<StreamingSubscriptionChannel> getChannels() {
+    return channels;
+  }
+
+  public StreamingSubscriptionOverflow getOverflow() {
+    return overflow;
+  }
+
+  public int getWindow() {
+    return window;
+  }
+
+  public synchronized long getCredits() {
+    return credits;
+  }
+
+  /**
+   * @return the time the subscriber last polled or granted credits, in ms since the epoch
+   */
+  public long getLastAccess() {
+    return lastAccess;
+  }
+
+  /**
+   * The rows of a single service delivered in one go
+   */
+  public static class Batch {
+    private int channelIndex;
+    private long dropped;
+    private List<StreamingTimedNumberedRow> rows;
+
+    public Batch( int channelIndex, long dropped, List<StreamingTimedNumberedRow> rows ) {
+      this.channelIndex = channelIndex;
+      this.dropped = dropped;
+      this.rows = rows;
+    }
+
+    /**
+     * @return the index of the service in the subscription
+     */
+    public int getChannelIndex() {
+      return channelIndex;
+    }
+
+    /**
+     * @return the number of rows dropped before the rows of this batch
+     */
+    public long getDropped() {
+      return dropped;
+    }
+
+    public List<StreamingTimedNumberedRow> getRows() {
+      return rows;
+    }
+  }
+}
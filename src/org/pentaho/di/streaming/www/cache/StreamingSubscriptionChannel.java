@@ -0,0 +1,209 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * The rows of a single streaming service a subscriber receives: the cache entry of the service, the filter and
+ * projection asked for and the ID of the next row to deliver.
+ *
+ * The cache itself is the buffer of the subscriber, only coalesced rows are kept here and never more than the
+ * window of the subscription.
+ */
+public class StreamingSubscriptionChannel {
+  private String serviceName;
+  private StreamingCacheEntry cacheEntry;
+  private StreamingCacheQuery query;
+  private StreamingRowProjection projection;
+  private String coalesceField;
+  private int coalesceIndex;
+
+  private long nextId;
+  private long dropped;
+  private LinkedList<StreamingTimedNumberedRow> pending;
+  private boolean metadataSent;
+
+  /**
+   * @param serviceName the name of the streaming service
+   * @param cacheEntry the cache entry of the service, acquired for the subscription
+   * @param query the key and filter the rows should match
+   * @param projection the fields to deliver
+   * @param coalesceField the field to coalesce rows on when the subscriber falls behind (null : none)
+   * @param nextId the ID of the first row to deliver
+   * @throws KettleException in case the coalesce field can't be found
+   */
+  public StreamingSubscriptionChannel( String serviceName, StreamingCacheEntry cacheEntry, StreamingCacheQuery query,
+    StreamingRowProjection projection, String coalesceField, long nextId ) throws KettleException {
+    this.serviceName = serviceName;
+    this.cacheEntry = cacheEntry;
+    this.query = query;
+    this.projection = projection;
+    this.coalesceField = coalesceField;
+    this.coalesceIndex = coalesceField == null ? -1 : cacheEntry.getRowMeta().indexOfValue( coalesceField );
+    if ( coalesceField != null && coalesceIndex < 0 ) {
+      throw new KettleException( "Field '" + coalesceField + "' to coalesce on couldn't be found" );
+    }
+    this.nextId = Math.max( 1L, nextId );
+    this.dropped = 0L;
+    this.pending = new LinkedList<StreamingTimedNumberedRow>();
+  }
+
+  /**
+   * @return true if the cache of the service was replaced or dropped since subscribing, for example by a cache flip.
+   * The rows of a new cache can't be delivered as the IDs of the old one are no longer valid.  The rows of the old
+   * one stay available until the subscription is closed.
+   */
+  public boolean isReplaced() {
+    return cacheEntry.isDropped();
+  }
+
+  /**
+   * @return true if there might be rows to deliver
+   */
+  public boolean hasRows() {
+    return !pending.isEmpty() || cacheEntry.getLastId() >= nextId;
+  }
+
+  /**
+   * Make sure the subscriber isn't more than window rows behind.  Rows evicted from the cache before they could be
+   * delivered are counted as dropped as well.
+   *
+   * @param log
+   * @param overflow what to do with the rows which don't fit the window
+   * @param window the maximum number of rows to be behind
+   */
+  public void applyOverflow( LogChannelInterface log, StreamingSubscriptionOverflow overflow, int window ) {
+    long firstId = cacheEntry.getFirstId();
+    if ( firstId > nextId ) {
+      dropped += firstId - nextId;
+      nextId = firstId;
+    }
+    long lastId = cacheEntry.getLastId();
+    long behind = pending.size() + Math.max( 0L, lastId - nextId + 1 );
+    if ( behind <= window ) {
+      return;
+    }
+
+    if ( overflow == StreamingSubscriptionOverflow.COALESCE && coalesceIndex >= 0 ) {
+      // Only keep the last row of every key, in the order of their last occurrence
+      //
+      Map<String, StreamingTimedNumberedRow> latest = new LinkedHashMap<String, StreamingTimedNumberedRow>();
+      List<StreamingTimedNumberedRow> rows = new ArrayList<StreamingTimedNumberedRow>( pending );
+      rows.addAll( findRows( log, nextId, lastId ) );
+      for ( StreamingTimedNumberedRow row : rows ) {
+        String key = getKey( row );
+        latest.remove( key );
+        latest.put( key, row );
+      }
+      dropped += rows.size() - latest.size();
+      pending = new LinkedList<StreamingTimedNumberedRow>( latest.values() );
+      nextId = lastId + 1;
+      while ( pending.size() > window ) {
+        pending.removeFirst();
+        dropped++;
+      }
+    } else {
+      long skip = behind - window;
+      while ( skip > 0 && !pending.isEmpty() ) {
+        pending.removeFirst();
+        dropped++;
+        skip--;
+      }
+      nextId += skip;
+      dropped += skip;
+    }
+  }
+
+  /**
+   * Take the next rows to deliver
+   *
+   * @param log
+   * @param maxRows the maximum number of rows to take
+   * @return the rows, possibly none
+   */
+  public List<StreamingTimedNumberedRow> take( LogChannelInterface log, int maxRows ) {
+    List<StreamingTimedNumberedRow> rows = new ArrayList<StreamingTimedNumberedRow>();
+    while ( !pending.isEmpty() && rows.size() < maxRows ) {
+      rows.add( pending.removeFirst() );
+    }
+    long lastId = cacheEntry.getLastId();
+    if ( rows.size() < maxRows && nextId <= lastId ) {
+      long toId = Math.min( lastId, nextId + maxRows - rows.size() - 1 );
+      rows.addAll( findRows( log, nextId, toId ) );
+      nextId = toId + 1;
+    }
+    return rows;
+  }
+
+  /**
+   * @return the number of rows dropped since the last call
+   */
+  public long takeDropped() {
+    long result = dropped;
+    dropped = 0L;
+    return result;
+  }
+
+  private List<StreamingTimedNumberedRow> findRows( LogChannelInterface log, long fromId, long toId ) {
+    if ( fromId > toId ) {
+      return new ArrayList<StreamingTimedNumberedRow>();
+    }
+    query.setFromId( fromId );
+    query.setToId( toId );
+    List<StreamingTimedNumberedRow> rows = cacheEntry.findRows( log, query );
+    return rows == null ? new ArrayList<StreamingTimedNumberedRow>() : rows;
+  }
+
+  private String getKey( StreamingTimedNumberedRow row ) {
+    try {
+      Object[] data = row.getRow();
+      return coalesceIndex < data.length ? cacheEntry.getRowMeta().getValueMeta( coalesceIndex ).getString( data[coalesceIndex] ) : null;
+    } catch ( KettleValueException e ) {
+      throw new RuntimeException( "Unable to coalesce on field '" + coalesceField + "' of cached row " + row.getId(), e );
+    }
+  }
+
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  public StreamingCacheEntry getCacheEntry() {
+    return cacheEntry;
+  }
+
+  public StreamingRowProjection getProjection() {
+    return projection;
+  }
+
+  public String getCoalesceField() {
+    return coalesceField;
+  }
+
+  /**
+   * @return true if the layout of the delivered rows was sent to the subscriber
+   */
+  public boolean isMetadataSent() {
+    return metadataSent;
+  }
+
+  /**
+   * @param metadataSent true if the layout of the delivered rows was sent to the subscriber
+   */
+  public void setMetadataSent( boolean metadataSent ) {
+    this.metadataSent = metadataSent;
+  }
+
+  /**
+   * @return the ID of the next row to deliver from the cache
+   */
+  public long getNextId() {
+    return nextId;
+  }
+}
@@ -0,0 +1,35 @@
+package org.pentaho.di.streaming.www.cache;
+
+/**
+ * What to do when a subscriber falls further behind the captured rows than its window allows
+ */
+public enum StreamingSubscriptionOverflow {
+  /** Skip the oldest rows the subscriber didn't get yet */
+  DROP_OLDEST( "drop" ),
+
+  /** Only keep the most recent row for every value of the coalesce field, dropping the oldest if that's still too many */
+  COALESCE( "coalesce" );
+
+  private String code;
+
+  private StreamingSubscriptionOverflow( String code ) {
+    this.code = code;
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  /**
+   * @param code the code of the overflow policy, case insensitive
+   * @return the overflow policy or null if the code is unknown
+   */
+  public static StreamingSubscriptionOverflow getOverflowForCode( String code ) {
+    for ( StreamingSubscriptionOverflow overflow : values() ) {
+      if ( overflow.getCode().equalsIgnoreCase( code ) ) {
+        return overflow;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,86 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The open subscriptions of this Carte server.  Subscriptions which aren't polled for a while are removed so that
+ * clients which went away without unsubscribing don't linger.
+ */
+public class StreamingSubscriptions {
+  public static final long DEFAULT_EXPIRY = 5 * 60 * 1000L;
+
+  /** The minimum time between two checks for expired subscriptions in ms */
+  private static final long EXPIRY_CHECK_INTERVAL = 10 * 1000L;
+
+  private static final StreamingSubscriptions streamingSubscriptions = new StreamingSubscriptions();
+
+  private Map<String, StreamingSubscription> subscriptions;
+  private volatile long lastExpiryCheck;
+
+  private StreamingSubscriptions() {
+    subscriptions = new ConcurrentHashMap<String, StreamingSubscription>();
+  }
+
+  public static StreamingSubscriptions getInstance() {
+    return streamingSubscriptions;
+  }
+
+  public void add( StreamingSubscription subscription ) {
+    removeExpired();
+    subscriptions.put( subscription.getId(), subscription );
+  }
+
+  /**
+   * Remove the subscriptions which weren't polled for DEFAULT_EXPIRY ms.  Called on every subscribe and poll, the
+   * subscriptions are only checked once every few seconds though.
+   */
+  public void removeExpired() {
+    long now = System.currentTimeMillis();
+    if ( now - lastExpiryCheck < EXPIRY_CHECK_INTERVAL ) {
+      return;
+    }
+    lastExpiryCheck = now;
+    removeExpired( now - DEFAULT_EXPIRY );
+  }
+
+  public StreamingSubscription get( String id ) {
+    return id == null ? null : subscriptions.get( id );
+  }
+
+  /**
+   * Remove and close a subscription
+   *
+   * @return the subscription removed or null if there was none
+   */
+  public StreamingSubscription remove( String id ) {
+    StreamingSubscription subscription = id == null ? null : subscriptions.remove( id );
+    if ( subscription != null ) {
+      subscription.close();
+    }
+    return subscription;
+  }
+
+  /**
+   * @param cutOff remove the subscriptions not accessed since this time, in ms since the epoch
+   * @return the number of subscriptions removed
+   */
+  public int removeExpired( long cutOff ) {
+    int removed = 0;
+    Iterator<StreamingSubscription> iterator = subscriptions.values().iterator();
+    while ( iterator.hasNext() ) {
+      StreamingSubscription subscription = iterator.next();
+      if ( subscription.getLastAccess() < cutOff ) {
+        iterator.remove();
+        subscription.close();
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  public Map<String, StreamingSubscription> getSubscriptions() {
+    return subscriptions;
+  }
+}
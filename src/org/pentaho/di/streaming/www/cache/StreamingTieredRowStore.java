@@ -0,0 +1,478 @@
+package org.pentaho.di.streaming.www.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Keeps the newest rows of a cache in memory and moves older rows to memory-mapped segment files on local disk.
+ *
+ * Rows are moved to disk a whole segment at a time once the memory tier holds more than the hot size plus a segment
+ * worth of rows.  A sealed segment file is compressed by StreamingSegmentCodec and only decoded when its rows are
+ * read.  The first and last ID and time of every segment are kept in memory as a sparse index so that ID and time
+ * lookups only have to decode the IDs and times of a single segment.
+ *
+ * Positions are shared by both tiers: the segments hold the positions before the first position of the memory tier.
+ * Only the rows in the memory tier count towards the memory use of the store, moving rows to disk frees memory.
+ * Rows on disk are only evicted by the row count and time limits, never to free memory.
+ *
+ * The segment folder is locked for as long as it's in use and removed by clear().  Folders left behind by a server
+ * which was stopped are removed the first time a store is created in the same parent folder.
+ */
+public class StreamingTieredRowStore implements StreamingRowStore {
+  public static final int DEFAULT_HOT_SIZE = 10000;
+  public static final int SEGMENT_ROWS = 8192;
+
+  /** The smallest segment sealed to free memory, smaller ones would only fragment the disk tier */
+  public static final int MIN_SEGMENT_ROWS = 1024;
+
+  private static final String DIRECTORY_PREFIX = "streaming-tier-";
+  private static final String LOCK_FILE = "lock";
+
+  private static final Set<String> cleanedParents = Collections.synchronizedSet( new HashSet<String>() );
+
+  private RowMetaInterface rowMeta;
+  private int maxSize;
+  private int hotSize;
+  private File directory;
+  private FileChannel lockChannel;
+  private FileLock lock;
+
+  private StreamingRowStore memory;
+  private List<Segment> segments;
+
+  private volatile long firstPosition;
+
+  /**
+   * @param rowMeta The layout of the rows to store
+   * @param maxSize The maximum number of rows to keep in both tiers (<=0 : unlimited)
+   * @param hotSize The number of rows to keep in memory (<=0 : default)
+   * @param tierDirectory The folder to create the segment files in (null : the temporary folder)
+   */
+  public StreamingTieredRowStore( RowMetaInterface rowMeta, int maxSize, int hotSize, String tierDirectory ) {
+    this.rowMeta = rowMeta;
+    this.maxSize = maxSize;
+    this.hotSize = hotSize > 0 ? hotSize : DEFAULT_HOT_SIZE;
+    String parent = tierDirectory == null || tierDirectory.length() == 0 ? System.getProperty( "java.io.tmpdir" ) : tierDirectory;
+    if ( cleanedParents.add( parent ) ) {
+      removeAbandonedDirectories( new File( parent ) );
+    }
+    this.directory = new File( parent, DIRECTORY_PREFIX + UUID.randomUUID() );
+    this.memory = new StreamingObjectRowStore( -1 );
+    this.segments = new ArrayList<Segment>();
+    this.firstPosition = 0L;
+  }
+
+  @Override
+  public void add( StreamingTimedNumberedRow row ) {
+    // Keep the time index sorted across the tiers
+    //
+    if ( memory.size() == 0 && !segments.isEmpty() ) {
+      Segment last = segments.get( segments.size() - 1 );
+      if ( row.getTime() < last.lastTime ) {
+        row = new StreamingTimedNumberedRow( row.getId(), last.lastTime, row.getRow() );
+      }
+    }
+    memory.add( row );
+    if ( maxSize > 0 && size() > maxSize ) {
+      removeFirst( size() - maxSize );
+    }
+    if ( memory.size() >= hotSize + SEGMENT_ROWS ) {
+      seal( SEGMENT_ROWS );
+    }
+  }
+
+  /**
+   * Move the oldest rows of the memory tier to a new segment file
+   *
+   * @param nrRows the number of rows to move
+   */
+  private void seal( int nrRows ) {
+    long start = memory.getFirstPosition();
+    long[] ids = new long[nrRows];
+    long[] times = new long[nrRows];
+    List<Object[]> rows = new ArrayList<Object[]>( nrRows );
+    try {
+      for ( int i = 0; i < nrRows; i++ ) {
+        long position = start + i;
+        ids[i] = memory.getId( position );
+        times[i] = memory.getTime( position );
+        rows.add( memory.get( position ).getRow() );
+      }
+      byte[] encoded = StreamingSegmentCodec.encode( rowMeta, ids, times, rows );
+
+      if ( lock == null ) {
+        lockDirectory();
+      }
+      File file = new File( directory, "segment-" + start + ".bin" );
+      OutputStream outputStream = new FileOutputStream( file );
+      try {
+        outputStream.write( encoded );
+      } finally {
+        outputStream.close();
+      }
+
+      MappedByteBuffer buffer;
+      RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+      try {
+        buffer = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, file.length() );
+      } finally {
+        // The mapping stays valid after closing the file
+        randomAccessFile.close();
+      }
+      segments.add( new Segment( file, buffer, start, nrRows, ids[0], ids[nrRows - 1], times[0], times[nrRows - 1] ) );
+    } catch ( Exception e ) {
+      throw new RuntimeException( "Unable to move " + nrRows + " cached rows to a segment file in folder '" + directory + "'", e );
+    }
+    memory.removeFirst( nrRows );
+  }
+
+  private void lockDirectory() throws IOException {
+    if ( !directory.exists() && !directory.mkdirs() ) {
+      throw new IOException( "Unable to create folder '" + directory + "'" );
+    }
+    lockChannel = new RandomAccessFile( new File( directory, LOCK_FILE ), "rw" ).getChannel();
+    lock = lockChannel.lock();
+  }
+
+  @Override
+  public void removeFirst( int nrRows ) {
+    long target = Math.min( firstPosition + Math.max( 0, nrRows ), getLastPosition() );
+    long boundary = memory.getFirstPosition();
+    if ( target > boundary ) {
+      memory.removeFirst( (int) ( target - boundary ) );
+    }
+    firstPosition = target;
+
+    // Remove the segments without any rows left
+    //
+    while ( !segments.isEmpty() && segments.get( 0 ).getEndPosition() <= firstPosition ) {
+      Segment segment = segments.remove( 0 );
+      if ( !segment.file.delete() ) {
+        segment.file.deleteOnExit();
+      }
+    }
+  }
+
+  @Override
+  public int removeOlderThan( long cutOff ) {
+    int nrRows = (int) ( positionOfTime( cutOff ) - firstPosition );
+    removeFirst( nrRows );
+    return nrRows;
+  }
+
+  /**
+   * Memory is freed by moving the oldest rows of the memory tier to disk, a full segment at a time.  When the memory
+   * tier doesn't hold a full segment a smaller one is sealed, as long as it has at least MIN_SEGMENT_ROWS rows.  Rows
+   * are never evicted to free memory: below that the store stays over budget until the next segment can be sealed.
+   * The newest row is always kept in memory.
+   */
+  @Override
+  public long removeBytes( long bytes ) {
+    long freed = 0L;
+    while ( freed < bytes && memory.size() > MIN_SEGMENT_ROWS ) {
+      long before = memory.getByteSize();
+      seal( Math.min( SEGMENT_ROWS, memory.size() - 1 ) );
+      freed += before - memory.getByteSize();
+    }
+    return freed;
+  }
+
+  @Override
+  public void clear() {
+    removeFirst( size() );
+    if ( lock != null ) {
+      try {
+        lock.release();
+        lockChannel.close();
+      } catch ( IOException e ) {
+        // The lock goes away with the file
+      }
+      lock = null;
+      lockChannel = null;
+      new File( directory, LOCK_FILE ).delete();
+    }
+    directory.delete();
+  }
+
+  /**
+   * Remove the segment folders in the given folder which are not locked by a store, in this or any other process.
+   *
+   * @param parent the folder to look in
+   */
+  public static void removeAbandonedDirectories( File parent ) {
+    File[] directories = parent.listFiles();
+    if ( directories == null ) {
+      return;
+    }
+    for ( File directory : directories ) {
+      if ( directory.isDirectory() && directory.getName().startsWith( DIRECTORY_PREFIX ) && !isLocked( directory ) ) {
+        File[] files = directory.listFiles();
+        if ( files != null ) {
+          for ( File file : files ) {
+            file.delete();
+          }
+        }
+        directory.delete();
+      }
+    }
+  }
+
+  private static boolean isLocked( File directory ) {
+    File lockFile = new File( directory, LOCK_FILE );
+    if ( !lockFile.exists() ) {
+      return false;
+    }
+    try {
+      RandomAccessFile randomAccessFile = new RandomAccessFile( lockFile, "rw" );
+      try {
+        FileLock lock = randomAccessFile.getChannel().tryLock();
+        if ( lock == null ) {
+          return true;
+        }
+        lock.release();
+        return false;
+      } finally {
+        randomAccessFile.close();
+      }
+    } catch ( OverlappingFileLockException e ) {
+      // Locked by a store of this server
+      return true;
+    } catch ( IOException e ) {
+      // Leave what we can't check alone
+      return true;
+    }
+  }
+
+  @Override
+  public int size() {
+    return (int) ( getLastPosition() - firstPosition );
+  }
+
+  /**
+   * @return the estimated memory use of the rows in the memory tier
+   */
+  @Override
+  public long getByteSize() {
+    return memory.getByteSize();
+  }
+
+  @Override
+  public long getFirstPosition() {
+    return firstPosition;
+  }
+
+  @Override
+  public long getLastPosition() {
+    return memory.getLastPosition();
+  }
+
+  @Override
+  public StreamingTimedNumberedRow get( long position ) {
+    if ( position >= memory.getFirstPosition() ) {
+      return memory.get( position );
+    }
+    Segment segment = findSegment( position );
+    int index = (int) ( position - segment.firstPosition );
+    return new StreamingTimedNumberedRow( segment.getId( index ), segment.getTime( index ), segment.getData( index, rowMeta ) );
+  }
+
+  @Override
+  public long getId( long position ) {
+    if ( position >= memory.getFirstPosition() ) {
+      return memory.getId( position );
+    }
+    Segment segment = findSegment( position );
+    return segment.getId( (int) ( position - segment.firstPosition ) );
+  }
+
+  @Override
+  public long getTime( long position ) {
+    if ( position >= memory.getFirstPosition() ) {
+      return memory.getTime( position );
+    }
+    Segment segment = findSegment( position );
+    return segment.getTime( (int) ( position - segment.firstPosition ) );
+  }
+
+  private Segment findSegment( long position ) {
+    int low = 0;
+    int high = segments.size() - 1;
+    while ( low < high ) {
+      int middle = ( low + high + 1 ) >>> 1;
+      if ( segments.get( middle ).firstPosition <= position ) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return segments.get( low );
+  }
+
+  @Override
+  public long positionOfId( long id ) {
+    if ( segments.isEmpty() || id > segments.get( segments.size() - 1 ).lastId ) {
+      return Math.max( firstPosition, memory.positionOfId( id ) );
+    }
+    // The first segment holding an ID equal to or larger than the given ID
+    //
+    int low = 0;
+    int high = segments.size() - 1;
+    while ( low < high ) {
+      int middle = ( low + high ) >>> 1;
+      if ( segments.get( middle ).lastId < id ) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    Segment segment = segments.get( low );
+    int index = 0;
+    int end = segment.nrRows - 1;
+    while ( index < end ) {
+      int middle = ( index + end ) >>> 1;
+      if ( segment.getId( middle ) < id ) {
+        index = middle + 1;
+      } else {
+        end = middle;
+      }
+    }
+    return Math.max( firstPosition, segment.firstPosition + index );
+  }
+
+  @Override
+  public long positionOfTime( long time ) {
+    if ( segments.isEmpty() || time > segments.get( segments.size() - 1 ).lastTime ) {
+      return Math.max( firstPosition, memory.positionOfTime( time ) );
+    }
+    int low = 0;
+    int high = segments.size() - 1;
+    while ( low < high ) {
+      int middle = ( low + high ) >>> 1;
+      if ( segments.get( middle ).lastTime < time ) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    Segment segment = segments.get( low );
+    int index = 0;
+    int end = segment.nrRows - 1;
+    while ( index < end ) {
+      int middle = ( index + end ) >>> 1;
+      if ( segment.getTime( middle ) < time ) {
+        index = middle + 1;
+      } else {
+        end = middle;
+      }
+    }
+    return Math.max( firstPosition, segment.firstPosition + index );
+  }
+
+  /**
+   * @return the number of rows kept on disk
+   */
+  public long getDiskSize() {
+    return memory.getFirstPosition() - firstPosition;
+  }
+
+  /**
+   * @return the number of bytes used by the segment files
+   */
+  public long getDiskBytes() {
+    long bytes = 0L;
+    for ( Segment segment : segments ) {
+      bytes += segment.buffer.capacity();
+    }
+    return bytes;
+  }
+
+  /**
+   * A sealed, memory-mapped segment file.
+   * The file is only decoded when its rows are read, the decoded IDs, times and columns are kept for as long as
+   * memory allows.
+   */
+  private static class Segment {
+    private File file;
+    private ByteBuffer buffer;
+    private long firstPosition;
+    private int nrRows;
+
+    // The sparse index
+    //
+    private long firstId;
+    private long lastId;
+    private long firstTime;
+    private long lastTime;
+
+    private volatile SoftReference<long[][]> idsAndTimes;
+    private volatile SoftReference<Object[][]> columns;
+
+    public Segment( File file, ByteBuffer buffer, long firstPosition, int nrRows, long firstId, long lastId, long firstTime, long lastTime ) {
+      this.file = file;
+      this.buffer = buffer;
+      this.firstPosition = firstPosition;
+      this.nrRows = nrRows;
+      this.firstId = firstId;
+      this.lastId = lastId;
+      this.firstTime = firstTime;
+      this.lastTime = lastTime;
+      this.idsAndTimes = new SoftReference<long[][]>( null );
+      this.columns = new SoftReference<Object[][]>( null );
+    }
+
+    public long getEndPosition() {
+      return firstPosition + nrRows;
+    }
+
+    public long getId( int index ) {
+      return getIdsAndTimes()[0][index];
+    }
+
+    public long getTime( int index ) {
+      return getIdsAndTimes()[1][index];
+    }
+
+    private long[][] getIdsAndTimes() {
+      long[][] decoded = idsAndTimes.get();
+      if ( decoded == null ) {
+        decoded = StreamingSegmentCodec.decodeIdsAndTimes( buffer );
+        idsAndTimes = new SoftReference<long[][]>( decoded );
+      }
+      return decoded;
+    }
+
+    public Object[] getData( int index, RowMetaInterface rowMeta ) {
+      Object[][] decoded = columns.get();
+      if ( decoded == null ) {
+        try {
+          decoded = StreamingSegmentCodec.decodeColumns( buffer, rowMeta );
+        } catch ( Exception e ) {
+          throw new RuntimeException( "Unable to read cache segment file '" + file + "' (IDs " + firstId + " to " + lastId + ", times " + firstTime + " to " + lastTime + ")", e );
+        }
+        columns = new SoftReference<Object[][]>( decoded );
+      }
+      Object[] row = new Object[decoded.length];
+      for ( int i = 0; i < row.length; i++ ) {
+        row[i] = decoded[i][index];
+      }
+      return row;
+    }
+  }
+}
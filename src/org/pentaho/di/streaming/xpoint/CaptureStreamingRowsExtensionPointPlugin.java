@@ -1,15 +1,10 @@
 package org.pentaho.di.streaming.xpoint;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.UUID;
 
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
-import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.extension.ExtensionPoint;
 import org.pentaho.di.core.extension.ExtensionPointInterface;
 import org.pentaho.di.core.logging.LogChannelInterface;
@@ -18,6 +13,7 @@ import org.pentaho.di.streaming.StreamingService;
 import org.pentaho.di.streaming.util.StreamingConst;
 import org.pentaho.di.streaming.www.cache.StreamingCache;
 import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingRowQueue;
 import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransAdapter;
@@ -68,64 +64,75 @@ public class CaptureStreamingRowsExtensionPointPlugin implements ExtensionPointI
         cacheName = service.getName();    
       }
 
+      final StreamingCapture capture = StreamingCapture.createCapture( log, cache, service, cacheName, transMeta );
+
       if ( service.isClearingOnStart() ) {
-        cache.getCache().remove( cacheName );
+        cache.remove( cacheName );
+        if ( capture.getJournal() != null ) {
+          capture.getJournal().clear();
+        }
       }
-      
-      final int maxSize = Const.toInt( transMeta.environmentSubstitute( service.getCacheSize() ), -1 );
-      final int maxTime = Const.toInt( transMeta.environmentSubstitute( service.getCacheDuration() ), -1 );
 
       // Which step are we listening to?
       //
       StepInterface stepInterface = trans.findStepInterface( service.getStepname(), 0 );
-      stepInterface.addRowListener( new RowAdapter() {
-        @Override
-        public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
-          StreamingCacheEntry cacheEntry = cache.get( cacheName );
-          if ( cacheEntry == null ) {
-            if (log.isDebug()) {
-              log.logDebug("Creating a new streaming cache for service : " + service.getName());
-            }
 
-            List<StreamingTimedNumberedRow> list = Collections.synchronizedList( new LinkedList<StreamingTimedNumberedRow>() );
-            cacheEntry = new StreamingCacheEntry( rowMeta, list );
-            cache.put( cacheName, cacheEntry );             
-          }
-          cacheEntry.setRowMeta( rowMeta );
-          long now = System.currentTimeMillis();
-          long id = cache.nextValue( service.getName() );
-          try {
-            if (log.isDebug()) {
-              log.logDebug("Adding row to cache : " + rowMeta.getString(row) + " buffer size : " + cacheEntry.size());
+      if ( service.isAsyncCapture() ) {
+        // The row listener only queues the rows, a separate thread adds them to the cache
+        //
+        int queueSize = Const.toInt( transMeta.environmentSubstitute( service.getCaptureQueueSize() ), -1 );
+        final StreamingRowQueue queue = new StreamingRowQueue( queueSize, service.getOverflowPolicy() );
+        final StreamingCaptureThread captureThread = new StreamingCaptureThread( log, queue, capture );
+        captureThread.start();
+
+        stepInterface.addRowListener( new RowAdapter() {
+          @Override
+          public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+            if ( capture.getRowMeta() != rowMeta ) {
+              capture.setRowMeta( rowMeta );
             }
-          } catch (KettleValueException e) {
-            throw new KettleStepException(e);
-          }
-          cacheEntry.addRow(new StreamingTimedNumberedRow( id, row ));
-          
-          while ( maxSize > 0 && cacheEntry.size() > maxSize ) {
-            cacheEntry.removeFirst();
-            if (log.isDebug()) {
-              log.logDebug("Removed a row from cache : new buffer size : " + cacheEntry.size());
+            try {
+              queue.offer( new StreamingTimedNumberedRow( 0L, System.currentTimeMillis(), row ) );
+            } catch ( InterruptedException e ) {
+              Thread.currentThread().interrupt();
+              throw new KettleStepException( "Interrupted while waiting for room in the capture queue of service '" + service.getName() + "'", e );
             }
           }
-          if ( maxTime > 0 ) {
-            long cutOff = now - maxTime * 1000;
-            Iterator<StreamingTimedNumberedRow> iterator = cacheEntry.getIterator();
-            while ( iterator.hasNext() ) {
-              StreamingTimedNumberedRow next = iterator.next();
-              if ( next.getTime() < cutOff ) {
-                iterator.remove();
-              } else {
-                break;
-              }
+        } );
+
+        // Make sure all queued rows are in the cache when the transformation finishes (before a possible flip)
+        //
+        trans.addTransListener( new TransAdapter() {
+          @Override
+          public void transFinished( Trans trans ) throws KettleException {
+            try {
+              captureThread.stopCapture();
+              capture.close();
+            } catch ( InterruptedException e ) {
+              throw new KettleException( "Interrupted while waiting for the capture of service '" + service.getName() + "' to finish", e );
             }
-            if (log.isDebug()) {
-              log.logDebug("Pruned by max time window ("+maxTime+") from ["+service.getCacheDuration()+"] : new buffer size : " + cacheEntry.size());
+          }
+        } );
+      } else {
+        stepInterface.addRowListener( new RowAdapter() {
+          @Override
+          public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+            capture.setRowMeta( rowMeta );
+            try {
+              capture.addRow( new StreamingTimedNumberedRow( 0L, System.currentTimeMillis(), row ) );
+            } catch ( KettleException e ) {
+              throw new KettleStepException( e );
             }
           }
-        }
-      } );
+        } );
+
+        trans.addTransListener( new TransAdapter() {
+          @Override
+          public void transFinished( Trans trans ) throws KettleException {
+            capture.close();
+          }
+        } );
+      }
       
       // Do we need to flip the cache at the end of the transformation?
       //
@@ -139,14 +146,18 @@ public class CaptureStreamingRowsExtensionPointPlugin implements ExtensionPointI
               
               StreamingCacheEntry newCacheEntry = cache.getCache().get(cacheName);
 
-              // Remove the old cache...
-              // And the temporary one...
+              // Remove the temporary cache, its rows move to the service...
               //
               cache.getCache().remove(cacheName);
               
-              // Replace/flip with the new cache...
+              // Replace/flip with the new cache, the rows of the old one are released once its readers are done...
+              // A run which didn't capture any rows leaves no cache behind.
               //
-              cache.getCache().put(serviceName, newCacheEntry);
+              if (newCacheEntry==null) {
+                cache.remove(serviceName);
+              } else {
+                cache.put(serviceName, newCacheEntry);
+              }
             }
           }
         });
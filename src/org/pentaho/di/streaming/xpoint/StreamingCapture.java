@@ -0,0 +1,404 @@
+package org.pentaho.di.streaming.xpoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.streaming.StreamingService;
+import org.pentaho.di.streaming.www.cache.StreamingCache;
+import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingCacheSweeper;
+import org.pentaho.di.streaming.www.cache.StreamingEncodedRows;
+import org.pentaho.di.streaming.www.cache.StreamingJournal;
+import org.pentaho.di.streaming.www.cache.StreamingJournalListener;
+import org.pentaho.di.streaming.www.cache.StreamingRollup;
+import org.pentaho.di.streaming.www.cache.StreamingRollupDefinition;
+import org.pentaho.di.streaming.www.cache.StreamingRowEncoding;
+import org.pentaho.di.streaming.www.cache.StreamingRowStoreSettings;
+import org.pentaho.di.streaming.www.cache.StreamingSketches;
+import org.pentaho.di.streaming.www.cache.StreamingStorageType;
+import org.pentaho.di.streaming.www.cache.StreamingStringInterner;
+import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
+
+/**
+ * Adds the captured rows of a streaming service to its cache: it creates the cache entry, hands out the row IDs
+ * and takes care of the size, memory and time limits of the cache.
+ * This is done either directly from the row listener on the service step or from a StreamingCaptureThread.
+ * If the service keeps a journal, the rows are written to it before they are added to the cache.
+ */
+public class StreamingCapture {
+  private LogChannelInterface log;
+  private StreamingCache cache;
+  private String serviceName;
+  private String cacheName;
+
+  private StreamingRowStoreSettings storeSettings;
+  private int maxTime;
+  private long expiryGranularity;
+  private long maxBytes;
+  private StreamingStorageType storageType;
+  private int dictionarySize;
+  private List<StreamingRollupDefinition> rollups;
+  private List<String> indexedFields;
+  private String sketchFields;
+  private int sketchBucketSize;
+  private StreamingRowEncoding rowEncoding;
+
+  private volatile RowMetaInterface rowMeta;
+
+  private StreamingCacheEntry sweptEntry;
+  private ScheduledFuture<?> sweep;
+
+  private StreamingJournal journal;
+
+  /**
+   * @param log
+   * @param cache
+   * @param serviceName the name of the streaming service, used for the row ID sequence
+   * @param cacheName the name of the cache entry to add the rows to
+   * @param storeSettings the size limits and storage locations of the row store of the cache
+   * @param maxTime the maximum age of a row in the cache in seconds (<=0 : unlimited)
+   * @param expiryGranularity the time between two sweeps for expired rows in ms (<=0 : default)
+   * @param maxBytes the maximum estimated memory use of the cache in bytes (<=0 : unlimited)
+   * @param storageType how to store the rows
+   */
+  public StreamingCapture( LogChannelInterface log, StreamingCache cache, String serviceName, String cacheName, StreamingRowStoreSettings storeSettings, int maxTime, long expiryGranularity, long maxBytes, StreamingStorageType storageType ) {
+    this.log = log;
+    this.cache = cache;
+    this.serviceName = serviceName;
+    this.cacheName = cacheName;
+    this.storeSettings = storeSettings;
+    this.maxTime = maxTime;
+    this.expiryGranularity = expiryGranularity;
+    this.maxBytes = maxBytes;
+    this.storageType = storageType;
+    this.dictionarySize = -1;
+    this.rollups = new ArrayList<StreamingRollupDefinition>();
+    this.indexedFields = new ArrayList<String>();
+    this.sketchBucketSize = -1;
+    this.rowEncoding = StreamingRowEncoding.NONE;
+  }
+
+  /**
+   * Create a capture for a streaming service with the cache settings of the service
+   *
+   * @param log
+   * @param cache
+   * @param service the streaming service
+   * @param cacheName the name of the cache entry to add the rows to
+   * @param space to resolve variables in the settings with
+   * @return the new capture
+   * @throws KettleException in case the rollups or sketches of the service can't be parsed
+   */
+  public static StreamingCapture createCapture( LogChannelInterface log, StreamingCache cache, StreamingService service, String cacheName, VariableSpace space ) throws KettleException {
+    StreamingRowStoreSettings storeSettings = new StreamingRowStoreSettings( Const.toInt( space.environmentSubstitute( service.getCacheSize() ), -1 ) );
+    int maxTime = Const.toInt( space.environmentSubstitute( service.getCacheDuration() ), -1 );
+    long expiryGranularity = Const.toLong( space.environmentSubstitute( service.getExpiryGranularity() ), -1L );
+    long maxBytes = Const.toLong( space.environmentSubstitute( service.getCacheBytes() ), -1L );
+    long segmentSize = Const.toInt( space.environmentSubstitute( service.getSegmentSize() ), -1 ) * 1024L * 1024L;
+    if ( segmentSize > Integer.MAX_VALUE ) {
+      throw new KettleException( "The segment size of streaming service '" + service.getName() + "' can be " + ( Integer.MAX_VALUE / ( 1024 * 1024 ) ) + "MB at most" );
+    }
+    storeSettings.setSegmentSize( (int) segmentSize );
+    storeSettings.setHotSize( Const.toInt( space.environmentSubstitute( service.getHotSize() ), -1 ) );
+    storeSettings.setTierDirectory( space.environmentSubstitute( service.getTierDirectory() ) );
+    StreamingStorageType storageType = service.getStorageType() == null ? StreamingStorageType.OBJECTS : service.getStorageType();
+
+    StreamingCapture capture = new StreamingCapture( log, cache, service.getName(), cacheName, storeSettings, maxTime, expiryGranularity, maxBytes, storageType );
+    capture.setDictionarySize( Const.toInt( space.environmentSubstitute( service.getDictionarySize() ), -1 ) );
+    capture.setRollups( StreamingRollupDefinition.parse( space.environmentSubstitute( service.getRollups() ) ) );
+    capture.setSketchFields( space.environmentSubstitute( service.getSketchFields() ) );
+    capture.setSketchBucketSize( Const.toInt( space.environmentSubstitute( service.getSketchBucketSize() ), -1 ) );
+    // Validate the sketches right away, every new cache entry gets its own
+    //
+    StreamingSketches.parse( capture.getSketchBucketSize(), capture.getSketchFields() );
+    capture.setRowEncoding( service.getRowEncoding() );
+    String indexedFields = space.environmentSubstitute( service.getIndexedFields() );
+    if ( !Const.isEmpty( indexedFields ) ) {
+      for ( String indexedField : indexedFields.split( "," ) ) {
+        if ( !Const.isEmpty( indexedField.trim() ) ) {
+          capture.getIndexedFields().add( indexedField.trim() );
+        }
+      }
+    }
+    if ( service.isJournaling() ) {
+      String directory = space.environmentSubstitute( service.getJournalDirectory() );
+      if ( Const.isEmpty( directory ) ) {
+        directory = StreamingJournal.getDefaultDirectory();
+      }
+      capture.setJournal( new StreamingJournal( directory, service.getName(), service.getJournalSyncPolicy(), -1L ) );
+    }
+    return capture;
+  }
+
+  public void addRow( StreamingTimedNumberedRow row ) throws KettleException {
+    addRows( Collections.singletonList( row ) );
+  }
+
+  /**
+   * Give the rows an ID and add them to the cache
+   *
+   * @param rows the captured rows with their capture time
+   * @throws KettleException
+   */
+  public void addRows( List<StreamingTimedNumberedRow> rows ) throws KettleException {
+    for ( StreamingTimedNumberedRow row : rows ) {
+      row.setId( cache.nextValue( serviceName ) );
+    }
+    if ( journal != null ) {
+      journal.append( rowMeta, rows );
+    }
+    StreamingCacheEntry cacheEntry = restoreRows( rows );
+    if ( journal != null ) {
+      journal.removeFilesBefore( cacheEntry.getFirstId() );
+    }
+  }
+
+  /**
+   * Write the rows added to the journal, if any.  Called after every batch of rows captured asynchronously, rows
+   * captured one by one are written at least once per second.
+   *
+   * @throws KettleException
+   */
+  public void flush() throws KettleException {
+    if ( journal != null ) {
+      journal.flush();
+    }
+  }
+
+  /**
+   * Add rows which already have an ID to the cache
+   *
+   * @param rows
+   * @return the cache entry
+   * @throws KettleException
+   */
+  private StreamingCacheEntry restoreRows( List<StreamingTimedNumberedRow> rows ) throws KettleException {
+    StreamingCacheEntry cacheEntry = getCacheEntry();
+
+    StreamingStringInterner stringInterner = cacheEntry.getStringInterner();
+
+    for ( StreamingTimedNumberedRow row : rows ) {
+      if ( stringInterner != null ) {
+        row.setRow( stringInterner.intern( rowMeta, row.getRow() ) );
+      }
+      if ( log.isDebug() ) {
+        log.logDebug( "Adding row to cache : " + rowMeta.getString( row.getRow() ) + " buffer size : " + cacheEntry.size() );
+      }
+    }
+
+    // The cache entry evicts the oldest rows once maxSize or maxBytes is reached
+    //
+    cacheEntry.addRows( rows );
+    cache.trimToBudget( cacheEntry );
+    return cacheEntry;
+  }
+
+  /**
+   * Restore the cache from the journal of the service, rows which are expired already are skipped.
+   * The ID sequence of the service continues after the last row in the journal.
+   *
+   * @return the number of restored rows
+   * @throws KettleException
+   */
+  public long replayJournal() throws KettleException {
+    if ( journal == null ) {
+      return 0L;
+    }
+    final long cutOff = maxTime > 0 ? System.currentTimeMillis() - maxTime * 1000L : Long.MIN_VALUE;
+    final long[] nrRows = new long[] { 0L };
+    long lastId = journal.replay( log, new StreamingJournalListener() {
+      @Override
+      public void rowMetaRead( RowMetaInterface journalRowMeta ) throws KettleException {
+        // Rows with a different layout can't be kept in the same cache
+        //
+        if ( rowMeta != null && !rowMeta.toStringMeta().equals( journalRowMeta.toStringMeta() ) ) {
+          cache.remove( cacheName );
+        }
+        setRowMeta( journalRowMeta );
+      }
+
+      @Override
+      public void rowsRead( List<StreamingTimedNumberedRow> rows ) throws KettleException {
+        List<StreamingTimedNumberedRow> validRows = new ArrayList<StreamingTimedNumberedRow>( rows.size() );
+        for ( StreamingTimedNumberedRow row : rows ) {
+          if ( row.getTime() >= cutOff ) {
+            validRows.add( row );
+          }
+        }
+        if ( !validRows.isEmpty() ) {
+          restoreRows( validRows );
+          nrRows[0] += validRows.size();
+        }
+      }
+    }, StreamingCaptureThread.BATCH_SIZE );
+
+    if ( lastId > 0 ) {
+      cache.restoreSequence( serviceName, lastId );
+    }
+    return nrRows[0];
+  }
+
+  private StreamingCacheEntry getCacheEntry() throws KettleException {
+    StreamingCacheEntry cacheEntry = cache.get( cacheName );
+    if ( cacheEntry == null ) {
+      if ( log.isDebug() ) {
+        log.logDebug( "Creating a new streaming cache for service : " + serviceName );
+      }
+
+      cacheEntry = new StreamingCacheEntry( rowMeta, storageType.createRowStore( rowMeta, storeSettings ) );
+      cacheEntry.setMaxBytes( maxBytes );
+      if ( dictionarySize != 0 ) {
+        cacheEntry.setStringInterner( new StreamingStringInterner( dictionarySize ) );
+      }
+      // Rollups and sketches of fields the rows don't have would fail on every row added
+      //
+      for ( StreamingRollupDefinition rollupDefinition : rollups ) {
+        StreamingRollup rollup = new StreamingRollup( rollupDefinition );
+        rollup.validate( rowMeta );
+        cacheEntry.addRollup( rollup );
+      }
+      for ( String indexedField : indexedFields ) {
+        cacheEntry.addIndex( indexedField );
+      }
+      StreamingSketches sketches = StreamingSketches.parse( sketchBucketSize, sketchFields );
+      if ( sketches != null ) {
+        sketches.validate( rowMeta );
+      }
+      cacheEntry.setSketches( sketches );
+      if ( rowEncoding != StreamingRowEncoding.NONE ) {
+        cacheEntry.setEncodedRows( new StreamingEncodedRows( rowEncoding, storeSettings.getMaxSize() ) );
+      }
+      cache.put( cacheName, cacheEntry );
+    }
+    cacheEntry.setRowMeta( rowMeta );
+
+    // Expired rows are evicted in the background
+    //
+    if ( maxTime > 0 && cacheEntry != sweptEntry ) {
+      stopSweeping();
+      sweep = StreamingCacheSweeper.schedule( cacheEntry, maxTime, expiryGranularity );
+      sweptEntry = cacheEntry;
+    }
+    return cacheEntry;
+  }
+
+  /**
+   * Stop capturing: close the journal and stop evicting expired rows, the cache keeps the rows captured last.
+   */
+  public void close() {
+    stopSweeping();
+    if ( journal != null ) {
+      journal.close();
+    }
+  }
+
+  /**
+   * Stop evicting expired rows, the cache keeps the rows captured last.
+   */
+  public void stopSweeping() {
+    if ( sweep != null ) {
+      sweep.cancel( false );
+      sweep = null;
+      sweptEntry = null;
+    }
+  }
+
+  public RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  /**
+   * @param rowMeta the layout of the captured rows
+   */
+  public void setRowMeta( RowMetaInterface rowMeta ) {
+    this.rowMeta = rowMeta;
+  }
+
+  public int getDictionarySize() {
+    return dictionarySize;
+  }
+
+  /**
+   * @param dictionarySize the maximum number of distinct values to intern per String field (0 : no interning, <0 : default)
+   */
+  public void setDictionarySize( int dictionarySize ) {
+    this.dictionarySize = dictionarySize;
+  }
+
+  public List<StreamingRollupDefinition> getRollups() {
+    return rollups;
+  }
+
+  /**
+   * @param rollups the rollups to keep in a new cache entry
+   */
+  public void setRollups( List<StreamingRollupDefinition> rollups ) {
+    this.rollups = rollups;
+  }
+
+  public List<String> getIndexedFields() {
+    return indexedFields;
+  }
+
+  /**
+   * @param indexedFields the fields to keep a hash index on in a new cache entry
+   */
+  public void setIndexedFields( List<String> indexedFields ) {
+    this.indexedFields = indexedFields;
+  }
+
+  public String getSketchFields() {
+    return sketchFields;
+  }
+
+  /**
+   * @param sketchFields the sketches to keep in a new cache entry, see StreamingSketches
+   */
+  public void setSketchFields( String sketchFields ) {
+    this.sketchFields = sketchFields;
+  }
+
+  public int getSketchBucketSize() {
+    return sketchBucketSize;
+  }
+
+  /**
+   * @param sketchBucketSize the length of a sketch time bucket in seconds (<=0 : default)
+   */
+  public void setSketchBucketSize( int sketchBucketSize ) {
+    this.sketchBucketSize = sketchBucketSize;
+  }
+
+  public StreamingRowEncoding getRowEncoding() {
+    return rowEncoding;
+  }
+
+  /**
+   * @param rowEncoding the forms to serialize the rows of a new cache entry in when they are captured (null : none)
+   */
+  public void setRowEncoding( StreamingRowEncoding rowEncoding ) {
+    this.rowEncoding = rowEncoding == null ? StreamingRowEncoding.NONE : rowEncoding;
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  public StreamingJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * @param journal the journal to write the captured rows to (null : no journal)
+   */
+  public void setJournal( StreamingJournal journal ) {
+    this.journal = journal;
+  }
+}
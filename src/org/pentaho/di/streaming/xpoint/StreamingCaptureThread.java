@@ -0,0 +1,71 @@
+package org.pentaho.di.streaming.xpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.streaming.www.cache.StreamingRowQueue;
+import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
+
+/**
+ * Takes the rows queued by the row listener of the service step and adds them in batches to the cache.
+ * This keeps the cache maintenance out of the service transformation.
+ */
+public class StreamingCaptureThread extends Thread {
+  public static final int BATCH_SIZE = 1000;
+
+  private LogChannelInterface log;
+  private StreamingRowQueue queue;
+  private StreamingCapture capture;
+
+  private volatile boolean stopped;
+
+  public StreamingCaptureThread( LogChannelInterface log, StreamingRowQueue queue, StreamingCapture capture ) {
+    super( "Streaming capture of " + capture.getCacheName() );
+    setDaemon( true );
+    this.log = log;
+    this.queue = queue;
+    this.capture = capture;
+  }
+
+  @Override
+  public void run() {
+    List<StreamingTimedNumberedRow> batch = new ArrayList<StreamingTimedNumberedRow>( BATCH_SIZE );
+    while ( true ) {
+      boolean lastBatch = stopped;
+      batch.clear();
+      queue.drainTo( batch, BATCH_SIZE );
+      if ( batch.isEmpty() ) {
+        if ( lastBatch ) {
+          break;
+        }
+        queue.awaitRows();
+        continue;
+      }
+      try {
+        capture.addRows( batch );
+        capture.flush();
+      } catch ( Exception e ) {
+        log.logError( "Error adding " + batch.size() + " rows to streaming cache '" + capture.getCacheName() + "'", e );
+      }
+    }
+    if ( queue.getDroppedRows() > 0 ) {
+      log.logBasic( queue.getDroppedRows() + " rows were dropped because the capture queue of streaming cache '" + capture.getCacheName() + "' was full" );
+    }
+  }
+
+  /**
+   * Add the remaining queued rows to the cache and stop. Waits until this is done.
+   *
+   * @throws InterruptedException
+   */
+  public void stopCapture() throws InterruptedException {
+    stopped = true;
+    queue.wakeUp();
+    join();
+  }
+
+  public StreamingRowQueue getQueue() {
+    return queue;
+  }
+}
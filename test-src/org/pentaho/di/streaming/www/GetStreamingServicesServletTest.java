@@ -0,0 +1,104 @@
+package org.pentaho.di.streaming.www;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.streaming.www.cache.StreamingCacheEntry;
+import org.pentaho.di.streaming.www.cache.StreamingCacheQuery;
+import org.pentaho.di.streaming.www.cache.StreamingTimedNumberedRow;
+
+public class GetStreamingServicesServletTest {
+  private StreamingCacheEntry entry;
+
+  @Before
+  public void setUp() {
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    entry = new StreamingCacheEntry( rowMeta, -1 );
+    for ( long id = 1; id <= 10; id++ ) {
+      entry.addRow( new StreamingTimedNumberedRow( id, new Object[] { id } ) );
+    }
+  }
+
+  private static Map<String, String[]> parameters( String... nameValues ) {
+    Map<String, String[]> parameters = new HashMap<String, String[]>();
+    for ( int i = 0; i < nameValues.length; i += 2 ) {
+      parameters.put( nameValues[i], new String[] { nameValues[i + 1] } );
+    }
+    return parameters;
+  }
+
+  @Test
+  public void testETagOfIdenticalRequests() throws Exception {
+    String eTag = GetStreamingServicesServlet.getETag( parameters( "service", "s", "last", "5" ), entry );
+    assertTrue( eTag.startsWith( "W/\"" ) );
+    assertEquals( eTag, GetStreamingServicesServlet.getETag( parameters( "last", "5", "service", "s", "other", "x" ), entry ) );
+  }
+
+  @Test
+  public void testETagOfDifferentRequests() throws Exception {
+    String eTag = GetStreamingServicesServlet.getETag( parameters( "service", "s", "last", "5" ), entry );
+    String[] names = { "service", "last", "lastPeriod", "fromId", "toId", "new", "maxWait", "binary", "framed", "keyField",
+      "key", "fields", "filter", "schema" };
+    for ( String name : names ) {
+      Map<String, String[]> parameters = parameters( "service", "s", "last", "5" );
+      parameters.put( name, new String[] { "changed" } );
+      assertFalse( name, eTag.equals( GetStreamingServicesServlet.getETag( parameters, entry ) ) );
+    }
+  }
+
+  @Test
+  public void testETagChangesWithTheRows() throws Exception {
+    Map<String, String[]> parameters = parameters( "service", "s", "last", "5" );
+    String eTag = GetStreamingServicesServlet.getETag( parameters, entry );
+    entry.addRow( new StreamingTimedNumberedRow( 11, new Object[] { 11L } ) );
+    assertFalse( eTag.equals( GetStreamingServicesServlet.getETag( parameters, entry ) ) );
+  }
+
+  @Test
+  public void testMatchesETag() throws Exception {
+    String eTag = GetStreamingServicesServlet.getETag( parameters( "service", "s" ), entry );
+    String opaqueTag = eTag.substring( 2 );
+
+    assertFalse( GetStreamingServicesServlet.matchesETag( null, eTag ) );
+    assertTrue( GetStreamingServicesServlet.matchesETag( eTag, eTag ) );
+    assertTrue( GetStreamingServicesServlet.matchesETag( opaqueTag, eTag ) );
+    assertTrue( GetStreamingServicesServlet.matchesETag( "\"other\", " + eTag, eTag ) );
+    assertTrue( GetStreamingServicesServlet.matchesETag( "*", eTag ) );
+    assertFalse( GetStreamingServicesServlet.matchesETag( "\"other\"", eTag ) );
+  }
+
+  @Test
+  public void testSharingIsLimitedByRows() {
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    StreamingCacheEntry large = new StreamingCacheEntry( rowMeta, -1 );
+    int nrRows = 2 * GetStreamingServicesServlet.MAX_SHARED_ROWS;
+    for ( long id = 1; id <= nrRows; id++ ) {
+      // 100 rows a second
+      large.addRow( new StreamingTimedNumberedRow( id, id * 10L, new Object[] { id } ) );
+    }
+
+    assertTrue( GetStreamingServicesServlet.isShareable( large, new StreamingCacheQuery( 100, -1, -1L, -1L, -1, -1, 0L ) ) );
+    assertFalse( GetStreamingServicesServlet.isShareable( large, new StreamingCacheQuery( nrRows, -1, -1L, -1L, -1, -1, 0L ) ) );
+    assertTrue( GetStreamingServicesServlet.isShareable( large, new StreamingCacheQuery( -1, 10, -1L, -1L, -1, -1, 0L ) ) );
+    assertFalse( GetStreamingServicesServlet.isShareable( large, new StreamingCacheQuery( -1, 150, -1L, -1L, -1, -1, 0L ) ) );
+    assertTrue( GetStreamingServicesServlet.isShareable( large, new StreamingCacheQuery( -1, -1, 100L, 199L, -1, -1, 0L ) ) );
+    assertFalse( GetStreamingServicesServlet.isShareable( large, new StreamingCacheQuery( -1, -1, 1L, nrRows, -1, -1, 0L ) ) );
+    assertFalse( GetStreamingServicesServlet.isShareable( large, new StreamingCacheQuery() ) );
+    assertFalse( GetStreamingServicesServlet.isShareable( large, new StreamingCacheQuery( -1, -1, 100L, -1L, 10, 5, 0L ) ) );
+
+    // A small cache can be shared as a whole
+    //
+    assertTrue( GetStreamingServicesServlet.isShareable( entry, new StreamingCacheQuery() ) );
+  }
+}
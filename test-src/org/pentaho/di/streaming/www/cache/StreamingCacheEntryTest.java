@@ -0,0 +1,263 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class StreamingCacheEntryTest {
+  private static final int NR_ROWS = 200000;
+  private static final int NR_KEYS = 10;
+
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+  }
+
+  private static StreamingTimedNumberedRow createRow( long id ) {
+    return new StreamingTimedNumberedRow( id, 1000L + id, new Object[] { id, "region" + ( id % NR_KEYS ) } );
+  }
+
+  private static void addRows( StreamingCacheEntry entry, long from, long to ) {
+    List<StreamingTimedNumberedRow> rows = new ArrayList<StreamingTimedNumberedRow>();
+    for ( long id = from; id < to; id++ ) {
+      rows.add( createRow( id ) );
+    }
+    entry.addRows( rows );
+  }
+
+  /**
+   * A row read while it's being evicted must never be mixed up with the row which replaces it in the store
+   */
+  private static void assertRow( StreamingTimedNumberedRow row ) {
+    long id = row.getId();
+    assertEquals( 1000L + id, row.getTime() );
+    assertEquals( Long.valueOf( id ), row.getRow()[0] );
+    assertEquals( "region" + ( id % NR_KEYS ), row.getRow()[1] );
+  }
+
+  private static void assertRows( List<StreamingTimedNumberedRow> rows, long step ) {
+    for ( int i = 0; i < rows.size(); i++ ) {
+      assertRow( rows.get( i ) );
+      if ( i > 0 ) {
+        assertEquals( rows.get( i - 1 ).getId() + step, rows.get( i ).getId() );
+      }
+    }
+  }
+
+  /**
+   * Readers racing the eviction skip the rows evicted before they got to them, anywhere in their range
+   */
+  private static void assertOrdered( List<StreamingTimedNumberedRow> rows, long step ) {
+    for ( int i = 0; i < rows.size(); i++ ) {
+      assertRow( rows.get( i ) );
+      if ( i > 0 ) {
+        long gap = rows.get( i ).getId() - rows.get( i - 1 ).getId();
+        assertTrue( gap > 0 && gap % step == 0 );
+      }
+    }
+  }
+
+  @Test
+  public void testFindRows() {
+    StreamingCacheEntry entry = new StreamingCacheEntry( rowMeta, -1 );
+    addRows( entry, 1, 101 );
+
+    assertEquals( 100, entry.findRows( LogChannel.GENERAL, new StreamingCacheQuery() ).size() );
+    List<StreamingTimedNumberedRow> rows = entry.findRows( LogChannel.GENERAL, new StreamingCacheQuery( 10, -1, -1L, -1L, -1, -1, 0L ) );
+    assertEquals( 10, rows.size() );
+    assertEquals( 91L, rows.get( 0 ).getId() );
+    rows = entry.findRows( LogChannel.GENERAL, new StreamingCacheQuery( -1, -1, 20L, 29L, -1, -1, 0L ) );
+    assertEquals( 10, rows.size() );
+    assertEquals( 20L, rows.get( 0 ).getId() );
+
+    // Not enough new rows yet
+    //
+    assertNull( entry.findRows( LogChannel.GENERAL, new StreamingCacheQuery( 10, -1, 95L, -1L, 10, -1, 0L ) ) );
+  }
+
+  @Test
+  public void testIteratorSkipsEvictedRows() {
+    StreamingCacheEntry entry = new StreamingCacheEntry( rowMeta, -1 );
+    addRows( entry, 1, 101 );
+    Iterator<StreamingTimedNumberedRow> rows = entry.getIterator();
+    assertEquals( 1L, rows.next().getId() );
+
+    entry.removeOlderThan( 1000L + 50 );
+    addRows( entry, 101, 111 );
+
+    // The snapshot doesn't include the new rows
+    //
+    List<StreamingTimedNumberedRow> left = new ArrayList<StreamingTimedNumberedRow>();
+    while ( rows.hasNext() ) {
+      left.add( rows.next() );
+    }
+    assertEquals( 51, left.size() );
+    assertEquals( 50L, left.get( 0 ).getId() );
+    assertRows( left, 1L );
+  }
+
+  @Test
+  public void testWaitForId() throws Exception {
+    final StreamingCacheEntry entry = new StreamingCacheEntry( rowMeta, -1 );
+    addRows( entry, 1, 11 );
+    assertTrue( entry.waitForId( 10L, 10L ) );
+    assertFalse( entry.waitForId( 11L, 10L ) );
+
+    Thread writer = new Thread() {
+      public void run() {
+        addRows( entry, 11, 21 );
+      }
+    };
+    writer.start();
+    assertTrue( entry.waitForId( 20L, 10000L ) );
+    writer.join();
+  }
+
+  @Test
+  public void testOptimisticReadsOfTheObjectStore() throws Exception {
+    testConcurrentEviction( new StreamingCacheEntry( rowMeta, new StreamingObjectRowStore( 1000 ) ) );
+  }
+
+  @Test
+  public void testOptimisticReadsOfTheColumnarStore() throws Exception {
+    testConcurrentEviction( new StreamingCacheEntry( rowMeta, new StreamingColumnarRowStore( rowMeta, 1000 ) ) );
+  }
+
+  @Test
+  public void testOptimisticReadsUnderAMemoryBudget() throws Exception {
+    StreamingCacheEntry entry = new StreamingCacheEntry( rowMeta, -1 );
+    entry.setMaxBytes( 64 * 1024 );
+    testConcurrentEviction( entry );
+    assertTrue( entry.getByteSize() <= 64 * 1024 );
+  }
+
+  /**
+   * One writer adds rows, evicting the oldest ones as it goes, while a sweeper evicts by age and readers query the
+   * cache by range, by key and by iterating.  Every row read has to be consistent and in order.
+   */
+  private void testConcurrentEviction( final StreamingCacheEntry entry ) throws Exception {
+    entry.addIndex( "region" );
+    final AtomicBoolean done = new AtomicBoolean( false );
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          for ( long id = 1; id <= NR_ROWS; id += 100 ) {
+            addRows( entry, id, id + 100 );
+          }
+        } catch ( Throwable e ) {
+          failure.compareAndSet( null, e );
+        } finally {
+          done.set( true );
+        }
+      }
+    };
+    Thread sweeper = new Thread() {
+      public void run() {
+        try {
+          while ( !done.get() ) {
+            long lastId = entry.getLastId();
+            if ( lastId > 500 ) {
+              entry.removeOlderThan( 1000L + lastId - 500 );
+            }
+            Thread.yield();
+          }
+        } catch ( Throwable e ) {
+          failure.compareAndSet( null, e );
+        }
+      }
+    };
+    List<Thread> readers = new ArrayList<Thread>();
+    for ( int i = 0; i < 3; i++ ) {
+      final int type = i;
+      readers.add( new Thread() {
+        public void run() {
+          try {
+            while ( !done.get() ) {
+              read( entry, type );
+            }
+          } catch ( Throwable e ) {
+            failure.compareAndSet( null, e );
+          }
+        }
+      } );
+    }
+
+    writer.start();
+    sweeper.start();
+    for ( Thread reader : readers ) {
+      reader.start();
+    }
+    writer.join();
+    sweeper.join();
+    for ( Thread reader : readers ) {
+      reader.join();
+    }
+    if ( failure.get() != null ) {
+      throw new AssertionError( failure.get() );
+    }
+
+    assertEquals( (long) NR_ROWS, entry.getLastId() );
+    assertTrue( entry.size() <= 1000 );
+    List<StreamingTimedNumberedRow> rows = entry.findRows( LogChannel.GENERAL, new StreamingCacheQuery() );
+    assertRows( rows, 1L );
+
+    // The index only holds the rows left
+    //
+    int nrKeyRows = 0;
+    for ( StreamingTimedNumberedRow row : rows ) {
+      if ( row.getId() % NR_KEYS == 0 ) {
+        nrKeyRows++;
+      }
+    }
+    assertEquals( nrKeyRows, entry.getIndex( "region" ).getPositions( "region0", 0L, Long.MAX_VALUE ).length );
+  }
+
+  private static void read( StreamingCacheEntry entry, int type ) {
+    switch ( type ) {
+      case 0:
+        List<StreamingTimedNumberedRow> rows = entry.findRows( LogChannel.GENERAL, new StreamingCacheQuery( 200, -1, -1L, -1L, -1, -1, 0L ) );
+        assertTrue( rows.size() <= 200 );
+        assertOrdered( rows, 1L );
+        break;
+      case 1:
+        StreamingCacheQuery query = new StreamingCacheQuery();
+        query.setKeyField( "region" );
+        query.setKeyValue( "region3" );
+        List<StreamingTimedNumberedRow> keyRows = entry.findRows( LogChannel.GENERAL, query );
+        assertOrdered( keyRows, NR_KEYS );
+        for ( StreamingTimedNumberedRow row : keyRows ) {
+          assertEquals( 3L, row.getId() % NR_KEYS );
+        }
+        break;
+      default:
+        Iterator<StreamingTimedNumberedRow> iterator = entry.getIterator();
+        List<StreamingTimedNumberedRow> iterated = new ArrayList<StreamingTimedNumberedRow>();
+        while ( iterator.hasNext() ) {
+          iterated.add( iterator.next() );
+        }
+        assertOrdered( iterated, 1L );
+        break;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class StreamingCacheTest {
+  private RowMetaInterface rowMeta;
+  private StreamingCache cache;
+  private String serviceName;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+
+    cache = StreamingCache.getInstance();
+    serviceName = "flip-test-" + UUID.randomUUID();
+  }
+
+  private StreamingCacheEntry createEntry( StreamingRowStore rowStore, int nrRows ) {
+    StreamingCacheEntry entry = new StreamingCacheEntry( rowMeta, rowStore );
+    for ( long id = 1; id <= nrRows; id++ ) {
+      entry.addRow( new StreamingTimedNumberedRow( id, 1000L + id, new Object[] { id, "region" + ( id % 3 ) } ) );
+    }
+    return entry;
+  }
+
+  private static int count( Iterator<StreamingTimedNumberedRow> rows ) {
+    int nrRows = 0;
+    long lastId = 0L;
+    while ( rows.hasNext() ) {
+      long id = rows.next().getId();
+      assertEquals( lastId + 1, id );
+      lastId = id;
+      nrRows++;
+    }
+    return nrRows;
+  }
+
+  @Test
+  public void testFlipKeepsTheRowsForReaders() {
+    StreamingCacheEntry old = createEntry( new StreamingObjectRowStore( -1 ), 1000 );
+    cache.put( serviceName, old );
+    assertSame( old, cache.acquire( serviceName ) );
+    Iterator<StreamingTimedNumberedRow> rows = old.getIterator();
+
+    StreamingCacheEntry flipped = createEntry( new StreamingObjectRowStore( -1 ), 10 );
+    cache.put( serviceName, flipped );
+    assertTrue( old.isDropped() );
+    assertFalse( flipped.isDropped() );
+
+    // The reader of the old cache gets all its rows
+    //
+    assertEquals( 1000, count( rows ) );
+    assertEquals( 1000, old.size() );
+
+    old.release();
+    assertEquals( 0, old.size() );
+    assertFalse( old.acquire() );
+
+    // New readers get the new cache
+    //
+    assertSame( flipped, cache.acquire( serviceName ) );
+    flipped.release();
+    cache.remove( serviceName );
+  }
+
+  @Test
+  public void testRemoveWithoutReadersReleasesTheRows() {
+    StreamingCacheEntry entry = createEntry( new StreamingObjectRowStore( -1 ), 100 );
+    cache.put( serviceName, entry );
+    cache.remove( serviceName );
+
+    assertEquals( 0, entry.size() );
+    assertNull( cache.acquire( serviceName ) );
+  }
+
+  @Test
+  public void testLastReaderReleasesTheRows() {
+    StreamingCacheEntry entry = createEntry( new StreamingObjectRowStore( -1 ), 100 );
+    cache.put( serviceName, entry );
+    assertSame( entry, cache.acquire( serviceName ) );
+    assertSame( entry, cache.acquire( serviceName ) );
+    cache.remove( serviceName );
+
+    entry.release();
+    assertEquals( 100, entry.size() );
+    entry.release();
+    assertEquals( 0, entry.size() );
+  }
+
+  @Test
+  public void testListenersAreToldOfTheDrop() {
+    final int[] dropped = new int[1];
+    StreamingCacheEntry entry = createEntry( new StreamingObjectRowStore( -1 ), 10 );
+    entry.addListener( new StreamingCacheAdapter() {
+      @Override
+      public void cacheDropped( StreamingCacheEntry cacheEntry ) {
+        dropped[0]++;
+      }
+    } );
+    cache.put( serviceName, entry );
+    cache.put( serviceName, entry );
+    assertEquals( 0, dropped[0] );
+
+    cache.remove( serviceName );
+    assertEquals( 1, dropped[0] );
+  }
+
+  @Test
+  public void testTrimToBudget() {
+    long maxBytes = cache.getMaxBytes();
+    String otherName = serviceName + "-other";
+    try {
+      StreamingCacheEntry other = createEntry( new StreamingObjectRowStore( -1 ), 500 );
+      long rowBytes = other.getByteSize() / 500;
+      long budget = 4 * other.getByteSize();
+      cache.setMaxBytes( budget );
+      cache.put( otherName, other );
+
+      StreamingCacheEntry entry = createEntry( new StreamingObjectRowStore( -1 ), 0 );
+      cache.put( serviceName, entry );
+      long freed = 0L;
+      for ( long id = 1; id <= 10000; id++ ) {
+        entry.addRow( new StreamingTimedNumberedRow( id, 1000L + id, new Object[] { id, "region" + ( id % 3 ) } ) );
+        freed += cache.trimToBudget( entry );
+        assertTrue( cache.getByteSize() <= budget + 2 * rowBytes );
+      }
+
+      // Only the entry over its fair share is trimmed
+      //
+      assertTrue( freed > 0 );
+      assertEquals( 500, other.size() );
+      assertTrue( entry.getByteSize() >= budget / cache.getCache().size() );
+      assertEquals( 10000L, entry.getLastId() );
+    } finally {
+      cache.setMaxBytes( maxBytes );
+      cache.remove( serviceName );
+      cache.remove( otherName );
+    }
+  }
+
+  @Test
+  public void testSegmentFilesAreKeptUntilTheLastReaderIsDone() throws Exception {
+    File parent = File.createTempFile( "streaming-flip-test", "" );
+    parent.delete();
+    parent.mkdirs();
+    try {
+      int nrRows = 2 * StreamingTieredRowStore.SEGMENT_ROWS + 100;
+      StreamingCacheEntry entry = createEntry( new StreamingTieredRowStore( rowMeta, -1, 100, parent.getPath() ), nrRows );
+      cache.put( serviceName, entry );
+      assertSame( entry, cache.acquire( serviceName ) );
+      Iterator<StreamingTimedNumberedRow> rows = entry.getIterator();
+
+      cache.remove( serviceName );
+      assertEquals( 1, parent.list().length );
+      assertEquals( nrRows, count( rows ) );
+
+      entry.release();
+      assertEquals( 0, parent.list().length );
+    } finally {
+      cache.remove( serviceName );
+      File[] files = parent.listFiles();
+      if ( files != null && files.length == 0 ) {
+        parent.delete();
+      }
+    }
+  }
+}
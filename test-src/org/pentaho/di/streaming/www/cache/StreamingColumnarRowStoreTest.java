@@ -0,0 +1,124 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class StreamingColumnarRowStoreTest {
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "amount" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "date" ) );
+    rowMeta.addValueMeta( new ValueMetaBoolean( "flag" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+  }
+
+  private static Object[] createRow( long id ) {
+    if ( id % 7 == 0 ) {
+      return new Object[] { id, null, null, null, null };
+    }
+    return new Object[] { id, id * 1.5, new Date( 1000L * id ), id % 2 == 0, "region" + ( id % 3 ) };
+  }
+
+  private static void add( StreamingRowStore store, long from, long to ) {
+    for ( long id = from; id < to; id++ ) {
+      store.add( new StreamingTimedNumberedRow( id, 1000L + id, createRow( id ) ) );
+    }
+  }
+
+  private static void assertRows( StreamingRowStore store, long firstId ) {
+    for ( long position = store.getFirstPosition(); position < store.getLastPosition(); position++ ) {
+      long id = firstId + position - store.getFirstPosition();
+      StreamingTimedNumberedRow row = store.get( position );
+      assertEquals( id, row.getId() );
+      assertEquals( 1000L + id, row.getTime() );
+      Object[] expected = createRow( id );
+      for ( int i = 0; i < expected.length; i++ ) {
+        assertEquals( "id " + id + " column " + i, expected[i], row.getRow()[i] );
+      }
+    }
+  }
+
+  @Test
+  public void testRowsOfAllColumnTypes() {
+    StreamingColumnarRowStore store = new StreamingColumnarRowStore( rowMeta, -1 );
+    add( store, 0, 10000 );
+
+    assertEquals( 10000, store.size() );
+    assertRows( store, 0 );
+    assertTrue( store.getByteSize() > 0 );
+  }
+
+  @Test
+  public void testMaxCapacityEvictsTheOldestRows() {
+    StreamingColumnarRowStore store = new StreamingColumnarRowStore( rowMeta, 1000 );
+    add( store, 0, 3500 );
+
+    assertEquals( 1000, store.size() );
+    assertRows( store, 2500 );
+
+    store.removeFirst( 500 );
+    assertEquals( 500, store.size() );
+    assertRows( store, 3000 );
+
+    // Evicted slots are reused without leaking old values
+    //
+    add( store, 3500, 4000 );
+    assertRows( store, 3000 );
+  }
+
+  @Test
+  public void testUnexpectedTypesAreKeptAsObjects() {
+    StreamingColumnarRowStore store = new StreamingColumnarRowStore( rowMeta, -1 );
+    add( store, 0, 100 );
+    Timestamp timestamp = new Timestamp( 123456789L );
+    timestamp.setNanos( 123456789 );
+    store.add( new StreamingTimedNumberedRow( 100L, 1100L, new Object[] { "not a number", 1L, timestamp, "yes", 42L } ) );
+    add( store, 101, 200 );
+
+    Object[] row = store.get( 100L ).getRow();
+    assertEquals( "not a number", row[0] );
+    assertEquals( 1L, row[1] );
+    assertEquals( Timestamp.class, row[2].getClass() );
+    assertEquals( timestamp, row[2] );
+    assertEquals( "yes", row[3] );
+    assertEquals( 42L, row[4] );
+
+    // The rows before and after are still intact
+    //
+    assertEquals( Long.valueOf( 99L ), store.get( 99L ).getRow()[0] );
+    assertEquals( Long.valueOf( 101L ), store.get( 101L ).getRow()[0] );
+    assertEquals( "region1", store.get( 199L ).getRow()[4] );
+  }
+
+  @Test
+  public void testFullDictionaryKeepsTheStrings() {
+    StreamingColumnarRowStore store = new StreamingColumnarRowStore( rowMeta, -1 );
+    int nrRows = StreamingColumnarRowStore.DEFAULT_DICTIONARY_SIZE + 1000;
+    for ( long id = 0; id < nrRows; id++ ) {
+      store.add( new StreamingTimedNumberedRow( id, 1000L + id, new Object[] { id, null, null, null, "key" + id } ) );
+    }
+
+    assertEquals( nrRows, store.size() );
+    assertEquals( "key0", store.get( 0L ).getRow()[4] );
+    assertEquals( "key" + ( nrRows - 1 ), store.get( nrRows - 1 ).getRow()[4] );
+    assertNull( store.get( 10L ).getRow()[1] );
+  }
+}
@@ -0,0 +1,53 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StreamingHyperLogLogTest {
+
+  /** A few times the standard error of the sketch */
+  private static final double TOLERANCE = 0.05;
+
+  @Test
+  public void testEmpty() {
+    assertEquals( 0L, new StreamingHyperLogLog().estimate() );
+  }
+
+  @Test
+  public void testSmallCardinality() {
+    StreamingHyperLogLog sketch = new StreamingHyperLogLog();
+    for ( int repeat = 0; repeat < 10; repeat++ ) {
+      for ( int i = 0; i < 100; i++ ) {
+        sketch.add( "value" + i );
+      }
+    }
+    assertEquals( 100.0, sketch.estimate(), 100.0 * TOLERANCE );
+  }
+
+  @Test
+  public void testLargeCardinality() {
+    for ( int cardinality : new int[] { 1000, 10000, 100000, 1000000 } ) {
+      StreamingHyperLogLog sketch = new StreamingHyperLogLog();
+      for ( int i = 0; i < cardinality; i++ ) {
+        sketch.add( "user-" + i );
+      }
+      assertEquals( "cardinality " + cardinality, cardinality, sketch.estimate(), cardinality * TOLERANCE );
+    }
+  }
+
+  @Test
+  public void testMerge() {
+    StreamingHyperLogLog first = new StreamingHyperLogLog();
+    StreamingHyperLogLog second = new StreamingHyperLogLog();
+    for ( int i = 0; i < 60000; i++ ) {
+      first.add( "user-" + i );
+    }
+    for ( int i = 40000; i < 100000; i++ ) {
+      second.add( "user-" + i );
+    }
+    first.merge( second );
+    assertEquals( 100000.0, first.estimate(), 100000.0 * TOLERANCE );
+    assertEquals( 60000.0, second.estimate(), 60000.0 * TOLERANCE );
+  }
+}
@@ -0,0 +1,106 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+
+public class StreamingJournalTest {
+  private RowMetaInterface rowMeta;
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+
+    directory = File.createTempFile( "streaming-journal-test", "" );
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+    if ( files != null ) {
+      for ( File file : files ) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private static List<StreamingTimedNumberedRow> rows( long from, long to ) {
+    List<StreamingTimedNumberedRow> rows = new ArrayList<StreamingTimedNumberedRow>();
+    for ( long id = from; id < to; id++ ) {
+      rows.add( new StreamingTimedNumberedRow( id, 1000L + id, new Object[] { id } ) );
+    }
+    return rows;
+  }
+
+  private long getJournalLength() {
+    File[] files = directory.listFiles();
+    assertEquals( 1, files.length );
+    return files[0].length();
+  }
+
+  @Test
+  public void testAppendsAreBufferedUntilFlushed() throws Exception {
+    StreamingJournal journal = new StreamingJournal( directory.getPath(), "service", StreamingJournalSyncPolicy.INTERVAL, -1L );
+    journal.append( rowMeta, rows( 1, 11 ) );
+    journal.append( rowMeta, rows( 11, 21 ) );
+    long length = getJournalLength();
+
+    journal.append( rowMeta, rows( 21, 31 ) );
+    assertEquals( length, getJournalLength() );
+
+    journal.flush();
+    assertTrue( getJournalLength() > length );
+    journal.close();
+  }
+
+  @Test
+  public void testAlwaysWritesEveryAppend() throws Exception {
+    StreamingJournal journal = new StreamingJournal( directory.getPath(), "service", StreamingJournalSyncPolicy.ALWAYS, -1L );
+    journal.append( rowMeta, rows( 1, 11 ) );
+    long length = getJournalLength();
+    assertTrue( length > 0 );
+
+    journal.append( rowMeta, rows( 11, 21 ) );
+    assertTrue( getJournalLength() > length );
+    journal.close();
+  }
+
+  @Test( timeout = 10000 )
+  public void testBufferedRowsAreWrittenWithoutNewRows() throws Exception {
+    StreamingJournal journal = new StreamingJournal( directory.getPath(), "service", StreamingJournalSyncPolicy.NEVER, -1L );
+    journal.append( rowMeta, rows( 1, 11 ) );
+    long length = getJournalLength();
+    journal.append( rowMeta, rows( 11, 21 ) );
+
+    while ( getJournalLength() == length ) {
+      Thread.sleep( 50 );
+    }
+    journal.close();
+  }
+
+  @Test
+  public void testCloseWritesTheBufferedRows() throws Exception {
+    StreamingJournal journal = new StreamingJournal( directory.getPath(), "service", StreamingJournalSyncPolicy.INTERVAL, -1L );
+    journal.append( rowMeta, rows( 1, 11 ) );
+    long length = getJournalLength();
+    journal.append( rowMeta, rows( 11, 21 ) );
+
+    journal.close();
+    assertTrue( getJournalLength() > length );
+  }
+}
@@ -0,0 +1,97 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class StreamingKeyIndexTest {
+  private RowMetaInterface rowMeta;
+  private StreamingKeyIndex index;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    index = new StreamingKeyIndex( "region", 0L );
+  }
+
+  private void add( long position, String region ) {
+    index.add( rowMeta, 1, new Object[] { position, region }, position );
+  }
+
+  @Test
+  public void testPositionsOfAKey() {
+    for ( long position = 0; position < 30; position++ ) {
+      add( position, position % 10 == 0 ? null : "region" + ( position % 3 ) );
+    }
+
+    assertEquals( 3, index.getNrKeys() );
+    assertArrayEquals( new long[] { 3, 6, 9, 12, 15, 18, 21, 24, 27 }, index.getPositions( "region0", 0L, 30L ) );
+    assertArrayEquals( new long[] { 12, 15, 18 }, index.getPositions( "region0", 11L, 19L ) );
+    assertArrayEquals( new long[0], index.getPositions( "region0", 28L, 30L ) );
+    assertArrayEquals( new long[0], index.getPositions( "unknown", 0L, 30L ) );
+  }
+
+  @Test
+  public void testRemoveBefore() {
+    for ( long position = 0; position < 30; position++ ) {
+      add( position, position % 10 == 0 ? null : "region" + ( position % 3 ) );
+    }
+
+    index.removeBefore( 10L );
+    assertArrayEquals( new long[] { 12, 15, 18, 21, 24, 27 }, index.getPositions( "region0", 0L, 30L ) );
+    assertArrayEquals( new long[] { 11, 14, 17, 23, 26, 29 }, index.getPositions( "region2", 0L, 30L ) );
+
+    // Keys without positions are dropped
+    //
+    index.removeBefore( 30L );
+    assertEquals( 0, index.getNrKeys() );
+    assertArrayEquals( new long[0], index.getPositions( "region0", 0L, 30L ) );
+  }
+
+  @Test
+  public void testRowsWithoutTheField() {
+    for ( long position = 0; position < 10; position++ ) {
+      index.add( rowMeta, -1, new Object[] { position, "region" }, position );
+    }
+    add( 10L, "region" );
+
+    assertArrayEquals( new long[] { 10 }, index.getPositions( "region", 0L, 11L ) );
+    index.removeBefore( 10L );
+    assertArrayEquals( new long[] { 10 }, index.getPositions( "region", 0L, 11L ) );
+  }
+
+  @Test
+  public void testIndexStartingAfterAnEmptyCache() {
+    index = new StreamingKeyIndex( "region", 0L );
+
+    // The first row indexed determines the position eviction starts from
+    //
+    for ( long position = 1000; position < 1010; position++ ) {
+      add( position, "region" + ( position % 2 ) );
+    }
+    index.removeBefore( 1004L );
+    assertArrayEquals( new long[] { 1004, 1006, 1008 }, index.getPositions( "region0", 0L, 2000L ) );
+  }
+
+  @Test
+  public void testSlidingWindowKeepsTheListsCompact() {
+    // A key seen on every row, added and evicted a row at a time, is compacted in place rather than growing
+    //
+    for ( long position = 0; position < 100000; position++ ) {
+      add( position, "region" );
+      index.removeBefore( position - 99 );
+    }
+    long[] positions = index.getPositions( "region", 0L, Long.MAX_VALUE );
+    assertEquals( 100, positions.length );
+    assertEquals( 99900L, positions[0] );
+    assertEquals( 99999L, positions[99] );
+  }
+}
@@ -0,0 +1,111 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class StreamingOffHeapRowStoreTest {
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+  }
+
+  private static void add( StreamingRowStore store, long from, long to ) {
+    for ( long id = from; id < to; id++ ) {
+      store.add( new StreamingTimedNumberedRow( id, 1000L + id, new Object[] { id, id % 5 == 0 ? null : "region" + ( id % 3 ) } ) );
+    }
+  }
+
+  private static void assertRows( StreamingRowStore store, long firstId ) {
+    for ( long position = store.getFirstPosition(); position < store.getLastPosition(); position++ ) {
+      long id = firstId + position - store.getFirstPosition();
+      StreamingTimedNumberedRow row = store.get( position );
+      assertEquals( id, row.getId() );
+      assertEquals( 1000L + id, row.getTime() );
+      assertEquals( Long.valueOf( id ), row.getRow()[0] );
+      if ( id % 5 == 0 ) {
+        assertNull( row.getRow()[1] );
+      } else {
+        assertEquals( "region" + ( id % 3 ), row.getRow()[1] );
+      }
+    }
+  }
+
+  @Test
+  public void testRowsAcrossSegments() {
+    // Small segments, a few rows each
+    //
+    StreamingOffHeapRowStore store = new StreamingOffHeapRowStore( rowMeta, -1, 100 );
+    add( store, 0, 5000 );
+
+    assertEquals( 5000, store.size() );
+    assertRows( store, 0 );
+    assertEquals( 2500L, store.positionOfId( 2500L ) );
+  }
+
+  @Test
+  public void testRowLargerThanASegment() {
+    StreamingOffHeapRowStore store = new StreamingOffHeapRowStore( rowMeta, -1, 16 );
+    StringBuilder region = new StringBuilder();
+    for ( int i = 0; i < 1000; i++ ) {
+      region.append( 'x' );
+    }
+    add( store, 0, 10 );
+    store.add( new StreamingTimedNumberedRow( 10L, 1010L, new Object[] { 10L, region.toString() } ) );
+    add( store, 11, 20 );
+
+    assertEquals( region.toString(), store.get( 10L ).getRow()[1] );
+    assertEquals( "region0", store.get( 12L ).getRow()[1] );
+    assertEquals( "region1", store.get( 19L ).getRow()[1] );
+  }
+
+  @Test
+  public void testMaxCapacityEvictsTheOldestRows() {
+    StreamingOffHeapRowStore store = new StreamingOffHeapRowStore( rowMeta, 1000, 1024 );
+    add( store, 0, 3500 );
+
+    assertEquals( 1000, store.size() );
+    assertEquals( 2500L, store.getFirstPosition() );
+    assertRows( store, 2500 );
+  }
+
+  @Test
+  public void testByteSizeCountsTheSerializedRows() {
+    StreamingOffHeapRowStore store = new StreamingOffHeapRowStore( rowMeta, -1, 1024 );
+    add( store, 0, 100 );
+    long byteSize = store.getByteSize();
+    assertTrue( byteSize > 0 );
+
+    store.removeFirst( 50 );
+    assertEquals( 50, store.size() );
+    assertTrue( store.getByteSize() < byteSize );
+    assertRows( store, 50 );
+
+    store.clear();
+    assertEquals( 0, store.size() );
+    assertEquals( 0L, store.getByteSize() );
+  }
+
+  @Test
+  public void testRemoveBytes() {
+    StreamingOffHeapRowStore store = new StreamingOffHeapRowStore( rowMeta, -1, 1024 );
+    add( store, 0, 100 );
+    long byteSize = store.getByteSize();
+
+    long freed = store.removeBytes( byteSize / 2 );
+    assertTrue( freed >= byteSize / 2 );
+    assertEquals( byteSize - freed, store.getByteSize() );
+    assertRows( store, 100 - store.size() );
+  }
+}
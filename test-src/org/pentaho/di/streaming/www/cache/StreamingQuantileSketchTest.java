@@ -0,0 +1,100 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StreamingQuantileSketchTest {
+
+  /** The relative accuracy of the sketch */
+  private static final double ACCURACY = 0.01;
+
+  private static void assertQuantile( double expected, double actual ) {
+    assertEquals( expected, actual, Math.abs( expected ) * ACCURACY + 1e-9 );
+  }
+
+  @Test
+  public void testEmpty() {
+    StreamingQuantileSketch sketch = new StreamingQuantileSketch();
+    assertEquals( 0L, sketch.getCount() );
+    assertTrue( Double.isNaN( sketch.getQuantile( 0.5 ) ) );
+  }
+
+  @Test
+  public void testUniform() {
+    StreamingQuantileSketch sketch = new StreamingQuantileSketch();
+    for ( int i = 1; i <= 10000; i++ ) {
+      sketch.add( i );
+    }
+    assertEquals( 10000L, sketch.getCount() );
+    assertEquals( 1.0, sketch.getMin(), 0.0 );
+    assertEquals( 10000.0, sketch.getMax(), 0.0 );
+    assertEquals( 50005000.0, sketch.getSum(), 0.0 );
+
+    assertEquals( 1.0, sketch.getQuantile( 0.0 ), 0.0 );
+    assertEquals( 10000.0, sketch.getQuantile( 1.0 ), 0.0 );
+    assertQuantile( 1000.0, sketch.getQuantile( 0.1 ) );
+    assertQuantile( 5000.0, sketch.getQuantile( 0.5 ) );
+    assertQuantile( 9000.0, sketch.getQuantile( 0.9 ) );
+    assertQuantile( 9900.0, sketch.getQuantile( 0.99 ) );
+  }
+
+  @Test
+  public void testSkewed() {
+    // Exponentially distributed latencies: the quantiles are -ln(1-q) times the mean
+    //
+    Random random = new Random( 1234L );
+    StreamingQuantileSketch sketch = new StreamingQuantileSketch();
+    for ( int i = 0; i < 200000; i++ ) {
+      sketch.add( -100.0 * Math.log( 1.0 - random.nextDouble() ) );
+    }
+    // Allow for the sampling error as well
+    //
+    assertEquals( 69.3, sketch.getQuantile( 0.5 ), 69.3 * 0.03 );
+    assertEquals( 460.5, sketch.getQuantile( 0.99 ), 460.5 * 0.03 );
+  }
+
+  @Test
+  public void testNegativeValuesAndZeros() {
+    StreamingQuantileSketch sketch = new StreamingQuantileSketch();
+    for ( int i = -1000; i <= 1000; i++ ) {
+      sketch.add( i );
+      sketch.add( 0.0 );
+    }
+    assertEquals( 0.0, sketch.getQuantile( 0.5 ), 0.0 );
+    assertQuantile( -1000.0, sketch.getQuantile( 0.0 ) );
+    assertQuantile( -500.0, sketch.getQuantile( 0.125 ) );
+    assertQuantile( 500.0, sketch.getQuantile( 0.875 ) );
+  }
+
+  @Test
+  public void testNaNIsIgnored() {
+    StreamingQuantileSketch sketch = new StreamingQuantileSketch();
+    sketch.add( Double.NaN );
+    sketch.add( 3.0 );
+    assertEquals( 1L, sketch.getCount() );
+    assertEquals( 3.0, sketch.getQuantile( 0.5 ), 0.0 );
+  }
+
+  @Test
+  public void testMerge() {
+    StreamingQuantileSketch first = new StreamingQuantileSketch();
+    StreamingQuantileSketch second = new StreamingQuantileSketch();
+    StreamingQuantileSketch all = new StreamingQuantileSketch();
+    for ( int i = 1; i <= 10000; i++ ) {
+      ( i % 3 == 0 ? first : second ).add( i );
+      all.add( i );
+    }
+    first.merge( second );
+    assertEquals( all.getCount(), first.getCount() );
+    assertEquals( all.getMin(), first.getMin(), 0.0 );
+    assertEquals( all.getMax(), first.getMax(), 0.0 );
+    assertEquals( all.getSum(), first.getSum(), 0.0 );
+    for ( double quantile : new double[] { 0.01, 0.25, 0.5, 0.75, 0.99 } ) {
+      assertEquals( all.getQuantile( quantile ), first.getQuantile( quantile ), 0.0 );
+    }
+  }
+}
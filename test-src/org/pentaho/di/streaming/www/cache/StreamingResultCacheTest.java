@@ -0,0 +1,180 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+
+public class StreamingResultCacheTest {
+
+  private static Callable<byte[]> encoder( final byte[] result, final AtomicInteger calls ) {
+    return new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        calls.incrementAndGet();
+        return result;
+      }
+    };
+  }
+
+  @Test
+  public void testResultIsKept() throws Exception {
+    StreamingResultCache cache = new StreamingResultCache( 10, 1000L );
+    AtomicInteger calls = new AtomicInteger();
+    byte[] result = new byte[] { 1, 2, 3 };
+
+    assertSame( result, cache.get( "a", encoder( result, calls ) ) );
+    assertSame( result, cache.get( "a", encoder( new byte[] { 4 }, calls ) ) );
+    assertEquals( 1, calls.get() );
+    assertEquals( 1L, cache.getHits() );
+    assertEquals( 1L, cache.getMisses() );
+    assertEquals( 3L, cache.getByteSize() );
+  }
+
+  @Test
+  public void testUnsharedResultIsNotKept() throws Exception {
+    StreamingResultCache cache = new StreamingResultCache( 10, 1000L );
+    AtomicInteger calls = new AtomicInteger();
+
+    assertNull( cache.get( "a", encoder( null, calls ) ) );
+    assertNull( cache.get( "a", encoder( null, calls ) ) );
+    assertEquals( 2, calls.get() );
+    assertEquals( 0, cache.size() );
+  }
+
+  @Test
+  public void testLargeResultIsNotKept() throws Exception {
+    StreamingResultCache cache = new StreamingResultCache( 10, 1000L );
+    AtomicInteger calls = new AtomicInteger();
+    byte[] result = new byte[cache.getMaxResultSize() + 1];
+
+    assertSame( result, cache.get( "a", encoder( result, calls ) ) );
+    assertEquals( 0, cache.size() );
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    StreamingResultCache cache = new StreamingResultCache( 2, 1000L );
+    AtomicInteger calls = new AtomicInteger();
+    cache.get( "a", encoder( new byte[] { 1 }, calls ) );
+    cache.get( "b", encoder( new byte[] { 2 }, calls ) );
+    cache.get( "a", encoder( new byte[] { 1 }, calls ) );
+    cache.get( "c", encoder( new byte[] { 3 }, calls ) );
+    assertEquals( 3, calls.get() );
+
+    cache.get( "a", encoder( new byte[] { 1 }, calls ) );
+    assertEquals( 3, calls.get() );
+    cache.get( "b", encoder( new byte[] { 2 }, calls ) );
+    assertEquals( 4, calls.get() );
+    assertEquals( 2, cache.size() );
+  }
+
+  @Test( timeout = 10000 )
+  public void testIdenticalRequestsShareTheEncoding() throws Exception {
+    final StreamingResultCache cache = new StreamingResultCache( 10, 1000L );
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch encoding = new CountDownLatch( 1 );
+    final CountDownLatch proceed = new CountDownLatch( 1 );
+    final byte[] result = new byte[] { 1, 2, 3 };
+
+    Thread leader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          cache.get( "a", new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+              calls.incrementAndGet();
+              encoding.countDown();
+              proceed.await();
+              return result;
+            }
+          } );
+        } catch ( KettleException e ) {
+          // Checked below
+        }
+      }
+    };
+    leader.start();
+    assertTrue( encoding.await( 5, TimeUnit.SECONDS ) );
+
+    final byte[][] followerResult = new byte[1][];
+    Thread follower = new Thread() {
+      @Override
+      public void run() {
+        try {
+          followerResult[0] = cache.get( "a", encoder( new byte[] { 4 }, calls ) );
+        } catch ( KettleException e ) {
+          // Checked below
+        }
+      }
+    };
+    follower.start();
+    while ( cache.getShared() == 0L ) {
+      Thread.sleep( 1 );
+    }
+    proceed.countDown();
+    leader.join();
+    follower.join();
+
+    assertSame( result, followerResult[0] );
+    assertEquals( 1, calls.get() );
+    assertEquals( 1L, cache.getShared() );
+  }
+
+  @Test( timeout = 10000 )
+  public void testFailedEncodingIsNotShared() throws Exception {
+    final StreamingResultCache cache = new StreamingResultCache( 10, 1000L );
+    final CountDownLatch encoding = new CountDownLatch( 1 );
+    final CountDownLatch proceed = new CountDownLatch( 1 );
+    final boolean[] failed = new boolean[] { false };
+
+    Thread leader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          cache.get( "a", new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+              encoding.countDown();
+              proceed.await();
+              throw new KettleException( "Encoding failed" );
+            }
+          } );
+        } catch ( KettleException e ) {
+          failed[0] = true;
+        }
+      }
+    };
+    leader.start();
+    assertTrue( encoding.await( 5, TimeUnit.SECONDS ) );
+
+    final byte[][] followerResult = new byte[][] { new byte[0] };
+    Thread follower = new Thread() {
+      @Override
+      public void run() {
+        try {
+          followerResult[0] = cache.get( "a", encoder( new byte[] { 4 }, new AtomicInteger() ) );
+        } catch ( KettleException e ) {
+          // Checked below
+        }
+      }
+    };
+    follower.start();
+    while ( cache.getShared() == 0L ) {
+      Thread.sleep( 1 );
+    }
+    proceed.countDown();
+    leader.join();
+    follower.join();
+
+    assertTrue( failed[0] );
+    assertNull( followerResult[0] );
+    assertEquals( 0, cache.size() );
+  }
+}
@@ -0,0 +1,124 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StreamingRingBufferTest {
+
+  private static void add( StreamingRingBuffer buffer, long id, long time ) {
+    buffer.add( new StreamingTimedNumberedRow( id, time, new Object[] { id } ) );
+  }
+
+  @Test
+  public void testPositionOfConsecutiveIds() {
+    StreamingRingBuffer buffer = new StreamingObjectRowStore( -1 );
+    assertEquals( 0L, buffer.positionOfId( 5L ) );
+
+    for ( long id = 1; id <= 100; id++ ) {
+      add( buffer, id, 1000L + id );
+    }
+    assertEquals( 0L, buffer.positionOfId( 1L ) );
+    assertEquals( 49L, buffer.positionOfId( 50L ) );
+    assertEquals( 99L, buffer.positionOfId( 100L ) );
+
+    // IDs outside of the buffer
+    //
+    assertEquals( 0L, buffer.positionOfId( -5L ) );
+    assertEquals( 100L, buffer.positionOfId( 101L ) );
+  }
+
+  @Test
+  public void testPositionOfIdsWithGaps() {
+    StreamingRingBuffer buffer = new StreamingObjectRowStore( -1 );
+    for ( long id = 10; id <= 1000; id += 10 ) {
+      add( buffer, id, id );
+    }
+    assertEquals( 0L, buffer.positionOfId( 10L ) );
+    assertEquals( 4L, buffer.positionOfId( 50L ) );
+    assertEquals( 99L, buffer.positionOfId( 1000L ) );
+
+    // A missing ID gives the position of the next row
+    //
+    assertEquals( 5L, buffer.positionOfId( 55L ) );
+    assertEquals( 5L, buffer.positionOfId( 51L ) );
+    assertEquals( 100L, buffer.positionOfId( 1001L ) );
+  }
+
+  @Test
+  public void testPositionOfTime() {
+    StreamingRingBuffer buffer = new StreamingObjectRowStore( -1 );
+    assertEquals( 0L, buffer.positionOfTime( 1000L ) );
+
+    // Three rows per ms
+    //
+    for ( long id = 0; id < 300; id++ ) {
+      add( buffer, id, 1000L + id / 3 );
+    }
+    assertEquals( 0L, buffer.positionOfTime( 0L ) );
+    assertEquals( 0L, buffer.positionOfTime( 1000L ) );
+    assertEquals( 3L, buffer.positionOfTime( 1001L ) );
+    assertEquals( 150L, buffer.positionOfTime( 1050L ) );
+    assertEquals( 297L, buffer.positionOfTime( 1099L ) );
+    assertEquals( 300L, buffer.positionOfTime( 1100L ) );
+  }
+
+  @Test
+  public void testTimeNeverGoesBack() {
+    StreamingRingBuffer buffer = new StreamingObjectRowStore( -1 );
+    add( buffer, 1L, 1000L );
+    add( buffer, 2L, 2000L );
+    add( buffer, 3L, 1500L );
+    add( buffer, 4L, 3000L );
+
+    assertEquals( 2000L, buffer.getTime( 2L ) );
+    assertEquals( 1L, buffer.positionOfTime( 2000L ) );
+    assertEquals( 3L, buffer.positionOfTime( 2001L ) );
+  }
+
+  @Test
+  public void testPositionsAfterWrapping() {
+    StreamingRingBuffer buffer = new StreamingObjectRowStore( 100 );
+    for ( long id = 1; id <= 1050; id++ ) {
+      add( buffer, id, id * 10 );
+    }
+    assertEquals( 100, buffer.size() );
+    assertEquals( 950L, buffer.getFirstPosition() );
+    assertEquals( 1050L, buffer.getLastPosition() );
+    assertEquals( 951L, buffer.get( 950L ).getId() );
+
+    assertEquals( 950L, buffer.positionOfId( 1L ) );
+    assertEquals( 950L, buffer.positionOfId( 951L ) );
+    assertEquals( 1000L, buffer.positionOfId( 1001L ) );
+    assertEquals( 1049L, buffer.positionOfId( 1050L ) );
+    assertEquals( 1050L, buffer.positionOfId( 1051L ) );
+
+    assertEquals( 950L, buffer.positionOfTime( 0L ) );
+    assertEquals( 1000L, buffer.positionOfTime( 10010L ) );
+    assertEquals( 1001L, buffer.positionOfTime( 10011L ) );
+    assertEquals( 1050L, buffer.positionOfTime( 20000L ) );
+  }
+
+  @Test
+  public void testPositionsAfterRemoval() {
+    StreamingRingBuffer buffer = new StreamingObjectRowStore( -1 );
+    for ( long id = 1; id <= 2000; id++ ) {
+      add( buffer, id, id );
+    }
+    assertEquals( 500, buffer.removeOlderThan( 501L ) );
+    buffer.removeFirst( 100 );
+
+    assertEquals( 1400, buffer.size() );
+    assertEquals( 600L, buffer.positionOfId( 1L ) );
+    assertEquals( 600L, buffer.positionOfId( 601L ) );
+    assertEquals( 1999L, buffer.positionOfId( 2000L ) );
+    assertEquals( 600L, buffer.positionOfTime( 1L ) );
+    assertEquals( 1000L, buffer.positionOfTime( 1001L ) );
+
+    buffer.clear();
+    assertEquals( 0, buffer.size() );
+    assertEquals( 0L, buffer.getByteSize() );
+    assertEquals( 2000L, buffer.positionOfId( 1500L ) );
+    assertEquals( 2000L, buffer.positionOfTime( 1500L ) );
+  }
+}
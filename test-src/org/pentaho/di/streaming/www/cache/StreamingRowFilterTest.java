@@ -0,0 +1,167 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class StreamingRowFilterTest {
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "status" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "latency" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "host name" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "load" ) );
+  }
+
+  private boolean matches( String expression, Object... row ) throws Exception {
+    return StreamingRowFilter.parse( expression, rowMeta ).matches( row );
+  }
+
+  @Test
+  public void testComparisons() throws Exception {
+    Object[] row = new Object[] { "ERROR", 250L, "eu", "web1", 0.75 };
+
+    assertTrue( matches( "status = 'ERROR'", row ) );
+    assertFalse( matches( "status = 'error'", row ) );
+    assertTrue( matches( "status != 'OK'", row ) );
+    assertTrue( matches( "status <> 'OK'", row ) );
+    assertTrue( matches( "latency = 250", row ) );
+    assertTrue( matches( "latency >= 250", row ) );
+    assertFalse( matches( "latency > 250", row ) );
+    assertTrue( matches( "latency <= 250", row ) );
+    assertFalse( matches( "latency < 250", row ) );
+    assertTrue( matches( "load < 1", row ) );
+    assertTrue( matches( "load > 0.5", row ) );
+  }
+
+  @Test
+  public void testNumbersAreComparedNumerically() throws Exception {
+    Object[] row = new Object[] { "OK", 9L, null, null, null };
+
+    assertTrue( matches( "latency < 10", row ) );
+    assertTrue( matches( "latency < 10.5", row ) );
+    assertFalse( matches( "latency > 10", row ) );
+  }
+
+  @Test
+  public void testOperatorsWithoutSpaces() throws Exception {
+    Object[] row = new Object[] { "OK", 5L, "us", null, null };
+
+    assertTrue( matches( "latency<=5", row ) );
+    assertTrue( matches( "latency<>6", row ) );
+    assertTrue( matches( "latency!=6", row ) );
+    assertTrue( matches( "(region='us')AND(latency>=5)", row ) );
+  }
+
+  @Test
+  public void testIn() throws Exception {
+    assertTrue( matches( "region IN ( 'eu', 'us' )", "OK", 1L, "us", null, null ) );
+    assertFalse( matches( "region IN ( 'eu', 'us' )", "OK", 1L, "apac", null, null ) );
+    assertTrue( matches( "latency IN ( 1, 2, 3 )", "OK", 2L, null, null, null ) );
+  }
+
+  @Test
+  public void testPrecedence() throws Exception {
+    String expression = "status = 'ERROR' AND ( latency >= 250 OR region IN ( 'eu', 'us' ) )";
+    assertTrue( matches( expression, "ERROR", 300L, "apac", null, null ) );
+    assertTrue( matches( expression, "ERROR", 10L, "eu", null, null ) );
+    assertFalse( matches( expression, "ERROR", 10L, "apac", null, null ) );
+    assertFalse( matches( expression, "OK", 300L, "eu", null, null ) );
+
+    // AND binds stronger than OR
+    //
+    assertTrue( matches( "status = 'OK' OR status = 'ERROR' AND latency > 1000", "OK", 1L, null, null, null ) );
+    assertFalse( matches( "( status = 'OK' OR status = 'ERROR' ) AND latency > 1000", "OK", 1L, null, null, null ) );
+  }
+
+  @Test
+  public void testKeywordsAreCaseInsensitive() throws Exception {
+    assertTrue( matches( "status = 'OK' and not region is null or latency in ( 1 )", "OK", 2L, "eu", null, null ) );
+  }
+
+  @Test
+  public void testNulls() throws Exception {
+    Object[] row = new Object[] { "OK", null, "eu", null, null };
+
+    assertTrue( matches( "latency IS NULL", row ) );
+    assertFalse( matches( "latency IS NOT NULL", row ) );
+    assertTrue( matches( "NOT latency IS NOT NULL", row ) );
+    assertTrue( matches( "region IS NOT NULL", row ) );
+
+    // A null value never matches a comparison
+    //
+    assertFalse( matches( "latency < 1000", row ) );
+    assertFalse( matches( "latency != 1000", row ) );
+    assertTrue( matches( "NOT latency = 1000", row ) );
+  }
+
+  @Test
+  public void testShortRowsHaveNullValues() throws Exception {
+    Object[] row = new Object[] { "OK" };
+
+    assertTrue( matches( "load IS NULL", row ) );
+    assertFalse( matches( "load > 0", row ) );
+  }
+
+  @Test
+  public void testQuoting() throws Exception {
+    assertTrue( matches( "\"host name\" = 'web1'", "OK", 1L, "eu", "web1", null ) );
+    assertTrue( matches( "status = 'it''s'", "it's", 1L, null, null, null ) );
+    assertTrue( matches( "status = 'a AND b'", "a AND b", 1L, null, null, null ) );
+    assertTrue( matches( "status = '(x)'", "(x)", 1L, null, null, null ) );
+  }
+
+  @Test
+  public void testExpression() throws Exception {
+    String expression = "status = 'ERROR'";
+    assertEquals( expression, StreamingRowFilter.parse( expression, rowMeta ).getExpression() );
+  }
+
+  @Test( expected = KettleException.class )
+  public void testUnknownField() throws Exception {
+    StreamingRowFilter.parse( "severity = 'high'", rowMeta );
+  }
+
+  @Test( expected = KettleException.class )
+  public void testUnknownOperator() throws Exception {
+    StreamingRowFilter.parse( "latency ~ 5", rowMeta );
+  }
+
+  @Test( expected = KettleException.class )
+  public void testNumberExpected() throws Exception {
+    StreamingRowFilter.parse( "latency > 'high'", rowMeta );
+  }
+
+  @Test( expected = KettleException.class )
+  public void testMissingClosingQuote() throws Exception {
+    StreamingRowFilter.parse( "status = 'ERROR", rowMeta );
+  }
+
+  @Test( expected = KettleException.class )
+  public void testMissingClosingParenthesis() throws Exception {
+    StreamingRowFilter.parse( "( status = 'ERROR'", rowMeta );
+  }
+
+  @Test( expected = KettleException.class )
+  public void testUnexpectedEnd() throws Exception {
+    StreamingRowFilter.parse( "status = 'ERROR' AND", rowMeta );
+  }
+
+  @Test( expected = KettleException.class )
+  public void testTrailingTokens() throws Exception {
+    StreamingRowFilter.parse( "status = 'ERROR' 'OK'", rowMeta );
+  }
+}
@@ -0,0 +1,156 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StreamingRowQueueTest {
+
+  private static StreamingTimedNumberedRow row( long id ) {
+    return new StreamingTimedNumberedRow( id, new Object[] { id } );
+  }
+
+  private static List<Long> drain( StreamingRowQueue queue ) {
+    List<StreamingTimedNumberedRow> batch = new ArrayList<StreamingTimedNumberedRow>();
+    queue.drainTo( batch, Integer.MAX_VALUE );
+    List<Long> ids = new ArrayList<Long>();
+    for ( StreamingTimedNumberedRow row : batch ) {
+      ids.add( row.getId() );
+    }
+    return ids;
+  }
+
+  @Test
+  public void testFifo() throws Exception {
+    StreamingRowQueue queue = new StreamingRowQueue( 4, StreamingOverflowPolicy.BLOCK );
+    assertTrue( queue.isEmpty() );
+    for ( long id = 1; id <= 3; id++ ) {
+      assertTrue( queue.offer( row( id ) ) );
+    }
+    assertEquals( 3, queue.size() );
+
+    List<StreamingTimedNumberedRow> batch = new ArrayList<StreamingTimedNumberedRow>();
+    assertEquals( 2, queue.drainTo( batch, 2 ) );
+    assertEquals( 1L, batch.get( 0 ).getId() );
+    assertEquals( 2L, batch.get( 1 ).getId() );
+
+    // Wrap around the slots
+    //
+    for ( long id = 4; id <= 6; id++ ) {
+      assertTrue( queue.offer( row( id ) ) );
+    }
+    assertEquals( "[3, 4, 5, 6]", drain( queue ).toString() );
+    assertTrue( queue.isEmpty() );
+    assertEquals( 0L, queue.getDroppedRows() );
+  }
+
+  @Test
+  public void testDefaults() {
+    StreamingRowQueue queue = new StreamingRowQueue( 0, null );
+    assertEquals( StreamingRowQueue.DEFAULT_CAPACITY, queue.getCapacity() );
+    assertEquals( StreamingOverflowPolicy.BLOCK, queue.getOverflowPolicy() );
+  }
+
+  @Test( timeout = 10000 )
+  public void testBlock() throws Exception {
+    final StreamingRowQueue queue = new StreamingRowQueue( 2, StreamingOverflowPolicy.BLOCK );
+    queue.offer( row( 1 ) );
+    queue.offer( row( 2 ) );
+
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          queue.offer( row( 3 ) );
+        } catch ( InterruptedException e ) {
+          // Checked below
+        }
+      }
+    };
+    producer.start();
+    producer.join( 200 );
+    assertTrue( "The producer should wait for room", producer.isAlive() );
+    assertEquals( 2, queue.size() );
+
+    // The producer may add its row while the queue is drained already
+    //
+    List<Long> ids = drain( queue );
+    producer.join();
+    ids.addAll( drain( queue ) );
+    assertEquals( "[1, 2, 3]", ids.toString() );
+    assertEquals( 0L, queue.getDroppedRows() );
+  }
+
+  @Test( timeout = 10000 )
+  public void testBlockInterrupted() throws Exception {
+    final StreamingRowQueue queue = new StreamingRowQueue( 1, StreamingOverflowPolicy.BLOCK );
+    queue.offer( row( 1 ) );
+
+    final boolean[] interrupted = new boolean[] { false };
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          queue.offer( row( 2 ) );
+        } catch ( InterruptedException e ) {
+          interrupted[0] = true;
+        }
+      }
+    };
+    producer.start();
+    producer.interrupt();
+    producer.join();
+    assertTrue( interrupted[0] );
+    assertEquals( "[1]", drain( queue ).toString() );
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    StreamingRowQueue queue = new StreamingRowQueue( 4, StreamingOverflowPolicy.DROP_OLDEST );
+    for ( long id = 1; id <= 10; id++ ) {
+      assertTrue( queue.offer( row( id ) ) );
+    }
+    assertEquals( 4, queue.size() );
+    assertEquals( 6L, queue.getDroppedRows() );
+    assertEquals( "[7, 8, 9, 10]", drain( queue ).toString() );
+  }
+
+  @Test
+  public void testSample() throws Exception {
+    StreamingRowQueue queue = new StreamingRowQueue( 10, StreamingOverflowPolicy.SAMPLE );
+
+    // Every row is queued until the queue is half full...
+    //
+    for ( long id = 1; id <= 6; id++ ) {
+      assertTrue( queue.offer( row( id ) ) );
+    }
+    // ... then only one out of SAMPLE_INTERVAL rows
+    //
+    int queued = 0;
+    for ( long id = 7; id < 7 + StreamingRowQueue.SAMPLE_INTERVAL; id++ ) {
+      if ( queue.offer( row( id ) ) ) {
+        queued++;
+      }
+    }
+    assertEquals( 1, queued );
+    assertEquals( StreamingRowQueue.SAMPLE_INTERVAL - 1, queue.getDroppedRows() );
+
+    // A full queue drops every new row
+    //
+    for ( long id = 100; id < 1000; id++ ) {
+      queue.offer( row( id ) );
+    }
+    assertEquals( 10, queue.size() );
+    assertFalse( queue.offer( row( 1000 ) ) );
+    long offered = 6 + StreamingRowQueue.SAMPLE_INTERVAL + 900 + 1;
+    assertEquals( offered - queue.size(), queue.getDroppedRows() );
+
+    List<Long> ids = drain( queue );
+    assertEquals( "[1, 2, 3, 4, 5, 6, 7]", ids.subList( 0, 7 ).toString() );
+  }
+}
@@ -0,0 +1,133 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class StreamingSegmentCodecTest {
+  private static final int NR_ROWS = 1000;
+
+  private RowMetaInterface rowMeta;
+  private long[] ids;
+  private long[] times;
+  private List<Object[]> rows;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "message" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "latency" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "load" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "timestamp" ) );
+
+    ids = new long[NR_ROWS];
+    times = new long[NR_ROWS];
+    rows = new ArrayList<Object[]>();
+    for ( int i = 0; i < NR_ROWS; i++ ) {
+      // A gap in the IDs and times that stand still or jump ahead
+      //
+      ids[i] = 1000L + i + ( i >= 500 ? 100 : 0 );
+      times[i] = 1400000000000L + i / 3 * 7 + ( i >= 700 ? 60000 : 0 );
+
+      String region = i % 10 == 0 ? null : "region" + ( i % 4 );
+      String message = "message " + i;
+      Long latency = i % 7 == 0 ? null : Long.valueOf( -i * 1000L );
+      Double load = i % 5 == 0 ? null : Double.valueOf( i / 3.0 );
+      Date timestamp = new Date( times[i] );
+      rows.add( new Object[] { region, message, latency, load, timestamp } );
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ByteBuffer segment = ByteBuffer.wrap( StreamingSegmentCodec.encode( rowMeta, ids, times, rows ) );
+
+    assertEquals( NR_ROWS, StreamingSegmentCodec.getNrRows( segment ) );
+
+    long[][] idsAndTimes = StreamingSegmentCodec.decodeIdsAndTimes( segment );
+    assertArrayEquals( ids, idsAndTimes[0] );
+    assertArrayEquals( times, idsAndTimes[1] );
+
+    Object[][] columns = StreamingSegmentCodec.decodeColumns( segment, rowMeta );
+    assertEquals( rowMeta.size(), columns.length );
+    for ( int column = 0; column < columns.length; column++ ) {
+      assertEquals( NR_ROWS, columns[column].length );
+      for ( int i = 0; i < NR_ROWS; i++ ) {
+        assertEquals( "row " + i + ", column " + column, rows.get( i )[column], columns[column][i] );
+      }
+    }
+  }
+
+  @Test
+  public void testDictionaryIsSmaller() throws Exception {
+    RowMetaInterface stringMeta = new RowMeta();
+    stringMeta.addValueMeta( new ValueMetaString( "region" ) );
+    List<Object[]> fewValues = new ArrayList<Object[]>();
+    List<Object[]> manyValues = new ArrayList<Object[]>();
+    for ( int i = 0; i < NR_ROWS; i++ ) {
+      fewValues.add( new Object[] { "region" + ( i % 4 ) + "-with-a-longer-name" } );
+      manyValues.add( new Object[] { "region" + i + "-with-a-longer-name" } );
+    }
+    ByteBuffer dictionary = ByteBuffer.wrap( StreamingSegmentCodec.encode( stringMeta, ids, times, fewValues ) );
+    ByteBuffer values = ByteBuffer.wrap( StreamingSegmentCodec.encode( stringMeta, ids, times, manyValues ) );
+    assertTrue( dictionary.capacity() < values.capacity() );
+
+    Object[][] columns = StreamingSegmentCodec.decodeColumns( dictionary, stringMeta );
+    for ( int i = 0; i < NR_ROWS; i++ ) {
+      assertEquals( fewValues.get( i )[0], columns[0][i] );
+    }
+    columns = StreamingSegmentCodec.decodeColumns( values, stringMeta );
+    for ( int i = 0; i < NR_ROWS; i++ ) {
+      assertEquals( manyValues.get( i )[0], columns[0][i] );
+    }
+  }
+
+  @Test
+  public void testShortRows() throws Exception {
+    List<Object[]> shortRows = new ArrayList<Object[]>();
+    for ( int i = 0; i < NR_ROWS; i++ ) {
+      shortRows.add( i % 2 == 0 ? new Object[] { "region" } : null );
+    }
+    ByteBuffer segment = ByteBuffer.wrap( StreamingSegmentCodec.encode( rowMeta, ids, times, shortRows ) );
+
+    Object[][] columns = StreamingSegmentCodec.decodeColumns( segment, rowMeta );
+    for ( int i = 0; i < NR_ROWS; i++ ) {
+      assertEquals( i % 2 == 0 ? "region" : null, columns[0][i] );
+      for ( int column = 1; column < columns.length; column++ ) {
+        assertNull( columns[column][i] );
+      }
+    }
+  }
+
+  @Test
+  public void testSingleRowInDirectBuffer() throws Exception {
+    byte[] encoded = StreamingSegmentCodec.encode( rowMeta, new long[] { 42L }, new long[] { 1234L }, rows.subList( 1, 2 ) );
+    ByteBuffer segment = ByteBuffer.allocateDirect( encoded.length );
+    segment.put( encoded );
+
+    assertEquals( 1, StreamingSegmentCodec.getNrRows( segment ) );
+    long[][] idsAndTimes = StreamingSegmentCodec.decodeIdsAndTimes( segment );
+    assertEquals( 42L, idsAndTimes[0][0] );
+    assertEquals( 1234L, idsAndTimes[1][0] );
+    Object[][] columns = StreamingSegmentCodec.decodeColumns( segment, rowMeta );
+    for ( int column = 0; column < columns.length; column++ ) {
+      assertEquals( rows.get( 1 )[column], columns[column][0] );
+    }
+  }
+}
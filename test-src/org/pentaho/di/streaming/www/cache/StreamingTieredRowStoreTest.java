@@ -0,0 +1,164 @@
+package org.pentaho.di.streaming.www.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class StreamingTieredRowStoreTest {
+  private RowMetaInterface rowMeta;
+  private File parent;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+
+    parent = File.createTempFile( "streaming-tiered-test", "" );
+    parent.delete();
+    parent.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    delete( parent );
+  }
+
+  private static void delete( File file ) {
+    File[] files = file.listFiles();
+    if ( files != null ) {
+      for ( File child : files ) {
+        delete( child );
+      }
+    }
+    file.delete();
+  }
+
+  private static void add( StreamingRowStore store, long from, long to ) {
+    for ( long id = from; id < to; id++ ) {
+      store.add( new StreamingTimedNumberedRow( id, 1000L + id / 4, new Object[] { id, "region" + ( id % 3 ) } ) );
+    }
+  }
+
+  private static void assertRows( StreamingRowStore store, long firstId ) {
+    for ( long position = store.getFirstPosition(); position < store.getLastPosition(); position++ ) {
+      long id = firstId + position - store.getFirstPosition();
+      StreamingTimedNumberedRow row = store.get( position );
+      assertEquals( id, row.getId() );
+      assertEquals( 1000L + id / 4, row.getTime() );
+      assertEquals( Long.valueOf( id ), row.getRow()[0] );
+      assertEquals( "region" + ( id % 3 ), row.getRow()[1] );
+      assertEquals( position, store.positionOfId( id ) );
+    }
+  }
+
+  @Test
+  public void testRowsAcrossTiers() {
+    StreamingTieredRowStore store = new StreamingTieredRowStore( rowMeta, -1, 100, parent.getPath() );
+    add( store, 0, 30000 );
+
+    assertEquals( 30000, store.size() );
+    assertTrue( store.getDiskSize() >= 2 * StreamingTieredRowStore.SEGMENT_ROWS );
+    assertTrue( store.getDiskBytes() > 0 );
+    assertRows( store, 0 );
+    assertEquals( 0L, store.positionOfTime( 0L ) );
+    assertEquals( 4000L, store.positionOfTime( 2000L ) );
+    assertEquals( 29996L, store.positionOfTime( 1000L + 29999 / 4 ) );
+    assertEquals( 30000L, store.positionOfTime( 100000L ) );
+    store.clear();
+  }
+
+  @Test
+  public void testMaxSizeEvictsFromDisk() {
+    StreamingTieredRowStore store = new StreamingTieredRowStore( rowMeta, 10000, 100, parent.getPath() );
+    add( store, 0, 30000 );
+
+    assertEquals( 10000, store.size() );
+    assertEquals( 20000L, store.getFirstPosition() );
+    assertRows( store, 20000 );
+    store.clear();
+  }
+
+  @Test
+  public void testRemoveBytesMovesRowsToDisk() {
+    StreamingTieredRowStore store = new StreamingTieredRowStore( rowMeta, -1, 100000, parent.getPath() );
+    add( store, 0, 5000 );
+    assertEquals( 0L, store.getDiskSize() );
+    long byteSize = store.getByteSize();
+
+    long freed = store.removeBytes( byteSize );
+    assertTrue( freed > 0 );
+    assertEquals( byteSize - freed, store.getByteSize() );
+
+    // No row is lost, the newest is kept in memory
+    //
+    assertEquals( 5000, store.size() );
+    assertEquals( 4999L, store.getDiskSize() );
+    assertRows( store, 0 );
+    store.clear();
+  }
+
+  @Test
+  public void testRemoveBytesKeepsTheDiskTier() {
+    StreamingTieredRowStore store = new StreamingTieredRowStore( rowMeta, -1, 100, parent.getPath() );
+    int nrRows = 2 * StreamingTieredRowStore.SEGMENT_ROWS + 600;
+    add( store, 0, nrRows );
+    long diskSize = store.getDiskSize();
+    assertEquals( nrRows - 600, diskSize );
+
+    // Too few rows in memory to seal a segment: the store stays over budget
+    //
+    assertEquals( 0L, store.removeBytes( Long.MAX_VALUE ) );
+    assertEquals( nrRows, store.size() );
+    assertEquals( diskSize, store.getDiskSize() );
+
+    add( store, nrRows, nrRows + StreamingTieredRowStore.MIN_SEGMENT_ROWS );
+    assertTrue( store.removeBytes( Long.MAX_VALUE ) > 0 );
+    assertEquals( 0L, store.getFirstPosition() );
+    assertEquals( nrRows + StreamingTieredRowStore.MIN_SEGMENT_ROWS, store.size() );
+    assertEquals( store.size() - 1, store.getDiskSize() );
+    assertRows( store, 0 );
+    store.clear();
+  }
+
+  @Test
+  public void testClearRemovesTheSegmentFiles() {
+    StreamingTieredRowStore store = new StreamingTieredRowStore( rowMeta, -1, 100, parent.getPath() );
+    add( store, 0, 20000 );
+    assertEquals( 1, parent.list().length );
+
+    store.clear();
+    assertEquals( 0, store.size() );
+    assertEquals( 0, parent.list().length );
+  }
+
+  @Test
+  public void testAbandonedDirectoriesAreRemoved() throws Exception {
+    File abandoned = new File( parent, "streaming-tier-abandoned" );
+    abandoned.mkdirs();
+    assertTrue( new File( abandoned, "segment-0.bin" ).createNewFile() );
+    File other = new File( parent, "other" );
+    other.mkdirs();
+
+    StreamingTieredRowStore store = new StreamingTieredRowStore( rowMeta, -1, 100, parent.getPath() );
+    assertFalse( abandoned.exists() );
+    assertTrue( other.exists() );
+
+    // A folder in use isn't removed
+    //
+    add( store, 0, 20000 );
+    StreamingTieredRowStore.removeAbandonedDirectories( parent );
+    assertRows( store, 0 );
+    store.clear();
+  }
+}